@@ -82,6 +82,8 @@ class ISAPIHandler(BaseHTTPRequestHandler):
         
         if '/ISAPI/System/deviceInfo' in self.path:
             self.send_device_info()
+        elif '/ISAPI/System/time' in self.path:
+            self.send_time_info()
         else:
             self.send_response(404)
             self.end_headers()
@@ -115,14 +117,32 @@ class ISAPIHandler(BaseHTTPRequestHandler):
         self.end_headers()
         self.wfile.write(xml.encode())
     
+    def send_time_info(self):
+        """返回设备时间（东八区，海康 POSIX 风格时区写法）"""
+        now = datetime.utcnow() + timedelta(hours=8)
+        xml = f'''<?xml version="1.0" encoding="UTF-8"?>
+<Time>
+    <timeMode>manual</timeMode>
+    <localTime>{now.strftime('%Y-%m-%dT%H:%M:%S')}+08:00</localTime>
+    <timeZone>CST-8:00:00</timeZone>
+</Time>'''
+        self.send_response(200)
+        self.send_header('Content-Type', 'application/xml')
+        self.end_headers()
+        self.wfile.write(xml.encode())
+    
     def send_search_response(self, request_body):
         """返回录像搜索结果"""
         # 解析请求中的时间范围
         start_match = re.search(r'<startTime>([^<]+)</startTime>', request_body)
         end_match = re.search(r'<endTime>([^<]+)</endTime>', request_body)
         track_match = re.search(r'<trackID>([^<]+)</trackID>', request_body)
+        max_match = re.search(r'<maxResults>(\d+)</maxResults>', request_body)
+        pos_match = re.search(r'<searchResultPosition>(\d+)</searchResultPosition>', request_body)
         
         track_id = track_match.group(1) if track_match else '101'
+        max_results = int(max_match.group(1)) if max_match else 100
+        position = int(pos_match.group(1)) if pos_match else 0
         
         # 生成模拟的录像记录
         items = []
@@ -133,11 +153,11 @@ class ISAPIHandler(BaseHTTPRequestHandler):
                 start_time = datetime.strptime(start_str, '%Y-%m-%dT%H:%M:%S')
                 end_time = datetime.strptime(end_str, '%Y-%m-%dT%H:%M:%S')
                 
-                # 每20分钟生成一个录像记录
+                # 每5分钟生成一个录像记录（最多 500 条，按 maxResults/searchResultPosition 分页返回）
                 current = start_time
                 index = 0
-                while current < end_time and index < 10:
-                    rec_end = min(current + timedelta(minutes=20), end_time)
+                while current < end_time and index < 500:
+                    rec_end = min(current + timedelta(minutes=5), end_time)
                     
                     # 模拟的下载路径
                     playback_uri = f"rtsp://localhost/Streaming/tracks/{track_id}?starttime={current.strftime('%Y%m%dT%H%M%S')}Z"
@@ -162,11 +182,15 @@ class ISAPIHandler(BaseHTTPRequestHandler):
             except Exception as e:
                 print(f"解析时间失败: {e}")
         
+        total = len(items)
+        items = items[position:position + max_results]
+        status = 'MORE' if position + len(items) < total else ('OK' if total else 'NO MATCHES')
+        
         xml = f'''<?xml version="1.0" encoding="UTF-8"?>
 <CMSearchResult>
     <searchID>mock-search-{int(time.time())}</searchID>
     <responseStatus>true</responseStatus>
-    <responseStatusStrg>OK</responseStatusStrg>
+    <responseStatusStrg>{status}</responseStatusStrg>
     <numOfMatches>{len(items)}</numOfMatches>
     <matchList>{"".join(items)}
     </matchList>
@@ -176,7 +200,7 @@ class ISAPIHandler(BaseHTTPRequestHandler):
         self.send_header('Content-Type', 'application/xml')
         self.end_headers()
         self.wfile.write(xml.encode())
-        print(f"[搜索] 返回 {len(items)} 条模拟录像记录")
+        print(f"[搜索] 返回 {len(items)} 条模拟录像记录 (position={position}, 共 {total} 条, {status})")
 
 def main():
     server = HTTPServer((HOST, PORT), ISAPIHandler)
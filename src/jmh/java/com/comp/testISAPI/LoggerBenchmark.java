@@ -0,0 +1,45 @@
+package com.comp.testISAPI;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 日志调用方的开销（Logger.info/debug）
+ * - debugDisabled: 级别未开启时只有级别判断和可变参数数组
+ * - infoFormatted: String.format + 入队；写线程跟不上时按 LOG_OVERFLOW_POLICY 阻塞或丢弃
+ * 通过 mvn -P benchmarks exec:exec 运行时 LOG_CONSOLE=false、LOG_LEVEL=INFO，日志文件写到 target/benchmarks/jmh/log
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerBenchmark {
+
+    private static final Logger log = Logger.getLogger(LoggerBenchmark.class);
+
+    private final String label = "URI 3/12(搜索结果), HTTP POST";
+    private long bytes = 134217728L;
+
+    @Setup
+    public void setUp() {
+        Logger.setLevel(Logger.Level.INFO);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Logger.close();
+    }
+
+    @Benchmark
+    public void debugDisabled() {
+        log.debug("[ISAPI HTTP] %s 进度: %.2f MB", label, bytes / 1024.0 / 1024.0);
+    }
+
+    @Benchmark
+    public void infoFormatted() {
+        log.info("[ISAPI HTTP] %s 进度: %.2f MB", label, ++bytes / 1024.0 / 1024.0);
+    }
+}
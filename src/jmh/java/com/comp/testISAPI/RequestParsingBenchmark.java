@@ -0,0 +1,158 @@
+package com.comp.testISAPI;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求处理中的小函数：表单解析、下载请求 XML 构造、设备时区解析
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+
+    private static final String PLAYBACK_URI = "rtsp://192.168.1.64/Streaming/tracks/101/?starttime=20240301T000000Z"
+            + "&endtime=20240301T000500Z&name=ch01_08000000001000&size=268435456";
+    private static final byte[] FORM_BODY = ("deviceIp=192.168.1.64&port=80&username=admin&password=Adm%21n%40123"
+            + "&channelId=101&startTime=2024-03-01T00%3A00&endTime=2024-03-01T04%3A00"
+            + "&downloadMode=file&parallelism=4&clientTimezoneOffsetMinutes=-480")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Benchmark
+    public Map<String, String> parseFormData() throws IOException {
+        return ISAPIWebServer.parseFormData(new FormExchange(FORM_BODY));
+    }
+
+    @Benchmark
+    public String escapeXmlText() {
+        return ISAPIWebServer.escapeXmlText(PLAYBACK_URI);
+    }
+
+    @Benchmark
+    public String buildSimpleDownloadXml() {
+        return ISAPIWebServer.buildSimpleDownloadXml(PLAYBACK_URI);
+    }
+
+    // 海康 POSIX 风格时区（CST-8:00:00 表示 UTC+8）
+    @Benchmark
+    public ZoneId parseDeviceZonePosix() {
+        return ISAPIWebServer.parseDeviceZone("CST-8:00:00", "2024-03-01T08:00:00");
+    }
+
+    // localTime 自带偏移时直接取偏移
+    @Benchmark
+    public ZoneId parseDeviceZoneOffset() {
+        return ISAPIWebServer.parseDeviceZone("CST-8:00:00", "2024-03-01T08:00:00+08:00");
+    }
+
+    /**
+     * 只提供请求体的 HttpExchange
+     */
+    private static final class FormExchange extends HttpExchange {
+        private final InputStream body;
+        private final Headers headers = new Headers();
+
+        FormExchange(byte[] body) {
+            this.body = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return headers;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return headers;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return URI.create("/api/download");
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return "POST";
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return body;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return -1;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.comp.testISAPI;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 录像检索结果解析（ISAPIWebServer.parseResponse）
+ * 报文按海康 NVR 的实际格式构造：带命名空间、timeSpan 嵌套、playbackURI 带 name/size 参数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchParseBenchmark {
+
+    private static final DateTimeFormatter ISO = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    private static final DateTimeFormatter RTSP = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    @Param({"100", "1000"})
+    int items;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        StringBuilder xml = new StringBuilder(items * 900);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<CMSearchResult version=\"2.0\" xmlns=\"http://www.hikvision.com/ver20/XMLSchema\">\n")
+                .append("<searchID>C8D2A3F1-6B5E-4A1C-9D7E-2F3A4B5C6D7E</searchID>\n")
+                .append("<responseStatus>true</responseStatus>\n")
+                .append("<responseStatusStrg>MORE</responseStatusStrg>\n")
+                .append("<numOfMatches>").append(items).append("</numOfMatches>\n")
+                .append("<matchList>\n");
+        LocalDateTime start = LocalDateTime.of(2024, 3, 1, 0, 0, 0);
+        for (int i = 0; i < items; i++) {
+            LocalDateTime begin = start.plusMinutes(5L * i);
+            LocalDateTime end = begin.plusMinutes(5);
+            String playbackUri = "rtsp://192.168.1.64/Streaming/tracks/101/?starttime=" + RTSP.format(begin)
+                    + "&amp;endtime=" + RTSP.format(end) + "&amp;name=ch01_0800000000" + (1000 + i)
+                    + "&amp;size=" + (268435456 + i * 1024);
+            xml.append("<searchMatchItem>\n")
+                    .append("<sourceID>{0000000000-0000-0000-0000-000000000000}</sourceID>\n")
+                    .append("<trackID>101</trackID>\n")
+                    .append("<timeSpan>\n")
+                    .append("<startTime>").append(ISO.format(begin)).append("</startTime>\n")
+                    .append("<endTime>").append(ISO.format(end)).append("</endTime>\n")
+                    .append("</timeSpan>\n")
+                    .append("<mediaSegmentDescriptor>\n")
+                    .append("<contentType>video</contentType>\n")
+                    .append("<codecType>H.264-BP</codecType>\n")
+                    .append("<playbackURI>").append(playbackUri).append("</playbackURI>\n")
+                    .append("</mediaSegmentDescriptor>\n")
+                    .append("<metadataMatches>\n")
+                    .append("<metadataDescriptor>recordType.meta.std-cgi.com/CMR</metadataDescriptor>\n")
+                    .append("</metadataMatches>\n")
+                    .append("</searchMatchItem>\n");
+        }
+        xml.append("</matchList>\n</CMSearchResult>\n");
+        payload = xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public ISAPIWebServer.SearchPage parseResponse() throws IOException {
+        return ISAPIWebServer.parseResponse(new ByteArrayInputStream(payload));
+    }
+}
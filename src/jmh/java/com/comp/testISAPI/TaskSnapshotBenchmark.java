@@ -0,0 +1,70 @@
+package com.comp.testISAPI;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 任务快照（ISAPIWebServer.buildTaskSnapshot），/api/download-status 轮询和 SSE 推送都依赖它
+ * 任务按最坏情况构造：日志缓冲已满、48 个分段、50 条已尝试 URL
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskSnapshotBenchmark {
+
+    private final ObjectMapper json = new ObjectMapper();
+    private ISAPIWebServer.DownloadTask task;
+
+    @Setup
+    public void setUp() {
+        task = new ISAPIWebServer.DownloadTask();
+        task.taskId = "bench0001";
+        task.status = "downloading";
+        task.downloadMode = "file";
+        task.total = 48;
+        task.parallelism = 4;
+        task.current.set(30);
+        task.success.set(28);
+        task.failed.set(1);
+        task.currentFile = "ch101_20240301_020000_020500_29.mp4";
+        task.requestedMethod = "isapi-http";
+        task.effectiveMethod = "isapi-http";
+        task.deviceTimeZone = "CST-8:00:00";
+        task.normalizedStart = "2024-03-01T00:00:00Z";
+        task.normalizedEnd = "2024-03-01T04:00:00Z";
+        for (int i = 0; i < 48; i++) {
+            String fileName = String.format("ch101_20240301_%02d%02d00_%02d.mp4", i / 12, (i % 12) * 5, i);
+            ISAPIWebServer.SegmentProgress seg = new ISAPIWebServer.SegmentProgress(i, fileName, 268435456L);
+            seg.status = i < 28 ? "completed" : i < 30 ? "downloading" : "pending";
+            seg.bytes = i < 28 ? 268435456L : i < 30 ? 134217728L : 0;
+            task.segments.add(seg);
+            if (i < 28) {
+                task.downloadedFiles.add(fileName);
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            task.attemptedUrls.add("http://192.168.1.64:80/ISAPI/ContentMgmt/download?playbackURI=rtsp://192.168.1.64/Streaming/tracks/101/?starttime=20240301T"
+                    + String.format("%02d%02d00Z", i / 12, (i % 12) * 5));
+        }
+        // 超过 MAX_TASK_LOG_LINES 后只保留尾部，保证缓冲区是满的
+        for (int i = 0; i < 2000; i++) {
+            ISAPIWebServer.addTaskLog(task, String.format("URI %d/%d(搜索结果), HTTP POST 响应: HTTP 200, Content-Type: video/mp2p", i % 48 + 1, 48));
+        }
+    }
+
+    @Benchmark
+    public Map<String, Object> snapshot() {
+        return ISAPIWebServer.buildTaskSnapshot(task);
+    }
+
+    @Benchmark
+    public byte[] snapshotJson() throws Exception {
+        return json.writeValueAsBytes(ISAPIWebServer.buildTaskSnapshot(task));
+    }
+}
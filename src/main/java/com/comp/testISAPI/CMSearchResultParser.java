@@ -0,0 +1,204 @@
+package com.comp.testISAPI;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * CMSearchResult 流式解析器（StAX）
+ * - 边读边解析，每读完一个 searchMatchItem 立即回调，不构建 DOM
+ * - 可直接读取 HTTP 响应流，无需先把整个响应体读成字符串
+ * - XMLInputFactory 全局复用，并禁用 DTD / 外部实体
+ * - 按元素本地名匹配，兼容带或不带命名空间的响应
+ */
+public final class CMSearchResultParser {
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    /**
+     * 单条录像记录（字段与 searchMatchItem 中的元素对应，缺失时为空串）
+     */
+    public static final class Item {
+        public String trackId = "";
+        public String startTime = "";
+        public String endTime = "";
+        public String eventType = "";
+        public String downloadPath = "";
+        public String playbackURI = "";
+        public long contentLength;
+    }
+
+    public interface ItemListener {
+        void onItem(Item item);
+    }
+
+    /**
+     * 整页的汇总信息
+     */
+    public static final class Result {
+        public String responseStatus = ""; // OK / MORE / NO MATCHES
+        public int numOfMatches = -1;
+        public int itemCount;
+    }
+
+    private CMSearchResultParser() {
+    }
+
+    public static Result parse(InputStream in, ItemListener listener) throws IOException {
+        try {
+            return parse(FACTORY.createXMLStreamReader(in), listener);
+        } catch (XMLStreamException e) {
+            throw new IOException("解析搜索结果失败: " + e.getMessage(), e);
+        }
+    }
+
+    public static Result parse(Reader in, ItemListener listener) throws IOException {
+        try {
+            return parse(FACTORY.createXMLStreamReader(in), listener);
+        } catch (XMLStreamException e) {
+            throw new IOException("解析搜索结果失败: " + e.getMessage(), e);
+        }
+    }
+
+    private static Result parse(XMLStreamReader reader, ItemListener listener) throws XMLStreamException {
+        Result result = new Result();
+        boolean statusSeen = false;
+        boolean matchesSeen = false;
+        Item item = null;
+        int itemDepth = 0;
+        int depth = 0;
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    if (item != null && depth < itemDepth) {
+                        result.itemCount++;
+                        listener.onItem(item);
+                        item = null;
+                    }
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                depth++;
+                String name = reader.getLocalName();
+
+                if (item == null) {
+                    if ("searchMatchItem".equals(name)) {
+                        item = new Item();
+                        itemDepth = depth;
+                    } else if (!statusSeen && "responseStatusStrg".equals(name)) {
+                        result.responseStatus = readText(reader);
+                        statusSeen = true;
+                        depth--;
+                    } else if (!matchesSeen && "numOfMatches".equals(name)) {
+                        result.numOfMatches = parseInt(readText(reader), -1);
+                        matchesSeen = true;
+                        depth--;
+                    }
+                    continue;
+                }
+
+                // 与 DOM getElementsByTagName 一致：同名元素只取第一个
+                if (readItemField(reader, name, item)) {
+                    depth--; // readText 已消费该元素的 END_ELEMENT
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    private static boolean readItemField(XMLStreamReader reader, String name, Item item) throws XMLStreamException {
+        switch (name) {
+            case "trackID":
+                if (!item.trackId.isEmpty()) return false;
+                item.trackId = readText(reader);
+                return true;
+            case "startTime":
+                if (!item.startTime.isEmpty()) return false;
+                item.startTime = readText(reader);
+                return true;
+            case "endTime":
+                if (!item.endTime.isEmpty()) return false;
+                item.endTime = readText(reader);
+                return true;
+            case "eventType":
+                if (!item.eventType.isEmpty()) return false;
+                item.eventType = readText(reader);
+                return true;
+            case "downloadPath":
+                if (!item.downloadPath.isEmpty()) return false;
+                item.downloadPath = readText(reader);
+                return true;
+            case "playbackURI":
+                if (!item.playbackURI.isEmpty()) return false;
+                item.playbackURI = readText(reader);
+                return true;
+            case "contentLength":
+                if (item.contentLength != 0) return false;
+                item.contentLength = parseLong(readText(reader));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // 读取当前元素（含子元素）的全部文本，返回时 reader 停在该元素的 END_ELEMENT
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder sb = new StringBuilder();
+        int nested = 1;
+        while (nested > 0 && reader.hasNext()) {
+            int event = reader.next();
+            switch (event) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    sb.append(reader.getText());
+                    break;
+                case XMLStreamConstants.START_ELEMENT:
+                    nested++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    nested--;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int parseInt(String text, int defaultValue) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static long parseLong(String text) {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+}
@@ -0,0 +1,157 @@
+package com.comp.testISAPI;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 设备协议能力缓存
+ * - 记录每台设备（deviceIp:port）上次成功的搜索 XML 格式、下载方法等
+ * - 下次请求优先尝试缓存的方法，避免每次都走完整的回退链路
+ * - 条目带 TTL；缓存的方法失败时立即失效，重新走回退链路学习
+ */
+public class DeviceCapabilityCache {
+
+    private static final Logger log = Logger.getLogger(DeviceCapabilityCache.class);
+
+    /** 录像搜索 CMSearchDescription 格式序号 */
+    public static final String SEARCH_FORMAT = "searchFormat";
+    /** 流式下载（downloadStream）方法序号 */
+    public static final String STREAM_METHOD = "streamMethod";
+    /** ISAPI HTTP 精确时间段下载的请求变体（如 POST+token） */
+    public static final String HTTP_DOWNLOAD_METHOD = "httpDownloadMethod";
+
+    private static class Entry {
+        final String value;
+        final long learnedAt;
+        final long expiresAt;
+
+        Entry(String value, long learnedAt, long expiresAt) {
+            this.value = value;
+            this.learnedAt = learnedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    public DeviceCapabilityCache(long ttl, TimeUnit unit) {
+        this.ttlMillis = unit.toMillis(ttl);
+    }
+
+    /**
+     * 查询缓存的能力值，未命中或已过期返回 null
+     */
+    public String get(String deviceKey, String capability) {
+        if (ttlMillis <= 0) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        String key = key(deviceKey, capability);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return entry.value;
+    }
+
+    public int getInt(String deviceKey, String capability, int defaultValue) {
+        String value = get(deviceKey, capability);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 记录成功的能力值（值未变化时仅刷新 TTL）
+     */
+    public void remember(String deviceKey, String capability, Object value) {
+        if (ttlMillis <= 0 || value == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Entry previous = entries.put(key(deviceKey, capability), new Entry(String.valueOf(value), now, now + ttlMillis));
+        if (previous == null || !previous.value.equals(String.valueOf(value))) {
+            log.info("[能力缓存] %s %s = %s", deviceKey, capability, value);
+        }
+    }
+
+    /**
+     * 缓存的能力值失败时调用；仅当当前缓存值仍为 value 时才移除，避免误删其他线程刚学到的新值
+     */
+    public void invalidate(String deviceKey, String capability, Object value) {
+        String key = key(deviceKey, capability);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.value.equals(String.valueOf(value)) && entries.remove(key, entry)) {
+            invalidationCount.incrementAndGet();
+            log.info("[能力缓存] %s %s = %s 已失效", deviceKey, capability, value);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        long now = System.currentTimeMillis();
+        long hits = hitCount.get();
+        long misses = missCount.get();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("ttlSeconds", TimeUnit.MILLISECONDS.toSeconds(ttlMillis));
+        map.put("hits", hits);
+        map.put("misses", misses);
+        map.put("hitRatio", hits + misses > 0 ? (double) hits / (hits + misses) : 0.0);
+        map.put("invalidations", invalidationCount.get());
+
+        Map<String, Map<String, Object>> devices = new TreeMap<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.expiresAt <= now) {
+                continue;
+            }
+            int sep = e.getKey().lastIndexOf('|');
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("value", entry.value);
+            item.put("ageSeconds", TimeUnit.MILLISECONDS.toSeconds(now - entry.learnedAt));
+            item.put("expiresInSeconds", TimeUnit.MILLISECONDS.toSeconds(entry.expiresAt - now));
+            devices.computeIfAbsent(e.getKey().substring(0, sep), k -> new TreeMap<>())
+                    .put(e.getKey().substring(sep + 1), item);
+        }
+        map.put("devices", devices);
+        return map;
+    }
+
+    /**
+     * 清空指定设备（deviceKey 为 null 时清空全部）
+     */
+    public int clear(String deviceKey) {
+        int removed = 0;
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (deviceKey == null || key.startsWith(deviceKey + "|")) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static String key(String deviceKey, String capability) {
+        return deviceKey + "|" + capability;
+    }
+}
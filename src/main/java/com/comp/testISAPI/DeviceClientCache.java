@@ -0,0 +1,143 @@
+package com.comp.testISAPI;
+
+import okhttp3.OkHttpClient;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 设备 HTTP 客户端缓存
+ * - 每组（设备 IP, 用户名, 密码）一个带 Digest 认证器的客户端，复用抢先认证的 nonce
+ * - 键为三者的 SHA-256，内存中不保留明文密码
+ * - 条目数超过上限时淘汰最久未使用的，空闲超过 idle 时间的在访问或定期清理时淘汰
+ * 客户端都从 HttpTransport 派生，连接池和线程池是共用的，淘汰时不需要关闭；
+ * 正在使用被淘汰客户端的下载不受影响，下次请求会重新创建并重新质询
+ */
+public class DeviceClientCache {
+
+    private static final Logger log = Logger.getLogger(DeviceClientCache.class);
+
+    private static class Entry {
+        final OkHttpClient client;
+        final String deviceIp;
+        final long createdAt = System.currentTimeMillis();
+        volatile long lastUsedAt = createdAt;
+
+        Entry(OkHttpClient client, String deviceIp) {
+            this.client = client;
+            this.deviceIp = deviceIp;
+        }
+    }
+
+    private final int maxEntries;
+    private final long idleMillis;
+    // 访问顺序，最久未使用的在最前面
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong sizeEvictions = new AtomicLong();
+    private final AtomicLong idleEvictions = new AtomicLong();
+
+    public DeviceClientCache(int maxEntries, long idleTimeout, TimeUnit unit) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.idleMillis = unit.toMillis(idleTimeout);
+    }
+
+    public OkHttpClient get(String deviceIp, String username, String password, Supplier<OkHttpClient> factory) {
+        String key = key(deviceIp, username, password);
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && idleMillis > 0 && now - entry.lastUsedAt > idleMillis) {
+                entries.remove(key);
+                idleEvictions.incrementAndGet();
+                entry = null;
+            }
+            if (entry != null) {
+                entry.lastUsedAt = now;
+                hitCount.incrementAndGet();
+                return entry.client;
+            }
+            missCount.incrementAndGet();
+            entry = new Entry(factory.get(), deviceIp);
+            entries.put(key, entry);
+            while (entries.size() > maxEntries) {
+                Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+                Entry eldest = it.next().getValue();
+                it.remove();
+                sizeEvictions.incrementAndGet();
+                log.debug("[客户端缓存] 超过上限 %d，淘汰设备 %s 的客户端", maxEntries, eldest.deviceIp);
+            }
+            return entry.client;
+        }
+    }
+
+    /**
+     * 淘汰空闲超时的客户端，返回淘汰数量（由定期清理任务调用）
+     */
+    public int evictIdle() {
+        if (idleMillis <= 0) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        int removed = 0;
+        synchronized (entries) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().lastUsedAt < cutoff) {
+                    it.remove();
+                    removed++;
+                }
+            }
+        }
+        idleEvictions.addAndGet(removed);
+        return removed;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public Map<String, Long> evictionStats() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("size", sizeEvictions.get());
+        map.put("idle", idleEvictions.get());
+        return map;
+    }
+
+    public Map<String, Object> stats() {
+        long now = System.currentTimeMillis();
+        Map<String, Integer> devices = new TreeMap<>();
+        long oldestIdleMillis = 0;
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+            for (Entry entry : entries.values()) {
+                devices.merge(entry.deviceIp, 1, Integer::sum);
+                oldestIdleMillis = Math.max(oldestIdleMillis, now - entry.lastUsedAt);
+            }
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("size", size);
+        map.put("maxEntries", maxEntries);
+        map.put("idleTimeoutSeconds", TimeUnit.MILLISECONDS.toSeconds(idleMillis));
+        map.put("hits", hitCount.get());
+        map.put("misses", missCount.get());
+        map.put("sizeEvictions", sizeEvictions.get());
+        map.put("idleEvictions", idleEvictions.get());
+        map.put("oldestIdleSeconds", TimeUnit.MILLISECONDS.toSeconds(oldestIdleMillis));
+        map.put("clientsPerDevice", devices);
+        return map;
+    }
+
+    // 设备地址 + 账号 + 密码的摘要：同一账号共用一个客户端；录像索引和设备时间缓存也按它区分，不同凭据互不命中
+    static String key(String deviceIp, String username, String password) {
+        return DigestUtils.sha256Hex(deviceIp + '\u0000' + username + '\u0000' + password);
+    }
+}
@@ -0,0 +1,207 @@
+package com.comp.testISAPI;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 设备时间 / 时区缓存
+ * - 每台设备（deviceIp:port）的每组凭据缓存一次 /ISAPI/System/time 的结果，避免每个搜索/下载请求都多一次 Digest 往返；
+ *   凭据不同的请求互不命中，错误的密码拿不到用正确密码获取的设备时间
+ * - 超过 TTL 后仍先返回旧值，同时在后台刷新；超过 2 倍 TTL 才同步重新获取
+ * - 获取失败（设备不可达 / 认证失败 / 时区无法解析）按较短的 failureTtl 缓存，期间直接返回 null，
+ *   避免离线设备让每个请求都等一次超时；后台刷新失败不覆盖仍可用的旧值
+ */
+public class DeviceTimeCache {
+
+    private static final Logger log = Logger.getLogger(DeviceTimeCache.class);
+
+    private static class Entry {
+        final String deviceKey;
+        final String credential;
+        final ISAPIWebServer.DeviceTimeInfo info; // null 表示获取失败（负缓存）
+        final long fetchedAt;
+
+        Entry(String deviceKey, String credential, ISAPIWebServer.DeviceTimeInfo info, long fetchedAt) {
+            this.deviceKey = deviceKey;
+            this.credential = credential;
+            this.info = info;
+            this.fetchedAt = fetchedAt;
+        }
+
+        boolean failed() {
+            return info == null;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long failureTtlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final ExecutorService refresher = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "device-time-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong staleHitCount = new AtomicLong();
+    private final AtomicLong negativeHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong refreshFailureCount = new AtomicLong();
+
+    public DeviceTimeCache(long ttl, TimeUnit unit) {
+        this(ttl, 0, unit);
+    }
+
+    public DeviceTimeCache(long ttl, long failureTtl, TimeUnit unit) {
+        this.ttlMillis = unit.toMillis(ttl);
+        this.failureTtlMillis = Math.min(unit.toMillis(failureTtl), this.ttlMillis);
+    }
+
+    /**
+     * 获取设备时间信息；loader 返回 null 表示获取失败
+     *
+     * @param credential 凭据摘要（DeviceClientCache.key），缓存按设备 + 凭据区分
+     */
+    public ISAPIWebServer.DeviceTimeInfo get(String deviceKey, String credential,
+                                             Supplier<ISAPIWebServer.DeviceTimeInfo> loader) {
+        if (ttlMillis <= 0) {
+            missCount.incrementAndGet();
+            return loader.get();
+        }
+        String key = deviceKey + "#" + credential;
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.failed()) {
+            if (now - entry.fetchedAt < failureTtlMillis) {
+                negativeHitCount.incrementAndGet();
+                return null;
+            }
+            entries.remove(key, entry);
+        } else if (entry != null) {
+            long age = now - entry.fetchedAt;
+            if (age < ttlMillis) {
+                hitCount.incrementAndGet();
+                return entry.info;
+            }
+            if (age < 2 * ttlMillis) {
+                staleHitCount.incrementAndGet();
+                refreshInBackground(deviceKey, credential, loader);
+                return entry.info;
+            }
+            entries.remove(key, entry);
+        }
+        missCount.incrementAndGet();
+        return load(deviceKey, credential, loader);
+    }
+
+    public Map<String, Object> stats() {
+        long now = System.currentTimeMillis();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("ttlSeconds", TimeUnit.MILLISECONDS.toSeconds(ttlMillis));
+        map.put("hits", hitCount.get());
+        map.put("failureTtlSeconds", TimeUnit.MILLISECONDS.toSeconds(failureTtlMillis));
+        map.put("staleHits", staleHitCount.get());
+        map.put("negativeHits", negativeHitCount.get());
+        map.put("misses", missCount.get());
+        map.put("backgroundRefreshes", refreshCount.get());
+        map.put("refreshFailures", refreshFailureCount.get());
+
+        Map<String, Map<String, Object>> devices = new TreeMap<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            ISAPIWebServer.DeviceTimeInfo info = e.getValue().info;
+            // 只显示凭据摘要的前 8 位
+            String label = e.getValue().deviceKey + "#" + e.getValue().credential.substring(0,
+                    Math.min(8, e.getValue().credential.length()));
+            Map<String, Object> item = new LinkedHashMap<>();
+            if (info == null) {
+                item.put("failed", true);
+                item.put("ageSeconds", TimeUnit.MILLISECONDS.toSeconds(now - e.getValue().fetchedAt));
+                devices.put(label, item);
+                continue;
+            }
+            item.put("timeZone", info.rawTimeZone);
+            item.put("zoneId", info.zoneId != null ? info.zoneId.getId() : null);
+            item.put("clockSkewSeconds", info.clockSkewMillis != null
+                    ? TimeUnit.MILLISECONDS.toSeconds(info.clockSkewMillis) : null);
+            item.put("ageSeconds", TimeUnit.MILLISECONDS.toSeconds(now - e.getValue().fetchedAt));
+            devices.put(label, item);
+        }
+        map.put("devices", devices);
+        return map;
+    }
+
+    /**
+     * 清空指定设备的所有凭据（deviceKey 为 null 时清空全部）
+     */
+    public int clear(String deviceKey) {
+        if (deviceKey != null) {
+            int removed = 0;
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                if (deviceKey.equals(it.next().deviceKey)) {
+                    it.remove();
+                    removed++;
+                }
+            }
+            return removed;
+        }
+        int removed = entries.size();
+        entries.clear();
+        return removed;
+    }
+
+    private ISAPIWebServer.DeviceTimeInfo load(String deviceKey, String credential,
+                                               Supplier<ISAPIWebServer.DeviceTimeInfo> loader) {
+        String key = deviceKey + "#" + credential;
+        ISAPIWebServer.DeviceTimeInfo info = loader.get();
+        if (info != null && info.zoneId != null) {
+            Entry previous = entries.put(key, new Entry(deviceKey, credential, info, System.currentTimeMillis()));
+            if (previous == null || previous.failed() || !Objects.equals(previous.info.zoneId, info.zoneId)) {
+                log.info("[设备时间] %s 时区 %s (%s), 时钟偏差 %s 秒", deviceKey, info.zoneId, info.rawTimeZone,
+                        info.clockSkewMillis != null ? TimeUnit.MILLISECONDS.toSeconds(info.clockSkewMillis) : "未知");
+            }
+        } else if (failureTtlMillis > 0) {
+            // 只在没有可用旧值时记负缓存（后台刷新失败时保留旧值）
+            Entry failure = new Entry(deviceKey, credential, null, System.currentTimeMillis());
+            Entry current = entries.get(key);
+            if (current == null) {
+                entries.putIfAbsent(key, failure);
+            } else if (current.failed()) {
+                entries.replace(key, current, failure);
+            }
+        }
+        return info;
+    }
+
+    // 同一设备（同一凭据）同时只有一个后台刷新
+    private void refreshInBackground(String deviceKey, String credential,
+                                     Supplier<ISAPIWebServer.DeviceTimeInfo> loader) {
+        String key = deviceKey + "#" + credential;
+        if (!refreshing.add(key)) {
+            return;
+        }
+        try {
+            refresher.execute(() -> {
+                try {
+                    refreshCount.incrementAndGet();
+                    ISAPIWebServer.DeviceTimeInfo info = load(deviceKey, credential, loader);
+                    if (info == null || info.zoneId == null) {
+                        refreshFailureCount.incrementAndGet();
+                        log.warn("[设备时间] %s 后台刷新失败，继续使用缓存值", deviceKey);
+                    }
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RuntimeException e) {
+            refreshing.remove(key);
+            log.warn("[设备时间] %s 提交后台刷新失败: %s", deviceKey, e.getMessage());
+        }
+    }
+}
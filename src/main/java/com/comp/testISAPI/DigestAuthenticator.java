@@ -1,6 +1,11 @@
 package com.comp.testISAPI;
 /**
  * build digest not basic by ren
+ *
+ * 同时作为 Authenticator（响应 401 质询）和 Interceptor（抢先认证）使用：
+ * 收到过一次质询后，后续请求直接复用该 nonce 并递增 nc 携带 Authorization，
+ * 省去每个请求的 401 往返；仅在服务端返回 stale=true 或拒绝时才回到质询流程。
+ * 同一实例会被多个下载线程共享，所有可变状态都是原子替换的不可变快照。
  */
 
 import okhttp3.*;
@@ -11,37 +16,101 @@ import java.io.IOException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class DigestAuthenticator implements Authenticator {
+public class DigestAuthenticator implements Authenticator, Interceptor {
     private static final Logger log = Logger.getLogger(DigestAuthenticator.class);
-    
+
     private static final Pattern PARAM_PATTERN = Pattern.compile(
             "(\\w+)\\s*=\\s*\"?([^\",]+)\"?"
     );
 
+    // 全进程的 401 统计（/metrics 输出）：质询次数、其中 nonce 过期次数、认证被拒绝次数
+    private static final LongAdder CHALLENGES = new LongAdder();
+    private static final LongAdder STALE_CHALLENGES = new LongAdder();
+    private static final LongAdder REJECTED = new LongAdder();
+
+    /**
+     * 一次质询的参数快照；nc 属于该 nonce，换 nonce 时随快照一起重置
+     */
+    static final class Challenge {
+        final String host;
+        final int port;
+        final String realm;
+        final String nonce;
+        final String qop;
+        final String algorithm;
+        final String opaque;
+        final AtomicInteger nc = new AtomicInteger();
+
+        Challenge(HttpUrl url, Map<String, String> params) {
+            this.host = url.host();
+            this.port = url.port();
+            this.realm = params.get("realm");
+            this.nonce = params.get("nonce");
+            this.qop = params.getOrDefault("qop", "auth");
+            this.algorithm = params.get("algorithm");
+            this.opaque = params.get("opaque");
+        }
+
+        boolean appliesTo(HttpUrl url) {
+            return host.equals(url.host()) && port == url.port();
+        }
+    }
+
     private final String username;
     private final String password;
-    private String nonce;
-    private String realm;
-    private String qop = "auth";
-    private int nc = 0;
+    private final boolean preemptive;
     private final String cnonce = generateCnonce();
-    private final Map<String, String> lastAuthParams = new HashMap<>();
+    private final AtomicReference<Challenge> challenge = new AtomicReference<>();
+    private final Map<String, String> ha1ByRealm = new ConcurrentHashMap<>();
 
     public DigestAuthenticator(String username, String password) {
+        this(username, password, true);
+    }
+
+    public DigestAuthenticator(String username, String password, boolean preemptive) {
         this.username = username;
         this.password = password;
-        log.debug("[认证] 创建 DigestAuthenticator, 用户: %s", username);
+        this.preemptive = preemptive;
+        log.debug("[认证] 创建 DigestAuthenticator, 用户: %s, 抢先认证: %s", username, preemptive);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Challenge current = challenge.get();
+        if (!preemptive || current == null || request.header("Authorization") != null
+                || !current.appliesTo(request.url())) {
+            return chain.proceed(request);
+        }
+
+        String uri = getUriFromUrl(request.url());
+        Request authorized = request.newBuilder()
+                .header("Authorization", generateAuthHeader(current, request.method(), uri))
+                .build();
+        return chain.proceed(authorized);
+    }
+
+    public static Map<String, Long> challengeStats() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("challenge", CHALLENGES.sum());
+        map.put("stale", STALE_CHALLENGES.sum());
+        map.put("rejected", REJECTED.sum());
+        return map;
     }
 
     @Override
     public Request authenticate(Route route, Response response) throws IOException {
         if (response.code() == 401) {
-            log.debug("[认证] 收到 401 响应，开始 Digest 认证");
-            
+            CHALLENGES.increment();
             String wwwAuthHeader = response.header("WWW-Authenticate");
             if (wwwAuthHeader == null || !wwwAuthHeader.startsWith("Digest")) {
                 log.warn("[认证] 不支持的认证方式: %s", wwwAuthHeader);
@@ -55,22 +124,30 @@ public class DigestAuthenticator implements Authenticator {
             }
             log.debug("[认证] 解析参数: %s", authParams);
 
+            Request prior = response.request();
+            boolean stale = "true".equalsIgnoreCase(authParams.get("stale"));
+            if (prior.header("Authorization") != null && !stale && responseCount(response) > 1) {
+                // 已用最新质询重试过仍被拒绝：凭据错误，不再重试
+                REJECTED.increment();
+                log.warn("[认证] 认证被拒绝 (realm: %s)，请检查用户名/密码", authParams.get("realm"));
+                return null;
+            }
+            log.debug("[认证] 收到 401 响应，%s", stale ? "nonce 已过期，刷新后重试" : "开始 Digest 认证");
+            if (stale) {
+                STALE_CHALLENGES.increment();
+            }
 
-            this.realm = authParams.get("realm");
-            this.nonce = authParams.get("nonce");
-            this.qop = authParams.getOrDefault("qop", "auth");
-            this.lastAuthParams.clear();
-            this.lastAuthParams.putAll(authParams);
-
+            Challenge fresh = new Challenge(prior.url(), authParams);
+            challenge.set(fresh);
 
-            String uri = getUriFromUrl(response.request().url());
-            String method = response.request().method();
-            String authHeader = generateAuthHeader(method, uri);
+            String uri = getUriFromUrl(prior.url());
+            String method = prior.method();
+            String authHeader = generateAuthHeader(fresh, method, uri);
 
-            log.debug("[认证] realm: %s, method: %s", realm != null ? realm : "unknown", method);
+            log.debug("[认证] realm: %s, method: %s", fresh.realm != null ? fresh.realm : "unknown", method);
             log.debug("[认证] 生成 Authorization 头");
-            
-            return response.request().newBuilder()
+
+            return prior.newBuilder()
                     .header("Authorization", authHeader)
                     .build();
         }
@@ -111,47 +188,59 @@ public class DigestAuthenticator implements Authenticator {
         return params;
     }
 
-    private String generateAuthHeader(String method, String uri) {
-        String ha1Input = username + ":" + realm + ":" + password;
-        String ha1 = md5Hex(ha1Input);
+    String generateAuthHeader(Challenge c, String method, String uri) {
+        String ha1 = ha1ByRealm.computeIfAbsent(String.valueOf(c.realm),
+                realm -> md5Hex(username + ":" + realm + ":" + password));
 
         String ha2Input = method + ":" + uri;
         String ha2 = md5Hex(ha2Input);
 
-        String ncValue = String.format("%08x", ++nc);
+        boolean withQop = "auth".equals(c.qop) || "auth-int".equals(c.qop);
+        String ncValue = String.format("%08x", c.nc.incrementAndGet());
 
         String responseInput;
-        if ("auth".equals(qop) || "auth-int".equals(qop)) {
-            responseInput = ha1 + ":" + nonce + ":" + ncValue + ":" + cnonce + ":" + qop + ":" + ha2;
+        if (withQop) {
+            responseInput = ha1 + ":" + c.nonce + ":" + ncValue + ":" + cnonce + ":" + c.qop + ":" + ha2;
         } else {
-            responseInput = ha1 + ":" + nonce + ":" + ha2;
+            responseInput = ha1 + ":" + c.nonce + ":" + ha2;
         }
         String response = md5Hex(responseInput);
 
         StringBuilder authHeader = new StringBuilder("Digest ");
         authHeader.append("username=\"").append(username).append("\", ");
-        authHeader.append("realm=\"").append(realm).append("\", ");
-        authHeader.append("nonce=\"").append(nonce).append("\", ");
+        authHeader.append("realm=\"").append(c.realm).append("\", ");
+        authHeader.append("nonce=\"").append(c.nonce).append("\", ");
         authHeader.append("uri=\"").append(uri).append("\", ");
         authHeader.append("response=\"").append(response).append("\"");
 
-        if ("auth".equals(qop) || "auth-int".equals(qop)) {
-            authHeader.append(", qop=").append(qop);
+        if (withQop) {
+            authHeader.append(", qop=").append(c.qop);
             authHeader.append(", nc=").append(ncValue);
             authHeader.append(", cnonce=\"").append(cnonce).append("\"");
         }
 
-        if (lastAuthParams.containsKey("algorithm")) {
-            authHeader.append(", algorithm=").append(lastAuthParams.get("algorithm"));
+        if (c.algorithm != null) {
+            authHeader.append(", algorithm=").append(c.algorithm);
         }
 
-        if (lastAuthParams.containsKey("opaque")) {
-            authHeader.append(", opaque=\"").append(lastAuthParams.get("opaque")).append("\"");
+        if (c.opaque != null) {
+            authHeader.append(", opaque=\"").append(c.opaque).append("\"");
         }
 
         return authHeader.toString();
     }
 
+    // 当前响应链中连续 401 的次数（含本次）
+    private static int responseCount(Response response) {
+        int count = 0;
+        for (Response r = response; r != null; r = r.priorResponse()) {
+            if (r.code() == 401) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private String getUriFromUrl(HttpUrl url) {
         String path = url.encodedPath();
         String query = url.encodedQuery();
@@ -167,4 +256,4 @@ public class DigestAuthenticator implements Authenticator {
         new java.security.SecureRandom().nextBytes(bytes);
         return DigestUtils.md5Hex(new String(bytes, StandardCharsets.UTF_8));
     }
-}
\ No newline at end of file
+}
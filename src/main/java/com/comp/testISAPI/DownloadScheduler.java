@@ -0,0 +1,375 @@
+package com.comp.testISAPI;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 下载任务调度器
+ * - 有界工作线程池，全局并发上限
+ * - 单设备（deviceIp:port）并发上限，避免同时压垮同一台 NVR 的上行带宽
+ * - 超出上限的任务按提交顺序（FIFO）排队，排队位置通过回调通知
+ * - 某台设备已满时，不阻塞队列中其他设备的任务
+ * - 单设备同时打开的下载流（任务内并行分段、批量导出的各通道、时间段截取）另有上限，
+ *   所有任务共用，下载前通过 acquireStream 获取名额（公平排队）；设备没有排队/执行中的任务且名额全部归还后移除其名额记录
+ * - 排队位置回调在释放调度锁之后按产生顺序依次执行
+ */
+public class DownloadScheduler {
+
+    private static final Logger log = Logger.getLogger(DownloadScheduler.class);
+
+    /**
+     * 排队位置回调：position 从 1 开始；0 表示已出队开始执行
+     */
+    public interface QueueListener {
+        void onQueuePositionChanged(int position);
+    }
+
+    private static class Job {
+        final String jobId;
+        final String deviceKey;
+        final Runnable body;
+        final QueueListener listener;
+
+        Job(String jobId, String deviceKey, Runnable body, QueueListener listener) {
+            this.jobId = jobId;
+            this.deviceKey = deviceKey;
+            this.body = body;
+            this.listener = listener;
+        }
+    }
+
+    // 设备下载流名额：users 为正在等待或持有名额的线程数
+    private static class StreamSlot {
+        final Semaphore permits;
+        int users;
+
+        StreamSlot(int permits) {
+            this.permits = new Semaphore(permits, true);
+        }
+    }
+
+    private static class Notification {
+        final Job job;
+        final int position;
+
+        Notification(Job job, int position) {
+            this.job = job;
+            this.position = position;
+        }
+    }
+
+    private final int maxConcurrent;
+    private final int maxPerDevice;
+    private final int maxQueued;
+    private final int maxStreamsPerDevice;
+    private final ExecutorService workers;
+    // 由自身监视器保护；需要同时持有 this 时先取 this
+    private final Map<String, StreamSlot> streamSlots = new HashMap<>();
+    // 调度锁内按顺序入队，释放锁后在 deliveryLock 下依次回调
+    private final Queue<Notification> notifications = new ConcurrentLinkedQueue<>();
+    private final Object deliveryLock = new Object();
+
+    // 以下字段均由 this 监视器保护
+    private final LinkedList<Job> queue = new LinkedList<>();
+    private final Map<String, Integer> runningPerDevice = new HashMap<>();
+    private int running = 0;
+    private boolean shutdown = false;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public DownloadScheduler(int maxConcurrent, int maxPerDevice, int maxQueued) {
+        this(maxConcurrent, maxPerDevice, maxQueued, maxPerDevice);
+    }
+
+    public DownloadScheduler(int maxConcurrent, int maxPerDevice, int maxQueued, int maxStreamsPerDevice) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxPerDevice = Math.max(1, maxPerDevice);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.maxStreamsPerDevice = Math.max(1, maxStreamsPerDevice);
+        this.workers = Executors.newFixedThreadPool(this.maxConcurrent, new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "download-worker-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        log.info("[调度] 全局并发: %d, 单设备并发: %d, 单设备下载流: %d, 队列上限: %d",
+                this.maxConcurrent, this.maxPerDevice, this.maxStreamsPerDevice, this.maxQueued);
+    }
+
+    /**
+     * 获取设备的一个下载流名额，等待期间 cancelled 返回 true 时放弃
+     *
+     * @return 是否获得名额；获得后必须调用 releaseStream
+     */
+    public boolean acquireStream(String deviceKey, BooleanSupplier cancelled) throws InterruptedException {
+        StreamSlot slot;
+        synchronized (streamSlots) {
+            slot = streamSlots.computeIfAbsent(deviceKey, k -> new StreamSlot(maxStreamsPerDevice));
+            slot.users++;
+        }
+        boolean acquired = false;
+        try {
+            while (!cancelled.getAsBoolean()) {
+                if (slot.permits.tryAcquire(500, TimeUnit.MILLISECONDS)) {
+                    acquired = true;
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            if (!acquired) {
+                leaveStream(deviceKey, slot);
+            }
+        }
+    }
+
+    public void releaseStream(String deviceKey) {
+        StreamSlot slot;
+        synchronized (streamSlots) {
+            slot = streamSlots.get(deviceKey);
+        }
+        if (slot != null) {
+            slot.permits.release();
+            leaveStream(deviceKey, slot);
+        }
+    }
+
+    public int maxStreamsPerDevice() {
+        return maxStreamsPerDevice;
+    }
+
+    /**
+     * 提交任务
+     *
+     * @return 排队位置（0 表示已立即开始执行）
+     * @throws RejectedExecutionException 队列已满或调度器已关闭
+     */
+    public int submit(String jobId, String deviceKey, Runnable body, QueueListener listener) {
+        Job job = new Job(jobId, deviceKey, body, listener);
+        int position;
+        synchronized (this) {
+            if (shutdown) {
+                rejectedCount.incrementAndGet();
+                throw new RejectedExecutionException("下载调度器已关闭");
+            }
+            if (queue.size() >= maxQueued && !hasCapacityFor(deviceKey)) {
+                rejectedCount.incrementAndGet();
+                throw new RejectedExecutionException("下载队列已满（上限 " + maxQueued + "）");
+            }
+            submittedCount.incrementAndGet();
+            queue.addLast(job);
+            notifyPosition(job, queue.size());
+            dispatch();
+            position = positionOf(jobId);
+        }
+        deliverNotifications();
+        if (position > 0) {
+            log.info("[调度] 任务 %s 排队中（设备 %s），位置: %d", jobId, deviceKey, position);
+        }
+        return position;
+    }
+
+    /**
+     * 从队列中移除尚未开始的任务；已开始执行的任务由调用方通过取消标志终止
+     */
+    public boolean cancel(String jobId) {
+        Job removed = null;
+        synchronized (this) {
+            Iterator<Job> it = queue.iterator();
+            while (it.hasNext()) {
+                Job job = it.next();
+                if (job.jobId.equals(jobId)) {
+                    it.remove();
+                    notifyPosition(job, 0);
+                    renumber();
+                    pruneStreams(job.deviceKey);
+                    removed = job;
+                    break;
+                }
+            }
+        }
+        if (removed == null) {
+            return false;
+        }
+        deliverNotifications();
+        log.info("[调度] 任务 %s 已从队列移除", jobId);
+        return true;
+    }
+
+    /**
+     * 查询排队位置（从 1 开始，0 表示不在队列中）
+     */
+    public synchronized int positionOf(String jobId) {
+        int index = 1;
+        for (Job job : queue) {
+            if (job.jobId.equals(jobId)) {
+                return index;
+            }
+            index++;
+        }
+        return 0;
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("maxConcurrent", maxConcurrent);
+        map.put("maxPerDevice", maxPerDevice);
+        map.put("maxQueued", maxQueued);
+        map.put("running", running);
+        map.put("queued", queue.size());
+        map.put("runningPerDevice", new TreeMap<>(runningPerDevice));
+        map.put("maxStreamsPerDevice", maxStreamsPerDevice);
+        Map<String, Integer> streams = new TreeMap<>();
+        int streamDevices;
+        synchronized (streamSlots) {
+            streamDevices = streamSlots.size();
+            for (Map.Entry<String, StreamSlot> e : streamSlots.entrySet()) {
+                int inUse = maxStreamsPerDevice - e.getValue().permits.availablePermits();
+                if (inUse > 0) {
+                    streams.put(e.getKey(), inUse);
+                }
+            }
+        }
+        map.put("streamsPerDevice", streams);
+        map.put("streamDevices", streamDevices);
+        map.put("submitted", submittedCount.get());
+        map.put("completed", completedCount.get());
+        map.put("rejected", rejectedCount.get());
+        return map;
+    }
+
+    public void shutdownNow() {
+        List<Job> dropped;
+        synchronized (this) {
+            shutdown = true;
+            dropped = new ArrayList<>(queue);
+            queue.clear();
+        }
+        for (Job job : dropped) {
+            notifyPosition(job, 0);
+        }
+        deliverNotifications();
+        workers.shutdownNow();
+    }
+
+    private boolean hasCapacityFor(String deviceKey) {
+        return running < maxConcurrent && runningPerDevice.getOrDefault(deviceKey, 0) < maxPerDevice;
+    }
+
+    // 从队首开始，依次启动所属设备仍有余量的任务（调用方需持有 this 锁）
+    private void dispatch() {
+        boolean changed = false;
+        Iterator<Job> it = queue.iterator();
+        while (running < maxConcurrent && it.hasNext()) {
+            Job job = it.next();
+            int deviceRunning = runningPerDevice.getOrDefault(job.deviceKey, 0);
+            if (deviceRunning >= maxPerDevice) {
+                continue;
+            }
+            it.remove();
+            running++;
+            runningPerDevice.put(job.deviceKey, deviceRunning + 1);
+            changed = true;
+            notifyPosition(job, 0);
+            workers.execute(() -> runJob(job));
+        }
+        if (changed) {
+            renumber();
+        }
+    }
+
+    private void runJob(Job job) {
+        try {
+            job.body.run();
+        } catch (Throwable t) {
+            log.error("[调度] 任务 " + job.jobId + " 执行异常: " + t.getMessage(), t);
+        } finally {
+            completedCount.incrementAndGet();
+            synchronized (this) {
+                running--;
+                int deviceRunning = runningPerDevice.getOrDefault(job.deviceKey, 1) - 1;
+                if (deviceRunning <= 0) {
+                    runningPerDevice.remove(job.deviceKey);
+                } else {
+                    runningPerDevice.put(job.deviceKey, deviceRunning);
+                }
+                if (!shutdown) {
+                    dispatch();
+                }
+                pruneStreams(job.deviceKey);
+            }
+            deliverNotifications();
+        }
+    }
+
+    private void renumber() {
+        int index = 1;
+        for (Job job : queue) {
+            notifyPosition(job, index++);
+        }
+    }
+
+    // 设备没有排队/执行中的任务，也没有线程在等待或持有下载流名额时，移除其名额记录
+    private void leaveStream(String deviceKey, StreamSlot slot) {
+        synchronized (this) {
+            synchronized (streamSlots) {
+                slot.users--;
+            }
+            pruneStreams(deviceKey);
+        }
+    }
+
+    // 调用方需持有 this 锁
+    private void pruneStreams(String deviceKey) {
+        if (runningPerDevice.containsKey(deviceKey)) {
+            return;
+        }
+        for (Job job : queue) {
+            if (job.deviceKey.equals(deviceKey)) {
+                return;
+            }
+        }
+        synchronized (streamSlots) {
+            StreamSlot slot = streamSlots.get(deviceKey);
+            if (slot != null && slot.users <= 0 && slot.permits.availablePermits() >= maxStreamsPerDevice) {
+                streamSlots.remove(deviceKey);
+            }
+        }
+    }
+
+    // 调用方需持有 this 锁（shutdownNow 除外：此时队列已清空，不再产生新的回调）
+    private void notifyPosition(Job job, int position) {
+        if (job.listener != null) {
+            notifications.add(new Notification(job, position));
+        }
+    }
+
+    // 不得持有 this 锁调用；deliveryLock 保证回调按入队顺序逐个执行
+    private void deliverNotifications() {
+        synchronized (deliveryLock) {
+            Notification n;
+            while ((n = notifications.poll()) != null) {
+                try {
+                    n.job.listener.onQueuePositionChanged(n.position);
+                } catch (Exception e) {
+                    log.warn("[调度] 排队位置回调失败: %s", e.getMessage());
+                }
+            }
+        }
+    }
+}
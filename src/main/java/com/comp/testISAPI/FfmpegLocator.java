@@ -0,0 +1,320 @@
+package com.comp.testISAPI;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ffmpeg 可执行文件定位与能力探测
+ * - 首次使用时按候选路径查找一次（线程安全），结果缓存到进程结束
+ * - 同时探测版本、muxer/demuxer、RTSP 套接字超时参数名（-stimeout / -timeout）、是否支持 -progress
+ * - 只有在 ffmpeg 调用失败后才重新校验（执行一次 -version），失效后下次使用时重新查找
+ * - 未找到时在 retry 间隔内直接返回 null，不重复启动探测进程
+ */
+public class FfmpegLocator {
+
+    private static final Logger log = Logger.getLogger(FfmpegLocator.class);
+    private static final Pattern VERSION = Pattern.compile("ffmpeg version (\\S+)");
+    private static final long PROBE_TIMEOUT_SECONDS = 10;
+
+    /**
+     * 一次探测的结果（不可变）
+     */
+    public static final class Probe {
+        public final String path;
+        public final String version;
+        /** RTSP 套接字读写超时参数（微秒），探测不到时沿用 -timeout */
+        public final String rtspTimeoutOption;
+        public final boolean progressSupported;
+        public final Set<String> muxers;
+        public final Set<String> demuxers;
+        final long probedAt;
+        final long probeMillis;
+
+        Probe(String path, String version, String rtspTimeoutOption, boolean progressSupported,
+              Set<String> muxers, Set<String> demuxers, long probedAt, long probeMillis) {
+            this.path = path;
+            this.version = version;
+            this.rtspTimeoutOption = rtspTimeoutOption;
+            this.progressSupported = progressSupported;
+            this.muxers = muxers;
+            this.demuxers = demuxers;
+            this.probedAt = probedAt;
+            this.probeMillis = probeMillis;
+        }
+
+        public boolean hasMuxer(String name) {
+            return muxers.contains(name);
+        }
+
+        public boolean hasDemuxer(String name) {
+            return demuxers.contains(name);
+        }
+    }
+
+    private final String overridePath;
+    private final long notFoundRetryMillis;
+    private final Object lock = new Object();
+    private volatile Probe probe;
+    private volatile long notFoundAt;
+    private final AtomicLong resolveCount = new AtomicLong();
+    private final AtomicLong revalidateCount = new AtomicLong();
+
+    /**
+     * @param overridePath 显式指定的 ffmpeg 路径（为空时按默认候选路径查找）
+     */
+    public FfmpegLocator(String overridePath, long notFoundRetry, TimeUnit unit) {
+        this.overridePath = overridePath == null ? "" : overridePath.trim();
+        this.notFoundRetryMillis = unit.toMillis(notFoundRetry);
+    }
+
+    /**
+     * 获取探测结果，未找到 ffmpeg 时返回 null
+     */
+    public Probe get() {
+        Probe current = probe;
+        if (current != null) {
+            return current;
+        }
+        synchronized (lock) {
+            if (probe != null) {
+                return probe;
+            }
+            if (notFoundAt > 0 && System.currentTimeMillis() - notFoundAt < notFoundRetryMillis) {
+                return null;
+            }
+            resolveCount.incrementAndGet();
+            long begin = System.currentTimeMillis();
+            for (String path : candidates()) {
+                String versionOutput = run(path, "-version");
+                if (versionOutput != null) {
+                    probe = probeCapabilities(path, versionOutput, begin);
+                    notFoundAt = 0;
+                    log.info("[ffmpeg] 找到: %s, 版本 %s, RTSP 超时参数 %s, -progress %s, 耗时 %d ms",
+                            path, probe.version, probe.rtspTimeoutOption,
+                            probe.progressSupported ? "支持" : "不支持", probe.probeMillis);
+                    return probe;
+                }
+            }
+            notFoundAt = System.currentTimeMillis();
+            log.warn("[ffmpeg] 未找到可用的 ffmpeg，%d 秒内不再重复查找",
+                    TimeUnit.MILLISECONDS.toSeconds(notFoundRetryMillis));
+            return null;
+        }
+    }
+
+    public String path() {
+        Probe current = get();
+        return current != null ? current.path : null;
+    }
+
+    /**
+     * ffmpeg 调用失败后调用：确认缓存的可执行文件仍可运行，否则丢弃缓存
+     */
+    public void revalidate() {
+        Probe current = probe;
+        if (current == null) {
+            return;
+        }
+        revalidateCount.incrementAndGet();
+        if (run(current.path, "-version") != null) {
+            return;
+        }
+        synchronized (lock) {
+            if (probe == current) {
+                probe = null;
+                notFoundAt = 0;
+                log.warn("[ffmpeg] %s 已不可用，下次使用时重新查找", current.path);
+            }
+        }
+    }
+
+    /**
+     * 丢弃缓存并立即重新查找
+     */
+    public Probe refresh() {
+        synchronized (lock) {
+            probe = null;
+            notFoundAt = 0;
+        }
+        return get();
+    }
+
+    public Map<String, Object> stats() {
+        Probe current = probe;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("found", current != null);
+        map.put("overridePath", overridePath);
+        map.put("resolveCount", resolveCount.get());
+        map.put("revalidateCount", revalidateCount.get());
+        if (current == null) {
+            map.put("notFoundAt", notFoundAt > 0 ? notFoundAt : null);
+            return map;
+        }
+        map.put("path", current.path);
+        map.put("version", current.version);
+        map.put("rtspTimeoutOption", current.rtspTimeoutOption);
+        map.put("progressSupported", current.progressSupported);
+        map.put("probedAt", current.probedAt);
+        map.put("probeMillis", current.probeMillis);
+        Map<String, Object> muxers = new LinkedHashMap<>();
+        for (String name : Arrays.asList("mp4", "mov", "mpegts", "matroska")) {
+            muxers.put(name, current.hasMuxer(name));
+        }
+        map.put("muxers", muxers);
+        Map<String, Object> demuxers = new LinkedHashMap<>();
+        for (String name : Arrays.asList("rtsp", "mpeg", "mpegts", "h264", "hevc")) {
+            demuxers.put(name, current.hasDemuxer(name));
+        }
+        map.put("demuxers", demuxers);
+        return map;
+    }
+
+    private Probe probeCapabilities(String path, String versionOutput, long begin) {
+        Matcher m = VERSION.matcher(versionOutput);
+        String version = m.find() ? m.group(1) : "unknown";
+
+        // 4.x 的 RTSP demuxer 中 -timeout 是监听超时（秒），套接字超时是 -stimeout；5.0 起改为 -timeout（微秒）
+        String rtspHelp = run(path, "-hide_banner", "-h", "demuxer=rtsp");
+        String rtspTimeoutOption = "-timeout";
+        if (rtspHelp != null && rtspHelp.contains("-stimeout")) {
+            rtspTimeoutOption = "-stimeout";
+        }
+
+        String longHelp = run(path, "-hide_banner", "-h", "long");
+        boolean progressSupported = longHelp != null && longHelp.contains("-progress");
+
+        Set<String> muxers = parseFormats(run(path, "-hide_banner", "-muxers"));
+        Set<String> demuxers = parseFormats(run(path, "-hide_banner", "-demuxers"));
+        long now = System.currentTimeMillis();
+        return new Probe(path, version, rtspTimeoutOption, progressSupported,
+                muxers, demuxers, now, now - begin);
+    }
+
+    // 解析 -muxers / -demuxers 输出的行，如 " E  mp4             MP4 (MPEG-4 Part 14)"、" D  mov,mp4,m4a,..."
+    private static Set<String> parseFormats(String output) {
+        Set<String> names = new HashSet<>();
+        if (output == null) {
+            return Collections.unmodifiableSet(names);
+        }
+        boolean listStarted = false;
+        for (String line : output.split("\\r?\\n")) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("--")) {
+                listStarted = true;
+                continue;
+            }
+            if (!listStarted || trimmed.isEmpty()) {
+                continue;
+            }
+            String[] parts = trimmed.split("\\s+");
+            if (parts.length < 2 || !parts[0].matches("[DE]+d?")) {
+                continue;
+            }
+            names.addAll(Arrays.asList(parts[1].split(",")));
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    // 运行 ffmpeg 并返回合并后的输出，启动失败、超时或退出码非 0 时返回 null
+    // 输出在单独线程中读取，卡住不退出（或不关闭输出）的进程也会在 PROBE_TIMEOUT_SECONDS 后被强杀
+    private static String run(String path, String... args) {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(path);
+        cmd.addAll(Arrays.asList(args));
+        Process process = null;
+        try {
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.redirectErrorStream(true);
+            process = pb.start();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InputStream stdout = process.getInputStream();
+            Thread reader = new Thread(() -> {
+                try (InputStream in = stdout) {
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        synchronized (out) {
+                            out.write(buffer, 0, n);
+                        }
+                    }
+                } catch (Exception ignored) {
+                    // 进程被强杀时读取中断
+                }
+            }, "ffmpeg-probe-reader");
+            reader.setDaemon(true);
+            reader.start();
+            if (!process.waitFor(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                log.warn("[ffmpeg] %s %s 超过 %d 秒未退出，已终止", path, String.join(" ", args), PROBE_TIMEOUT_SECONDS);
+                return null;
+            }
+            // 进程已退出；子进程可能仍持有输出管道，读取线程最多再等一小段时间
+            reader.join(TimeUnit.SECONDS.toMillis(1));
+            if (process.exitValue() != 0) {
+                return null;
+            }
+            synchronized (out) {
+                return new String(out.toByteArray(), "UTF-8");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            return null;
+        } finally {
+            if (process != null && process.isAlive()) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    // 查找顺序：显式指定 > 系统 PATH > 常见安装路径 > 用户目录 > 项目内置 > 旧目录结构
+    private List<String> candidates() {
+        String os = System.getProperty("os.name").toLowerCase();
+        boolean isWindows = os.contains("win");
+        boolean isMac = os.contains("mac");
+
+        List<String> paths = new ArrayList<>();
+        if (!overridePath.isEmpty()) {
+            paths.add(overridePath);
+        }
+
+        // 1. 系统 PATH（最高优先级：用户已安装的版本）
+        paths.add("ffmpeg");
+        if (isWindows) {
+            paths.add("ffmpeg.exe");
+        }
+
+        // 2. 常见系统安装路径
+        if (isWindows) {
+            paths.add("C:\\ffmpeg\\bin\\ffmpeg.exe");
+            paths.add("C:\\Program Files\\ffmpeg\\bin\\ffmpeg.exe");
+        } else {
+            paths.add("/usr/bin/ffmpeg");
+            paths.add("/usr/local/bin/ffmpeg");
+            paths.add("/opt/homebrew/bin/ffmpeg");
+        }
+
+        // 3. 用户目录
+        paths.add(System.getProperty("user.home") + (isWindows ? "\\ffmpeg\\bin\\ffmpeg.exe" : "/ffmpeg/bin/ffmpeg"));
+
+        // 4. 项目内置（回退）
+        if (isWindows) {
+            paths.add("./ffmpeg/win/ffmpeg.exe");
+            paths.add("ffmpeg\\win\\ffmpeg.exe");
+        } else if (isMac) {
+            paths.add("./ffmpeg/mac/ffmpeg");
+        } else {
+            paths.add("./ffmpeg/linux/ffmpeg");
+        }
+
+        // 5. 旧目录结构兼容（最低优先级）
+        paths.add(isWindows ? "./ffmpeg/bin/ffmpeg.exe" : "./ffmpeg/bin/ffmpeg");
+        return paths;
+    }
+}
@@ -0,0 +1,99 @@
+package com.comp.testISAPI;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 所有设备 HTTP 客户端共用的传输层
+ * - 一个连接池：检索、下载、设备信息、PTZ 等请求复用到同一台设备的 keep-alive 连接
+ * - 一个 Dispatcher（线程池为守护线程），限制总并发与单设备并发（对异步调用生效；
+ *   同步下载的并发由 DownloadScheduler 按设备控制）
+ * 各客户端通过 newBuilder() 派生，只各自设置超时和 Digest 认证器，不再各建连接池和线程池
+ * Web 服务按 HTTP_* 环境变量自行创建实例；shared() 为命令行工具等使用的默认配置实例
+ */
+public class HttpTransport {
+
+    public static final int DEFAULT_MAX_IDLE = 32;
+    public static final int DEFAULT_KEEP_ALIVE_SECONDS = 60;
+    public static final int DEFAULT_MAX_REQUESTS = 64;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 8;
+
+    private static final HttpTransport SHARED = new HttpTransport(DEFAULT_MAX_IDLE,
+            DEFAULT_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST);
+
+    private final ConnectionPool pool;
+    private final Dispatcher dispatcher;
+    private final OkHttpClient base;
+    private final AtomicLong derivedClients = new AtomicLong();
+
+    public HttpTransport(int maxIdleConnections, long keepAlive, TimeUnit unit, int maxRequests, int maxRequestsPerHost) {
+        this.pool = new ConnectionPool(maxIdleConnections, keepAlive, unit);
+        AtomicInteger seq = new AtomicInteger();
+        this.dispatcher = new Dispatcher(new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread t = new Thread(r, "okhttp-dispatcher-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }));
+        this.dispatcher.setMaxRequests(maxRequests);
+        this.dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        this.base = new OkHttpClient.Builder()
+                .connectionPool(pool)
+                .dispatcher(dispatcher)
+                .build();
+    }
+
+    public static HttpTransport shared() {
+        return SHARED;
+    }
+
+    /**
+     * 派生带 Digest 认证的客户端；认证器同时作为拦截器，首次 401 之后抢先携带 Authorization
+     */
+    public OkHttpClient client(DigestAuthenticator authenticator, long connectSeconds, long readSeconds, long writeSeconds) {
+        derivedClients.incrementAndGet();
+        return base.newBuilder()
+                .connectTimeout(connectSeconds, TimeUnit.SECONDS)
+                .readTimeout(readSeconds, TimeUnit.SECONDS)
+                .writeTimeout(writeSeconds, TimeUnit.SECONDS)
+                .authenticator(authenticator)
+                .addInterceptor(authenticator)
+                .build();
+    }
+
+    public int connectionCount() {
+        return pool.connectionCount();
+    }
+
+    public int idleConnectionCount() {
+        return pool.idleConnectionCount();
+    }
+
+    /**
+     * 正在执行的请求数（含同步调用）
+     */
+    public int callsInFlight() {
+        return dispatcher.runningCallsCount();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("connections", pool.connectionCount());
+        map.put("idleConnections", pool.idleConnectionCount());
+        map.put("runningCalls", dispatcher.runningCallsCount());
+        map.put("queuedCalls", dispatcher.queuedCallsCount());
+        map.put("maxRequests", dispatcher.getMaxRequests());
+        map.put("maxRequestsPerHost", dispatcher.getMaxRequestsPerHost());
+        map.put("derivedClients", derivedClients.get());
+        return map;
+    }
+}
@@ -21,6 +21,10 @@ public class ISAPIClient {
 
     private static final Logger log = Logger.getLogger(ISAPIClient.class);
 
+    // 录像搜索分页大小及最大页数
+    private static final int SEARCH_PAGE_SIZE = 100;
+    private static final int MAX_SEARCH_PAGES = 200;
+
     private final String host;
     private final int port;
     private final String username;
@@ -28,14 +32,22 @@ public class ISAPIClient {
     private final OkHttpClient client;
 
     public ISAPIClient(String host, int port, String username, String password) {
+        this(host, port, username, password,
+                HttpTransport.shared().client(new DigestAuthenticator(username, password), 10, 30, 10));
+    }
+
+    /**
+     * 复用已有的带认证客户端（共用连接池和 Digest nonce），只调整超时
+     */
+    public ISAPIClient(String host, int port, String username, String password, OkHttpClient authenticatedClient) {
         this.host = host;
         this.port = port;
         this.username = username;
         this.password = password;
-        this.client = new OkHttpClient.Builder()
+        this.client = authenticatedClient.newBuilder()
                 .connectTimeout(10, TimeUnit.SECONDS)
                 .readTimeout(30, TimeUnit.SECONDS)
-                .authenticator(new DigestAuthenticator(username, password))
+                .writeTimeout(10, TimeUnit.SECONDS)
                 .build();
         log.info("创建 ISAPI 客户端: %s:%d", host, port);
     }
@@ -190,61 +202,69 @@ public class ISAPIClient {
 
     /**
      * 搜索录像
+     * 按 searchResultPosition 分页拉取，直到设备不再返回 MORE
      */
     public List<RecordingInfo> searchRecordings(String trackId, String startTime, String endTime) throws IOException {
         log.info("搜索录像: 通道=%s, 时间=%s ~ %s", trackId, startTime, endTime);
-        
-        String searchId = "S-" + System.currentTimeMillis();
-        String xmlBody = String.format(
-                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
-                "<CMSearchDescription>\n" +
-                "  <searchID>%s</searchID>\n" +
-                "  <trackList><trackID>%s</trackID></trackList>\n" +
-                "  <timeSpanList><timeSpan>\n" +
-                "    <startTime>%s</startTime>\n" +
-                "    <endTime>%s</endTime>\n" +
-                "  </timeSpan></timeSpanList>\n" +
-                "  <contentTypeList><contentType>video</contentType></contentTypeList>\n" +
-                "  <maxResults>100</maxResults>\n" +
-                "</CMSearchDescription>",
-                searchId, trackId, startTime, endTime
-        );
 
+        // 同一次搜索的所有分页必须使用相同的 searchID
+        String searchId = "S-" + System.currentTimeMillis();
         String url = getBaseUrl() + "/ISAPI/ContentMgmt/search";
-        String xml = doPost(url, xmlBody, "application/xml");
-        
-        return parseRecordings(xml);
+        List<RecordingInfo> recordings = new ArrayList<>();
+        int position = 0;
+        for (int page = 1; page <= MAX_SEARCH_PAGES; page++) {
+            String xmlBody = String.format(
+                    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                    "<CMSearchDescription>\n" +
+                    "  <searchID>%s</searchID>\n" +
+                    "  <trackList><trackID>%s</trackID></trackList>\n" +
+                    "  <timeSpanList><timeSpan>\n" +
+                    "    <startTime>%s</startTime>\n" +
+                    "    <endTime>%s</endTime>\n" +
+                    "  </timeSpan></timeSpanList>\n" +
+                    "  <contentTypeList><contentType>video</contentType></contentTypeList>\n" +
+                    "  <maxResults>%d</maxResults>\n" +
+                    "  <searchResultPosition>%d</searchResultPosition>\n" +
+                    "</CMSearchDescription>",
+                    searchId, trackId, startTime, endTime, SEARCH_PAGE_SIZE, position
+            );
+
+            String xml = doPost(url, xmlBody, "application/xml");
+            int before = recordings.size();
+            String status = parseRecordings(xml, recordings);
+            int added = recordings.size() - before;
+            position += added;
+            if (!"MORE".equalsIgnoreCase(status) || added == 0) {
+                break;
+            }
+            if (page == MAX_SEARCH_PAGES) {
+                log.warn("搜索结果超过 %d 页，已截断", MAX_SEARCH_PAGES);
+            }
+        }
+        log.info("找到 %d 条录像", recordings.size());
+        return recordings;
     }
 
-    private List<RecordingInfo> parseRecordings(String xml) throws IOException {
-        List<RecordingInfo> recordings = new ArrayList<>();
+    /**
+     * 解析单页搜索结果并追加到 recordings，返回 responseStatusStrg（OK / MORE / NO MATCHES）
+     */
+    private String parseRecordings(String xml, List<RecordingInfo> recordings) throws IOException {
         try {
-            Document doc = parseXml(xml);
-            NodeList items = doc.getElementsByTagName("searchMatchItem");
-            
-            for (int i = 0; i < items.getLength(); i++) {
-                Element item = (Element) items.item(i);
+            CMSearchResultParser.Result result = CMSearchResultParser.parse(new StringReader(xml), item -> {
                 RecordingInfo rec = new RecordingInfo();
-                rec.trackId = getElementText(item, "trackID");
-                rec.startTime = getElementText(item, "startTime");
-                rec.endTime = getElementText(item, "endTime");
-                rec.eventType = getElementText(item, "eventType");
-                rec.downloadPath = getElementText(item, "downloadPath");
-                
-                // 获取 playbackURI
-                NodeList mediaNodes = item.getElementsByTagName("playbackURI");
-                if (mediaNodes.getLength() > 0) {
-                    rec.playbackUri = mediaNodes.item(0).getTextContent();
-                }
-                
+                rec.trackId = item.trackId;
+                rec.startTime = item.startTime;
+                rec.endTime = item.endTime;
+                rec.eventType = item.eventType;
+                rec.downloadPath = item.downloadPath;
+                rec.playbackUri = item.playbackURI.isEmpty() ? null : item.playbackURI;
                 recordings.add(rec);
-            }
-            log.info("找到 %d 条录像", recordings.size());
-        } catch (Exception e) {
+            });
+            return result.responseStatus;
+        } catch (IOException e) {
             log.error("解析录像列表失败: " + e.getMessage(), e);
-            throw new IOException(e);
+            throw e;
         }
-        return recordings;
     }
 
     /**
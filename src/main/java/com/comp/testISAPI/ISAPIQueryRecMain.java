@@ -14,12 +14,14 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
-import java.util.concurrent.TimeUnit;
 
 public class ISAPIQueryRecMain {
 
     private static final Logger log = Logger.getLogger(ISAPIQueryRecMain.class);
 
+    private static final int SEARCH_PAGE_SIZE = 50;
+    private static final int MAX_SEARCH_PAGES = 200;
+
     // 录像信息类
     public static class RecordingInfo {
         public String trackId;
@@ -109,19 +111,18 @@ public class ISAPIQueryRecMain {
         log.debug("创建 HTTP 客户端，读取超时: 600秒");
         OkHttpClient client = createDigestAuthClient(username, password, 30, 600); // 10分钟读取超时
 
-        String response = null;
+        List<RecordingInfo> recordings = null;
         try {
             log.info("开始搜索录像...");
-            response = searchRecordings(client, deviceIp, port, channelId, startTime, endTime);
+            recordings = searchAllRecordings(client, deviceIp, port, channelId, startTime, endTime);
             log.debug("搜索请求完成");
-        } catch (IOException e) {
+        } catch (Exception e) {
             log.error("搜索录像失败: " + e.getMessage(), e);
-            response = null;
+            recordings = null;
         }
 
         try {
-            if (null != response) {
-                List<RecordingInfo> recordings = parseRecordingResponse(response);
+            if (null != recordings) {
                 log.info("找到 %d 条录像记录", recordings.size());
 
                 // 下载该时间段内的所有录像
@@ -187,12 +188,8 @@ public class ISAPIQueryRecMain {
      */
     private static OkHttpClient createDigestAuthClient(String username, String password,
                                                         int connectTimeoutSec, int readTimeoutSec) {
-        return new OkHttpClient.Builder()
-                .connectTimeout(connectTimeoutSec, TimeUnit.SECONDS)
-                .readTimeout(readTimeoutSec, TimeUnit.SECONDS)
-                .writeTimeout(60, TimeUnit.SECONDS)
-                .authenticator(new DigestAuthenticator(username, password))
-                .build();
+        DigestAuthenticator authenticator = new DigestAuthenticator(username, password);
+        return HttpTransport.shared().client(authenticator, connectTimeoutSec, readTimeoutSec, 60);
     }
 
     // 保持向后兼容
@@ -265,12 +262,33 @@ public class ISAPIQueryRecMain {
 
 
 
-    private static String searchRecordings(OkHttpClient client, String ip, int port,
-                                           String channelId, String start, String end) throws IOException {
-        // searchID
+    /**
+     * 按 searchResultPosition 逐页搜索，直到设备返回的状态不再是 MORE
+     */
+    private static List<RecordingInfo> searchAllRecordings(OkHttpClient client, String ip, int port,
+                                                           String channelId, String start, String end) throws Exception {
+        // 同一次搜索的所有分页共用一个 searchID
         String searchId = "T-" + System.currentTimeMillis();
         log.debug("搜索ID: %s", searchId);
 
+        List<RecordingInfo> recordings = new ArrayList<>();
+        for (int page = 1; page <= MAX_SEARCH_PAGES; page++) {
+            String response = searchRecordings(client, ip, port, channelId, start, end,
+                    searchId, recordings.size());
+            int before = recordings.size();
+            String status = parseRecordingResponse(response, recordings);
+            log.debug("第 %d 页: %d 条, 状态: %s", page, recordings.size() - before, status);
+            if (!"MORE".equalsIgnoreCase(status) || recordings.size() == before) {
+                break;
+            }
+        }
+        return recordings;
+    }
+
+    private static String searchRecordings(OkHttpClient client, String ip, int port,
+                                           String channelId, String start, String end,
+                                           String searchId, int position) throws IOException {
+
         // xml
         String xmlBody = String.format(
                 "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
@@ -288,9 +306,10 @@ public class ISAPIQueryRecMain {
                         "  <contentTypeList>\n" +
                         "    <contentType>video</contentType>\n" +
                         "  </contentTypeList>\n" +
-                        "  <maxResults>50</maxResults>\n" +
+                        "  <maxResults>%d</maxResults>\n" +
+                        "  <searchResultPosition>%d</searchResultPosition>\n" +
                         "</CMSearchDescription>",
-                searchId, channelId, start, end
+                searchId, channelId, start, end, SEARCH_PAGE_SIZE, position
         );
 
         String url = String.format("http://%s:%d/ISAPI/ContentMgmt/search", ip, port);
@@ -316,17 +335,16 @@ public class ISAPIQueryRecMain {
 
 
     /**
-     * 解析录像搜索响应，返回录像信息列表
+     * 解析单页录像搜索响应，追加到 recordings，返回 responseStatusStrg
      */
-    private static List<RecordingInfo> parseRecordingResponse(String xml) throws Exception {
-        List<RecordingInfo> recordings = new ArrayList<>();
+    private static String parseRecordingResponse(String xml, List<RecordingInfo> recordings) throws Exception {
 
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         DocumentBuilder builder = factory.newDocumentBuilder();
         Document doc = builder.parse(new InputSource(new StringReader(xml)));
 
         NodeList items = doc.getElementsByTagName("searchMatchItem");
-        log.info("搜索到录像数量: %d", items.getLength());
+        log.info("本页搜索到录像数量: %d", items.getLength());
 
         for (int i = 0; i < items.getLength(); i++) {
             Element item = (Element) items.item(i);
@@ -341,14 +359,15 @@ public class ISAPIQueryRecMain {
             recordings.add(rec);
 
             log.debug("[%d] 通道 %s | 时间: %s 至 %s | 类型: %s",
-                    i + 1,
+                    recordings.size(),
                     rec.trackId,
                     rec.startTime.substring(0, 19),
                     rec.endTime.substring(0, 19),
                     rec.eventType);
         }
 
-        return recordings;
+        NodeList status = doc.getElementsByTagName("responseStatusStrg");
+        return status.getLength() > 0 ? status.item(0).getTextContent() : "";
     }
 
     /**
@@ -1,33 +1,55 @@
 package com.comp.testISAPI;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import okhttp3.*;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,7 +64,13 @@ public class ISAPIWebServer {
     private static final int PORT = 8080;
     private static final String DOWNLOAD_DIR = "./recordings";
     private static final Map<String, DownloadTask> downloadTasks = new ConcurrentHashMap<>();
-    private static final Map<String, OkHttpClient> clientCache = new ConcurrentHashMap<>();
+    private static final DeviceClientCache clientCache = new DeviceClientCache(
+            getEnvInt("CLIENT_CACHE_MAX_ENTRIES", 256), getEnvInt("CLIENT_CACHE_IDLE_MINUTES", 30), TimeUnit.MINUTES);
+    private static final HttpTransport TRANSPORT = new HttpTransport(
+            getEnvInt("HTTP_POOL_MAX_IDLE", HttpTransport.DEFAULT_MAX_IDLE),
+            getEnvInt("HTTP_POOL_KEEP_ALIVE_SECONDS", HttpTransport.DEFAULT_KEEP_ALIVE_SECONDS), TimeUnit.SECONDS,
+            getEnvInt("HTTP_MAX_REQUESTS", HttpTransport.DEFAULT_MAX_REQUESTS),
+            getEnvInt("HTTP_MAX_REQUESTS_PER_HOST", HttpTransport.DEFAULT_MAX_REQUESTS_PER_HOST));
     private static final ObjectMapper JSON = new ObjectMapper();
     private static final ScheduledExecutorService MAINTENANCE = Executors.newSingleThreadScheduledExecutor();
 
@@ -56,6 +84,94 @@ public class ISAPIWebServer {
     private static final int MAX_TASK_LOG_LINES = getEnvInt("MAX_TASK_LOG_LINES", 500);
     private static final int RTSP_PORT_DEFAULT = getEnvInt("RTSP_PORT_DEFAULT", 554);
     private static final boolean METHOD5_ENABLED = getEnvBool("METHOD5_ENABLED", true);
+    private static final boolean DIGEST_PREEMPTIVE = getEnvBool("DIGEST_PREEMPTIVE", true);
+    private static final int DOWNLOAD_RESUME_RETRIES = getEnvInt("DOWNLOAD_RESUME_RETRIES", 3);
+    private static final boolean DOWNLOAD_RESUME_SKIP_AHEAD = getEnvBool("DOWNLOAD_RESUME_SKIP_AHEAD", true);
+    private static final boolean DOWNLOAD_PIPELINE = getEnvBool("DOWNLOAD_PIPELINE", true);
+    private static final long FILE_TRANSFER_CHUNK = 8L * 1024 * 1024;
+    private static final int PARTIAL_DOWNLOAD_TTL_HOURS = getEnvInt("PARTIAL_DOWNLOAD_TTL_HOURS", 24);
+    private static final int MAX_CONCURRENT_DOWNLOADS = getEnvInt("MAX_CONCURRENT_DOWNLOADS", 4);
+    private static final int MAX_DOWNLOADS_PER_DEVICE = getEnvInt("MAX_DOWNLOADS_PER_DEVICE", 2);
+    private static final int MAX_QUEUED_DOWNLOADS = getEnvInt("MAX_QUEUED_DOWNLOADS", 500);
+    private static final int SEGMENT_PARALLELISM = getEnvInt("SEGMENT_PARALLELISM", 1);
+    private static final int MAX_SEGMENT_PARALLELISM = getEnvInt("MAX_SEGMENT_PARALLELISM", 4);
+    private static final int MAX_BATCH_CHANNELS = getEnvInt("MAX_BATCH_CHANNELS", 64);
+    private static final int FLEET_SEARCH_PARALLELISM = Math.max(1, getEnvInt("FLEET_SEARCH_PARALLELISM", 16));
+    private static final int FLEET_SEARCH_DEVICE_TIMEOUT_SECONDS = Math.max(1, getEnvInt("FLEET_SEARCH_DEVICE_TIMEOUT_SECONDS", 20));
+    private static final int FLEET_SEARCH_REQUEST_TIMEOUT_SECONDS = Math.max(1, getEnvInt("FLEET_SEARCH_REQUEST_TIMEOUT_SECONDS", 120));
+    private static final int FLEET_SEARCH_MAX_DEVICES = getEnvInt("FLEET_SEARCH_MAX_DEVICES", 200);
+    // 多设备搜索在 HTTP 服务线程上等待各设备结果（最长 FLEET_SEARCH_REQUEST_TIMEOUT_SECONDS），
+    // 同时进行的请求数需小于服务线程数，否则会占满线程导致其他接口无响应
+    private static final int FLEET_SEARCH_MAX_REQUESTS = Math.max(1, getEnvInt("FLEET_SEARCH_MAX_REQUESTS", 4));
+    private static final Semaphore FLEET_SEARCH_REQUESTS = new Semaphore(FLEET_SEARCH_MAX_REQUESTS);
+    private static final int SEARCH_PAGE_SIZE = getEnvInt("SEARCH_PAGE_SIZE", 100);
+    private static final int SEARCH_MAX_PAGES = getEnvInt("SEARCH_MAX_PAGES", 200);
+    // 多设备搜索共用的有界线程池：所有 /api/fleet-search 请求合计最多同时查询 FLEET_SEARCH_PARALLELISM 台设备
+    private static final ExecutorService FLEET_SEARCH_POOL = Executors.newFixedThreadPool(FLEET_SEARCH_PARALLELISM, r -> {
+        Thread t = new Thread(r, "fleet-search");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ExecutorService SEARCH_PREFETCH = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "search-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final int CAPABILITY_CACHE_TTL_MINUTES = getEnvInt("CAPABILITY_CACHE_TTL_MINUTES", 360);
+    private static final DeviceCapabilityCache CAPABILITIES =
+            new DeviceCapabilityCache(CAPABILITY_CACHE_TTL_MINUTES, TimeUnit.MINUTES);
+    private static final int DEVICE_TIME_CACHE_TTL_MINUTES = getEnvInt("DEVICE_TIME_CACHE_TTL_MINUTES", 10);
+    private static final int DEVICE_TIME_FAILURE_TTL_SECONDS = getEnvInt("DEVICE_TIME_FAILURE_TTL_SECONDS", 30);
+    private static final int CLOCK_SKEW_WARN_SECONDS = getEnvInt("CLOCK_SKEW_WARN_SECONDS", 60);
+    // 设备时钟偏差超过该秒数时，把搜索/回放时间换算到设备时钟上（<=0 表示只报告不修正）
+    private static final int CLOCK_SKEW_CORRECT_SECONDS = getEnvInt("CLOCK_SKEW_CORRECT_SECONDS", 5);
+    private static final DeviceTimeCache DEVICE_TIMES = new DeviceTimeCache(
+            TimeUnit.MINUTES.toSeconds(DEVICE_TIME_CACHE_TTL_MINUTES), DEVICE_TIME_FAILURE_TTL_SECONDS, TimeUnit.SECONDS);
+    private static final boolean RECORDING_INDEX_ENABLED = getEnvBool("RECORDING_INDEX_ENABLED", true);
+    private static final RecordingIndex RECORDING_INDEX = RECORDING_INDEX_ENABLED
+            ? new RecordingIndex(getEnvInt("RECORDING_INDEX_TTL_MINUTES", 60), TimeUnit.MINUTES,
+                    getEnvInt("RECORDING_INDEX_RECENT_MINUTES", 10), getEnvInt("RECORDING_INDEX_BUCKET_MINUTES", 60),
+                    getEnvInt("RECORDING_INDEX_MAX_TRACKS", 1024), TIME_MODE,
+                    getEnvBool("RECORDING_INDEX_PERSIST", true)
+                            ? new File(getEnv("RECORDING_INDEX_FILE", "./state/recording-index.json")) : null)
+            : null;
+    private static final FfmpegLocator FFMPEG =
+            new FfmpegLocator(getEnv("FFMPEG_PATH", ""), getEnvInt("FFMPEG_NOT_FOUND_RETRY_SECONDS", 60), TimeUnit.SECONDS);
+    // 转封装/裁剪引擎：auto（优先内置实现，G.711 音频等交给 ffmpeg）/ java / ffmpeg
+    private static final String REMUX_ENGINE = getEnv("REMUX_ENGINE", "auto").toLowerCase(Locale.ROOT);
+    private static final DownloadScheduler DOWNLOAD_SCHEDULER = new DownloadScheduler(
+            MAX_CONCURRENT_DOWNLOADS, MAX_DOWNLOADS_PER_DEVICE, MAX_QUEUED_DOWNLOADS,
+            getEnvInt("MAX_STREAMS_PER_DEVICE", MAX_DOWNLOADS_PER_DEVICE));
+    private static final int SSE_PROGRESS_INTERVAL_MS = getEnvInt("SSE_PROGRESS_INTERVAL_MS", 500);
+    private static final int SSE_HEARTBEAT_SECONDS = getEnvInt("SSE_HEARTBEAT_SECONDS", 15);
+    private static final int SSE_MAX_SUBSCRIBERS = getEnvInt("SSE_MAX_SUBSCRIBERS", 100);
+    private static final boolean TASK_JOURNAL_ENABLED = getEnvBool("TASK_JOURNAL_ENABLED", true);
+    private static final TaskJournal JOURNAL = TASK_JOURNAL_ENABLED
+            ? new TaskJournal(new File(getEnv("TASK_JOURNAL_FILE", "./state/tasks.journal")),
+                    getEnvInt("TASK_JOURNAL_FLUSH_MS", 200), getEnvBool("TASK_JOURNAL_FSYNC", true),
+                    () -> new HashSet<>(downloadTasks.keySet()))
+            : null;
+    private static volatile boolean shuttingDown = false;
+    private static final TaskEventHub TASK_EVENTS = new TaskEventHub(downloadTasks::get,
+            ISAPIWebServer::buildTaskSnapshot, ISAPIWebServer::isTerminalStatus,
+            SSE_PROGRESS_INTERVAL_MS, TimeUnit.SECONDS.toMillis(SSE_HEARTBEAT_SECONDS), SSE_MAX_SUBSCRIBERS);
+
+    // 运行指标（/metrics）；计数器为分段累加，下载循环里不加锁
+    private static final Metrics METRICS = new Metrics();
+    private static final Metrics.Counter DOWNLOAD_BYTES = METRICS.counter("isapi_download_bytes_total",
+            "从设备下载的字节数", "device");
+    private static final Metrics.Counter METHOD_RESULTS = METRICS.counter("isapi_download_method_total",
+            "各下载方法的尝试结果", "path", "method", "result");
+    private static final Metrics.Histogram SEARCH_SECONDS = METRICS.histogram("isapi_search_seconds",
+            "录像检索单页请求耗时（秒）", Metrics.LATENCY_BUCKETS, "result");
+    private static final Metrics.Histogram TTFB_SECONDS = METRICS.histogram("isapi_time_to_first_byte_seconds",
+            "下载请求发出到收到首个数据块的耗时（秒）", Metrics.LATENCY_BUCKETS, "path");
+    private static final Metrics.Histogram MEDIA_SECONDS = METRICS.histogram("isapi_media_duration_seconds",
+            "RTSP 截取 / 转封装 / 裁剪耗时（秒）", Metrics.DURATION_BUCKETS, "operation", "engine", "result");
+    private static final Metrics.Counter TASKS_FINISHED = METRICS.counter("isapi_tasks_finished_total",
+            "已结束的下载任务数", "status");
+    private static final Metrics.Counter FLEET_SEARCH_DEVICES = METRICS.counter("isapi_fleet_search_devices_total",
+            "多设备搜索中各设备的结果", "result");
 
     private static final DateTimeFormatter INPUT_LOCAL_DT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm");
     private static final DateTimeFormatter SEARCH_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
@@ -76,8 +192,14 @@ public class ISAPIWebServer {
         // 路由配置
         server.createContext("/", new StaticHandler());
         server.createContext("/api/search", new SearchHandler());
+        server.createContext("/api/fleet-search", new FleetSearchHandler());
         server.createContext("/api/download", new DownloadHandler());
+        server.createContext("/api/batch-download", new BatchDownloadHandler());
         server.createContext("/api/download-status", new DownloadStatusHandler());
+        server.createContext("/api/download-events", new DownloadEventsHandler());
+        server.createContext("/api/download-resume", new DownloadResumeHandler());
+        server.createContext("/api/device-capabilities", new DeviceCapabilitiesHandler());
+        server.createContext("/api/diagnostics", new DiagnosticsHandler());
         server.createContext("/downloads/", new FileDownloadHandler());
         // 新增接口
         server.createContext("/api/device-info", new DeviceInfoHandler());
@@ -86,18 +208,35 @@ public class ISAPIWebServer {
         server.createContext("/api/rtsp-download", new RtspDownloadHandler());  // RTSP 时间段截取
         server.createContext("/api/storage", new StorageHandler());
         server.createContext("/api/ptz", new PtzHandler());
+        server.createContext("/metrics", new MetricsHandler());
         log.debug("路由配置完成");
 
         server.setExecutor(Executors.newFixedThreadPool(10));
+        registerGauges();
+        if (RECORDING_INDEX != null) {
+            RECORDING_INDEX.load();
+        }
+        restoreJournaledTasks();
         server.start();
 
         MAINTENANCE.scheduleAtFixedRate(ISAPIWebServer::cleanupExpiredTasks, 5, 5, TimeUnit.MINUTES);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             log.info("[关闭] 开始清理下载任务与子进程");
+            // 关闭导致的取消不写入任务日志，断点文件也保留，下次启动时继续
+            shuttingDown = true;
             for (DownloadTask task : downloadTasks.values()) {
                 cancelTask(task, "服务关闭");
             }
+            DOWNLOAD_SCHEDULER.shutdownNow();
+            TASK_EVENTS.shutdown();
+            if (JOURNAL != null) {
+                JOURNAL.close();
+            }
+            if (RECORDING_INDEX != null) {
+                RECORDING_INDEX.saveIfDirty();
+            }
             MAINTENANCE.shutdownNow();
+            Logger.close(); // 写完异步队列中剩余的日志
         }, "isapi-shutdown"));
 
         log.info("========================================");
@@ -105,9 +244,60 @@ public class ISAPIWebServer {
         log.info("请访问: http://localhost:%d", PORT);
         log.info("日志目录: %s", new File("./log").getAbsolutePath());
         log.info("时间模式: %s, 最大时间范围(分钟): %d", TIME_MODE, MAX_DOWNLOAD_RANGE_MINUTES);
+        log.info("下载并发: 全局 %d, 单设备 %d, 队列上限 %d",
+                MAX_CONCURRENT_DOWNLOADS, MAX_DOWNLOADS_PER_DEVICE, MAX_QUEUED_DOWNLOADS);
+        log.info("设备能力缓存 TTL(分钟): %d, 设备时间缓存 TTL(分钟): %d",
+                CAPABILITY_CACHE_TTL_MINUTES, DEVICE_TIME_CACHE_TTL_MINUTES);
         log.info("========================================");
     }
 
+    // 抓取时才计算的指标：任务数、调度器队列、客户端缓存、Digest 认证质询
+    private static void registerGauges() {
+        METRICS.gauges("isapi_tasks", "内存中的下载任务数（按状态）", "status", () -> {
+            Map<String, Long> counts = new TreeMap<>();
+            for (DownloadTask task : downloadTasks.values()) {
+                counts.merge(task.status, 1L, Long::sum);
+            }
+            return counts;
+        });
+        METRICS.gauge("isapi_scheduler_running", "正在执行的下载任务数",
+                () -> ((Number) DOWNLOAD_SCHEDULER.stats().get("running")).doubleValue());
+        METRICS.gauge("isapi_scheduler_queued", "排队等待的下载任务数",
+                () -> ((Number) DOWNLOAD_SCHEDULER.stats().get("queued")).doubleValue());
+        METRICS.gauge("isapi_client_cache_size", "缓存的设备 HTTP 客户端数", clientCache::size);
+        METRICS.counters("isapi_client_cache_evictions_total", "淘汰的设备 HTTP 客户端数（size: 超过上限, idle: 空闲超时）",
+                "reason", clientCache::evictionStats);
+        METRICS.gauges("isapi_http_connections", "共享连接池中的连接数（idle / active）", "state", () -> {
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            int idle = TRANSPORT.idleConnectionCount();
+            counts.put("idle", idle);
+            counts.put("active", Math.max(0, TRANSPORT.connectionCount() - idle));
+            return counts;
+        });
+        METRICS.gauge("isapi_http_calls_in_flight", "正在执行的设备 HTTP 请求数", TRANSPORT::callsInFlight);
+        if (RECORDING_INDEX != null) {
+            METRICS.counters("isapi_recording_index_lookups_total",
+                    "录像索引查询结果（hit: 全部来自索引, partial: 部分向设备查询, miss: 全部向设备查询）",
+                    "result", RECORDING_INDEX::lookupStats);
+            METRICS.gauge("isapi_recording_index_segments", "录像索引中的分段数", RECORDING_INDEX::segmentCount);
+        }
+        METRICS.counters("isapi_digest_401_total", "设备返回 401 的次数（challenge: 全部质询, stale: nonce 过期, rejected: 认证失败）",
+                "kind", DigestAuthenticator::challengeStats);
+        // JVM 线程与堆，压测时按时间采样
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        METRICS.gauge("jvm_threads_current", "当前线程数", threads::getThreadCount);
+        METRICS.gauge("jvm_threads_peak", "启动以来的峰值线程数", threads::getPeakThreadCount);
+        METRICS.gauges("jvm_memory_heap_bytes", "堆内存（used / committed / max）", "area", () -> {
+            MemoryUsage heap = memory.getHeapMemoryUsage();
+            Map<String, Long> values = new LinkedHashMap<>();
+            values.put("used", heap.getUsed());
+            values.put("committed", heap.getCommitted());
+            values.put("max", heap.getMax());
+            return values;
+        });
+    }
+
     // 录像信息
     static class RecordingInfo {
         String trackId;
@@ -129,39 +319,187 @@ public class ISAPIWebServer {
             map.put("contentLength", contentLength);
             return map;
         }
+
+        static RecordingInfo fromMap(Map<String, Object> map) {
+            RecordingInfo rec = new RecordingInfo();
+            rec.trackId = (String) map.get("trackId");
+            rec.startTime = (String) map.get("startTime");
+            rec.endTime = (String) map.get("endTime");
+            rec.eventType = (String) map.get("eventType");
+            rec.downloadPath = (String) map.get("downloadPath");
+            rec.playbackURI = (String) map.get("playbackURI");
+            Object length = map.get("contentLength");
+            rec.contentLength = length instanceof Number ? ((Number) length).longValue() : 0;
+            return rec;
+        }
     }
 
     // 下载任务
     static class DownloadTask {
         volatile String taskId;
-        volatile String status = "pending"; // pending, downloading, completed, failed, cancelled
+        volatile String status = "pending"; // pending, downloading, awaiting-credentials, completed, failed, cancelled
+        volatile DownloadRequest awaitingCredentials; // 重启恢复后等待重新提供密码的原始请求（不含密码）
+        volatile int queuePosition = 0; // pending 时的排队位置（从 1 开始，0 表示未排队/已开始）
         volatile String downloadMode = "file"; // file: 文件下载, stream: 流式下载
         volatile int total;
-        volatile int current;
-        volatile int success;
-        volatile int failed;
+        volatile int parallelism = 1; // 同一任务内并行下载的分段数
+        final AtomicInteger current = new AtomicInteger(); // 已开始的分段数
+        final AtomicInteger success = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
         volatile String currentFile = "";
         volatile String message = "";
         volatile long totalBytes = 0; // 当前文件已下载字节数
         volatile long expectedBytes = 0; // 当前文件预期字节数（流式下载时为0）
-        volatile long totalDownloadedBytes = 0; // 所有文件总下载字节数
+        final AtomicLong totalDownloadedBytes = new AtomicLong(); // 所有文件总下载字节数
         volatile String timeMode = TIME_MODE;
         volatile String timeBasis = "";
         volatile String deviceTimeZone = "";
+        volatile Long deviceClockSkewSeconds;
+        volatile boolean clockSkewApplied;
         volatile String normalizedStart = "";
         volatile String normalizedEnd = "";
         volatile boolean cancelRequested = false;
         volatile long createdAt = System.currentTimeMillis();
         volatile long updatedAt = System.currentTimeMillis();
         volatile long finishedAt = 0;
-        volatile Process activeProcess;
-        volatile Call activeCall;
+        final Set<Process> activeProcesses = ConcurrentHashMap.newKeySet(); // 运行中的 ffmpeg（并行分段时可能有多个）
+        final Set<Call> activeCalls = ConcurrentHashMap.newKeySet(); // 进行中的 HTTP 请求（并行分段时可能有多个）
         volatile String requestedMethod = "";   // 用户请求的方式: "isapi-http" / "rtsp"
         volatile String effectiveMethod = "";   // 实际生效方式: "isapi-http" / "rtsp"
         volatile boolean fallbackUsed = false;  // 是否发生了回退
         List<String> downloadedFiles = new CopyOnWriteArrayList<>();
         List<String> logs = new CopyOnWriteArrayList<>();
+        volatile long logSeq = 0; // 累计写入的日志条数（logs 只保留尾部，推送靠它找出新日志）
         List<String> attemptedUrls = new CopyOnWriteArrayList<>();
+        List<SegmentProgress> segments = new CopyOnWriteArrayList<>();
+        final Map<String, Long> journaledSegments = new ConcurrentHashMap<>(); // 重启前已完成的分段（文件名 → 字节数），恢复时跳过
+        volatile String deviceKey = ""; // ip:port，指标按设备统计用
+        volatile List<String> channels = Collections.emptyList(); // 录像任务的通道（批量导出时有多个）
+        final Map<String, String> channelErrors = new ConcurrentHashMap<>(); // 搜索失败的通道 → 原因
+        final AtomicBoolean finishCounted = new AtomicBoolean(); // 结束状态只计入指标一次
+    }
+
+    // 多录像任务中单个分段的进度
+    static class SegmentProgress {
+        final int index;
+        final String fileName;
+        volatile String channelId = "";
+        volatile String status = "pending"; // pending, downloading, completed, failed
+        volatile long bytes = 0;
+        volatile long expectedBytes = 0;
+        volatile String error = "";
+
+        SegmentProgress(int index, String fileName, long expectedBytes) {
+            this.index = index;
+            this.fileName = fileName;
+            this.expectedBytes = expectedBytes;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("index", index);
+            map.put("fileName", fileName);
+            if (!channelId.isEmpty()) {
+                map.put("channelId", channelId);
+            }
+            map.put("status", status);
+            map.put("bytes", bytes);
+            map.put("expectedBytes", expectedBytes);
+            if (!error.isEmpty()) {
+                map.put("error", error);
+            }
+            return map;
+        }
+    }
+
+    // 重新执行任务所需的参数（写入任务日志，重启后据此恢复）；时间为已归一化的结果，恢复时不再查询设备时间
+    static class DownloadRequest {
+        static final String RECORDINGS = "recordings"; // /api/download：搜索后逐个下载
+        static final String CLIP = "clip";             // /api/rtsp-download：时间段截取单个文件
+
+        final String kind;
+        final String deviceIp;
+        final int port;
+        final String username;
+        final String password;
+        final String channelId;
+        String downloadMode = "file";
+        int parallelism = 1;
+        String searchStart = "";
+        String searchEnd = "";
+        String downloadMethod = "rtsp";
+        int rtspPort = RTSP_PORT_DEFAULT;
+        String rtspStart = "";
+        String rtspEnd = "";
+
+        DownloadRequest(String kind, String deviceIp, int port, String username, String password, String channelId) {
+            this.kind = kind;
+            this.deviceIp = deviceIp;
+            this.port = port;
+            this.username = username;
+            this.password = password;
+            this.channelId = channelId;
+        }
+
+        // 写入任务日志的参数：不含密码，重启后由 /api/download-resume 重新提供
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("kind", kind);
+            map.put("deviceIp", deviceIp);
+            map.put("port", port);
+            map.put("username", username);
+            map.put("channelId", channelId);
+            if (RECORDINGS.equals(kind)) {
+                map.put("downloadMode", downloadMode);
+                map.put("parallelism", parallelism);
+                map.put("searchStart", searchStart);
+                map.put("searchEnd", searchEnd);
+            } else {
+                map.put("downloadMethod", downloadMethod);
+                map.put("rtspPort", rtspPort);
+                map.put("rtspStart", rtspStart);
+                map.put("rtspEnd", rtspEnd);
+            }
+            return map;
+        }
+
+        // 旧版本日志中的 password 字段不再读取
+        static DownloadRequest fromMap(Map<?, ?> map) {
+            DownloadRequest req = new DownloadRequest(str(map, "kind"), str(map, "deviceIp"),
+                    num(map, "port", 80), str(map, "username"), "", str(map, "channelId"));
+            req.downloadMode = str(map, "downloadMode");
+            req.parallelism = num(map, "parallelism", 1);
+            req.searchStart = str(map, "searchStart");
+            req.searchEnd = str(map, "searchEnd");
+            req.downloadMethod = str(map, "downloadMethod");
+            req.rtspPort = num(map, "rtspPort", RTSP_PORT_DEFAULT);
+            req.rtspStart = str(map, "rtspStart");
+            req.rtspEnd = str(map, "rtspEnd");
+            return req;
+        }
+
+        DownloadRequest withCredentials(String username, String password) {
+            DownloadRequest req = new DownloadRequest(kind, deviceIp, port, username, password, channelId);
+            req.downloadMode = downloadMode;
+            req.parallelism = parallelism;
+            req.searchStart = searchStart;
+            req.searchEnd = searchEnd;
+            req.downloadMethod = downloadMethod;
+            req.rtspPort = rtspPort;
+            req.rtspStart = rtspStart;
+            req.rtspEnd = rtspEnd;
+            return req;
+        }
+
+        private static String str(Map<?, ?> map, String key) {
+            Object value = map.get(key);
+            return value != null ? String.valueOf(value) : "";
+        }
+
+        private static int num(Map<?, ?> map, String key, int defaultValue) {
+            Object value = map.get(key);
+            return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+        }
     }
 
     // 静态文件处理
@@ -202,17 +540,21 @@ public class ISAPIWebServer {
                 String startTime = params.get("startTime");
                 String endTime = params.get("endTime");
                 Integer clientTzOffsetMinutes = parseNullableInt(params.get("clientTimezoneOffsetMinutes"));
+                boolean refresh = "true".equalsIgnoreCase(params.get("refresh"));
 
                 log.info("[搜索参数] 设备: %s:%d, 用户: %s, 通道: %s", deviceIp, port, username, channelId);
                 log.info("[搜索参数] 时间范围: %s ~ %s", startTime, endTime);
 
                 OkHttpClient client = getClient(deviceIp, username, password);
-                TimeRange resolved = resolveTimeRange(client, deviceIp, port, startTime, endTime, clientTzOffsetMinutes);
+                TimeRange resolved = resolveTimeRange(client, deviceIp, port, username, password, startTime, endTime,
+                        clientTzOffsetMinutes);
 
-                log.debug("开始连接设备...");
-                List<RecordingInfo> recordings = searchRecordings(client, deviceIp, port, channelId, resolved.searchStart, resolved.searchEnd);
+                RecordingIndex.Lookup lookup = searchRecordingsIndexed(client, deviceIp, port, channelId, resolved, refresh,
+                        () -> false);
+                List<RecordingInfo> recordings = lookup.recordings;
 
-                log.info("[搜索结果] 找到 %d 条录像", recordings.size());
+                log.info("[搜索结果] 找到 %d 条录像（索引: %s, 设备查询 %d 次）",
+                        recordings.size(), lookup.result, lookup.deviceQueries.size());
                 for (int i = 0; i < recordings.size(); i++) {
                     RecordingInfo rec = recordings.get(i);
                     log.debug("  [%d] 通道:%s 时间:%s~%s 类型:%s", 
@@ -229,13 +571,19 @@ public class ISAPIWebServer {
                 response.put("timeMode", TIME_MODE);
                 response.put("timeBasis", resolved.timeBasis);
                 response.put("deviceTimeZone", valueOrEmpty(resolved.deviceTimeZone));
+                response.put("deviceClockSkewSeconds", resolved.deviceClockSkewSeconds);
+                response.put("clockSkewApplied", resolved.clockSkewApplied);
                 response.put("normalizedStart", resolved.searchStart);
                 response.put("normalizedEnd", resolved.searchEnd);
+                response.put("index", lookup.toMap());
                 sendJson(exchange, 200, response);
 
             } catch (IllegalArgumentException e) {
                 log.warn("[搜索参数错误] %s", e.getMessage());
                 sendJson(exchange, 400, errorResponse("INVALID_TIME_RANGE", e.getMessage()));
+            } catch (DeviceAuthException e) {
+                log.warn("[搜索失败] %s", e.getMessage());
+                sendJson(exchange, 401, errorResponse("DEVICE_AUTH_FAILED", e.getMessage()));
             } catch (Exception e) {
                 log.error("[搜索失败] " + e.getMessage(), e);
                 sendJson(exchange, 500, errorResponse("SEARCH_FAILED", e.getMessage()));
@@ -243,6 +591,407 @@ public class ISAPIWebServer {
         }
     }
 
+    // 多设备并行搜索：同一时间段查询一组设备（有界线程池 + 单设备超时），
+    // 默认以 NDJSON 逐行返回：每台设备完成（或超时/失败）时一行，最后一行是按绝对时间合并排序的时间线
+    static class FleetSearchHandler implements HttpHandler {
+        private final Logger log = Logger.getLogger(FleetSearchHandler.class);
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String clientIp = exchange.getRemoteAddress().getAddress().getHostAddress();
+            log.info("[多设备搜索] 客户端IP: %s", clientIp);
+
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                log.warn("不支持的请求方法: %s", exchange.getRequestMethod());
+                sendJson(exchange, 405, errorResponse("METHOD_NOT_ALLOWED", "Method not allowed"));
+                return;
+            }
+
+            List<FleetDevice> devices;
+            String startTime;
+            String endTime;
+            Integer clientTzOffsetMinutes;
+            boolean stream;
+            boolean refresh;
+            try {
+                Map<String, String> params = parseFormData(exchange);
+                devices = parseFleetDevices(params);
+                startTime = params.get("startTime");
+                endTime = params.get("endTime");
+                clientTzOffsetMinutes = parseNullableInt(params.get("clientTimezoneOffsetMinutes"));
+                stream = !"false".equalsIgnoreCase(params.getOrDefault("stream", "true"));
+                refresh = "true".equalsIgnoreCase(params.get("refresh"));
+                if (startTime == null || endTime == null || startTime.trim().isEmpty() || endTime.trim().isEmpty()) {
+                    throw new IllegalArgumentException("开始时间和结束时间不能为空");
+                }
+            } catch (IllegalArgumentException e) {
+                log.warn("[多设备搜索参数错误] %s", e.getMessage());
+                sendJson(exchange, 400, errorResponse("INVALID_FLEET_REQUEST", e.getMessage()));
+                return;
+            }
+
+            if (!FLEET_SEARCH_REQUESTS.tryAcquire()) {
+                log.warn("[多设备搜索] 同时进行的请求已达上限 %d，拒绝客户端 %s", FLEET_SEARCH_MAX_REQUESTS, clientIp);
+                sendJson(exchange, 503, errorResponse("FLEET_SEARCH_BUSY",
+                        "同时进行的多设备搜索已达上限 " + FLEET_SEARCH_MAX_REQUESTS + "，请稍后重试"));
+                return;
+            }
+            try {
+                search(exchange, devices, startTime, endTime, clientTzOffsetMinutes, stream, refresh);
+            } finally {
+                FLEET_SEARCH_REQUESTS.release();
+            }
+        }
+
+        private void search(HttpExchange exchange, List<FleetDevice> devices, String startTime, String endTime,
+                            Integer clientTzOffsetMinutes, boolean stream, boolean refresh) throws IOException {
+            log.info("[多设备搜索] %d 台设备, 时间范围: %s ~ %s, 并发: %d, 单设备超时: %d 秒, 请求超时: %d 秒",
+                    devices.size(), startTime, endTime, FLEET_SEARCH_PARALLELISM, FLEET_SEARCH_DEVICE_TIMEOUT_SECONDS,
+                    FLEET_SEARCH_REQUEST_TIMEOUT_SECONDS);
+            long startedAt = System.currentTimeMillis();
+            BlockingQueue<FleetDevice> finished = new LinkedBlockingQueue<>();
+            for (FleetDevice device : devices) {
+                device.future = FLEET_SEARCH_POOL.submit(() ->
+                        runFleetDevice(device, startTime, endTime, clientTzOffsetMinutes, refresh, finished));
+            }
+
+            OutputStream out = null;
+            if (stream) {
+                exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=UTF-8");
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                exchange.getResponseHeaders().set("X-Accel-Buffering", "no");
+                exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+                exchange.sendResponseHeaders(200, 0);
+                out = exchange.getResponseBody();
+            }
+            List<Map<String, Object>> deviceRows = new ArrayList<>();
+            List<Map<String, Object>> timeline = new ArrayList<>();
+            try {
+                if (out != null) {
+                    Map<String, Object> start = new LinkedHashMap<>();
+                    start.put("event", "start");
+                    start.put("devices", devices.size());
+                    start.put("parallelism", FLEET_SEARCH_PARALLELISM);
+                    start.put("deviceTimeoutSeconds", FLEET_SEARCH_DEVICE_TIMEOUT_SECONDS);
+                    start.put("requestTimeoutSeconds", FLEET_SEARCH_REQUEST_TIMEOUT_SECONDS);
+                    writeNdjson(out, start);
+                }
+                long timeoutMillis = TimeUnit.SECONDS.toMillis(FLEET_SEARCH_DEVICE_TIMEOUT_SECONDS);
+                long deadline = startedAt + TimeUnit.SECONDS.toMillis(FLEET_SEARCH_REQUEST_TIMEOUT_SECONDS);
+                int remaining = devices.size();
+                while (remaining > 0) {
+                    FleetDevice done = finished.poll(200, TimeUnit.MILLISECONDS);
+                    List<FleetDevice> ready = new ArrayList<>();
+                    if (done != null) {
+                        ready.add(done);
+                        finished.drainTo(ready);
+                    }
+                    // 单设备超时从开始查询算起（排队等待线程的时间不计）；
+                    // 整个请求超过 FLEET_SEARCH_REQUEST_TIMEOUT_SECONDS 时，仍在查询或排队的设备一并记为超时
+                    long now = System.currentTimeMillis();
+                    boolean expired = now > deadline;
+                    for (FleetDevice device : devices) {
+                        long deviceStart = device.startedAt;
+                        boolean deviceExpired = deviceStart > 0 && now - deviceStart > timeoutMillis;
+                        if ((deviceExpired || expired) && device.reported.compareAndSet(false, true)) {
+                            device.cancel();
+                            device.result = device.toMap("timeout", deviceStart > 0 ? now - deviceStart : 0);
+                            device.result.put("error", deviceExpired
+                                    ? "超过 " + FLEET_SEARCH_DEVICE_TIMEOUT_SECONDS + " 秒未完成"
+                                    : deviceStart > 0
+                                    ? "请求超过 " + FLEET_SEARCH_REQUEST_TIMEOUT_SECONDS + " 秒未完成"
+                                    : "请求超过 " + FLEET_SEARCH_REQUEST_TIMEOUT_SECONDS + " 秒，设备仍在排队未开始查询");
+                            device.recordings = Collections.emptyList();
+                            ready.add(device);
+                        }
+                    }
+                    for (FleetDevice device : ready) {
+                        remaining--;
+                        FLEET_SEARCH_DEVICES.inc(String.valueOf(device.result.get("status")));
+                        timeline.addAll(device.recordings);
+                        deviceRows.add(device.result);
+                        if (out != null) {
+                            Map<String, Object> event = new LinkedHashMap<>();
+                            event.put("event", "device");
+                            event.putAll(device.result);
+                            event.put("recordings", device.recordings);
+                            writeNdjson(out, event);
+                        }
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // 客户端断开：剩余设备不再查询
+                for (FleetDevice device : devices) {
+                    device.reported.set(true);
+                    device.cancel();
+                }
+                log.warn("[多设备搜索] 提前结束: %s", e.getMessage());
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.close();
+                return;
+            }
+
+            timeline.sort(FLEET_TIMELINE_ORDER);
+            Map<String, Object> summary = new LinkedHashMap<>();
+            if (out != null) {
+                summary.put("event", "done");
+            } else {
+                summary.put("success", true);
+            }
+            Map<String, Integer> byStatus = new LinkedHashMap<>();
+            for (String status : new String[]{"ok", "partial", "failed", "timeout"}) {
+                byStatus.put(status, 0);
+            }
+            for (Map<String, Object> row : deviceRows) {
+                byStatus.merge(String.valueOf(row.get("status")), 1, Integer::sum);
+            }
+            summary.put("devices", devices.size());
+            summary.putAll(byStatus);
+            summary.put("count", timeline.size());
+            summary.put("elapsedMs", System.currentTimeMillis() - startedAt);
+            if (out == null) {
+                summary.put("deviceResults", deviceRows);
+            }
+            summary.put("timeline", timeline);
+            log.info("[多设备搜索] 完成: %d 台设备, %d 条录像, 耗时 %d ms, 状态: %s",
+                    devices.size(), timeline.size(), System.currentTimeMillis() - startedAt, byStatus);
+            if (out == null) {
+                sendJson(exchange, 200, summary);
+                return;
+            }
+            try {
+                writeNdjson(out, summary);
+            } finally {
+                out.close();
+            }
+        }
+
+        private static void writeNdjson(OutputStream out, Map<String, Object> event) throws IOException {
+            out.write(JSON.writeValueAsBytes(event));
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    // 多设备搜索中的一台设备；结果只由先完成的一方（查询线程或超时判定）写入
+    static class FleetDevice {
+        String deviceIp;
+        int port;
+        String username;
+        String password;
+        String channelIds;
+        volatile long startedAt;
+        volatile Future<?> future;
+        final AtomicBoolean reported = new AtomicBoolean();
+        volatile Map<String, Object> result;
+        volatile List<Map<String, Object>> recordings = Collections.emptyList();
+        // 该设备发出的 HTTP 请求：超时后主动取消，查询线程不必等到 callTimeout 才释放
+        final Set<Call> calls = ConcurrentHashMap.newKeySet();
+
+        void cancel() {
+            future.cancel(true);
+            for (Call call : calls) {
+                call.cancel();
+            }
+        }
+
+        Map<String, Object> toMap(String status, long elapsedMs) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("deviceIp", deviceIp);
+            map.put("port", port);
+            map.put("status", status);
+            map.put("elapsedMs", elapsedMs);
+            return map;
+        }
+    }
+
+    // 时间线按绝对开始时间排序，其次按设备和通道
+    private static final Comparator<Map<String, Object>> FLEET_TIMELINE_ORDER = Comparator
+            .comparing((Map<String, Object> row) -> String.valueOf(row.get("startUtc")))
+            .thenComparing(row -> String.valueOf(row.get("deviceIp")))
+            .thenComparing(row -> (Integer) row.get("port"))
+            .thenComparing(row -> String.valueOf(row.get("trackId")));
+
+    // devices 为 JSON 数组：元素可以是 "ip" / "ip:port" / "[IPv6]" / "[IPv6]:port" 字符串，
+    // 或带 deviceIp/port/username/password/channelIds 的对象；
+    // 未指定的字段取请求顶层的 port/username/password/channelIds（channelIds 默认 all）
+    static List<FleetDevice> parseFleetDevices(Map<String, String> params) {
+        String raw = params.get("devices");
+        if (raw == null || raw.trim().isEmpty()) {
+            throw new IllegalArgumentException("devices 不能为空");
+        }
+        JsonNode array;
+        try {
+            array = JSON.readTree(raw);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("devices 不是合法的 JSON 数组");
+        }
+        if (array == null || !array.isArray() || array.size() == 0) {
+            throw new IllegalArgumentException("devices 不是合法的 JSON 数组");
+        }
+        if (array.size() > FLEET_SEARCH_MAX_DEVICES) {
+            throw new IllegalArgumentException("设备数 " + array.size() + " 超过上限 " + FLEET_SEARCH_MAX_DEVICES);
+        }
+        int defaultPort = Integer.parseInt(params.getOrDefault("port", "80"));
+        Map<String, FleetDevice> devices = new LinkedHashMap<>();
+        for (JsonNode node : array) {
+            FleetDevice device = new FleetDevice();
+            device.port = defaultPort;
+            device.username = params.get("username");
+            device.password = params.get("password");
+            device.channelIds = params.getOrDefault("channelIds", "all");
+            if (node.isTextual()) {
+                parseDeviceAddress(device, node.asText().trim());
+            } else if (node.isObject()) {
+                device.deviceIp = bracketIpv6(node.path("deviceIp").asText("").trim());
+                device.port = node.path("port").asInt(device.port);
+                device.username = node.path("username").asText(device.username);
+                device.password = node.path("password").asText(device.password);
+                device.channelIds = node.path("channelIds").asText(device.channelIds);
+            }
+            if (device.deviceIp == null || device.deviceIp.isEmpty()) {
+                throw new IllegalArgumentException("devices 中存在缺少 deviceIp 的条目: " + node);
+            }
+            if (device.username == null || device.password == null) {
+                throw new IllegalArgumentException("设备 " + device.deviceIp + " 缺少 username/password");
+            }
+            devices.putIfAbsent(device.deviceIp + ":" + device.port, device);
+        }
+        return new ArrayList<>(devices.values());
+    }
+
+    // 不带方括号且含多个冒号的地址视为 IPv6 地址本身（不含端口）；带方括号时方括号后的 :port 为端口
+    private static void parseDeviceAddress(FleetDevice device, String text) {
+        String portText = null;
+        if (text.startsWith("[")) {
+            int close = text.indexOf(']');
+            if (close < 0 || (close + 1 < text.length() && text.charAt(close + 1) != ':')) {
+                throw new IllegalArgumentException("设备地址格式错误（IPv6 应写成 [地址]:端口）: " + text);
+            }
+            device.deviceIp = text.substring(0, close + 1);
+            portText = close + 1 < text.length() ? text.substring(close + 2) : null;
+        } else if (text.indexOf(':') != text.lastIndexOf(':')) {
+            device.deviceIp = bracketIpv6(text);
+        } else {
+            int colon = text.indexOf(':');
+            device.deviceIp = colon >= 0 ? text.substring(0, colon) : text;
+            portText = colon >= 0 ? text.substring(colon + 1) : null;
+        }
+        if (portText != null) {
+            try {
+                device.port = Integer.parseInt(portText);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("设备地址端口无效: " + text);
+            }
+            if (device.port <= 0 || device.port > 65535) {
+                throw new IllegalArgumentException("设备地址端口无效: " + text);
+            }
+        }
+    }
+
+    // IPv6 地址加方括号，可直接拼接 http://host:port，且 host:port 形式的设备键无歧义
+    private static String bracketIpv6(String host) {
+        return host.indexOf(':') >= 0 && !host.startsWith("[") ? "[" + host + "]" : host;
+    }
+
+    // 查询单台设备：解析设备时区 → 逐个通道分页搜索（同一设备的通道串行，避免给单台设备加压）
+    private static void runFleetDevice(FleetDevice device, String startTime, String endTime,
+                                       Integer clientTzOffsetMinutes, boolean refresh,
+                                       BlockingQueue<FleetDevice> finished) {
+        if (device.reported.get()) {
+            return;
+        }
+        device.startedAt = System.currentTimeMillis();
+        Map<String, Object> result;
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try {
+            // 单次请求也受设备超时约束，超时判定后查询线程不会一直阻塞在慢设备上
+            OkHttpClient client = getClient(device.deviceIp, device.username, device.password).newBuilder()
+                    .callTimeout(FLEET_SEARCH_DEVICE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .eventListenerFactory(call -> {
+                        device.calls.add(call);
+                        if (device.reported.get()) {
+                            call.cancel();
+                        }
+                        return okhttp3.EventListener.NONE;
+                    })
+                    .build();
+            TimeRange resolved = resolveTimeRange(client, device.deviceIp, device.port, device.username, device.password,
+                    startTime, endTime, clientTzOffsetMinutes);
+            List<String> channels = resolveChannels(client, device.deviceIp, device.port, device.username, device.password,
+                    device.channelIds);
+            if (channels.isEmpty()) {
+                throw new IOException("未获取到通道列表（设备不可达或没有通道）");
+            }
+            Map<String, String> channelErrors = new LinkedHashMap<>();
+            Map<String, String> indexResults = new LinkedHashMap<>();
+            List<String> truncatedChannels = new ArrayList<>();
+            for (String channelId : channels) {
+                if (device.reported.get()) {
+                    return;
+                }
+                try {
+                    RecordingIndex.Lookup lookup = searchRecordingsIndexed(client, device.deviceIp, device.port, channelId,
+                            resolved, refresh, device.reported::get);
+                    indexResults.put(channelId, lookup.result);
+                    if (lookup.truncated) {
+                        truncatedChannels.add(channelId);
+                    }
+                    for (RecordingInfo rec : lookup.recordings) {
+                        Map<String, Object> row = rec.toMap();
+                        row.put("deviceIp", device.deviceIp);
+                        row.put("port", device.port);
+                        row.put("startUtc", recordingInstantText(rec.startTime, resolved.zone));
+                        row.put("endUtc", recordingInstantText(rec.endTime, resolved.zone));
+                        rows.add(row);
+                    }
+                } catch (Exception e) {
+                    channelErrors.put(channelId, valueOrEmpty(e.getMessage()));
+                }
+            }
+            String status = channelErrors.isEmpty() ? "ok" : channelErrors.size() < channels.size() ? "partial" : "failed";
+            result = device.toMap(status, System.currentTimeMillis() - device.startedAt);
+            result.put("count", rows.size());
+            result.put("channels", channels);
+            if (!channelErrors.isEmpty()) {
+                result.put("channelErrors", channelErrors);
+            }
+            result.put("index", indexResults);
+            if (!truncatedChannels.isEmpty()) {
+                result.put("truncatedChannels", truncatedChannels);
+            }
+            result.put("timeBasis", resolved.timeBasis);
+            result.put("deviceTimeZone", valueOrEmpty(resolved.deviceTimeZone));
+            result.put("deviceClockSkewSeconds", resolved.deviceClockSkewSeconds);
+            result.put("clockSkewApplied", resolved.clockSkewApplied);
+            rows.sort(FLEET_TIMELINE_ORDER);
+        } catch (Exception e) {
+            result = device.toMap("failed", System.currentTimeMillis() - device.startedAt);
+            result.put("error", valueOrEmpty(e.getMessage()));
+            rows.clear();
+        }
+        if (device.reported.compareAndSet(false, true)) {
+            device.result = result;
+            device.recordings = rows;
+            finished.add(device);
+        }
+    }
+
+    // 搜索结果中的时间转为绝对时刻（ISO-8601 UTC）；DEVICE_LOCAL_LITERAL_Z 模式下末尾的 Z 只是字面量，按设备时区解释
+    private static String recordingInstantText(String time, ZoneId zone) {
+        if (time == null || time.length() < 19) {
+            return "";
+        }
+        try {
+            return LocalDateTime.parse(time.substring(0, 19)).atZone(zone != null ? zone : ZoneOffset.UTC)
+                    .toInstant().toString();
+        } catch (DateTimeParseException e) {
+            return "";
+        }
+    }
+
     // 下载录像
     static class DownloadHandler implements HttpHandler {
         private final Logger log = Logger.getLogger(DownloadHandler.class);
@@ -273,156 +1022,29 @@ public class ISAPIWebServer {
                 if (rtspPort != null && (rtspPort <= 0 || rtspPort > 65535)) {
                     throw new IllegalArgumentException("rtspPort 必须在 1-65535 之间");
                 }
+                Integer requestedParallelism = parseNullableInt(params.get("parallelism"));
+                int parallelism = requestedParallelism != null ? requestedParallelism : SEGMENT_PARALLELISM;
+                if (parallelism < 1 || parallelism > MAX_SEGMENT_PARALLELISM) {
+                    throw new IllegalArgumentException("parallelism 必须在 1-" + MAX_SEGMENT_PARALLELISM + " 之间");
+                }
 
                 log.info("[下载参数] 设备: %s:%d, 用户: %s, 通道: %s", deviceIp, port, username, channelId);
                 log.info("[下载参数] 时间范围: %s ~ %s", startTime, endTime);
-                log.info("[下载参数] 下载模式: %s", downloadMode.equals("stream") ? "流式下载" : "文件下载");
+                log.info("[下载参数] 下载模式: %s, 并行度: %d", downloadMode.equals("stream") ? "流式下载" : "文件下载", parallelism);
                 if (rtspPort != null) {
                     log.info("[下载参数] RTSP端口(透传): %d", rtspPort);
                 }
 
-                OkHttpClient initialClient = getClient(deviceIp, username, password);
-                TimeRange resolved = resolveTimeRange(initialClient, deviceIp, port, startTime, endTime, clientTzOffsetMinutes);
-
-                String taskId = UUID.randomUUID().toString().substring(0, 8);
-                DownloadTask task = new DownloadTask();
-                task.taskId = taskId;
-                task.status = "pending";
-                task.downloadMode = downloadMode;
-                task.timeBasis = resolved.timeBasis;
-                task.deviceTimeZone = valueOrEmpty(resolved.deviceTimeZone);
-                task.normalizedStart = resolved.searchStart;
-                task.normalizedEnd = resolved.searchEnd;
-                touchTask(task);
-                downloadTasks.put(taskId, task);
-
-                log.info("[下载任务] 创建任务 ID: %s, 模式: %s", taskId, downloadMode);
-
-                // 异步执行下载
-                final String fStart = resolved.searchStart;
-                final String fEnd = resolved.searchEnd;
-                final String fDownloadMode = downloadMode;
-                new Thread(() -> {
-                    Logger tLog = Logger.getLogger(DownloadHandler.class);
-                    try {
-                        String logMsg = String.format("[任务 %s] 开始搜索录像...", taskId);
-                        tLog.info(logMsg);
-                        addTaskLog(task, logMsg);
-                        
-                        OkHttpClient client = getClient(deviceIp, username, password);
-                        List<RecordingInfo> recordings = searchRecordings(client, deviceIp, port, channelId, fStart, fEnd);
-
-                        task.total = recordings.size();
-                        task.status = "downloading";
-                        touchTask(task);
-                        
-                        logMsg = String.format("[任务 %s] 找到 %d 条录像，开始%s...", 
-                                taskId, recordings.size(), fDownloadMode.equals("stream") ? "流式下载" : "文件下载");
-                        tLog.info(logMsg);
-                        addTaskLog(task, logMsg);
-
-                        for (int i = 0; i < recordings.size(); i++) {
-                            if (task.cancelRequested) {
-                                task.status = "cancelled";
-                                task.message = "任务已取消";
-                                task.finishedAt = System.currentTimeMillis();
-                                touchTask(task);
-                                addTaskLog(task, String.format("[任务 %s] 任务已取消", taskId));
-                                return;
-                            }
-                            RecordingInfo rec = recordings.get(i);
-                            task.current = i + 1;
-                            task.currentFile = rec.startTime;
-                            task.totalBytes = 0;
-                            task.expectedBytes = rec.contentLength;
-                            touchTask(task);
-
-                            String fileName = generateFileName(rec, i);
-                            String savePath = DOWNLOAD_DIR + "/" + fileName;
-
-                            logMsg = String.format("[任务 %s] 下载 %d/%d: %s", taskId, i + 1, recordings.size(), fileName);
-                            tLog.info(logMsg);
-                            addTaskLog(task, logMsg);
-
-                            try {
-                                long startMs = System.currentTimeMillis();
-                                long downloadedBytes;
-                                
-                                if ("stream".equals(fDownloadMode)) {
-                                    // 流式下载
-                                    logMsg = String.format("[任务 %s] 使用流式下载, playbackURI: %s", taskId, 
-                                            rec.playbackURI != null ? rec.playbackURI.substring(0, Math.min(80, rec.playbackURI.length())) + "..." : "null");
-                                    tLog.debug(logMsg);
-                                    addTaskLog(task, logMsg);
-                                    
-                                    downloadedBytes = downloadStream(client, deviceIp, port, rec, savePath, task);
-                                } else {
-                                    // 文件下载
-                                    logMsg = String.format("[任务 %s] 使用文件下载, downloadPath: %s", taskId, 
-                                            rec.downloadPath != null ? rec.downloadPath.substring(0, Math.min(80, rec.downloadPath.length())) + "..." : "null");
-                                    tLog.debug(logMsg);
-                                    addTaskLog(task, logMsg);
-                                    
-                                    downloadedBytes = downloadFileWithProgress(client, deviceIp, port, rec.downloadPath, savePath, task);
-                                }
-                                
-                                long elapsed = System.currentTimeMillis() - startMs;
-                                double sizeMB = downloadedBytes / 1024.0 / 1024.0;
-                                double speedMBps = elapsed > 0 ? (sizeMB / (elapsed / 1000.0)) : 0;
-                                
-                                logMsg = String.format("[任务 %s] 下载完成: %s (%.2f MB, 耗时 %d ms, 速度 %.2f MB/s)", 
-                                        taskId, fileName, sizeMB, elapsed, speedMBps);
-                                tLog.info(logMsg);
-                                addTaskLog(task, logMsg);
-                                
-                                task.success++;
-                                task.totalDownloadedBytes += downloadedBytes;
-                                task.downloadedFiles.add(fileName);
-                                touchTask(task);
-                                
-                            } catch (Exception e) {
-                                logMsg = String.format("[任务 %s] 下载失败: %s - %s", taskId, fileName, e.getMessage());
-                                tLog.error(logMsg, e);
-                                addTaskLog(task, logMsg);
-                                task.failed++;
-                                task.message = e.getMessage();
-                                touchTask(task);
-                            }
-                        }
-
-                        if (!task.cancelRequested) {
-                            task.status = "completed";
-                            double totalMB = task.totalDownloadedBytes / 1024.0 / 1024.0;
-                            task.message = String.format("下载完成 (总计 %.2f MB)", totalMB);
-                            task.finishedAt = System.currentTimeMillis();
-                            touchTask(task);
-                        
-                            logMsg = String.format("[任务 %s] 全部完成！成功: %d, 失败: %d, 总大小: %.2f MB", 
-                                    taskId, task.success, task.failed, totalMB);
-                            tLog.info(logMsg);
-                            addTaskLog(task, logMsg);
-                        }
-
-                    } catch (Exception e) {
-                        task.status = "failed";
-                        task.message = e.getMessage();
-                        task.finishedAt = System.currentTimeMillis();
-                        touchTask(task);
-                        String logMsg = String.format("[任务 %s] 任务失败: %s", taskId, e.getMessage());
-                        tLog.error(logMsg, e);
-                        addTaskLog(task, logMsg);
-                    }
-                }).start();
-
-                Map<String, Object> response = new LinkedHashMap<>();
-                response.put("success", true);
-                response.put("taskId", taskId);
-                response.put("downloadMode", downloadMode);
+                Map<String, Object> response = submitRecordingsTask(deviceIp, port, username, password, channelId,
+                        startTime, endTime, clientTzOffsetMinutes, downloadMode, parallelism);
                 if (rtspPort != null) {
                     response.put("rtspPort", rtspPort);
                 }
                 sendJson(exchange, 200, response);
 
+            } catch (RejectedExecutionException e) {
+                log.warn("[下载请求拒绝] %s", e.getMessage());
+                sendJson(exchange, 503, errorResponse("DOWNLOAD_QUEUE_FULL", e.getMessage()));
             } catch (IllegalArgumentException e) {
                 log.warn("[下载参数错误] %s", e.getMessage());
                 sendJson(exchange, 400, errorResponse("INVALID_TIME_RANGE", e.getMessage()));
@@ -433,16 +1055,18 @@ public class ISAPIWebServer {
         }
     }
 
-    // 时间段截取下载 - 支持 ISAPI HTTP 快速下载和 FFmpeg RTSP 两种方式
-    static class RtspDownloadHandler implements HttpHandler {
-        private final Logger log = Logger.getLogger(RtspDownloadHandler.class);
+    // 批量导出：多个通道（或 channelIds=all 表示设备全部通道）同一时间段的录像放在一个任务里
+    // 各通道首页并行搜索，分段共用任务的设备并发名额和分段线程，进度按通道汇总
+    static class BatchDownloadHandler implements HttpHandler {
+        private final Logger log = Logger.getLogger(BatchDownloadHandler.class);
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             String clientIp = exchange.getRemoteAddress().getAddress().getHostAddress();
-            log.info("[时间段截取] 客户端IP: %s", clientIp);
+            log.info("[批量下载请求] 客户端IP: %s", clientIp);
 
             if (!"POST".equals(exchange.getRequestMethod())) {
+                log.warn("不支持的请求方法: %s", exchange.getRequestMethod());
                 sendJson(exchange, 405, errorResponse("METHOD_NOT_ALLOWED", "Method not allowed"));
                 return;
             }
@@ -453,163 +1077,609 @@ public class ISAPIWebServer {
                 int port = Integer.parseInt(params.getOrDefault("port", "80"));
                 String username = params.get("username");
                 String password = params.get("password");
-                String channelId = params.get("channelId");
+                String channelIds = params.getOrDefault("channelIds", "").trim();
                 String startTime = params.get("startTime");
                 String endTime = params.get("endTime");
-                int rtspPort = Integer.parseInt(params.getOrDefault("rtspPort", String.valueOf(RTSP_PORT_DEFAULT)));
-                if (rtspPort <= 0 || rtspPort > 65535) {
-                    throw new IllegalArgumentException("rtspPort 必须在 1-65535 之间");
-                }
-                String downloadMethod = valueOrEmpty(params.getOrDefault("downloadMethod", "rtsp"))
-                        .trim().toLowerCase(Locale.ROOT); // "isapi-http" 或 "rtsp"
-                if (!"isapi-http".equals(downloadMethod) && !"rtsp".equals(downloadMethod)) {
-                    throw new IllegalArgumentException("downloadMethod 仅支持 isapi-http 或 rtsp");
-                }
+                String downloadMode = params.getOrDefault("downloadMode", "file");
                 Integer clientTzOffsetMinutes = parseNullableInt(params.get("clientTimezoneOffsetMinutes"));
 
-                log.info("[时间段截取] 设备: %s:%d, 通道: %s, 方式: %s", deviceIp, port, channelId, downloadMethod);
-                log.info("[时间段截取] 时间范围: %s ~ %s", startTime, endTime);
-
-                OkHttpClient initialClient = getClient(deviceIp, username, password);
-                TimeRange resolved = resolveTimeRange(initialClient, deviceIp, port, startTime, endTime, clientTzOffsetMinutes);
-                String rtspStart = resolved.rtspStart;
-                String rtspEnd = resolved.rtspEnd;
-
-                String taskId = UUID.randomUUID().toString().substring(0, 8);
-                DownloadTask task = new DownloadTask();
-                task.taskId = taskId;
-                task.status = "pending";
-                task.downloadMode = downloadMethod;
-                task.requestedMethod = downloadMethod;
-                task.total = 1;  // 只有一个文件
-                task.timeBasis = resolved.timeBasis;
-                task.deviceTimeZone = valueOrEmpty(resolved.deviceTimeZone);
-                task.normalizedStart = resolved.searchStart;
-                task.normalizedEnd = resolved.searchEnd;
-                touchTask(task);
-                downloadTasks.put(taskId, task);
-
-                log.info("[时间段截取] 创建任务 ID: %s, 方式: %s", taskId, downloadMethod);
-
-                // 异步执行下载 — 捕获所有线程内需要的 final 变量
-                final String fRtspStart = rtspStart;
-                final String fRtspEnd = rtspEnd;
-                final String fChannelId = channelId;
-                final String fUsername = username;
-                final String fPassword = password;
-                final String fDeviceIp = deviceIp;
-                final int fRtspPort = rtspPort;
-                final int fPort = port;
-                final String fDownloadMethod = downloadMethod;
-                final OkHttpClient fClient = initialClient;
-                new Thread(() -> {
-                    Logger tLog = Logger.getLogger(RtspDownloadHandler.class);
-                    try {
-                        task.status = "downloading";
-                        task.current = 1;
-                        touchTask(task);
-                        
-                        // 生成文件名
-                        String fileName = String.format("ch%s_%s_to_%s.mp4", 
-                                fChannelId, 
-                                fRtspStart.replace("T", "_").replace("Z", ""),
-                                fRtspEnd.replace("T", "_").replace("Z", ""));
-                        String savePath = DOWNLOAD_DIR + "/" + fileName;
-                        task.currentFile = fileName;
-                        
-                        String logMsg = String.format("[时间段截取] 开始下载: %s (方式: %s)", fileName, fDownloadMethod);
-                        tLog.info(logMsg);
-                        addTaskLog(task, logMsg);
-
-                        long startMs = System.currentTimeMillis();
-                        long downloadedBytes;
-
-                        if ("isapi-http".equals(fDownloadMethod)) {
-                            // ISAPI HTTP 快速下载，失败自动回退到 FFmpeg RTSP
-                            task.effectiveMethod = "isapi-http";
-                            try {
-                                addTaskLog(task, "使用 ISAPI HTTP 快速下载...");
-                                downloadedBytes = downloadViaISAPIHttp(fClient, fDeviceIp, fPort, fChannelId,
-                                        fRtspStart, fRtspEnd, savePath, task);
-                            } catch (Exception e) {
-                                if (task.cancelRequested || isCancellationException(e)) {
-                                    throw e;
-                                }
-                                String fallbackMsg = "ISAPI HTTP 失败 (" + e.getMessage() + ")，回退到 FFmpeg RTSP...";
-                                tLog.warn("[时间段截取] %s", fallbackMsg);
-                                addTaskLog(task, fallbackMsg);
-                                task.effectiveMethod = "rtsp";
-                                task.fallbackUsed = true;
-                                task.downloadMode = "rtsp";
-                                touchTask(task);
-                                downloadedBytes = downloadRtspStream(fDeviceIp, fUsername, fPassword, fRtspPort,
-                                        fChannelId, fRtspStart, fRtspEnd, savePath, task);
-                            }
-                        } else {
-                            // 现有 FFmpeg RTSP 方式，完全不变
-                            task.effectiveMethod = "rtsp";
-                            downloadedBytes = downloadRtspStream(fDeviceIp, fUsername, fPassword, fRtspPort,
-                                    fChannelId, fRtspStart, fRtspEnd, savePath, task);
-                        }
-                        
-                        long elapsed = System.currentTimeMillis() - startMs;
-                        double sizeMB = downloadedBytes / 1024.0 / 1024.0;
-                        double speedMBps = elapsed > 0 ? (sizeMB / (elapsed / 1000.0)) : 0;
-
-                        task.success = 1;
-                        task.totalDownloadedBytes = downloadedBytes;
-                        task.downloadedFiles.add(fileName);
-                        task.finishedAt = System.currentTimeMillis();
-                        touchTask(task);
-                        
-                        logMsg = String.format("[时间段截取] 下载完成: %s (%.2f MB, 耗时 %d ms, 速度 %.2f MB/s, 方式: %s%s)", 
-                                fileName, sizeMB, elapsed, speedMBps, task.effectiveMethod,
-                                task.fallbackUsed ? ", 已回退" : "");
-                        tLog.info(logMsg);
-                        addTaskLog(task, logMsg);
+                List<String> channels = resolveChannels(getClient(deviceIp, username, password), deviceIp, port,
+                        username, password, channelIds);
+                if (channels.isEmpty()) {
+                    throw new BatchRequestException("channelIds 为空或设备没有可用通道");
+                }
+                if (channels.size() > MAX_BATCH_CHANNELS) {
+                    throw new BatchRequestException("通道数 " + channels.size() + " 超过上限 " + MAX_BATCH_CHANNELS);
+                }
 
-                        task.status = "completed";
-                        task.message = String.format("下载完成 (%.2f MB)", sizeMB);
-                        touchTask(task);
+                Integer requestedParallelism = parseNullableInt(params.get("parallelism"));
+                int parallelism = requestedParallelism != null ? requestedParallelism
+                        : Math.max(SEGMENT_PARALLELISM, Math.min(MAX_SEGMENT_PARALLELISM, channels.size()));
+                if (parallelism < 1 || parallelism > MAX_SEGMENT_PARALLELISM) {
+                    throw new BatchRequestException("parallelism 必须在 1-" + MAX_SEGMENT_PARALLELISM + " 之间");
+                }
 
-                    } catch (Exception e) {
-                        if (task.cancelRequested) {
-                            task.status = "cancelled";
-                            task.message = "任务已取消";
-                        } else {
-                            task.status = isTimeoutFailure(e) ? "failed(timeout)" : "failed";
-                            task.failed = 1;
-                            task.message = e.getMessage();
-                        }
-                        task.finishedAt = System.currentTimeMillis();
-                        touchTask(task);
-                        String logMsg = String.format("[时间段截取] 任务失败: %s", e.getMessage());
-                        tLog.error(logMsg, e);
-                        addTaskLog(task, logMsg);
-                    }
-                }).start();
+                log.info("[批量下载参数] 设备: %s:%d, 用户: %s, 通道(%d): %s", deviceIp, port, username,
+                        channels.size(), String.join(",", channels));
+                log.info("[批量下载参数] 时间范围: %s ~ %s, 并行度: %d", startTime, endTime, parallelism);
 
-                Map<String, Object> response = new LinkedHashMap<>();
-                response.put("success", true);
-                response.put("taskId", taskId);
-                response.put("downloadMode", task.downloadMode);
-                response.put("downloadMethod", downloadMethod);
-                response.put("rtspPort", rtspPort);
+                Map<String, Object> response = submitRecordingsTask(deviceIp, port, username, password,
+                        String.join(",", channels), startTime, endTime, clientTzOffsetMinutes, downloadMode, parallelism);
+                response.put("channels", channels);
                 sendJson(exchange, 200, response);
 
+            } catch (BatchRequestException e) {
+                log.warn("[批量下载参数错误] %s", e.getMessage());
+                sendJson(exchange, 400, errorResponse("INVALID_BATCH_REQUEST", e.getMessage()));
+            } catch (RejectedExecutionException e) {
+                log.warn("[批量下载请求拒绝] %s", e.getMessage());
+                sendJson(exchange, 503, errorResponse("DOWNLOAD_QUEUE_FULL", e.getMessage()));
             } catch (IllegalArgumentException e) {
-                log.warn("[时间段截取参数错误] %s", e.getMessage());
+                log.warn("[批量下载参数错误] %s", e.getMessage());
                 sendJson(exchange, 400, errorResponse("INVALID_TIME_RANGE", e.getMessage()));
             } catch (Exception e) {
-                log.error("[时间段截取失败] " + e.getMessage(), e);
-                sendJson(exchange, 500, errorResponse("RTSP_DOWNLOAD_FAILED", e.getMessage()));
+                log.error("[批量下载请求失败] " + e.getMessage(), e);
+                sendJson(exchange, 500, errorResponse("DOWNLOAD_REQUEST_FAILED", e.getMessage()));
             }
         }
     }
 
-    // RTSP 时间段流下载 - 使用 ffmpeg 实现精确时间截取
-    private static long downloadRtspStream(String deviceIp, String username, String password, int rtspPort,
-                                           String channelId, String startTime, String endTime,
+    // 设备返回 401（用户名或密码错误）
+    static class DeviceAuthException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        DeviceAuthException(String deviceIp, int port) {
+            super("设备 " + deviceIp + ":" + port + " 认证失败（HTTP 401），请检查用户名和密码");
+        }
+    }
+
+    // 批量请求的通道参数错误（与时间范围错误区分错误码）
+    static class BatchRequestException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        BatchRequestException(String message) {
+            super(message);
+        }
+    }
+
+    // 创建录像下载任务并排队（/api/download 与 /api/batch-download 共用）；channelIds 为逗号分隔的通道列表
+    private static Map<String, Object> submitRecordingsTask(String deviceIp, int port, String username, String password,
+                                                            String channelIds, String startTime, String endTime,
+                                                            Integer clientTzOffsetMinutes, String downloadMode,
+                                                            int parallelism) throws Exception {
+        OkHttpClient initialClient = getClient(deviceIp, username, password);
+        TimeRange resolved = resolveTimeRange(initialClient, deviceIp, port, username, password, startTime, endTime,
+                clientTzOffsetMinutes);
+
+        String taskId = UUID.randomUUID().toString().substring(0, 8);
+        DownloadTask task = new DownloadTask();
+        task.taskId = taskId;
+        task.status = "pending";
+        task.downloadMode = downloadMode;
+        task.timeBasis = resolved.timeBasis;
+        task.deviceTimeZone = valueOrEmpty(resolved.deviceTimeZone);
+        task.deviceClockSkewSeconds = resolved.deviceClockSkewSeconds;
+        task.clockSkewApplied = resolved.clockSkewApplied;
+        task.normalizedStart = resolved.searchStart;
+        task.normalizedEnd = resolved.searchEnd;
+        task.channels = splitChannels(channelIds);
+        touchTask(task);
+        downloadTasks.put(taskId, task);
+
+        log.info("[下载任务] 创建任务 ID: %s, 模式: %s, 通道: %s", taskId, downloadMode, channelIds);
+
+        DownloadRequest req = new DownloadRequest(DownloadRequest.RECORDINGS, deviceIp, port, username, password, channelIds);
+        req.downloadMode = downloadMode;
+        req.parallelism = parallelism;
+        req.searchStart = resolved.searchStart;
+        req.searchEnd = resolved.searchEnd;
+        journalCreate(task, req);
+
+        // 异步执行下载
+        int queuePosition = scheduleDownload(task, deviceIp, port, () -> runRecordingsJob(task, req));
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("success", true);
+        response.put("taskId", taskId);
+        response.put("queuePosition", queuePosition);
+        response.put("downloadMode", downloadMode);
+        response.put("parallelism", parallelism);
+        // 分段线程与同一设备的其他任务共用 MAX_STREAMS_PER_DEVICE 个下载流，实际并发不超过该值
+        response.put("maxStreamsPerDevice", DOWNLOAD_SCHEDULER.maxStreamsPerDevice());
+        response.put("effectiveParallelism", Math.min(parallelism, DOWNLOAD_SCHEDULER.maxStreamsPerDevice()));
+        return response;
+    }
+
+    // 逗号分隔的通道列表；all 表示设备的全部通道（按通道列表接口取录像轨道号，使用调用方给定的 HTTP 客户端及其超时）
+    private static List<String> resolveChannels(OkHttpClient httpClient, String deviceIp, int port, String username,
+                                                String password, String channelIds) throws IOException {
+        if (!"all".equalsIgnoreCase(valueOrEmpty(channelIds).trim())) {
+            return splitChannels(channelIds);
+        }
+        ISAPIClient client = new ISAPIClient(deviceIp, port, username, password, httpClient);
+        List<String> channels = new ArrayList<>();
+        for (ISAPIClient.ChannelInfo ch : client.getChannels()) {
+            if (!channels.contains(ch.trackId)) {
+                channels.add(ch.trackId);
+            }
+        }
+        return channels;
+    }
+
+    private static List<String> splitChannels(String channelIds) {
+        List<String> channels = new ArrayList<>();
+        for (String id : valueOrEmpty(channelIds).split(",")) {
+            String trimmed = id.trim();
+            if (!trimmed.isEmpty() && !channels.contains(trimmed)) {
+                channels.add(trimmed);
+            }
+        }
+        return channels;
+    }
+
+    // 按时间段搜索录像并逐个下载（/api/download 与重启恢复共用）
+    private static void runRecordingsJob(DownloadTask task, DownloadRequest req) {
+        Logger tLog = Logger.getLogger(DownloadHandler.class);
+        if (task.cancelRequested) {
+            return;
+        }
+        try {
+            String logMsg = String.format("[任务 %s] 开始搜索录像...", task.taskId);
+            tLog.info(logMsg);
+            addTaskLog(task, logMsg);
+            
+            OkHttpClient client = getClient(req.deviceIp, req.username, req.password);
+            task.channels = splitChannels(req.channelId);
+            // 分页搜索：首页返回后即开始下载，后续页在后台预取；多个通道的首页并行搜索
+            List<RecordingSearch> searches = searchChannels(client, req, task);
+
+            task.parallelism = req.parallelism;
+            task.status = "downloading";
+            touchTask(task);
+            
+            int fetched = fetchedItems(searches);
+            logMsg = String.format("[任务 %s] %s首页找到 %d 条录像，开始%s（并行度 %d）...",
+                    task.taskId, searches.size() > 1 ? searches.size() + " 个通道" : "", fetched,
+                    req.downloadMode.equals("stream") ? "流式下载" : "文件下载", task.parallelism);
+            tLog.info(logMsg);
+            addTaskLog(task, logMsg);
+
+            downloadSearchResults(client, req.deviceIp, req.port, searches, req.downloadMode, task);
+
+            if (task.cancelRequested) {
+                task.status = "cancelled";
+                task.message = "任务已取消";
+                task.finishedAt = System.currentTimeMillis();
+                touchTask(task);
+                addTaskLog(task, String.format("[任务 %s] 任务已取消", task.taskId));
+                return;
+            }
+
+            task.status = "completed";
+            double totalMB = task.totalDownloadedBytes.get() / 1024.0 / 1024.0;
+            task.message = task.channelErrors.isEmpty()
+                    ? String.format("下载完成 (总计 %.2f MB)", totalMB)
+                    : String.format("下载完成 (总计 %.2f MB，%d 个通道搜索失败)", totalMB, task.channelErrors.size());
+            task.finishedAt = System.currentTimeMillis();
+            touchTask(task);
+        
+            logMsg = String.format("[任务 %s] 全部完成！成功: %d, 失败: %d, 总大小: %.2f MB", 
+                    task.taskId, task.success.get(), task.failed.get(), totalMB);
+            tLog.info(logMsg);
+            addTaskLog(task, logMsg);
+
+        } catch (Exception e) {
+            task.status = "failed";
+            task.message = e.getMessage();
+            task.finishedAt = System.currentTimeMillis();
+            touchTask(task);
+            String logMsg = String.format("[任务 %s] 任务失败: %s", task.taskId, e.getMessage());
+            tLog.error(logMsg, e);
+            addTaskLog(task, logMsg);
+        }
+    }
+
+    // 搜索各通道的首页；单通道时失败直接抛出，多通道时并行搜索，部分通道失败只记录，全部失败才抛出
+    private static List<RecordingSearch> searchChannels(OkHttpClient client, DownloadRequest req,
+                                                        DownloadTask task) throws Exception {
+        List<String> channels = task.channels;
+        if (channels.size() <= 1) {
+            String channelId = channels.isEmpty() ? req.channelId : channels.get(0);
+            return Collections.singletonList(
+                    new RecordingSearch(client, req.deviceIp, req.port, channelId, req.searchStart, req.searchEnd));
+        }
+        Map<String, CompletableFuture<RecordingSearch>> futures = new LinkedHashMap<>();
+        for (String channelId : channels) {
+            futures.put(channelId, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new RecordingSearch(client, req.deviceIp, req.port, channelId, req.searchStart, req.searchEnd);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, SEARCH_PREFETCH));
+        }
+        // 按请求中的通道顺序排列，分段序号（文件名）稳定，重启恢复时能对上已完成的分段
+        List<RecordingSearch> searches = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<RecordingSearch>> e : futures.entrySet()) {
+            try {
+                searches.add(e.getValue().get());
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause() instanceof UncheckedIOException ? ex.getCause().getCause() : ex.getCause();
+                task.channelErrors.put(e.getKey(), valueOrEmpty(cause.getMessage()));
+                addTaskLog(task, String.format("[任务 %s] 通道 %s 搜索失败: %s", task.taskId, e.getKey(), cause.getMessage()));
+            }
+        }
+        if (searches.isEmpty()) {
+            throw new IOException("所有通道搜索失败: " + task.channelErrors);
+        }
+        return searches;
+    }
+
+    // 下载单个录像分段：先取得设备下载流名额（与同一设备的其他任务共用），成功/失败计入任务计数，异常不向外抛出
+    private static void downloadSegment(OkHttpClient client, String deviceIp, int port, RecordingInfo rec,
+                                        SegmentProgress seg, String downloadMode, DownloadTask task) {
+        String deviceKey = deviceIp + ":" + port;
+        try {
+            if (!DOWNLOAD_SCHEDULER.acquireStream(deviceKey, () -> task.cancelRequested)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            downloadSegmentWithPermit(client, deviceIp, port, rec, seg, downloadMode, task);
+        } finally {
+            DOWNLOAD_SCHEDULER.releaseStream(deviceKey);
+        }
+    }
+
+    private static void downloadSegmentWithPermit(OkHttpClient client, String deviceIp, int port, RecordingInfo rec,
+                                                  SegmentProgress seg, String downloadMode, DownloadTask task) {
+        Logger tLog = Logger.getLogger(DownloadHandler.class);
+        String taskId = task.taskId;
+        task.current.incrementAndGet();
+        task.currentFile = rec.startTime;
+        seg.status = "downloading";
+        touchTask(task);
+
+        String fileName = seg.fileName;
+        String savePath = DOWNLOAD_DIR + "/" + fileName;
+
+        String logMsg = String.format("[任务 %s] 下载 %d/%d: %s", taskId, seg.index + 1, task.total, fileName);
+        tLog.info(logMsg);
+        addTaskLog(task, logMsg);
+
+        try {
+            long startMs = System.currentTimeMillis();
+            long downloadedBytes;
+            
+            if ("stream".equals(downloadMode)) {
+                // 流式下载
+                logMsg = String.format("[任务 %s] 使用流式下载, playbackURI: %s", taskId, 
+                        rec.playbackURI != null ? rec.playbackURI.substring(0, Math.min(80, rec.playbackURI.length())) + "..." : "null");
+                tLog.debug(logMsg);
+                addTaskLog(task, logMsg);
+                
+                downloadedBytes = downloadStream(client, deviceIp, port, rec, savePath, task, seg);
+            } else {
+                // 文件下载
+                logMsg = String.format("[任务 %s] 使用文件下载, downloadPath: %s", taskId, 
+                        rec.downloadPath != null ? rec.downloadPath.substring(0, Math.min(80, rec.downloadPath.length())) + "..." : "null");
+                tLog.debug(logMsg);
+                addTaskLog(task, logMsg);
+                
+                downloadedBytes = downloadFileWithProgress(client, deviceIp, port, rec.downloadPath, savePath, task, seg);
+            }
+            
+            long elapsed = System.currentTimeMillis() - startMs;
+            double sizeMB = downloadedBytes / 1024.0 / 1024.0;
+            double speedMBps = elapsed > 0 ? (sizeMB / (elapsed / 1000.0)) : 0;
+            
+            logMsg = String.format("[任务 %s] 下载完成: %s (%.2f MB, 耗时 %d ms, 速度 %.2f MB/s)", 
+                    taskId, fileName, sizeMB, elapsed, speedMBps);
+            tLog.info(logMsg);
+            addTaskLog(task, logMsg);
+            
+            seg.bytes = downloadedBytes;
+            seg.status = "completed";
+            task.success.incrementAndGet();
+            task.totalDownloadedBytes.addAndGet(downloadedBytes);
+            task.downloadedFiles.add(fileName);
+            touchTask(task);
+            journalSegment(task, seg);
+            
+        } catch (Exception e) {
+            logMsg = String.format("[任务 %s] 下载失败: %s - %s", taskId, fileName, e.getMessage());
+            tLog.error(logMsg, e);
+            addTaskLog(task, logMsg);
+            seg.status = "failed";
+            seg.error = valueOrEmpty(e.getMessage());
+            task.failed.incrementAndGet();
+            task.message = e.getMessage();
+            touchTask(task);
+        }
+    }
+
+    // 边消费分页搜索结果边下载；task.parallelism > 1 时同一任务内并发下载多个分段
+    // 多个通道按顺序消费，所有通道的分段共用同一组下载线程；实际同时打开的流数受设备下载流名额限制
+    private static void downloadSearchResults(OkHttpClient client, String deviceIp, int port,
+                                              List<RecordingSearch> searches, String downloadMode,
+                                              DownloadTask task) throws Exception {
+        ExecutorService pool = null;
+        if (task.parallelism > 1) {
+            AtomicInteger threadSeq = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(task.parallelism, r -> {
+                Thread t = new Thread(r, "segment-" + task.taskId + "-" + threadSeq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            int index = 0;
+            for (RecordingSearch search : searches) {
+                while (!task.cancelRequested && search.hasNext()) {
+                    RecordingInfo rec = search.next();
+                    SegmentProgress seg = new SegmentProgress(index, generateFileName(rec, index), rec.contentLength);
+                    seg.channelId = search.channelId;
+                    task.segments.add(seg);
+                    task.total = fetchedItems(searches);
+                    touchTask(task);
+                    index++;
+                    if (skipJournaledSegment(task, seg)) {
+                        continue;
+                    }
+                    if (pool == null) {
+                        downloadSegment(client, deviceIp, port, rec, seg, downloadMode, task);
+                    } else {
+                        futures.add(pool.submit(() -> {
+                            if (!task.cancelRequested) {
+                                downloadSegment(client, deviceIp, port, rec, seg, downloadMode, task);
+                            }
+                        }));
+                    }
+                }
+                if (search.isTruncated()) {
+                    addTaskLog(task, String.format("[任务 %s] 通道 %s 搜索结果超过 %d 页，已截断",
+                            task.taskId, search.channelId, SEARCH_MAX_PAGES));
+                }
+            }
+        } catch (UncheckedIOException e) {
+            // 后续页失败：已提交的分段继续完成，任务按失败处理
+            addTaskLog(task, String.format("[任务 %s] %s", task.taskId, e.getCause().getMessage()));
+            throw e.getCause();
+        } finally {
+            if (pool != null) {
+                awaitSegments(futures, task);
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private static int fetchedItems(List<RecordingSearch> searches) {
+        int total = 0;
+        for (RecordingSearch search : searches) {
+            total += search.fetchedItems();
+        }
+        return total;
+    }
+
+    private static void awaitSegments(List<Future<?>> futures, DownloadTask task) throws InterruptedException {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                log.warn("[任务 %s] 分段执行异常: %s", task.taskId, e.getMessage());
+            }
+        }
+    }
+
+    // 时间段截取下载 - 支持 ISAPI HTTP 快速下载和 FFmpeg RTSP 两种方式
+    static class RtspDownloadHandler implements HttpHandler {
+        private final Logger log = Logger.getLogger(RtspDownloadHandler.class);
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String clientIp = exchange.getRemoteAddress().getAddress().getHostAddress();
+            log.info("[时间段截取] 客户端IP: %s", clientIp);
+
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendJson(exchange, 405, errorResponse("METHOD_NOT_ALLOWED", "Method not allowed"));
+                return;
+            }
+
+            try {
+                Map<String, String> params = parseFormData(exchange);
+                String deviceIp = params.get("deviceIp");
+                int port = Integer.parseInt(params.getOrDefault("port", "80"));
+                String username = params.get("username");
+                String password = params.get("password");
+                String channelId = params.get("channelId");
+                String startTime = params.get("startTime");
+                String endTime = params.get("endTime");
+                int rtspPort = Integer.parseInt(params.getOrDefault("rtspPort", String.valueOf(RTSP_PORT_DEFAULT)));
+                if (rtspPort <= 0 || rtspPort > 65535) {
+                    throw new IllegalArgumentException("rtspPort 必须在 1-65535 之间");
+                }
+                String downloadMethod = valueOrEmpty(params.getOrDefault("downloadMethod", "rtsp"))
+                        .trim().toLowerCase(Locale.ROOT); // "isapi-http" 或 "rtsp"
+                if (!"isapi-http".equals(downloadMethod) && !"rtsp".equals(downloadMethod)) {
+                    throw new IllegalArgumentException("downloadMethod 仅支持 isapi-http 或 rtsp");
+                }
+                Integer clientTzOffsetMinutes = parseNullableInt(params.get("clientTimezoneOffsetMinutes"));
+
+                log.info("[时间段截取] 设备: %s:%d, 通道: %s, 方式: %s", deviceIp, port, channelId, downloadMethod);
+                log.info("[时间段截取] 时间范围: %s ~ %s", startTime, endTime);
+
+                OkHttpClient initialClient = getClient(deviceIp, username, password);
+                TimeRange resolved = resolveTimeRange(initialClient, deviceIp, port, username, password,
+                        startTime, endTime, clientTzOffsetMinutes);
+                String rtspStart = resolved.rtspStart;
+                String rtspEnd = resolved.rtspEnd;
+
+                String taskId = UUID.randomUUID().toString().substring(0, 8);
+                DownloadTask task = new DownloadTask();
+                task.taskId = taskId;
+                task.status = "pending";
+                task.downloadMode = downloadMethod;
+                task.requestedMethod = downloadMethod;
+                task.total = 1;  // 只有一个文件
+                task.timeBasis = resolved.timeBasis;
+                task.deviceTimeZone = valueOrEmpty(resolved.deviceTimeZone);
+                task.deviceClockSkewSeconds = resolved.deviceClockSkewSeconds;
+                task.clockSkewApplied = resolved.clockSkewApplied;
+                task.normalizedStart = resolved.searchStart;
+                task.normalizedEnd = resolved.searchEnd;
+                touchTask(task);
+                downloadTasks.put(taskId, task);
+
+                log.info("[时间段截取] 创建任务 ID: %s, 方式: %s", taskId, downloadMethod);
+
+                DownloadRequest req = new DownloadRequest(DownloadRequest.CLIP, deviceIp, port, username, password, channelId);
+                req.downloadMethod = downloadMethod;
+                req.rtspPort = rtspPort;
+                req.rtspStart = rtspStart;
+                req.rtspEnd = rtspEnd;
+                journalCreate(task, req);
+
+                // 异步执行下载
+                int queuePosition = scheduleDownload(task, deviceIp, port, () -> runClipJob(task, req));
+
+                Map<String, Object> response = new LinkedHashMap<>();
+                response.put("success", true);
+                response.put("taskId", taskId);
+                response.put("queuePosition", queuePosition);
+                response.put("downloadMode", task.downloadMode);
+                response.put("downloadMethod", downloadMethod);
+                response.put("rtspPort", rtspPort);
+                sendJson(exchange, 200, response);
+
+            } catch (RejectedExecutionException e) {
+                log.warn("[时间段截取拒绝] %s", e.getMessage());
+                sendJson(exchange, 503, errorResponse("DOWNLOAD_QUEUE_FULL", e.getMessage()));
+            } catch (IllegalArgumentException e) {
+                log.warn("[时间段截取参数错误] %s", e.getMessage());
+                sendJson(exchange, 400, errorResponse("INVALID_TIME_RANGE", e.getMessage()));
+            } catch (Exception e) {
+                log.error("[时间段截取失败] " + e.getMessage(), e);
+                sendJson(exchange, 500, errorResponse("RTSP_DOWNLOAD_FAILED", e.getMessage()));
+            }
+        }
+    }
+
+    // 按时间段截取单个文件：ISAPI HTTP 失败时回退 RTSP（/api/rtsp-download 与重启恢复共用）
+    private static void runClipJob(DownloadTask task, DownloadRequest req) {
+        String deviceKey = req.deviceIp + ":" + req.port;
+        try {
+            if (!DOWNLOAD_SCHEDULER.acquireStream(deviceKey, () -> task.cancelRequested)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            runClipJobWithPermit(task, req);
+        } finally {
+            DOWNLOAD_SCHEDULER.releaseStream(deviceKey);
+        }
+    }
+
+    private static void runClipJobWithPermit(DownloadTask task, DownloadRequest req) {
+        Logger tLog = Logger.getLogger(RtspDownloadHandler.class);
+        if (task.cancelRequested) {
+            return;
+        }
+        try {
+            OkHttpClient client = getClient(req.deviceIp, req.username, req.password);
+            task.status = "downloading";
+            task.current.set(1);
+            touchTask(task);
+            
+            // 生成文件名
+            String fileName = String.format("ch%s_%s_to_%s.mp4", 
+                    req.channelId, 
+                    req.rtspStart.replace("T", "_").replace("Z", ""),
+                    req.rtspEnd.replace("T", "_").replace("Z", ""));
+            String savePath = DOWNLOAD_DIR + "/" + fileName;
+            task.currentFile = fileName;
+            
+            String logMsg = String.format("[时间段截取] 开始下载: %s (方式: %s)", fileName, req.downloadMethod);
+            tLog.info(logMsg);
+            addTaskLog(task, logMsg);
+
+            long startMs = System.currentTimeMillis();
+            long downloadedBytes;
+
+            if ("isapi-http".equals(req.downloadMethod)) {
+                // ISAPI HTTP 快速下载，失败自动回退到 FFmpeg RTSP
+                task.effectiveMethod = "isapi-http";
+                try {
+                    addTaskLog(task, "使用 ISAPI HTTP 快速下载...");
+                    downloadedBytes = downloadViaISAPIHttp(client, req.deviceIp, req.port, req.channelId,
+                            req.rtspStart, req.rtspEnd, savePath, task);
+                } catch (Exception e) {
+                    if (task.cancelRequested || isCancellationException(e)) {
+                        throw e;
+                    }
+                    String fallbackMsg = "ISAPI HTTP 失败 (" + e.getMessage() + ")，回退到 FFmpeg RTSP...";
+                    tLog.warn("[时间段截取] %s", fallbackMsg);
+                    addTaskLog(task, fallbackMsg);
+                    task.effectiveMethod = "rtsp";
+                    task.fallbackUsed = true;
+                    task.downloadMode = "rtsp";
+                    touchTask(task);
+                    downloadedBytes = downloadRtspStream(req.deviceIp, req.username, req.password, req.rtspPort,
+                            req.channelId, req.rtspStart, req.rtspEnd, savePath, task);
+                }
+            } else {
+                // 现有 FFmpeg RTSP 方式，完全不变
+                task.effectiveMethod = "rtsp";
+                downloadedBytes = downloadRtspStream(req.deviceIp, req.username, req.password, req.rtspPort,
+                        req.channelId, req.rtspStart, req.rtspEnd, savePath, task);
+            }
+            
+            long elapsed = System.currentTimeMillis() - startMs;
+            double sizeMB = downloadedBytes / 1024.0 / 1024.0;
+            double speedMBps = elapsed > 0 ? (sizeMB / (elapsed / 1000.0)) : 0;
+
+            task.success.set(1);
+            task.totalDownloadedBytes.set(downloadedBytes);
+            task.downloadedFiles.add(fileName);
+            task.finishedAt = System.currentTimeMillis();
+            touchTask(task);
+            
+            logMsg = String.format("[时间段截取] 下载完成: %s (%.2f MB, 耗时 %d ms, 速度 %.2f MB/s, 方式: %s%s)", 
+                    fileName, sizeMB, elapsed, speedMBps, task.effectiveMethod,
+                    task.fallbackUsed ? ", 已回退" : "");
+            tLog.info(logMsg);
+            addTaskLog(task, logMsg);
+
+            task.status = "completed";
+            task.message = String.format("下载完成 (%.2f MB)", sizeMB);
+            touchTask(task);
+
+        } catch (Exception e) {
+            if (task.cancelRequested) {
+                task.status = "cancelled";
+                task.message = "任务已取消";
+            } else {
+                task.status = isTimeoutFailure(e) ? "failed(timeout)" : "failed";
+                task.failed.set(1);
+                task.message = e.getMessage();
+            }
+            task.finishedAt = System.currentTimeMillis();
+            touchTask(task);
+            String logMsg = String.format("[时间段截取] 任务失败: %s", e.getMessage());
+            tLog.error(logMsg, e);
+            addTaskLog(task, logMsg);
+        }
+    }
+
+    // RTSP 时间段流下载 - 使用 ffmpeg 实现精确时间截取
+    private static long downloadRtspStream(String deviceIp, String username, String password, int rtspPort,
+                                           String channelId, String startTime, String endTime,
                                            String saveFilePath, DownloadTask task) throws IOException {
         Logger log = Logger.getLogger(ISAPIWebServer.class);
         
@@ -658,11 +1728,15 @@ public class ISAPIWebServer {
                 throw new IOException("任务已取消");
             }
             addAttemptedUrl(task, maskRtspUrl(rtspUrl));
+            long startNanos = System.nanoTime();
             try {
                 long bytes = runFfmpegCapture(ffmpegPath, rtspUrl, saveFilePath, task, requestedDurationSeconds);
+                MEDIA_SECONDS.observeSince(startNanos, "rtsp_capture", "ffmpeg", "success");
+                DOWNLOAD_BYTES.add(bytes, task.deviceKey);
                 task.totalBytes = bytes;
                 return bytes;
             } catch (IOException e) {
+                MEDIA_SECONDS.observeSince(startNanos, "rtsp_capture", "ffmpeg", "failure");
                 lastError = e;
                 log.warn("[RTSP截取] URL 尝试失败: %s, %s", maskRtspUrl(rtspUrl), e.getMessage());
                 addTaskLog(task, "URL失败: " + e.getMessage());
@@ -675,68 +1749,16 @@ public class ISAPIWebServer {
             }
         }
 
+        FFMPEG.revalidate();
         if (lastError != null) {
             throw lastError;
         }
         throw new IOException("所有 RTSP URL 模板均失败");
     }
     
-    // 查找 ffmpeg 可执行文件 (优先使用系统已安装，项目内置作为回退)
+    // 查找 ffmpeg 可执行文件（结果由 FfmpegLocator 缓存，仅首次或失效后才启动探测进程）
     private static String findFfmpeg() {
-        String os = System.getProperty("os.name").toLowerCase();
-        boolean isWindows = os.contains("win");
-        boolean isMac = os.contains("mac");
-        
-        List<String> paths = new ArrayList<>();
-        
-        // 1. 系统 PATH（最高优先级：用户已安装的版本）
-        paths.add("ffmpeg");
-        if (isWindows) {
-            paths.add("ffmpeg.exe");
-        }
-        
-        // 2. 常见系统安装路径
-        if (isWindows) {
-            paths.add("C:\\ffmpeg\\bin\\ffmpeg.exe");
-            paths.add("C:\\Program Files\\ffmpeg\\bin\\ffmpeg.exe");
-        } else {
-            paths.add("/usr/bin/ffmpeg");
-            paths.add("/usr/local/bin/ffmpeg");
-            paths.add("/opt/homebrew/bin/ffmpeg");
-        }
-        
-        // 3. 用户目录
-        paths.add(System.getProperty("user.home") + (isWindows ? "\\ffmpeg\\bin\\ffmpeg.exe" : "/ffmpeg/bin/ffmpeg"));
-        
-        // 4. 项目内置（回退）
-        if (isWindows) {
-            paths.add("./ffmpeg/win/ffmpeg.exe");
-            paths.add("ffmpeg\\win\\ffmpeg.exe");
-        } else if (isMac) {
-            paths.add("./ffmpeg/mac/ffmpeg");
-        } else {
-            paths.add("./ffmpeg/linux/ffmpeg");
-        }
-        
-        // 5. 旧目录结构兼容（最低优先级）
-        paths.add(isWindows ? "./ffmpeg/bin/ffmpeg.exe" : "./ffmpeg/bin/ffmpeg");
-        
-        for (String path : paths) {
-            try {
-                ProcessBuilder pb = new ProcessBuilder(path, "-version");
-                pb.redirectErrorStream(true);
-                Process p = pb.start();
-                int exitCode = p.waitFor();
-                if (exitCode == 0) {
-                    log.info("[ffmpeg] 找到: %s", path);
-                    return path;
-                }
-            } catch (Exception e) {
-                // 继续尝试下一个路径
-            }
-        }
-        
-        return null;
+        return FFMPEG.path();
     }
 
     // 下载状态查询
@@ -764,12 +1786,14 @@ public class ISAPIWebServer {
             }
 
             if ("DELETE".equalsIgnoreCase(method)) {
-                if ("downloading".equals(task.status) || "pending".equals(task.status)) {
+                if ("downloading".equals(task.status) || "pending".equals(task.status)
+                        || "awaiting-credentials".equals(task.status)) {
                     cancelTask(task, "客户端取消");
                     sendJson(exchange, 200, successResponse("任务取消成功", taskId));
                     return;
                 }
                 downloadTasks.remove(taskId);
+                journalRemove(taskId);
                 sendJson(exchange, 200, successResponse("任务已删除", taskId));
                 return;
             }
@@ -778,148 +1802,675 @@ public class ISAPIWebServer {
                 sendJson(exchange, 405, errorResponse("METHOD_NOT_ALLOWED", "Method not allowed"));
                 return;
             }
-
-            sendJson(exchange, 200, buildTaskSnapshot(task));
+
+            sendJson(exchange, 200, buildTaskSnapshot(task));
+        }
+    }
+
+    // 重启恢复的任务重新提供密码：按 taskId 恢复单个任务，或按 deviceIp/port 恢复该设备所有等待中的任务
+    static class DownloadResumeHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendJson(exchange, 405, errorResponse("METHOD_NOT_ALLOWED", "Method not allowed"));
+                return;
+            }
+            Map<String, String> params = parseFormData(exchange);
+            String taskId = params.get("taskId");
+            String deviceIp = params.get("deviceIp");
+            String username = params.get("username");
+            String password = params.get("password");
+            if (password == null || password.isEmpty()) {
+                sendJson(exchange, 400, errorResponse("INVALID_PARAMS", "password 不能为空"));
+                return;
+            }
+            List<DownloadTask> targets = new ArrayList<>();
+            if (taskId != null && !taskId.trim().isEmpty()) {
+                DownloadTask task = downloadTasks.get(taskId.trim());
+                if (task == null) {
+                    sendJson(exchange, 404, errorResponse("TASK_NOT_FOUND", "Task not found"));
+                    return;
+                }
+                targets.add(task);
+            } else if (deviceIp != null && !deviceIp.trim().isEmpty()) {
+                String deviceKey = deviceIp.trim() + ":" + params.getOrDefault("port", "80");
+                for (DownloadTask task : downloadTasks.values()) {
+                    DownloadRequest pending = task.awaitingCredentials;
+                    if (pending != null && deviceKey.equals(task.deviceKey)
+                            && (username == null || username.isEmpty() || username.equals(pending.username))) {
+                        targets.add(task);
+                    }
+                }
+            } else {
+                sendJson(exchange, 400, errorResponse("INVALID_PARAMS", "需要 taskId 或 deviceIp"));
+                return;
+            }
+
+            List<Map<String, Object>> resumed = new ArrayList<>();
+            List<Map<String, Object>> rejected = new ArrayList<>();
+            for (DownloadTask task : targets) {
+                Map<String, Object> item = new LinkedHashMap<>();
+                item.put("taskId", task.taskId);
+                try {
+                    item.put("queuePosition", resumeWithCredentials(task, username, password));
+                    resumed.add(item);
+                } catch (IllegalStateException | IllegalArgumentException | RejectedExecutionException e) {
+                    item.put("error", e.getMessage());
+                    rejected.add(item);
+                }
+            }
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("success", !resumed.isEmpty());
+            response.put("resumed", resumed);
+            response.put("rejected", rejected);
+            int status = !resumed.isEmpty() ? 200 : (targets.isEmpty() ? 404 : 409);
+            if (resumed.isEmpty()) {
+                response.put("code", targets.isEmpty() ? "TASK_NOT_FOUND" : "NOT_RESUMABLE");
+                response.put("message", targets.isEmpty() ? "没有等待密码的任务" : "任务无法恢复");
+            }
+            sendJson(exchange, status, response);
+        }
+    }
+
+    // 下载进度推送（SSE）：只推送变化，支持 Last-Event-ID 续传；登记后立即返回，不占用请求线程
+    static class DownloadEventsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            if ("OPTIONS".equalsIgnoreCase(method)) {
+                exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+                exchange.getResponseHeaders().set("Access-Control-Allow-Methods", "GET,OPTIONS");
+                exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type, Last-Event-ID");
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            if (!"GET".equalsIgnoreCase(method)) {
+                sendJson(exchange, 405, errorResponse("METHOD_NOT_ALLOWED", "Method not allowed"));
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+            String taskId = params.get("taskId");
+            if (taskId == null || taskId.trim().isEmpty()) {
+                sendJson(exchange, 400, errorResponse("INVALID_TASK_ID", "taskId 不能为空"));
+                return;
+            }
+            DownloadTask task = downloadTasks.get(taskId);
+            if (task == null) {
+                sendJson(exchange, 404, errorResponse("TASK_NOT_FOUND", "Task not found"));
+                return;
+            }
+            // 浏览器 EventSource 重连时自动带 Last-Event-ID；其他客户端也可用 lastEventId 参数
+            String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+            if (lastEventId == null || lastEventId.trim().isEmpty()) {
+                lastEventId = params.get("lastEventId");
+            }
+
+            if (TASK_EVENTS.full()) {
+                sendJson(exchange, 503, errorResponse("TOO_MANY_SUBSCRIBERS", "推送连接数已满，请改用 /api/download-status 轮询"));
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().set("X-Accel-Buffering", "no");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.sendResponseHeaders(200, 0);
+            if (!TASK_EVENTS.subscribe(task, exchange, lastEventId == null ? null : lastEventId.trim())) {
+                exchange.close(); // 检查与登记之间被占满，客户端重连时会收到 503
+            }
+        }
+    }
+
+    // 设备能力缓存：GET 查看命中统计与各设备已学到的方法，DELETE 清空（可按 deviceIp/port 过滤）
+    static class DeviceCapabilitiesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            if ("OPTIONS".equalsIgnoreCase(method)) {
+                exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+                exchange.getResponseHeaders().set("Access-Control-Allow-Methods", "GET,DELETE,OPTIONS");
+                exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type");
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+
+            if ("DELETE".equalsIgnoreCase(method)) {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+                String deviceIp = params.get("deviceIp");
+                String deviceKey = null;
+                if (deviceIp != null && !deviceIp.trim().isEmpty()) {
+                    deviceKey = deviceIp.trim() + ":" + params.getOrDefault("port", "80").trim();
+                }
+                int removed = CAPABILITIES.clear(deviceKey);
+                int removedTimes = DEVICE_TIMES.clear(deviceKey);
+                int removedIndexTracks = RECORDING_INDEX != null ? RECORDING_INDEX.clear(deviceKey) : 0;
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("success", true);
+                result.put("removed", removed);
+                result.put("removedDeviceTimes", removedTimes);
+                result.put("removedIndexTracks", removedIndexTracks);
+                sendJson(exchange, 200, result);
+                return;
+            }
+
+            if (!"GET".equalsIgnoreCase(method)) {
+                sendJson(exchange, 405, errorResponse("METHOD_NOT_ALLOWED", "Method not allowed"));
+                return;
+            }
+
+            Map<String, Object> stats = CAPABILITIES.stats();
+            stats.put("deviceTime", DEVICE_TIMES.stats());
+            sendJson(exchange, 200, stats);
+        }
+    }
+
+    // 运行诊断：ffmpeg 探测结果、日志队列与下载调度状态；GET ?refreshFfmpeg=true 强制重新探测 ffmpeg
+    static class DiagnosticsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendJson(exchange, 405, errorResponse("METHOD_NOT_ALLOWED", "Method not allowed"));
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+            if ("true".equalsIgnoreCase(params.get("refreshFfmpeg"))) {
+                FFMPEG.refresh();
+            } else {
+                FFMPEG.get();
+            }
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("javaVersion", System.getProperty("java.version"));
+            result.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+            result.put("ffmpeg", FFMPEG.stats());
+            result.put("logger", Logger.stats());
+            result.put("scheduler", DOWNLOAD_SCHEDULER.stats());
+            result.put("httpTransport", TRANSPORT.stats());
+            result.put("clientCache", clientCache.stats());
+            result.put("recordingIndex", RECORDING_INDEX != null ? RECORDING_INDEX.stats() : Collections.singletonMap("enabled", false));
+            result.put("downloadEvents", TASK_EVENTS.stats());
+            result.put("taskJournal", JOURNAL != null ? JOURNAL.stats() : Collections.singletonMap("enabled", false));
+            sendJson(exchange, 200, result);
+        }
+    }
+
+    // Prometheus 抓取接口（文本格式 0.0.4）
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendJson(exchange, 405, errorResponse("METHOD_NOT_ALLOWED", "Method not allowed"));
+                return;
+            }
+            byte[] bytes = METRICS.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+    }
+
+    // 文件下载
+    static class FileDownloadHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            String fileName = path.substring("/downloads/".length()).trim();
+            if (fileName.isEmpty() || fileName.contains("/") || fileName.contains("\\") || fileName.contains("..")) {
+                sendJson(exchange, 400, errorResponse("INVALID_FILE_NAME", "非法文件名"));
+                return;
+            }
+
+            File root = new File(DOWNLOAD_DIR).getCanonicalFile();
+            File file = new File(root, fileName).getCanonicalFile();
+            if (!file.getPath().startsWith(root.getPath() + File.separator) && !file.equals(root)) {
+                sendJson(exchange, 403, errorResponse("FORBIDDEN_PATH", "禁止访问"));
+                return;
+            }
+
+            if (!file.exists() || !file.isFile()) {
+                sendJson(exchange, 404, errorResponse("FILE_NOT_FOUND", "File not found"));
+                return;
+            }
+
+            String method = exchange.getRequestMethod();
+            boolean head = "HEAD".equalsIgnoreCase(method);
+            if (!head && !"GET".equalsIgnoreCase(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                sendJson(exchange, 405, errorResponse("METHOD_NOT_ALLOWED", "Method not allowed"));
+                return;
+            }
+
+            long length = file.length();
+            long lastModified = file.lastModified();
+            String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+            String lastModifiedHttp = DateTimeFormatter.RFC_1123_DATE_TIME
+                    .format(Instant.ofEpochMilli(lastModified).atZone(ZoneOffset.UTC));
+
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", "video/mp4");
+            headers.set("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+            headers.set("Accept-Ranges", "bytes");
+            headers.set("ETag", etag);
+            headers.set("Last-Modified", lastModifiedHttp);
+            headers.set("Cache-Control", "no-cache");
+
+            if (notModified(exchange.getRequestHeaders(), etag, lastModified)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
+            // 单段 Range（多段 Range 或 If-Range 不匹配时返回完整文件）
+            long start = 0;
+            long end = length - 1;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (range != null && (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModifiedHttp))) {
+                long[] bounds = parseByteRange(range, length);
+                if (bounds == null) {
+                    headers.set("Content-Range", "bytes */" + length);
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                if (bounds.length == 2) {
+                    start = bounds[0];
+                    end = bounds[1];
+                    status = 206;
+                    headers.set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                }
+            }
+            long count = end - start + 1;
+
+            if (head) {
+                headers.set("Content-Length", String.valueOf(count));
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+                return;
+            }
+
+            exchange.sendResponseHeaders(status, count);
+            try (OutputStream os = exchange.getResponseBody();
+                 FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(os);
+                long position = start;
+                long remaining = count;
+                while (remaining > 0) {
+                    long sent = channel.transferTo(position, Math.min(remaining, FILE_TRANSFER_CHUNK), target);
+                    if (sent <= 0) {
+                        break;
+                    }
+                    position += sent;
+                    remaining -= sent;
+                }
+            }
+        }
+
+        // If-None-Match 优先；没有时才看 If-Modified-Since（HTTP 日期精度为秒）
+        private static boolean notModified(Headers request, String etag, long lastModified) {
+            String ifNoneMatch = request.getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    String t = tag.trim();
+                    if (t.equals("*") || t.equals(etag) || t.equals("W/" + etag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            String ifModifiedSince = request.getFirst("If-Modified-Since");
+            if (ifModifiedSince != null) {
+                try {
+                    long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                            .toInstant().toEpochMilli();
+                    return lastModified / 1000 <= since / 1000;
+                } catch (DateTimeParseException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 解析 "bytes=a-b" / "bytes=a-" / "bytes=-n"
+         *
+         * @return {start, end}；空数组表示忽略 Range 返回完整文件；null 表示范围不可满足
+         */
+        static long[] parseByteRange(String range, long length) {
+            String spec = range.trim();
+            if (!spec.startsWith("bytes=") || spec.contains(",")) {
+                return new long[0];
+            }
+            spec = spec.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return new long[0];
+            }
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0) {
+                        return null;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    if (last.isEmpty()) {
+                        end = length - 1;
+                    } else {
+                        long lastPos = Long.parseLong(last);
+                        if (lastPos < start) {
+                            // 末位置小于起始位置属于无效的 range-spec，按 RFC 9110 忽略 Range
+                            return new long[0];
+                        }
+                        end = Math.min(lastPos, length - 1);
+                    }
+                }
+                if (start >= length) {
+                    return null;
+                }
+                return new long[]{start, end};
+            } catch (NumberFormatException e) {
+                return new long[0];
+            }
+        }
+    }
+
+    // 创建HTTP客户端（从共享传输层派生，连接池和 Dispatcher 全局共用）
+    // 同一客户端的所有请求共享一个认证器，首次 401 之后抢先携带 Authorization
+    private static OkHttpClient createClient(String username, String password) {
+        DigestAuthenticator authenticator = new DigestAuthenticator(username, password, DIGEST_PREEMPTIVE);
+        return TRANSPORT.client(authenticator, 30, 600, 60);
+    }
+
+    private static OkHttpClient getClient(String deviceIp, String username, String password) {
+        return clientCache.get(deviceIp, username, password, () -> createClient(username, password));
+    }
+
+    // 搜索请求 XML 模板（不同固件版本可能需要不同格式）
+    // 参数: searchID, trackID, startTime, endTime, maxResults, searchResultPosition
+    private static final String[] SEARCH_XML_FORMATS = {
+        // 格式1：使用 isapi.org 命名空间
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+        "<CMSearchDescription version=\"1.0\" xmlns=\"http://www.isapi.org/ver20/XMLSchema\">" +
+        "<searchID>%s</searchID>" +
+        "<trackList><trackID>%s</trackID></trackList>" +
+        "<timeSpanList><timeSpan>" +
+        "<startTime>%s</startTime>" +
+        "<endTime>%s</endTime>" +
+        "</timeSpan></timeSpanList>" +
+        "<maxResults>%d</maxResults>" +
+        "<searchResultPosition>%d</searchResultPosition>" +
+        "</CMSearchDescription>",
+        
+        // 格式2：使用 hikvision.com 命名空间
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+        "<CMSearchDescription version=\"2.0\" xmlns=\"http://www.hikvision.com/ver20/XMLSchema\">" +
+        "<searchID>%s</searchID>" +
+        "<trackList><trackID>%s</trackID></trackList>" +
+        "<timeSpanList><timeSpan>" +
+        "<startTime>%s</startTime>" +
+        "<endTime>%s</endTime>" +
+        "</timeSpan></timeSpanList>" +
+        "<maxResults>%d</maxResults>" +
+        "<searchResultPosition>%d</searchResultPosition>" +
+        "</CMSearchDescription>",
+        
+        // 格式3：无命名空间
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+        "<CMSearchDescription>" +
+        "<searchID>%s</searchID>" +
+        "<trackList><trackID>%s</trackID></trackList>" +
+        "<timeSpanList><timeSpan>" +
+        "<startTime>%s</startTime>" +
+        "<endTime>%s</endTime>" +
+        "</timeSpan></timeSpanList>" +
+        "<maxResults>%d</maxResults>" +
+        "<searchResultPosition>%d</searchResultPosition>" +
+        "</CMSearchDescription>"
+    };
+
+    // 搜索录像（分页拉取全部结果）
+    private static List<RecordingInfo> searchRecordings(OkHttpClient client, String ip, int port,
+                                                         String channelId, String start, String end) throws Exception {
+        return fetchRecordings(client, ip, port, channelId, start, end, () -> false).recordings;
+    }
+
+    // 分页拉取全部结果并带回是否达到 SEARCH_MAX_PAGES 被截断；
+    // cancelled 返回 true 或线程被中断时停止翻页（多设备搜索超时后不再继续拉取后续页）
+    private static RecordingIndex.Fetched fetchRecordings(OkHttpClient client, String ip, int port, String channelId,
+                                                          String start, String end, BooleanSupplier cancelled) throws Exception {
+        RecordingSearch search = new RecordingSearch(client, ip, port, channelId, start, end);
+        List<RecordingInfo> recordings = new ArrayList<>();
+        try {
+            while (search.hasNext()) {
+                if (cancelled.getAsBoolean() || Thread.currentThread().isInterrupted()) {
+                    throw new IOException("搜索已取消（已拉取 " + search.pagesFetched() + " 页）");
+                }
+                recordings.add(search.next());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Logger.getLogger(ISAPIWebServer.class).info("[搜索] 共 %d 页, %d 条录像", search.pagesFetched(), recordings.size());
+        return new RecordingIndex.Fetched(recordings, search.isTruncated());
+    }
+
+    // 经本地录像索引搜索：已覆盖且未过期的时间段直接返回，只向设备查询空档；索引关闭时等同 searchRecordings
+    private static RecordingIndex.Lookup searchRecordingsIndexed(OkHttpClient client, String ip, int port, String channelId,
+                                                                 TimeRange resolved, boolean refresh,
+                                                                 BooleanSupplier cancelled) throws Exception {
+        if (RECORDING_INDEX == null) {
+            RecordingIndex.Fetched fetched = fetchRecordings(client, ip, port, channelId, resolved.searchStart,
+                    resolved.searchEnd, cancelled);
+            return new RecordingIndex.Lookup(fetched.recordings, RecordingIndex.MISS,
+                    Collections.singletonList(resolved.searchStart + "~" + resolved.searchEnd), fetched.truncated);
+        }
+        // 设备当前的字面时间（含时钟偏差），此前 RECORDING_INDEX_RECENT_MINUTES 内的时段可能仍在录像，不记为覆盖
+        ZoneId zone = resolved.zone != null ? resolved.zone : ZoneId.systemDefault();
+        long skewSeconds = resolved.deviceClockSkewSeconds != null ? resolved.deviceClockSkewSeconds : 0;
+        LocalDateTime deviceNow = LocalDateTime.now(zone).plusSeconds(skewSeconds);
+        return RECORDING_INDEX.search(ip + ":" + port, resolved.credential, channelId, resolved.searchStart, resolved.searchEnd, deviceNow, refresh,
+                (start, end) -> fetchRecordings(client, ip, port, channelId, start, end, cancelled));
+    }
+
+    // 单页搜索结果
+    static class SearchPage {
+        final List<RecordingInfo> items = new ArrayList<>();
+        String responseStatus = ""; // OK / MORE / NO MATCHES
+        int numOfMatches = -1;
+    }
+
+    /**
+     * 分页录像搜索迭代器
+     * - 同一 searchID 下按 searchResultPosition 逐页拉取，直到 responseStatusStrg 不再是 MORE
+     * - 首页确定可用的 XML 格式后，后续页固定使用该格式
+     * - 每取到一页立即在后台预取下一页，调用方可以边消费边等待后续结果
+     * 后续页拉取失败时 hasNext()/next() 抛出 UncheckedIOException。
+     */
+    static class RecordingSearch implements Iterator<RecordingInfo> {
+        private final Logger log = Logger.getLogger(RecordingSearch.class);
+        private final OkHttpClient client;
+        private final String ip;
+        private final int port;
+        private final String channelId;
+        private final String start;
+        private final String end;
+        private final String searchId = String.format("{%s}", UUID.randomUUID().toString().toUpperCase());
+
+        private volatile int formatIndex = -1;
+        private int nextPosition = 0;
+        private int pagesFetched = 0;
+        private int fetchedItems = 0;
+        private boolean truncated = false;
+        private Iterator<RecordingInfo> current = Collections.emptyIterator();
+        private CompletableFuture<SearchPage> pending;
+
+        RecordingSearch(OkHttpClient client, String ip, int port,
+                        String channelId, String start, String end) throws IOException {
+            this.client = client;
+            this.ip = ip;
+            this.port = port;
+            this.channelId = channelId;
+            this.start = start;
+            this.end = end;
+            accept(fetchPage(0));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (pending == null) {
+                    return false;
+                }
+                SearchPage page;
+                try {
+                    page = pending.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new IOException("分页搜索被中断", e));
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+                    throw new UncheckedIOException(new IOException("分页搜索失败: " + cause.getMessage(), cause));
+                } finally {
+                    pending = null;
+                }
+                accept(page);
+            }
+            return true;
         }
-    }
 
-    // 文件下载
-    static class FileDownloadHandler implements HttpHandler {
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            String path = exchange.getRequestURI().getPath();
-            String fileName = path.substring("/downloads/".length()).trim();
-            if (fileName.isEmpty() || fileName.contains("/") || fileName.contains("\\") || fileName.contains("..")) {
-                sendJson(exchange, 400, errorResponse("INVALID_FILE_NAME", "非法文件名"));
-                return;
+        public RecordingInfo next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            return current.next();
+        }
 
-            File root = new File(DOWNLOAD_DIR).getCanonicalFile();
-            File file = new File(root, fileName).getCanonicalFile();
-            if (!file.getPath().startsWith(root.getPath() + File.separator) && !file.equals(root)) {
-                sendJson(exchange, 403, errorResponse("FORBIDDEN_PATH", "禁止访问"));
+        int pagesFetched() {
+            return pagesFetched;
+        }
+
+        int fetchedItems() {
+            return fetchedItems;
+        }
+
+        boolean isTruncated() {
+            return truncated;
+        }
+
+        private void accept(SearchPage page) {
+            pagesFetched++;
+            fetchedItems += page.items.size();
+            nextPosition += page.items.size();
+            current = page.items.iterator();
+            boolean more = "MORE".equalsIgnoreCase(page.responseStatus.trim()) && !page.items.isEmpty();
+            log.debug("[搜索] 第 %d 页: %d 条 (numOfMatches=%d), 状态: %s, 累计: %d",
+                    pagesFetched, page.items.size(), page.numOfMatches, page.responseStatus, fetchedItems);
+            if (!more) {
                 return;
             }
-
-            if (!file.exists() || !file.isFile()) {
-                sendJson(exchange, 404, errorResponse("FILE_NOT_FOUND", "File not found"));
+            if (pagesFetched >= SEARCH_MAX_PAGES) {
+                truncated = true;
+                log.warn("[搜索] 已达最大页数 %d，结果被截断（累计 %d 条）", SEARCH_MAX_PAGES, fetchedItems);
                 return;
             }
+            final int position = nextPosition;
+            pending = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return fetchPage(position);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, SEARCH_PREFETCH);
+        }
 
-            exchange.getResponseHeaders().set("Content-Type", "video/mp4");
-            exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
-            exchange.sendResponseHeaders(200, file.length());
+        private SearchPage fetchPage(int position) throws IOException {
+            long startNanos = System.nanoTime();
+            String result = "failure";
+            try {
+                SearchPage page = requestPage(position);
+                result = "success";
+                return page;
+            } finally {
+                SEARCH_SECONDS.observeSince(startNanos, result);
+            }
+        }
 
-            try (OutputStream os = exchange.getResponseBody();
-                 FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    os.write(buffer, 0, bytesRead);
+        private SearchPage requestPage(int position) throws IOException {
+            if (formatIndex >= 0) {
+                String xmlBody = String.format(SEARCH_XML_FORMATS[formatIndex], searchId, channelId, start, end,
+                        SEARCH_PAGE_SIZE, position);
+                log.debug("[搜索] 续页 position=%d, 格式 %d", position, formatIndex + 1);
+                try (Response response = client.newCall(buildSearchRequest(xmlBody)).execute()) {
+                    if (response.code() == 401) {
+                        throw new DeviceAuthException(ip, port);
+                    }
+                    if (!response.isSuccessful()) {
+                        String responseBody = response.body().string();
+                        throw new IOException("HTTP " + response.code() + ": " + extractErrorMessage(responseBody));
+                    }
+                    return parseResponse(response.body().byteStream());
                 }
             }
-        }
-    }
 
-    // 创建HTTP客户端
-    private static OkHttpClient createClient(String username, String password) {
-        return new OkHttpClient.Builder()
-                .connectTimeout(30, TimeUnit.SECONDS)
-                .readTimeout(600, TimeUnit.SECONDS)
-                .writeTimeout(60, TimeUnit.SECONDS)
-                .authenticator(new DigestAuthenticator(username, password))
-                .build();
-    }
+            String deviceKey = ip + ":" + port;
+            int cached = CAPABILITIES.getInt(deviceKey, DeviceCapabilityCache.SEARCH_FORMAT, -1);
+            String lastError = "";
+            String lastResponseBody = "";
+            for (int i : preferFirst(SEARCH_XML_FORMATS.length, cached)) {
+                String xmlBody = String.format(SEARCH_XML_FORMATS[i], searchId, channelId, start, end,
+                        SEARCH_PAGE_SIZE, position);
+                log.info("[搜索] 尝试格式 %d/%d%s，请求 XML:\n%s", i + 1, SEARCH_XML_FORMATS.length,
+                        i == cached ? "（缓存命中）" : "", xmlBody);
+
+                try (Response response = client.newCall(buildSearchRequest(xmlBody)).execute()) {
+                    // 认证失败与 XML 格式无关：不再尝试其他格式，也不清除已学到的格式
+                    if (response.code() == 401) {
+                        throw new DeviceAuthException(ip, port);
+                    }
+                    if (response.isSuccessful()) {
+                        SearchPage page = parseResponse(response.body().byteStream());
+                        log.info("[搜索] 格式 %d 成功！", i + 1);
+                        formatIndex = i;
+                        CAPABILITIES.remember(deviceKey, DeviceCapabilityCache.SEARCH_FORMAT, i);
+                        return page;
+                    }
 
-    private static OkHttpClient getClient(String deviceIp, String username, String password) {
-        String key = deviceIp + "|" + username + "|" + password;
-        return clientCache.computeIfAbsent(key, k -> createClient(username, password));
-    }
+                    String responseBody = response.body().string();
+                    lastResponseBody = responseBody;
+                    lastError = extractErrorMessage(responseBody);
+                    log.warn("[搜索] 格式 %d 失败 (HTTP %d): %s", i + 1, response.code(), lastError);
+                } catch (DeviceAuthException e) {
+                    throw e;
+                } catch (IOException e) {
+                    lastError = e.getMessage();
+                    log.warn("[搜索] 格式 %d 请求异常: %s", i + 1, e.getMessage());
+                }
+                if (i == cached) {
+                    CAPABILITIES.invalidate(deviceKey, DeviceCapabilityCache.SEARCH_FORMAT, i);
+                }
+            }
 
-    // 搜索录像（支持多种 XML 格式尝试）
-    private static List<RecordingInfo> searchRecordings(OkHttpClient client, String ip, int port,
-                                                         String channelId, String start, String end) throws Exception {
-        Logger log = Logger.getLogger(ISAPIWebServer.class);
-        
-        // 生成 UUID 格式的 searchID
-        String searchId = String.format("{%s}", UUID.randomUUID().toString().toUpperCase());
-        
-        // 尝试多种 XML 格式（不同固件版本可能需要不同格式）
-        String[] xmlFormats = {
-            // 格式1：使用 isapi.org 命名空间
-            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
-            "<CMSearchDescription version=\"1.0\" xmlns=\"http://www.isapi.org/ver20/XMLSchema\">" +
-            "<searchID>%s</searchID>" +
-            "<trackList><trackID>%s</trackID></trackList>" +
-            "<timeSpanList><timeSpan>" +
-            "<startTime>%s</startTime>" +
-            "<endTime>%s</endTime>" +
-            "</timeSpan></timeSpanList>" +
-            "<maxResults>100</maxResults>" +
-            "<searchResultPosition>0</searchResultPosition>" +
-            "</CMSearchDescription>",
-            
-            // 格式2：使用 hikvision.com 命名空间
-            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
-            "<CMSearchDescription version=\"2.0\" xmlns=\"http://www.hikvision.com/ver20/XMLSchema\">" +
-            "<searchID>%s</searchID>" +
-            "<trackList><trackID>%s</trackID></trackList>" +
-            "<timeSpanList><timeSpan>" +
-            "<startTime>%s</startTime>" +
-            "<endTime>%s</endTime>" +
-            "</timeSpan></timeSpanList>" +
-            "<maxResults>100</maxResults>" +
-            "<searchResultPosition>0</searchResultPosition>" +
-            "</CMSearchDescription>",
-            
-            // 格式3：无命名空间
-            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
-            "<CMSearchDescription>" +
-            "<searchID>%s</searchID>" +
-            "<trackList><trackID>%s</trackID></trackList>" +
-            "<timeSpanList><timeSpan>" +
-            "<startTime>%s</startTime>" +
-            "<endTime>%s</endTime>" +
-            "</timeSpan></timeSpanList>" +
-            "<maxResults>100</maxResults>" +
-            "<searchResultPosition>0</searchResultPosition>" +
-            "</CMSearchDescription>"
-        };
-        
-        String lastError = "";
-        String lastResponseBody = "";
-        
-        for (int i = 0; i < xmlFormats.length; i++) {
-            String xmlBody = String.format(xmlFormats[i], searchId, channelId, start, end);
-            
-            log.info("[搜索] 尝试格式 %d/3，请求 XML:\n%s", i + 1, xmlBody);
-            
-            Request request = new Request.Builder()
+            // 所有格式都失败
+            log.error("[搜索] 所有格式都失败，最后响应:\n%s", lastResponseBody);
+            throw new IOException("搜索失败: " + lastError);
+        }
+
+        private Request buildSearchRequest(String xmlBody) {
+            return new Request.Builder()
                     .url(String.format("http://%s:%d/ISAPI/ContentMgmt/search", ip, port))
                     .post(RequestBody.create(MediaType.parse("application/xml; charset=utf-8"), xmlBody))
                     .build();
-            
-            try (Response response = client.newCall(request).execute()) {
-                String responseBody = response.body().string();
-                lastResponseBody = responseBody;
-                
-                if (response.isSuccessful()) {
-                    log.info("[搜索] 格式 %d 成功！", i + 1);
-                    log.debug("[搜索] 响应 XML:\n%s", responseBody.length() > 2000 ? responseBody.substring(0, 2000) + "..." : responseBody);
-                    return parseResponse(responseBody);
-                }
-                
-                lastError = extractErrorMessage(responseBody);
-                log.warn("[搜索] 格式 %d 失败 (HTTP %d): %s", i + 1, response.code(), lastError);
-            } catch (IOException e) {
-                lastError = e.getMessage();
-                log.warn("[搜索] 格式 %d 请求异常: %s", i + 1, e.getMessage());
-            }
         }
-        
-        // 所有格式都失败
-        log.error("[搜索] 所有格式都失败，最后响应:\n%s", lastResponseBody);
-        throw new IOException("搜索失败: " + lastError);
     }
     
     // 从错误响应中提取错误信息
@@ -949,49 +2500,30 @@ public class ISAPIWebServer {
     }
 
     // 解析响应
-    private static List<RecordingInfo> parseResponse(String xml) throws Exception {
+    static SearchPage parseResponse(InputStream xml) throws IOException {
         Logger parseLog = Logger.getLogger(ISAPIWebServer.class);
-        List<RecordingInfo> recordings = new ArrayList<>();
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document doc = builder.parse(new InputSource(new StringReader(xml)));
-
-        NodeList items = doc.getElementsByTagName("searchMatchItem");
-        parseLog.debug("[解析] 找到 %d 条录像记录", items.getLength());
-        
-        for (int i = 0; i < items.getLength(); i++) {
-            Element item = (Element) items.item(i);
+        SearchPage page = new SearchPage();
+        CMSearchResultParser.Result result = CMSearchResultParser.parse(xml, item -> {
             RecordingInfo rec = new RecordingInfo();
-            rec.trackId = getElementText(item, "trackID");
-            rec.startTime = getElementText(item, "startTime");
-            rec.endTime = getElementText(item, "endTime");
-            rec.eventType = getElementText(item, "eventType");
-            rec.downloadPath = getElementText(item, "downloadPath");
-            rec.playbackURI = getElementText(item, "playbackURI");
-            
-            // 尝试获取文件大小
-            String sizeStr = getElementText(item, "contentLength");
-            if (sizeStr != null && !sizeStr.isEmpty()) {
-                try {
-                    rec.contentLength = Long.parseLong(sizeStr);
-                } catch (NumberFormatException e) {
-                    rec.contentLength = 0;
-                }
-            }
-            
-            parseLog.debug("[解析] 录像 %d: trackId=%s, playbackURI=%s, downloadPath=%s", 
-                    i + 1, rec.trackId, 
-                    rec.playbackURI != null ? rec.playbackURI.substring(0, Math.min(50, rec.playbackURI.length())) + "..." : "null",
-                    rec.downloadPath != null ? rec.downloadPath.substring(0, Math.min(50, rec.downloadPath.length())) + "..." : "null");
-            
-            recordings.add(rec);
-        }
-        return recordings;
-    }
-
-    private static String getElementText(Element parent, String tagName) {
-        NodeList nodes = parent.getElementsByTagName(tagName);
-        return nodes.getLength() > 0 ? nodes.item(0).getTextContent() : "";
+            rec.trackId = item.trackId;
+            rec.startTime = item.startTime;
+            rec.endTime = item.endTime;
+            rec.eventType = item.eventType;
+            rec.downloadPath = item.downloadPath;
+            rec.playbackURI = item.playbackURI;
+            rec.contentLength = item.contentLength;
+
+            parseLog.debug("[解析] 录像 %d: trackId=%s, playbackURI=%s, downloadPath=%s",
+                    page.items.size() + 1, rec.trackId,
+                    rec.playbackURI.substring(0, Math.min(50, rec.playbackURI.length())) + "...",
+                    rec.downloadPath.substring(0, Math.min(50, rec.downloadPath.length())) + "...");
+
+            page.items.add(rec);
+        });
+        page.responseStatus = result.responseStatus;
+        page.numOfMatches = result.numOfMatches;
+        parseLog.debug("[解析] 找到 %d 条录像记录", result.itemCount);
+        return page;
     }
 
     // 获取下载 token（海康设备需要）
@@ -1052,7 +2584,7 @@ public class ISAPIWebServer {
     // 带进度的文件下载
     private static long downloadFileWithProgress(OkHttpClient client, String deviceIp, int port,
                                                   String downloadPath, String saveFilePath, 
-                                                  DownloadTask task) throws IOException {
+                                                  DownloadTask task, SegmentProgress seg) throws IOException {
         Logger log = Logger.getLogger(ISAPIWebServer.class);
         String url = downloadPath.startsWith("http") ? downloadPath :
                 String.format("http://%s:%d%s", deviceIp, port, downloadPath);
@@ -1063,64 +2595,75 @@ public class ISAPIWebServer {
                 .url(url)
                 .get()
                 .build();
-        Call call = client.newCall(request);
-        task.activeCall = call;
-        touchTask(task);
-        try (Response response = call.execute()) {
-            if (!response.isSuccessful()) {
-                throw new IOException("下载失败: HTTP " + response.code());
-            }
-
-            // 获取文件大小（如果服务器提供）
-            long contentLength = response.body().contentLength();
-            task.expectedBytes = contentLength;
-            log.debug("[文件下载] Content-Length: %d bytes", contentLength);
+        String tempFile = saveFilePath + PartialDownload.TMP_SUFFIX;
+        LongAdder deviceBytes = DOWNLOAD_BYTES.labels(task.deviceKey);
+        long total = withResume(tempFile, PartialDownload.describe(request), task, log, "[文件下载]", partial -> {
+            Call call = client.newCall(partial.prepare(request));
+            attachCall(task, call);
+            long requestStart = System.nanoTime();
+            try (Response response = call.execute()) {
+                if (!response.isSuccessful()) {
+                    throw new IOException("下载失败: HTTP " + response.code());
+                }
 
-            try (InputStream is = response.body().byteStream();
-                 FileOutputStream fos = new FileOutputStream(saveFilePath)) {
-                byte[] buffer = new byte[32768]; // 32KB 缓冲区
-                int bytesRead;
-                long totalBytesRead = 0;
-                long lastLogTime = System.currentTimeMillis();
-                
-                while ((bytesRead = is.read(buffer)) != -1) {
-                    if (task.cancelRequested) {
-                        throw new IOException("任务已取消");
-                    }
-                    fos.write(buffer, 0, bytesRead);
-                    totalBytesRead += bytesRead;
-                    task.totalBytes = totalBytesRead;
+                long offset = partial.begin(response);
+                // 获取文件大小（如果服务器提供）
+                long contentLength = partial.totalLength();
+                reportExpectedBytes(task, seg, contentLength);
+                log.debug("[文件下载] Content-Length: %d bytes", contentLength);
+
+                try (InputStream is = response.body().byteStream();
+                     FileOutputStream fos = partial.openOutput()) {
+                    byte[] buffer = new byte[32768]; // 32KB 缓冲区
+                    int bytesRead;
+                    long totalBytesRead = offset;
+                    long lastLogTime = System.currentTimeMillis();
+                    boolean firstChunk = true;
                     
-                    // 每5秒记录一次进度日志
-                    long now = System.currentTimeMillis();
-                    if (now - lastLogTime > 5000) {
-                        double mb = totalBytesRead / 1024.0 / 1024.0;
-                        if (contentLength > 0) {
-                            double percent = (totalBytesRead * 100.0) / contentLength;
-                            log.debug("[文件下载] 进度: %.1f%% (%.2f MB / %.2f MB)", 
-                                    percent, mb, contentLength / 1024.0 / 1024.0);
-                        } else {
-                            log.debug("[文件下载] 已下载: %.2f MB", mb);
+                    while ((bytesRead = is.read(buffer)) != -1) {
+                        if (task.cancelRequested) {
+                            throw new IOException("任务已取消");
+                        }
+                        if (firstChunk) {
+                            TTFB_SECONDS.observeSince(requestStart, "file");
+                            firstChunk = false;
+                        }
+                        fos.write(buffer, 0, bytesRead);
+                        deviceBytes.add(bytesRead);
+                        totalBytesRead += bytesRead;
+                        reportBytes(task, seg, totalBytesRead);
+                        
+                        // 每5秒记录一次进度日志
+                        long now = System.currentTimeMillis();
+                        if (now - lastLogTime > 5000) {
+                            double mb = totalBytesRead / 1024.0 / 1024.0;
+                            if (contentLength > 0) {
+                                double percent = (totalBytesRead * 100.0) / contentLength;
+                                log.debug("[文件下载] 进度: %.1f%% (%.2f MB / %.2f MB)", 
+                                        percent, mb, contentLength / 1024.0 / 1024.0);
+                            } else {
+                                log.debug("[文件下载] 已下载: %.2f MB", mb);
+                            }
+                            partial.checkpoint();
+                            lastLogTime = now;
                         }
-                        lastLogTime = now;
                     }
+                    
+                    log.debug("[文件下载] 下载完成: %d bytes", totalBytesRead);
+                    return totalBytesRead;
                 }
-                
-                log.debug("[文件下载] 下载完成: %d bytes", totalBytesRead);
-                return totalBytesRead;
-            }
-        } finally {
-            if (task.activeCall == call) {
-                task.activeCall = null;
-                touchTask(task);
+            } finally {
+                detachCall(task, call);
             }
-        }
+        });
+        atomicMove(tempFile, saveFilePath);
+        return total;
     }
 
     // 流式下载（尝试多种方法）
     private static long downloadStream(OkHttpClient client, String deviceIp, int port,
                                         RecordingInfo rec, String saveFilePath,
-                                        DownloadTask task) throws IOException {
+                                        DownloadTask task, SegmentProgress seg) throws IOException {
         Logger log = Logger.getLogger(ISAPIWebServer.class);
         
         // 检查 playbackURI
@@ -1140,7 +2683,7 @@ public class ISAPIWebServer {
         addTaskLog(task, "开始流式下载...");
         addTaskLog(task, String.format("playbackURI: %s", playbackURI.length() > 100 ? playbackURI.substring(0, 100) + "..." : playbackURI));
         
-        // 为流式下载创建专用客户端（更长的超时时间）
+        // 为流式下载派生专用客户端（更长的超时时间，连接池和认证器与 client 共用）
         OkHttpClient streamClient = client.newBuilder()
                 .connectTimeout(60, TimeUnit.SECONDS)
                 .readTimeout(STREAM_READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
@@ -1149,174 +2692,182 @@ public class ISAPIWebServer {
         
         List<String> errors = new ArrayList<>();
 
-        // ==================== 方法1: POST + XML Body (主路径) ====================
-        log.info("[流式下载] 尝试方法1: POST + XML Body (主路径)");
-        addTaskLog(task, "方法1: POST + XML Body (主路径)");
-        try {
-            String url = String.format("http://%s:%d/ISAPI/ContentMgmt/download", deviceIp, port);
-            String xmlBody = buildDownloadXml(playbackURI);
-            addTaskLog(task, "URL: " + url);
-
-            RequestBody requestBody = RequestBody.create(MediaType.parse("application/xml; charset=utf-8"), xmlBody);
-            Request request = new Request.Builder()
-                    .url(url)
-                    .post(requestBody)
-                    .addHeader("Accept", "*/*")
-                    .addHeader("Content-Type", "application/xml")
-                    .build();
-            long result = tryStreamDownload(streamClient, request, saveFilePath, task, log, "方法1");
-            if (result > 0) {
-                addTaskLog(task, "方法1 成功! 下载 " + result + " 字节");
-                return result;
+        // 优先尝试该设备上次成功的方法，失败后按原顺序回退
+        String deviceKey = deviceIp + ":" + port;
+        int cached = CAPABILITIES.getInt(deviceKey, DeviceCapabilityCache.STREAM_METHOD, -1);
+        if (cached > 0) {
+            addTaskLog(task, "能力缓存: 优先尝试方法" + cached);
+        }
+        for (int index : preferFirst(STREAM_METHOD_COUNT, cached - 1)) {
+            int method = index + 1;
+            try {
+                long result = tryStreamMethod(method, client, streamClient, deviceIp, port, rec,
+                        saveFilePath, task, seg, log);
+                if (result > 0) {
+                    METHOD_RESULTS.inc("stream", "方法" + method, "success");
+                    log.info("[流式下载] 方法%d 成功! 下载 %d 字节", method, result);
+                    addTaskLog(task, "方法" + method + " 成功! 下载 " + result + " 字节");
+                    CAPABILITIES.remember(deviceKey, DeviceCapabilityCache.STREAM_METHOD, method);
+                    return result;
+                }
+                METHOD_RESULTS.inc("stream", "方法" + method, "empty");
+            } catch (Exception e) {
+                METHOD_RESULTS.inc("stream", "方法" + method, "failure");
+                String err = "方法" + method + " 失败: " + e.getMessage();
+                log.warn("[流式下载] %s", err);
+                addTaskLog(task, err);
+                errors.add(err);
+            }
+            if (method == cached) {
+                CAPABILITIES.invalidate(deviceKey, DeviceCapabilityCache.STREAM_METHOD, method);
             }
-        } catch (Exception e) {
-            String err = "方法1 失败: " + e.getMessage();
-            log.warn("[流式下载] %s", err);
-            addTaskLog(task, err);
-            errors.add(err);
         }
         
-        // ==================== 方法2: GET + query + Token ====================
-        log.info("[流式下载] 尝试方法2: GET + query + Token (兼容回退)");
-        addTaskLog(task, "方法2: GET + query + Token (兼容回退)");
-        try {
-            String token = getDownloadToken(client, deviceIp, port, log);
-            if (token != null) {
+        // 所有方法都失败
+        log.error("[流式下载] 所有方法都失败!");
+        addTaskLog(task, "所有方法都失败!");
+        StringBuilder errorMsg = new StringBuilder("流式下载失败，已尝试方法:\n");
+        for (String err : errors) {
+            errorMsg.append("  - ").append(err).append("\n");
+        }
+        throw new IOException(errorMsg.toString());
+    }
+
+    private static final int STREAM_METHOD_COUNT = 5;
+
+    /**
+     * 执行单个流式下载方法
+     *
+     * @return 下载字节数；方法被跳过或未取得数据时返回 0
+     */
+    private static long tryStreamMethod(int method, OkHttpClient client, OkHttpClient streamClient,
+                                        String deviceIp, int port, RecordingInfo rec, String saveFilePath,
+                                        DownloadTask task, SegmentProgress seg, Logger log) throws IOException {
+        String playbackURI = rec.playbackURI;
+        switch (method) {
+            case 1: {
+                // ==================== 方法1: POST + XML Body (主路径) ====================
+                log.info("[流式下载] 尝试方法1: POST + XML Body (主路径)");
+                addTaskLog(task, "方法1: POST + XML Body (主路径)");
+                String url = String.format("http://%s:%d/ISAPI/ContentMgmt/download", deviceIp, port);
+                String xmlBody = buildDownloadXml(playbackURI);
+                addTaskLog(task, "URL: " + url);
+
+                RequestBody requestBody = RequestBody.create(MediaType.parse("application/xml; charset=utf-8"), xmlBody);
+                Request request = new Request.Builder()
+                        .url(url)
+                        .post(requestBody)
+                        .addHeader("Accept", "*/*")
+                        .addHeader("Content-Type", "application/xml")
+                        .build();
+                return tryStreamDownload(streamClient, request, saveFilePath, task, seg, log, "方法1");
+            }
+            case 2: {
+                // ==================== 方法2: GET + query + Token ====================
+                log.info("[流式下载] 尝试方法2: GET + query + Token (兼容回退)");
+                addTaskLog(task, "方法2: GET + query + Token (兼容回退)");
+                String token = getDownloadToken(client, deviceIp, port, log);
+                if (token == null) {
+                    log.warn("[流式下载] 方法2 跳过: 无法获取 token");
+                    addTaskLog(task, "方法2 跳过: 无法获取 token");
+                    return 0;
+                }
                 String baseUrl = String.format("http://%s:%d/ISAPI/ContentMgmt/download?token=%s", deviceIp, port, token);
                 String url = appendPlaybackUriParam(baseUrl, playbackURI);
-                
+
                 log.debug("[流式下载] 方法2 URL: %s", url);
                 addTaskLog(task, "URL: " + url);
-                
+
                 Request request = new Request.Builder()
                         .url(url)
                         .get()
                         .addHeader("Accept", "*/*")
                         .build();
-                
-                long result = tryStreamDownload(streamClient, request, saveFilePath, task, log, "方法2");
-                if (result > 0) {
-                    log.info("[流式下载] 方法2 成功! 下载 %d 字节", result);
-                    addTaskLog(task, "方法2 成功! 下载 " + result + " 字节");
-                    return result;
-                }
-            } else {
-                log.warn("[流式下载] 方法2 跳过: 无法获取 token");
-                addTaskLog(task, "方法2 跳过: 无法获取 token");
+                return tryStreamDownload(streamClient, request, saveFilePath, task, seg, log, "方法2");
             }
-        } catch (Exception e) {
-            String err = "方法2 失败: " + e.getMessage();
-            log.warn("[流式下载] %s", err);
-            addTaskLog(task, err);
-            errors.add(err);
-        }
-        
-        // ==================== 方法3: PUT + XML Body (legacy fallback) ====================
-        log.info("[流式下载] 尝试方法3: PUT + XML Body (legacy fallback)");
-        addTaskLog(task, "方法3: PUT + XML Body (legacy fallback)");
-        try {
-            String url = String.format("http://%s:%d/ISAPI/ContentMgmt/download", deviceIp, port);
-            String xmlBody = buildDownloadXml(playbackURI);
-            
-            log.debug("[流式下载] 方法3 URL: %s", url);
-            addTaskLog(task, "URL: " + url);
-            
-            RequestBody requestBody = RequestBody.create(MediaType.parse("application/xml; charset=utf-8"), xmlBody);
-            Request request = new Request.Builder()
-                    .url(url)
-                    .put(requestBody)
-                    .addHeader("Accept", "*/*")
-                    .addHeader("Content-Type", "application/xml")
-                    .build();
-            
-            long result = tryStreamDownload(streamClient, request, saveFilePath, task, log, "方法3");
-            if (result > 0) {
-                log.info("[流式下载] 方法3 成功! 下载 %d 字节", result);
-                addTaskLog(task, "方法3 成功! 下载 " + result + " 字节");
-                return result;
+            case 3: {
+                // ==================== 方法3: PUT + XML Body (legacy fallback) ====================
+                log.info("[流式下载] 尝试方法3: PUT + XML Body (legacy fallback)");
+                addTaskLog(task, "方法3: PUT + XML Body (legacy fallback)");
+                String url = String.format("http://%s:%d/ISAPI/ContentMgmt/download", deviceIp, port);
+                String xmlBody = buildDownloadXml(playbackURI);
+
+                log.debug("[流式下载] 方法3 URL: %s", url);
+                addTaskLog(task, "URL: " + url);
+
+                RequestBody requestBody = RequestBody.create(MediaType.parse("application/xml; charset=utf-8"), xmlBody);
+                Request request = new Request.Builder()
+                        .url(url)
+                        .put(requestBody)
+                        .addHeader("Accept", "*/*")
+                        .addHeader("Content-Type", "application/xml")
+                        .build();
+                return tryStreamDownload(streamClient, request, saveFilePath, task, seg, log, "方法3");
             }
-        } catch (Exception e) {
-            String err = "方法3 失败: " + e.getMessage();
-            log.warn("[流式下载] %s", err);
-            addTaskLog(task, err);
-            errors.add(err);
-        }
-        
-        if (METHOD5_ENABLED) {
-            // ==================== 方法4: StreamingProxy 接口 ====================
-            log.info("[流式下载] 尝试方法4: StreamingProxy 接口");
-            addTaskLog(task, "方法4: StreamingProxy 接口");
-            try {
+            case 4: {
+                // ==================== 方法4: StreamingProxy 接口 ====================
+                if (!METHOD5_ENABLED) {
+                    addTaskLog(task, "方法4 已禁用(METHOD5_ENABLED=false)");
+                    return 0;
+                }
+                log.info("[流式下载] 尝试方法4: StreamingProxy 接口");
+                addTaskLog(task, "方法4: StreamingProxy 接口");
                 String playbackUrl = buildPlaybackUrl(playbackURI, deviceIp, port);
-                if (playbackUrl != null) {
-                    log.debug("[流式下载] 方法4 URL: %s", playbackUrl);
-                    addTaskLog(task, "URL: " + playbackUrl);
-                    
-                    Request request = new Request.Builder()
-                            .url(playbackUrl)
-                            .get()
-                            .addHeader("Accept", "*/*")
-                            .build();
-                    
-                    long result = tryStreamDownload(streamClient, request, saveFilePath, task, log, "方法4");
-                    if (result > 0) {
-                        log.info("[流式下载] 方法4 成功! 下载 %d 字节", result);
-                        addTaskLog(task, "方法4 成功! 下载 " + result + " 字节");
-                        return result;
-                    }
-                } else {
+                if (playbackUrl == null) {
                     log.warn("[流式下载] 方法4 跳过: 无法构建 playback URL");
                     addTaskLog(task, "方法4 跳过: 无法构建 playback URL");
+                    return 0;
                 }
-            } catch (Exception e) {
-                String err = "方法4 失败: " + e.getMessage();
-                log.warn("[流式下载] %s", err);
-                addTaskLog(task, err);
-                errors.add(err);
+                log.debug("[流式下载] 方法4 URL: %s", playbackUrl);
+                addTaskLog(task, "URL: " + playbackUrl);
+
+                Request request = new Request.Builder()
+                        .url(playbackUrl)
+                        .get()
+                        .addHeader("Accept", "*/*")
+                        .build();
+                return tryStreamDownload(streamClient, request, saveFilePath, task, seg, log, "方法4");
             }
-        } else {
-            addTaskLog(task, "方法4 已禁用(METHOD5_ENABLED=false)");
-        }
-        
-        // ==================== 方法5: 直接访问 downloadPath 的 HTTP 变体 ====================
-        if (rec.downloadPath != null && !rec.downloadPath.isEmpty()) {
-            log.info("[流式下载] 尝试方法5: 直接访问录像文件路径");
-            addTaskLog(task, "方法5: 直接访问录像文件路径");
-            try {
+            case 5: {
+                // ==================== 方法5: 直接访问 downloadPath 的 HTTP 变体 ====================
+                if (rec.downloadPath == null || rec.downloadPath.isEmpty()) {
+                    return 0;
+                }
+                log.info("[流式下载] 尝试方法5: 直接访问录像文件路径");
+                addTaskLog(task, "方法5: 直接访问录像文件路径");
                 String url = rec.downloadPath.startsWith("http") ? rec.downloadPath :
                         String.format("http://%s:%d%s", deviceIp, port, rec.downloadPath);
-                
+
                 log.debug("[流式下载] 方法5 URL: %s", url);
                 addTaskLog(task, "URL: " + (url.length() > 100 ? url.substring(0, 100) + "..." : url));
-                
+
                 Request request = new Request.Builder()
                         .url(url)
                         .get()
                         .addHeader("Accept", "*/*")
                         .build();
-                
-                long result = tryStreamDownload(streamClient, request, saveFilePath, task, log, "方法5");
-                if (result > 0) {
-                    log.info("[流式下载] 方法5 成功! 下载 %d 字节", result);
-                    addTaskLog(task, "方法5 成功! 下载 " + result + " 字节");
-                    return result;
-                }
-            } catch (Exception e) {
-                String err = "方法5 失败: " + e.getMessage();
-                log.warn("[流式下载] %s", err);
-                addTaskLog(task, err);
-                errors.add(err);
+                return tryStreamDownload(streamClient, request, saveFilePath, task, seg, log, "方法5");
             }
+            default:
+                return 0;
         }
-        
-        // 所有方法都失败
-        log.error("[流式下载] 所有方法都失败!");
-        addTaskLog(task, "所有方法都失败!");
-        StringBuilder errorMsg = new StringBuilder("流式下载失败，已尝试方法:\n");
-        for (String err : errors) {
-            errorMsg.append("  - ").append(err).append("\n");
+    }
+
+    /**
+     * 生成尝试顺序 0..count-1，preferred 在范围内时排在最前
+     */
+    private static int[] preferFirst(int count, int preferred) {
+        int[] order = new int[count];
+        int n = 0;
+        if (preferred >= 0 && preferred < count) {
+            order[n++] = preferred;
         }
-        throw new IOException(errorMsg.toString());
+        for (int i = 0; i < count; i++) {
+            if (i != preferred) {
+                order[n++] = i;
+            }
+        }
+        return order;
     }
     
     // 构建下载请求 XML（使用 XML 实体转义，不使用 CDATA）
@@ -1325,7 +2876,7 @@ public class ISAPIWebServer {
         return buildSimpleDownloadXml(playbackURI);
     }
 
-    private static String escapeXmlText(String value) {
+    static String escapeXmlText(String value) {
         if (value == null || value.isEmpty()) return "";
         return value
                 .replace("&", "&amp;")
@@ -1526,54 +3077,160 @@ public class ISAPIWebServer {
                                                           String segmentStartText, String segmentEndText,
                                                           String requestStartRtsp, String requestEndRtsp,
                                                           DownloadTask task, Logger log) throws IOException {
-        if (segmentStartText == null || segmentEndText == null) {
-            return;
-        }
-
         try {
-            LocalDateTime segmentStart = parseAsUtcDateTime(segmentStartText);
-            LocalDateTime segmentEnd = parseAsUtcDateTime(segmentEndText);
-            LocalDateTime requestStart = parseAsUtcDateTime(requestStartRtsp);
-            LocalDateTime requestEnd = parseAsUtcDateTime(requestEndRtsp);
-            if (segmentStart == null || segmentEnd == null || requestStart == null || requestEnd == null) {
-                log.warn("[ISAPI HTTP] 裁剪时间解析失败，segment=%s~%s request=%s~%s",
-                        segmentStartText, segmentEndText, requestStartRtsp, requestEndRtsp);
-                addTaskLog(task, "裁剪时间解析失败，保留原文件");
+            long[] window = requestedTrimWindow(segmentStartText, segmentEndText,
+                    requestStartRtsp, requestEndRtsp, task, log);
+            if (window == null) {
                 return;
             }
-
-            if (!segmentEnd.isAfter(segmentStart) || !requestEnd.isAfter(requestStart)) {
-                return;
-            }
-
-            LocalDateTime clipStart = requestStart.isAfter(segmentStart) ? requestStart : segmentStart;
-            LocalDateTime clipEnd = requestEnd.isBefore(segmentEnd) ? requestEnd : segmentEnd;
-            if (!clipEnd.isAfter(clipStart)) {
-                return;
-            }
-
-            long segmentMillis = Duration.between(segmentStart, segmentEnd).toMillis();
-            long clipMillis = Duration.between(clipStart, clipEnd).toMillis();
-            if (Math.abs(segmentMillis - clipMillis) < 1500L) {
-                return; // 本身已接近请求窗口，无需裁剪
-            }
-
-            long offsetMillis = Duration.between(segmentStart, clipStart).toMillis();
-            if (offsetMillis < 0) offsetMillis = 0;
-
+            long offsetMillis = window[0];
+            long clipMillis = window[1];
             String offsetSeconds = String.format(Locale.ROOT, "%.3f", offsetMillis / 1000.0);
             String durationSeconds = String.format(Locale.ROOT, "%.3f", clipMillis / 1000.0);
             log.info("[ISAPI HTTP] 检测到返回整段录像，执行本地裁剪: offset=%ss, duration=%ss",
                     offsetSeconds, durationSeconds);
             addTaskLog(task, String.format("本地裁剪: offset=%ss, duration=%ss", offsetSeconds, durationSeconds));
 
-            trimFileByFfmpeg(finalFile, offsetSeconds, durationSeconds, task, log);
+            if ("ffmpeg".equals(REMUX_ENGINE) || !trimFileNatively(finalFile, offsetMillis, clipMillis, task, log)) {
+                long startNanos = System.nanoTime();
+                String result = "failure";
+                try {
+                    trimFileByFfmpeg(finalFile, offsetSeconds, durationSeconds, task, log);
+                    result = "success";
+                } finally {
+                    MEDIA_SECONDS.observeSince(startNanos, "trim", "ffmpeg", result);
+                }
+            }
         } catch (Exception e) {
+            // 取消不是裁剪失败：继续向上抛出，避免已取消的任务被当作下载成功
+            if (task.cancelRequested || isCancellationException(e)) {
+                throw e instanceof IOException ? (IOException) e : new IOException("任务已取消", e);
+            }
             log.warn("[ISAPI HTTP] 计算裁剪窗口失败，跳过裁剪: %s", e.getMessage());
             addTaskLog(task, "裁剪窗口计算失败，保留原文件");
         }
     }
 
+    // 请求窗口在整段录像中的 {偏移毫秒, 时长毫秒}；无需裁剪或无法计算时返回 null
+    private static long[] requestedTrimWindow(String segmentStartText, String segmentEndText,
+                                              String requestStartRtsp, String requestEndRtsp,
+                                              DownloadTask task, Logger log) {
+        if (segmentStartText == null || segmentEndText == null) {
+            return null;
+        }
+
+        LocalDateTime segmentStart = parseAsUtcDateTime(segmentStartText);
+        LocalDateTime segmentEnd = parseAsUtcDateTime(segmentEndText);
+        LocalDateTime requestStart = parseAsUtcDateTime(requestStartRtsp);
+        LocalDateTime requestEnd = parseAsUtcDateTime(requestEndRtsp);
+        if (segmentStart == null || segmentEnd == null || requestStart == null || requestEnd == null) {
+            log.warn("[ISAPI HTTP] 裁剪时间解析失败，segment=%s~%s request=%s~%s",
+                    segmentStartText, segmentEndText, requestStartRtsp, requestEndRtsp);
+            addTaskLog(task, "裁剪时间解析失败，保留原文件");
+            return null;
+        }
+
+        if (!segmentEnd.isAfter(segmentStart) || !requestEnd.isAfter(requestStart)) {
+            return null;
+        }
+
+        LocalDateTime clipStart = requestStart.isAfter(segmentStart) ? requestStart : segmentStart;
+        LocalDateTime clipEnd = requestEnd.isBefore(segmentEnd) ? requestEnd : segmentEnd;
+        if (!clipEnd.isAfter(clipStart)) {
+            return null;
+        }
+
+        long segmentMillis = Duration.between(segmentStart, segmentEnd).toMillis();
+        long clipMillis = Duration.between(clipStart, clipEnd).toMillis();
+        if (Math.abs(segmentMillis - clipMillis) < 1500L) {
+            return null; // 本身已接近请求窗口，无需裁剪
+        }
+
+        long offsetMillis = Duration.between(segmentStart, clipStart).toMillis();
+        if (offsetMillis < 0) offsetMillis = 0;
+        return new long[]{offsetMillis, clipMillis};
+    }
+
+    // 边下载边转封装的流水线（包含请求窗口截取）；关闭或只用 ffmpeg 时返回 null
+    private static RemuxPipeline createRemuxPipeline(String saveFilePath,
+                                                     String segmentStartText, String segmentEndText,
+                                                     String requestStartRtsp, String requestEndRtsp,
+                                                     DownloadTask task) {
+        if (!DOWNLOAD_PIPELINE || "ffmpeg".equals(REMUX_ENGINE)) {
+            return null;
+        }
+        PsToMp4Remuxer.Options options = new PsToMp4Remuxer.Options();
+        long[] window = requestedTrimWindow(segmentStartText, segmentEndText, requestStartRtsp, requestEndRtsp,
+                task, Logger.getLogger(ISAPIWebServer.class));
+        if (window != null) {
+            options.windowOffsetMillis = window[0];
+            options.windowDurationMillis = window[1];
+        }
+        // 与 remuxToMp4 一致：auto 模式下 G.711 等音频交给 ffmpeg 转码
+        options.rejectUnsupportedAudio = "auto".equals(REMUX_ENGINE) && findFfmpeg() != null;
+        return new RemuxPipeline(new File(saveFilePath + ".remux.tmp"), options, () -> task.cancelRequested);
+    }
+
+    // 边下载边转封装的收尾：成功时输出即为最终文件并删除原始数据；返回 false 表示按原来的串行流程处理
+    private static boolean finishPipelinedDownload(RemuxPipeline pipeline, String tempFile, String finalFile,
+                                                   DownloadTask task, Logger log) throws IOException {
+        if (pipeline == null) {
+            return false;
+        }
+        long begin = System.currentTimeMillis();
+        PsToMp4Remuxer.Result result = pipeline.finish();
+        if (result == null) {
+            addTaskLog(task, "边下载边转封装未完成（" + pipeline.failure() + "），按原流程转封装");
+            return false;
+        }
+        atomicMove(pipeline.output().getPath(), finalFile);
+        cleanupTmpFile(tempFile);
+        touchTask(task);
+        String window = result.windowStartSeconds >= 0
+                ? String.format(", 窗口起点(关键帧) %.3fs", result.windowStartSeconds) : "";
+        addTaskLog(task, String.format("边下载边转封装完成: %s%s, %dx%d, %.1f 秒%s",
+                result.videoCodec,
+                result.audioCodec != null && !result.audioDropped ? " + " + result.audioCodec : "",
+                result.width, result.height, result.durationSeconds, window));
+        log.info("[边下载边转封装] 完成: 视频 %s %dx%d %d 帧（丢弃开头 %d 帧）, 音频 %s %d 帧%s, 时长 %.1f 秒%s, 输出 %d 字节, 收尾 %d ms",
+                result.videoCodec, result.width, result.height, result.videoSamples,
+                result.droppedLeadingFrames, result.audioCodec != null ? result.audioCodec : "无", result.audioSamples,
+                result.audioDropped ? "（已丢弃）" : "", result.durationSeconds, window,
+                result.outputBytes, System.currentTimeMillis() - begin);
+        return true;
+    }
+
+    // 内置 MP4 裁剪：按关键帧切分样本表并直接拷贝样本数据，返回 false 表示需要回退 ffmpeg
+    private static boolean trimFileNatively(String inputFile, long offsetMillis, long durationMillis,
+                                            DownloadTask task, Logger log) throws IOException {
+        String outputTmp = inputFile + ".clip.tmp.mp4";
+        cleanupTmpFile(outputTmp);
+        long begin = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        try {
+            Mp4Trimmer.Result result = Mp4Trimmer.trim(new File(inputFile), new File(outputTmp),
+                    offsetMillis, durationMillis, () -> task.cancelRequested);
+            atomicMove(outputTmp, inputFile);
+            MEDIA_SECONDS.observeSince(startNanos, "trim", "java", "success");
+            touchTask(task);
+            addTaskLog(task, String.format("内置裁剪成功: 关键帧起点 %.3fs, 时长 %.3fs",
+                    result.startSeconds, result.durationSeconds));
+            log.info("[裁剪] 内置裁剪成功: 关键帧起点 %.3fs, 时长 %.3fs, 视频 %d 帧, 其他轨道 %d 帧, 拷贝 %d 字节, 输出 %d 字节, 耗时 %d ms",
+                    result.startSeconds, result.durationSeconds, result.videoSamples, result.otherSamples,
+                    result.copiedBytes, result.outputBytes, System.currentTimeMillis() - begin);
+            return true;
+        } catch (IOException e) {
+            cleanupTmpFile(outputTmp);
+            MEDIA_SECONDS.observeSince(startNanos, "trim", "java", "failure");
+            if (task.cancelRequested || isCancellationException(e)) {
+                throw e;
+            }
+            addTaskLog(task, "内置裁剪失败: " + e.getMessage() + "，回退到 ffmpeg");
+            log.warn("[裁剪] 内置裁剪失败: %s，回退到 ffmpeg", e.getMessage());
+            return false;
+        }
+    }
+
     // 使用 ffmpeg 对本地文件按偏移/时长裁剪（分级策略：copy → copy+aac → copy+无音频）
     private static void trimFileByFfmpeg(String inputFile, String offsetSeconds, String durationSeconds,
                                          DownloadTask task, Logger log) throws IOException {
@@ -1621,8 +3278,7 @@ public class ISAPIWebServer {
                 ProcessBuilder pb = new ProcessBuilder(cmd);
                 pb.redirectErrorStream(true);
                 Process process = pb.start();
-                task.activeProcess = process;
-                touchTask(task);
+                attachProcess(task, process);
 
                 Thread reader = new Thread(() -> {
                     try (BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
@@ -1655,8 +3311,7 @@ public class ISAPIWebServer {
                     cleanupTmpFile(outputTmp);
                     log.warn("[裁剪] 策略 %d 退出码 %d，尝试下一个", i + 1, process.exitValue());
                 } finally {
-                    task.activeProcess = null;
-                    touchTask(task);
+                    detachProcess(task, process);
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -1671,6 +3326,7 @@ public class ISAPIWebServer {
             }
         }
 
+        FFMPEG.revalidate();
         if (lastError != null) throw lastError;
         throw new IOException("裁剪失败");
     }
@@ -1763,14 +3419,15 @@ public class ISAPIWebServer {
                 ? String.format("http://%s:%d/ISAPI/ContentMgmt/download?token=%s", deviceIp, port, downloadToken)
                 : null;
 
-        // 为 ISAPI HTTP 下载创建专用客户端（更长的超时时间）
+        // 为 ISAPI HTTP 下载派生专用客户端（更长的超时时间，连接池和认证器与 client 共用）
         OkHttpClient streamClient = client.newBuilder()
                 .connectTimeout(60, TimeUnit.SECONDS)
                 .readTimeout(STREAM_READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
                 .writeTimeout(60, TimeUnit.SECONDS)
                 .build();
 
-        String tempFile = saveFilePath + ".isapi.tmp";
+        String tempFile = saveFilePath + PartialDownload.TMP_SUFFIX;
+        String deviceKey = deviceIp + ":" + port;
         IOException lastError = null;
 
         // ---- 步骤4: 逐个尝试 playbackURI 进行下载 ----
@@ -1805,8 +3462,18 @@ public class ISAPIWebServer {
                     };
                 }
 
-                for (String[] methodInfo : methods) {
+                // 该设备上次成功的请求变体排在最前
+                String cachedMethod = CAPABILITIES.get(deviceKey, DeviceCapabilityCache.HTTP_DOWNLOAD_METHOD);
+                int preferred = -1;
+                for (int i = 0; i < methods.length; i++) {
+                    if (methods[i][2].equals(cachedMethod)) {
+                        preferred = i;
+                    }
+                }
+
+                for (int methodIdx : preferFirst(methods.length, preferred)) {
                     if (task.cancelRequested) throw new IOException("任务已取消");
+                    String[] methodInfo = methods[methodIdx];
                     String httpMethod = methodInfo[0];
                     String url = methodInfo[1];
                     String methodLabel = methodInfo[2];
@@ -1828,20 +3495,30 @@ public class ISAPIWebServer {
                             log.debug("[ISAPI HTTP] XML: %s", xmlBody);
                         }
 
-                        long bytes = executeHttpStreamDownload(streamClient, request, tempFile, task, log, label);
+                        String[] segmentMeta = playbackUriMeta.get(playbackURI);
+                        String segmentStartRtsp = segmentMeta != null ? segmentMeta[0] : startTime;
+                        String segmentEndRtsp = segmentMeta != null ? segmentMeta[1] : endTime;
+                        RemuxPipeline pipeline = createRemuxPipeline(saveFilePath, segmentStartRtsp, segmentEndRtsp,
+                                startTime, endTime, task);
+                        long bytes = executeHttpStreamDownload(streamClient, request, tempFile, task, log, label, pipeline);
                         if (bytes > 0) {
                             addTaskLog(task, String.format("%s 下载成功: %d 字节", label, bytes));
+                            CAPABILITIES.remember(deviceKey, DeviceCapabilityCache.HTTP_DOWNLOAD_METHOD, methodLabel);
+                            if (finishPipelinedDownload(pipeline, tempFile, saveFilePath, task, log)) {
+                                METHOD_RESULTS.inc("isapi-http", methodLabel, "success");
+                                return new File(saveFilePath).length();
+                            }
                             // 下载成功，检查并转封装
                             finalizeDownloadFile(tempFile, saveFilePath, task, log);
                             // 某些 NVR 会返回整段录像文件，这里按请求时间再裁剪一次，确保输出时长准确
-                            String[] segmentMeta = playbackUriMeta.get(playbackURI);
-                            String segmentStartRtsp = segmentMeta != null ? segmentMeta[0] : startTime;
-                            String segmentEndRtsp = segmentMeta != null ? segmentMeta[1] : endTime;
                             trimToRequestedTimeWindowIfNeeded(saveFilePath, segmentStartRtsp, segmentEndRtsp,
                                     startTime, endTime, task, log);
+                            METHOD_RESULTS.inc("isapi-http", methodLabel, "success");
                             return new File(saveFilePath).length();
                         }
+                        METHOD_RESULTS.inc("isapi-http", methodLabel, "empty");
                     } catch (Exception e) {
+                        METHOD_RESULTS.inc("isapi-http", methodLabel, "failure");
                         IOException normalized = (e instanceof IOException)
                                 ? (IOException) e
                                 : new IOException(e.getMessage(), e);
@@ -1850,13 +3527,18 @@ public class ISAPIWebServer {
                         if (errMsg != null && errMsg.length() > 200) errMsg = errMsg.substring(0, 200) + "...";
                         log.warn("[ISAPI HTTP] %s 失败: %s", label, errMsg);
                         addTaskLog(task, String.format("%s 失败: %s", label, errMsg));
-                        cleanupTmpFile(tempFile);
+                        if (methodIdx == preferred) {
+                            CAPABILITIES.invalidate(deviceKey, DeviceCapabilityCache.HTTP_DOWNLOAD_METHOD, methodLabel);
+                        }
                     }
                 }
             }
         } finally {
-            // 确保异常/取消时 tmp 文件被清理
-            cleanupTmpFile(tempFile);
+            // 取消时清理 tmp；失败或服务关闭时保留已下载部分（及 .resume 描述文件）供下次续传
+            if (task.cancelRequested && !shuttingDown) {
+                cleanupTmpFile(tempFile);
+                cleanupTmpFile(tempFile + PartialDownload.SIDECAR_SUFFIX);
+            }
         }
 
         if (lastError != null) throw lastError;
@@ -1865,7 +3547,7 @@ public class ISAPIWebServer {
 
     // 构建简洁的下载请求 XML（无 namespace，与 HikLoad/qb60/hikvision-downloader 一致）
     // 海康设备对 <downloadRequest> 上的 version/xmlns 属性可能不兼容
-    private static String buildSimpleDownloadXml(String playbackURI) {
+    static String buildSimpleDownloadXml(String playbackURI) {
         // 使用 XML 实体转义 & 符号（海康 ISAPI 文档 3.3 节明确要求）
         String escapedUri = escapeXmlText(playbackURI);
         return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
@@ -1907,15 +3589,33 @@ public class ISAPIWebServer {
     }
 
     // 执行 HTTP 流式下载到文件（带取消挂接和进度回报）
+    // pipeline 不为 null 时边下载边转封装（仅限从头下载的尝试）
     private static long executeHttpStreamDownload(OkHttpClient client, Request request,
                                                    String saveFilePath, DownloadTask task,
-                                                   Logger log, String label) throws IOException {
+                                                   Logger log, String label, RemuxPipeline pipeline) throws IOException {
+        return withResume(saveFilePath, PartialDownload.describe(request), task, log, "[ISAPI HTTP] " + label,
+                partial -> {
+                    try {
+                        return executeHttpStreamAttempt(client, partial.prepare(request), partial, task, log, label, pipeline);
+                    } catch (IOException e) {
+                        if (pipeline != null) {
+                            pipeline.abort();
+                        }
+                        throw e;
+                    }
+                });
+    }
+
+    private static long executeHttpStreamAttempt(OkHttpClient client, Request request, PartialDownload partial,
+                                                 DownloadTask task, Logger log, String label,
+                                                 RemuxPipeline pipeline) throws IOException {
         log.debug("[ISAPI HTTP] %s 发送请求...", label);
         if (task.cancelRequested) throw new IOException("任务已取消");
 
         Call call = client.newCall(request);
-        task.activeCall = call;
-        touchTask(task);
+        attachCall(task, call);
+        LongAdder deviceBytes = DOWNLOAD_BYTES.labels(task.deviceKey);
+        long requestStart = System.nanoTime();
         try (Response response = call.execute()) {
             int code = response.code();
             String contentType = response.header("Content-Type");
@@ -1945,22 +3645,31 @@ public class ISAPIWebServer {
                 throw new IOException("返回非视频数据: " + contentType);
             }
 
-            task.expectedBytes = contentLength > 0 ? contentLength : 0;
+            long offset = partial.begin(response);
+            task.expectedBytes = partial.totalLength() > 0 ? partial.totalLength() : 0;
+            if (pipeline != null) {
+                if (offset == 0) {
+                    pipeline.begin();
+                } else {
+                    pipeline.skip("断点续传");
+                }
+            }
 
             // 开始下载到临时文件
             log.info("[ISAPI HTTP] %s 开始接收数据...", label);
             addTaskLog(task, String.format("%s 开始下载...", label));
 
             try (InputStream is = response.body().byteStream();
-                 FileOutputStream fos = new FileOutputStream(saveFilePath)) {
+                 FileOutputStream fos = partial.openOutput()) {
 
                 byte[] buffer = new byte[65536]; // 64KB 缓冲区
                 int bytesRead;
-                long totalBytesRead = 0;
+                long totalBytesRead = offset;
                 long lastLogTime = System.currentTimeMillis();
                 long dlStartTime = System.currentTimeMillis();
                 int emptyReadCount = 0;
                 final int MAX_EMPTY_READS = 100;
+                boolean firstChunk = true;
 
                 while ((bytesRead = is.read(buffer)) != -1) {
                     if (task.cancelRequested) throw new IOException("任务已取消");
@@ -1973,27 +3682,42 @@ public class ISAPIWebServer {
                         continue;
                     }
                     emptyReadCount = 0;
+                    if (firstChunk) {
+                        TTFB_SECONDS.observeSince(requestStart, "isapi-http");
+                        firstChunk = false;
+                    }
 
                     fos.write(buffer, 0, bytesRead);
+                    deviceBytes.add(bytesRead);
                     totalBytesRead += bytesRead;
                     task.totalBytes = totalBytesRead;
+                    if (pipeline != null) {
+                        pipeline.feed(buffer, 0, bytesRead);
+                        if (pipeline.windowComplete()) {
+                            log.info("[ISAPI HTTP] %s 已收到请求窗口内的全部数据，提前结束下载（%.2f MB）",
+                                    label, totalBytesRead / 1024.0 / 1024.0);
+                            addTaskLog(task, "已收到请求窗口内的全部数据，提前结束下载");
+                            break;
+                        }
+                    }
 
                     // 每 5 秒记录一次进度
                     long now = System.currentTimeMillis();
                     if (now - lastLogTime > 5000) {
                         double mb = totalBytesRead / 1024.0 / 1024.0;
                         double elapsed = (now - dlStartTime) / 1000.0;
-                        double speed = elapsed > 0 ? mb / elapsed : 0;
+                        double speed = elapsed > 0 ? (totalBytesRead - offset) / 1024.0 / 1024.0 / elapsed : 0;
                         String progressMsg = String.format("已下载: %.2f MB (速度: %.2f MB/s)", mb, speed);
                         log.debug("[ISAPI HTTP] %s %s", label, progressMsg);
                         addTaskLog(task, progressMsg);
+                        partial.checkpoint();
                         lastLogTime = now;
                     }
                 }
 
                 double totalMb = totalBytesRead / 1024.0 / 1024.0;
                 double totalTime = (System.currentTimeMillis() - dlStartTime) / 1000.0;
-                double avgSpeed = totalTime > 0 ? totalMb / totalTime : 0;
+                double avgSpeed = totalTime > 0 ? (totalBytesRead - offset) / 1024.0 / 1024.0 / totalTime : 0;
                 log.info("[ISAPI HTTP] %s 下载完成: %.2f MB, 耗时: %.1f秒, 平均速度: %.2f MB/s",
                         label, totalMb, totalTime, avgSpeed);
                 addTaskLog(task, String.format("下载完成: %.2f MB, 耗时: %.1f秒, 速度: %.2f MB/s",
@@ -2001,10 +3725,7 @@ public class ISAPIWebServer {
                 return totalBytesRead;
             }
         } finally {
-            if (task.activeCall == call) {
-                task.activeCall = null;
-                touchTask(task);
-            }
+            detachCall(task, call);
         }
     }
 
@@ -2036,9 +3757,78 @@ public class ISAPIWebServer {
         }
     }
 
-    // 本地转封装为 MP4（分级策略：纯 copy → 视频copy+音频aac → 视频copy+无音频）
+    // 本地转封装为 MP4：PS 流优先使用内置转封装，不支持或失败时回退到 ffmpeg
     private static void remuxToMp4(String inputFile, String outputFile,
                                     DownloadTask task) throws IOException {
+        if (!"ffmpeg".equals(REMUX_ENGINE) && tryJavaRemux(inputFile, outputFile, task)) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        String result = "failure";
+        try {
+            remuxWithFfmpeg(inputFile, outputFile, task);
+            result = "success";
+        } finally {
+            MEDIA_SECONDS.observeSince(startNanos, "remux", "ffmpeg", result);
+        }
+    }
+
+    // 内置 PS → MP4 转封装（H.264/H.265 + AAC，不转码），返回 false 表示需要交给 ffmpeg
+    private static boolean tryJavaRemux(String inputFile, String outputFile,
+                                        DownloadTask task) throws IOException {
+        Logger log = Logger.getLogger(ISAPIWebServer.class);
+        PsToMp4Remuxer.Probe probe;
+        try {
+            probe = PsToMp4Remuxer.probe(new File(inputFile));
+        } catch (IOException e) {
+            log.warn("[转封装] 探测输入失败: %s", e.getMessage());
+            return false;
+        }
+        if (!probe.supported()) {
+            log.info("[转封装] 内置转封装不支持该输入 (PS=%s, 视频=%s)，使用 ffmpeg",
+                    probe.programStream, probe.videoCodec());
+            return false;
+        }
+        // G.711 等音频在 MP4 中无法直接封装，auto 模式下有 ffmpeg 时交给它转成 AAC
+        if ("auto".equals(REMUX_ENGINE) && probe.audioWouldBeDropped() && findFfmpeg() != null) {
+            log.info("[转封装] 音频 %s 需要转码，使用 ffmpeg", probe.audioCodec());
+            return false;
+        }
+
+        String tmpOutput = outputFile + ".remux.tmp";
+        long startNanos = System.nanoTime();
+        try {
+            PsToMp4Remuxer.Result result = PsToMp4Remuxer.remux(new File(inputFile), new File(tmpOutput),
+                    () -> task.cancelRequested);
+            atomicMove(tmpOutput, outputFile);
+            MEDIA_SECONDS.observeSince(startNanos, "remux", "java", "success");
+            touchTask(task);
+            addTaskLog(task, String.format("内置转封装成功: %s%s, %dx%d, %.1f 秒%s",
+                    result.videoCodec,
+                    result.audioCodec != null && !result.audioDropped ? " + " + result.audioCodec : "",
+                    result.width, result.height, result.durationSeconds,
+                    result.audioDropped ? "（音频 " + result.audioCodec + " 已丢弃）" : ""));
+            log.info("[转封装] 内置转封装成功: 视频 %s %dx%d %d 帧（丢弃开头 %d 帧）, 音频 %s %d 帧%s, 时长 %.1f 秒, 输出 %d 字节, 重新同步 %d 次",
+                    result.videoCodec, result.width, result.height, result.videoSamples,
+                    result.droppedLeadingFrames, result.audioCodec != null ? result.audioCodec : "无", result.audioSamples,
+                    result.audioDropped ? "（已丢弃）" : "", result.durationSeconds,
+                    result.outputBytes, result.resyncCount);
+            return true;
+        } catch (IOException e) {
+            cleanupTmpFile(tmpOutput);
+            MEDIA_SECONDS.observeSince(startNanos, "remux", "java", "failure");
+            if (task.cancelRequested || isCancellationException(e)) {
+                throw e;
+            }
+            addTaskLog(task, "内置转封装失败: " + e.getMessage() + "，回退到 ffmpeg");
+            log.warn("[转封装] 内置转封装失败: %s，回退到 ffmpeg", e.getMessage());
+            return false;
+        }
+    }
+
+    // ffmpeg 转封装（分级策略：纯 copy → 视频copy+音频aac → 视频copy+无音频）
+    private static void remuxWithFfmpeg(String inputFile, String outputFile,
+                                        DownloadTask task) throws IOException {
         String ffmpegPath = findFfmpeg();
         if (ffmpegPath == null) {
             // 无 ffmpeg，直接移动碰运气
@@ -2074,8 +3864,7 @@ public class ISAPIWebServer {
                 ProcessBuilder pb = new ProcessBuilder(cmd);
                 pb.redirectErrorStream(true);
                 Process process = pb.start();
-                task.activeProcess = process;
-                touchTask(task);
+                attachProcess(task, process);
 
                 // 消耗 stdout/stderr 防止阻塞
                 Thread reader = new Thread(() -> {
@@ -2107,8 +3896,7 @@ public class ISAPIWebServer {
                     }
                     log.warn("[转封装] 策略 %d 退出码 %d，尝试下一个", i + 1, process.exitValue());
                 } finally {
-                    task.activeProcess = null;
-                    touchTask(task);
+                    detachProcess(task, process);
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -2121,6 +3909,7 @@ public class ISAPIWebServer {
                 log.warn("[转封装] 策略 %d 异常: %s，尝试下一个", i + 1, e.getMessage());
             }
         }
+        FFMPEG.revalidate();
         throw new IOException("所有转封装策略均失败");
     }
 
@@ -2147,8 +3936,20 @@ public class ISAPIWebServer {
 
     // 尝试流式下载（带详细日志）
     private static long tryStreamDownload(OkHttpClient client, Request request, 
-                                          String saveFilePath, DownloadTask task,
+                                          String saveFilePath, DownloadTask task, SegmentProgress seg,
                                           Logger log, String methodName) throws IOException {
+        String tempFile = saveFilePath + PartialDownload.TMP_SUFFIX;
+        long total = withResume(tempFile, PartialDownload.describe(request), task, log, "[流式下载] " + methodName,
+                partial -> tryStreamAttempt(client, partial.prepare(request), partial, task, seg, log, methodName));
+        if (total > 0) {
+            atomicMove(tempFile, saveFilePath);
+        }
+        return total;
+    }
+
+    private static long tryStreamAttempt(OkHttpClient client, Request request, PartialDownload partial,
+                                         DownloadTask task, SegmentProgress seg,
+                                         Logger log, String methodName) throws IOException {
         log.debug("[流式下载] %s 发送请求...", methodName);
         addAttemptedUrl(task, request.url().toString());
         if (task.cancelRequested) {
@@ -2156,8 +3957,9 @@ public class ISAPIWebServer {
         }
 
         Call call = client.newCall(request);
-        task.activeCall = call;
-        touchTask(task);
+        attachCall(task, call);
+        LongAdder deviceBytes = DOWNLOAD_BYTES.labels(task.deviceKey);
+        long requestStart = System.nanoTime();
         try (Response response = call.execute()) {
             int code = response.code();
             String contentType = response.header("Content-Type");
@@ -2197,22 +3999,24 @@ public class ISAPIWebServer {
                 throw new IOException("返回非视频数据: " + contentType);
             }
             
-            task.expectedBytes = contentLength > 0 ? contentLength : 0;
+            long offset = partial.begin(response);
+            reportExpectedBytes(task, seg, partial.totalLength() > 0 ? partial.totalLength() : 0);
             
             // 开始下载
             log.info("[流式下载] %s 开始接收数据...", methodName);
             addTaskLog(task, String.format("%s 开始下载...", methodName));
             
             try (InputStream is = response.body().byteStream();
-                 FileOutputStream fos = new FileOutputStream(saveFilePath)) {
+                 FileOutputStream fos = partial.openOutput()) {
                  
                 byte[] buffer = new byte[65536]; // 64KB 缓冲区
                 int bytesRead;
-                long totalBytesRead = 0;
+                long totalBytesRead = offset;
                 long lastLogTime = System.currentTimeMillis();
                 long startTime = System.currentTimeMillis();
                 int emptyReadCount = 0;
                 final int MAX_EMPTY_READS = 100;
+                boolean firstChunk = true;
                 
                 while ((bytesRead = is.read(buffer)) != -1) {
                     if (task.cancelRequested) {
@@ -2227,21 +4031,27 @@ public class ISAPIWebServer {
                         continue;
                     }
                     emptyReadCount = 0;
+                    if (firstChunk) {
+                        TTFB_SECONDS.observeSince(requestStart, "stream");
+                        firstChunk = false;
+                    }
                     
                     fos.write(buffer, 0, bytesRead);
+                    deviceBytes.add(bytesRead);
                     totalBytesRead += bytesRead;
-                    task.totalBytes = totalBytesRead;
+                    reportBytes(task, seg, totalBytesRead);
                     
                     // 每5秒记录一次进度
                     long now = System.currentTimeMillis();
                     if (now - lastLogTime > 5000) {
                         double mb = totalBytesRead / 1024.0 / 1024.0;
                         double elapsed = (now - startTime) / 1000.0;
-                        double speed = elapsed > 0 ? mb / elapsed : 0;
+                        double speed = elapsed > 0 ? (totalBytesRead - offset) / 1024.0 / 1024.0 / elapsed : 0;
                         
                         String progressMsg = String.format("已下载: %.2f MB (速度: %.2f MB/s)", mb, speed);
                         log.debug("[流式下载] %s %s", methodName, progressMsg);
                         addTaskLog(task, progressMsg);
+                        partial.checkpoint();
                         
                         lastLogTime = now;
                     }
@@ -2250,7 +4060,7 @@ public class ISAPIWebServer {
                 // 下载完成
                 double totalMb = totalBytesRead / 1024.0 / 1024.0;
                 double totalTime = (System.currentTimeMillis() - startTime) / 1000.0;
-                double avgSpeed = totalTime > 0 ? totalMb / totalTime : 0;
+                double avgSpeed = totalTime > 0 ? (totalBytesRead - offset) / 1024.0 / 1024.0 / totalTime : 0;
                 
                 log.info("[流式下载] %s 下载完成: %.2f MB, 耗时: %.1f秒, 平均速度: %.2f MB/s", 
                         methodName, totalMb, totalTime, avgSpeed);
@@ -2259,9 +4069,58 @@ public class ISAPIWebServer {
                 return totalBytesRead;
             }
         } finally {
-            if (task.activeCall == call) {
-                task.activeCall = null;
-                touchTask(task);
+            detachCall(task, call);
+        }
+    }
+
+    interface ResumableTransfer {
+        long run(PartialDownload partial) throws IOException;
+    }
+
+    /**
+     * 以可续传方式执行下载：传输中断且已收到新数据时，按断点重试（最多 DOWNLOAD_RESUME_RETRIES 次）；
+     * 失败后保留已下载部分供下次续传，任务取消时删除
+     *
+     * @return 临时文件的总字节数（含续传前已有的部分）
+     */
+    private static long withResume(String tempFile, String source, DownloadTask task, Logger log,
+                                   String label, ResumableTransfer transfer) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            PartialDownload partial = PartialDownload.open(tempFile, source, DOWNLOAD_RESUME_SKIP_AHEAD);
+            if (partial.offset() > 0) {
+                String msg = String.format("%s 发现未完成的下载，从 %.2f MB 处续传",
+                        label, partial.offset() / 1024.0 / 1024.0);
+                log.info(msg);
+                addTaskLog(task, msg);
+            }
+            long before = partial.offset();
+            try {
+                long total = transfer.run(partial);
+                partial.complete();
+                return total;
+            } catch (IOException e) {
+                partial.checkpoint();
+                if (task.cancelRequested && !shuttingDown) {
+                    partial.discard();
+                    throw e;
+                }
+                long onDisk = partial.bytesOnDisk();
+                if (onDisk == 0) {
+                    partial.discard();
+                }
+                if (onDisk <= before || attempt >= DOWNLOAD_RESUME_RETRIES) {
+                    throw e;
+                }
+                String msg = String.format("%s 传输中断(%s)，已保存 %.2f MB，%d 秒后续传 (%d/%d)",
+                        label, e.getMessage(), onDisk / 1024.0 / 1024.0, attempt + 1, attempt + 1, DOWNLOAD_RESUME_RETRIES);
+                log.warn(msg);
+                addTaskLog(task, msg);
+                try {
+                    TimeUnit.SECONDS.sleep(attempt + 1);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("任务已取消", ie);
+                }
             }
         }
     }
@@ -2278,16 +4137,21 @@ public class ISAPIWebServer {
         String rtspEnd;
         String timeBasis;
         String deviceTimeZone;
+        Long deviceClockSkewSeconds;
+        boolean clockSkewApplied; // 搜索/回放时间已按 deviceClockSkewSeconds 换算到设备时钟
+        ZoneId zone; // 搜索时间所在时区（UTC_Z 模式为 UTC）
+        String credential; // 凭据摘要（DeviceClientCache.key）
     }
 
     static class DeviceTimeInfo {
         ZoneId zoneId;
         String rawTimeZone;
         String rawLocalTime;
+        Long clockSkewMillis; // 设备时钟 - 服务器时钟（无法解析 localTime 时为 null）
     }
 
     private static TimeRange resolveTimeRange(OkHttpClient client, String deviceIp, int port,
-                                              String startTime, String endTime,
+                                              String username, String password, String startTime, String endTime,
                                               Integer clientTimezoneOffsetMinutes) throws Exception {
         if (startTime == null || endTime == null || startTime.trim().isEmpty() || endTime.trim().isEmpty()) {
             throw new IllegalArgumentException("开始时间和结束时间不能为空");
@@ -2317,14 +4181,32 @@ public class ISAPIWebServer {
             throw new IllegalArgumentException("时间范围过大，最大允许 " + MAX_DOWNLOAD_RANGE_MINUTES + " 分钟");
         }
 
-        DeviceTimeInfo deviceTimeInfo = fetchDeviceTimeInfo(client, deviceIp, port);
+        // 设备时间与录像索引都按凭据区分，错误的密码不会命中用正确密码缓存的结果
+        String credential = DeviceClientCache.key(deviceIp, username, password);
+        DeviceTimeInfo deviceTimeInfo = DEVICE_TIMES.get(deviceIp + ":" + port, credential,
+                () -> fetchDeviceTimeInfo(client, deviceIp, port));
+        TimeRange range = new TimeRange();
+        range.credential = credential;
         ZoneId targetZone = null;
         String basis;
         String deviceTzText = "";
+        Long skewSeconds = null;
         if (deviceTimeInfo != null && deviceTimeInfo.zoneId != null) {
             targetZone = deviceTimeInfo.zoneId;
             basis = "device";
             deviceTzText = valueOrEmpty(deviceTimeInfo.rawTimeZone);
+            if (deviceTimeInfo.clockSkewMillis != null) {
+                skewSeconds = TimeUnit.MILLISECONDS.toSeconds(deviceTimeInfo.clockSkewMillis);
+                if (Math.abs(skewSeconds) > CLOCK_SKEW_WARN_SECONDS) {
+                    log.warn("[时间解析] 设备 %s:%d 时钟与服务器相差 %d 秒", deviceIp, port, skewSeconds);
+                }
+                // 设备按自己的时钟给录像打时间戳：真实时刻 T 的画面在设备上标为 T + 偏差
+                if (CLOCK_SKEW_CORRECT_SECONDS > 0 && Math.abs(skewSeconds) >= CLOCK_SKEW_CORRECT_SECONDS) {
+                    startInstant = startInstant.plusSeconds(skewSeconds);
+                    endInstant = endInstant.plusSeconds(skewSeconds);
+                    range.clockSkewApplied = true;
+                }
+            }
         } else if (clientTimezoneOffsetMinutes != null) {
             targetZone = ZoneOffset.ofTotalSeconds(clientTimezoneOffsetMinutes * 60);
             basis = "browser";
@@ -2333,9 +4215,10 @@ public class ISAPIWebServer {
             basis = "server";
         }
 
-        TimeRange range = new TimeRange();
         range.timeBasis = basis;
         range.deviceTimeZone = deviceTzText;
+        range.deviceClockSkewSeconds = skewSeconds;
+        range.zone = "UTC_Z".equals(TIME_MODE) ? ZoneOffset.UTC : targetZone;
         if ("UTC_Z".equals(TIME_MODE)) {
             range.searchStart = SEARCH_TIME_FORMAT.format(startInstant.atZone(ZoneOffset.UTC));
             range.searchEnd = SEARCH_TIME_FORMAT.format(endInstant.atZone(ZoneOffset.UTC));
@@ -2358,16 +4241,23 @@ public class ISAPIWebServer {
                     .url(String.format("http://%s:%d/ISAPI/System/time", deviceIp, port))
                     .get()
                     .build();
+            long sentAt = System.currentTimeMillis();
             try (Response response = client.newCall(request).execute()) {
                 if (!response.isSuccessful() || response.body() == null) {
                     return null;
                 }
                 String xml = response.body().string();
+                long receivedAt = System.currentTimeMillis();
                 Document doc = parseXmlDocument(xml);
                 DeviceTimeInfo info = new DeviceTimeInfo();
                 info.rawLocalTime = getElementText(doc, "localTime");
                 info.rawTimeZone = getElementText(doc, "timeZone");
                 info.zoneId = parseDeviceZone(info.rawTimeZone, info.rawLocalTime);
+                Instant deviceNow = parseDeviceLocalTime(info.rawLocalTime, info.zoneId);
+                if (deviceNow != null) {
+                    // 以请求往返的中点作为设备返回 localTime 的服务器时刻
+                    info.clockSkewMillis = deviceNow.toEpochMilli() - (sentAt + receivedAt) / 2;
+                }
                 return info;
             }
         } catch (Exception e) {
@@ -2376,7 +4266,27 @@ public class ISAPIWebServer {
         }
     }
 
-    private static ZoneId parseDeviceZone(String rawTimeZone, String rawLocalTime) {
+    private static Instant parseDeviceLocalTime(String rawLocalTime, ZoneId zoneId) {
+        if (rawLocalTime == null || rawLocalTime.trim().isEmpty()) {
+            return null;
+        }
+        String text = rawLocalTime.trim();
+        try {
+            return OffsetDateTime.parse(text).toInstant();
+        } catch (DateTimeParseException ignored) {
+            // 不带偏移量，按设备时区解释
+        }
+        if (zoneId == null) {
+            return null;
+        }
+        try {
+            return LocalDateTime.parse(text).atZone(zoneId).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    static ZoneId parseDeviceZone(String rawTimeZone, String rawLocalTime) {
         if (rawLocalTime != null && rawLocalTime.matches(".*[+-]\\d{2}:\\d{2}$")) {
             try {
                 return OffsetDateTime.parse(rawLocalTime).getOffset();
@@ -2454,11 +4364,12 @@ public class ISAPIWebServer {
         Logger log = Logger.getLogger(ISAPIWebServer.class);
 
         // 构建 ffmpeg 命令，添加 RTSP 套接字空闲超时防止无限等待
-        // ffmpeg 7.x RTSP demuxer 常用 -timeout（微秒），-rw_timeout 在部分构建中不存在
+        // 参数名由能力探测决定：5.0 起为 -timeout（微秒），4.x 为 -stimeout；-rw_timeout 在部分构建中不存在
         long stallTimeoutMicros = FFMPEG_STALL_TIMEOUT_SECONDS * 1_000_000L;
+        FfmpegLocator.Probe probe = FFMPEG.get();
         List<String> cmd = new ArrayList<>();
         cmd.add(ffmpegPath);
-        cmd.add("-timeout");
+        cmd.add(probe != null ? probe.rtspTimeoutOption : "-timeout");
         cmd.add(String.valueOf(stallTimeoutMicros)); // RTSP 套接字读写超时（微秒）
         cmd.add("-rtsp_transport");
         cmd.add("tcp");
@@ -2482,8 +4393,7 @@ public class ISAPIWebServer {
         pb.redirectErrorStream(true);
 
         Process process = pb.start();
-        task.activeProcess = process;
-        touchTask(task);
+        attachProcess(task, process);
 
         // 用于卡死检测的共享状态
         final long[] lastProgressInfo = new long[]{System.currentTimeMillis(), 0L}; // [lastChangeTime, lastFrameCount]
@@ -2615,8 +4525,7 @@ public class ISAPIWebServer {
             if (process.isAlive()) {
                 process.destroyForcibly();
             }
-            task.activeProcess = null;
-            touchTask(task);
+            detachProcess(task, process);
         }
     }
 
@@ -2646,10 +4555,11 @@ public class ISAPIWebServer {
         return rtspUrl.replaceFirst("://([^:/]+):([^@]+)@", "://$1:***@");
     }
 
-    private static void addTaskLog(DownloadTask task, String message) {
+    static void addTaskLog(DownloadTask task, String message) {
         if (task == null || message == null) return;
         synchronized (task) {
             task.logs.add(message);
+            task.logSeq++;
             while (task.logs.size() > MAX_TASK_LOG_LINES) {
                 task.logs.remove(0);
             }
@@ -2668,34 +4578,331 @@ public class ISAPIWebServer {
         }
     }
 
+    private static void attachProcess(DownloadTask task, Process process) {
+        task.activeProcesses.add(process);
+        touchTask(task);
+    }
+
+    private static void detachProcess(DownloadTask task, Process process) {
+        if (task.activeProcesses.remove(process)) {
+            touchTask(task);
+        }
+    }
+
+    private static void attachCall(DownloadTask task, Call call) {
+        task.activeCalls.add(call);
+        touchTask(task);
+    }
+
+    private static void detachCall(DownloadTask task, Call call) {
+        if (task.activeCalls.remove(call)) {
+            touchTask(task);
+        }
+    }
+
+    // 当前文件进度：多录像任务记录到对应分段，单文件任务记录到任务本身
+    private static void reportBytes(DownloadTask task, SegmentProgress seg, long bytes) {
+        if (seg != null) {
+            seg.bytes = bytes;
+        } else {
+            task.totalBytes = bytes;
+        }
+    }
+
+    private static void reportExpectedBytes(DownloadTask task, SegmentProgress seg, long expectedBytes) {
+        if (seg != null) {
+            seg.expectedBytes = expectedBytes;
+        } else {
+            task.expectedBytes = expectedBytes;
+        }
+    }
+
     private static void touchTask(DownloadTask task) {
         if (task != null) {
             task.updatedAt = System.currentTimeMillis();
         }
     }
 
+    // ==================== 任务日志（重启恢复） ====================
+
+    private static void journalCreate(DownloadTask task, DownloadRequest req) {
+        if (JOURNAL == null) return;
+        Map<String, Object> record = journalRecord(TaskJournal.CREATE, task.taskId);
+        record.put("request", req.toMap());
+        record.put("downloadMode", task.downloadMode);
+        record.put("requestedMethod", valueOrEmpty(task.requestedMethod));
+        record.put("total", task.total);
+        record.put("timeMode", task.timeMode);
+        record.put("timeBasis", task.timeBasis);
+        record.put("deviceTimeZone", task.deviceTimeZone);
+        record.put("deviceClockSkewSeconds", task.deviceClockSkewSeconds);
+        record.put("clockSkewApplied", task.clockSkewApplied);
+        record.put("normalizedStart", task.normalizedStart);
+        record.put("normalizedEnd", task.normalizedEnd);
+        record.put("createdAt", task.createdAt);
+        JOURNAL.append(record);
+    }
+
+    private static void journalSegment(DownloadTask task, SegmentProgress seg) {
+        if (JOURNAL == null) return;
+        Map<String, Object> record = journalRecord(TaskJournal.SEGMENT, task.taskId);
+        record.put("index", seg.index);
+        record.put("fileName", seg.fileName);
+        record.put("bytes", seg.bytes);
+        JOURNAL.append(record);
+    }
+
+    // 任务结束时记录最终状态；服务关闭引起的取消不记录，下次启动时继续执行
+    private static void journalEnd(DownloadTask task) {
+        if (JOURNAL == null || shuttingDown || !isTerminalStatus(task.status)) return;
+        Map<String, Object> record = journalRecord(TaskJournal.END, task.taskId);
+        record.put("status", task.status);
+        record.put("message", valueOrEmpty(task.message));
+        record.put("finishedAt", task.finishedAt > 0 ? task.finishedAt : System.currentTimeMillis());
+        record.put("total", task.total);
+        record.put("success", task.success.get());
+        record.put("failed", task.failed.get());
+        record.put("totalDownloadedBytes", task.totalDownloadedBytes.get());
+        record.put("files", new ArrayList<>(task.downloadedFiles));
+        record.put("effectiveMethod", valueOrEmpty(task.effectiveMethod));
+        record.put("fallbackUsed", task.fallbackUsed);
+        JOURNAL.append(record);
+    }
+
+    private static void journalRemove(String taskId) {
+        if (JOURNAL == null) return;
+        JOURNAL.append(journalRecord(TaskJournal.REMOVE, taskId));
+    }
+
+    private static Map<String, Object> journalRecord(String type, String taskId) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("type", type);
+        record.put("taskId", taskId);
+        record.put("at", System.currentTimeMillis());
+        return record;
+    }
+
+    // 重启前已完成且文件仍在的分段直接计为成功，不再下载
+    private static boolean skipJournaledSegment(DownloadTask task, SegmentProgress seg) {
+        Long bytes = task.journaledSegments.remove(seg.fileName);
+        if (bytes == null) {
+            return false;
+        }
+        File file = new File(DOWNLOAD_DIR, seg.fileName);
+        if (!file.isFile() || file.length() == 0) {
+            addTaskLog(task, String.format("[任务 %s] 重启前已完成的 %s 不存在，重新下载", task.taskId, seg.fileName));
+            return false;
+        }
+        task.current.incrementAndGet();
+        seg.bytes = bytes;
+        seg.status = "completed";
+        task.success.incrementAndGet();
+        task.totalDownloadedBytes.addAndGet(bytes);
+        task.downloadedFiles.add(seg.fileName);
+        touchTask(task);
+        addTaskLog(task, String.format("[任务 %s] %s 已在重启前完成，跳过", task.taskId, seg.fileName));
+        return true;
+    }
+
+    // 启动时回放任务日志：未结束的任务按原 ID 重新排队，已结束的任务恢复记录直到 TTL 过期
+    private static void restoreJournaledTasks() {
+        if (JOURNAL == null) return;
+        long now = System.currentTimeMillis();
+        long ttlMs = TimeUnit.MINUTES.toMillis(TASK_TTL_MINUTES);
+        int awaiting = 0;
+        int finished = 0;
+        for (TaskJournal.Replay replay : JOURNAL.replay().values()) {
+            Object rawRequest = replay.create.get("request");
+            if (!(rawRequest instanceof Map)) {
+                continue;
+            }
+            DownloadRequest req = DownloadRequest.fromMap((Map<?, ?>) rawRequest);
+            DownloadTask task = restoreTask(replay);
+            if (replay.end != null) {
+                if (now - task.finishedAt <= ttlMs) {
+                    downloadTasks.put(task.taskId, task);
+                    finished++;
+                }
+                continue;
+            }
+
+            // 任务日志不保存密码：未结束的任务等待客户端重新提供密码后再排队
+            task.journaledSegments.putAll(replay.completedSegments);
+            task.status = "awaiting-credentials";
+            task.message = "服务已重启，请重新提供设备密码以继续（POST /api/download-resume）";
+            task.awaitingCredentials = req;
+            task.deviceKey = req.deviceIp + ":" + req.port;
+            String logMsg = String.format("[任务 %s] 服务重启，恢复未完成的任务（已完成分段 %d 个），等待重新提供密码",
+                    task.taskId, replay.completedSegments.size());
+            log.info(logMsg);
+            addTaskLog(task, logMsg);
+            downloadTasks.put(task.taskId, task);
+            awaiting++;
+        }
+        JOURNAL.start();
+        if (awaiting > 0 || finished > 0) {
+            log.info("[任务日志] 恢复未完成任务 %d 个（等待密码），已结束任务 %d 个", awaiting, finished);
+        }
+    }
+
+    /**
+     * 重启恢复的任务补上密码后重新排队；用户名与日志中记录的不一致时拒绝。
+     * 返回排队位置
+     */
+    private static int resumeWithCredentials(DownloadTask task, String username, String password) {
+        DownloadRequest pending;
+        synchronized (task) {
+            pending = task.awaitingCredentials;
+            if (pending == null || !"awaiting-credentials".equals(task.status)) {
+                throw new IllegalStateException("任务不在等待密码状态: " + task.status);
+            }
+            if (username != null && !username.isEmpty() && !username.equals(pending.username)) {
+                throw new IllegalArgumentException("用户名与原任务不一致");
+            }
+            task.awaitingCredentials = null;
+            task.status = "pending";
+            task.message = "";
+        }
+        DownloadRequest req = pending.withCredentials(pending.username, password);
+        addTaskLog(task, "已重新提供密码，重新排队");
+        touchTask(task);
+        Runnable job = DownloadRequest.RECORDINGS.equals(req.kind)
+                ? () -> runRecordingsJob(task, req)
+                : () -> runClipJob(task, req);
+        try {
+            return scheduleDownload(task, req.deviceIp, req.port, job);
+        } catch (RejectedExecutionException e) {
+            synchronized (task) {
+                task.awaitingCredentials = pending;
+                task.status = "awaiting-credentials";
+                task.message = "排队已满，请稍后重试: " + e.getMessage();
+            }
+            throw e;
+        }
+    }
+
+    private static DownloadTask restoreTask(TaskJournal.Replay replay) {
+        Map<String, Object> create = replay.create;
+        DownloadTask task = new DownloadTask();
+        task.taskId = replay.taskId;
+        task.downloadMode = journalString(create, "downloadMode");
+        task.requestedMethod = journalString(create, "requestedMethod");
+        task.total = (int) journalLong(create, "total");
+        task.timeMode = journalString(create, "timeMode");
+        task.timeBasis = journalString(create, "timeBasis");
+        task.deviceTimeZone = journalString(create, "deviceTimeZone");
+        task.deviceClockSkewSeconds = create.get("deviceClockSkewSeconds") instanceof Number
+                ? ((Number) create.get("deviceClockSkewSeconds")).longValue() : null;
+        task.clockSkewApplied = Boolean.TRUE.equals(create.get("clockSkewApplied"));
+        task.normalizedStart = journalString(create, "normalizedStart");
+        task.normalizedEnd = journalString(create, "normalizedEnd");
+        task.createdAt = journalLong(create, "createdAt");
+        Map<String, Object> end = replay.end;
+        if (end != null) {
+            task.status = journalString(end, "status");
+            task.message = journalString(end, "message");
+            task.finishedAt = journalLong(end, "finishedAt");
+            task.total = (int) journalLong(end, "total");
+            task.current.set(task.total);
+            task.success.set((int) journalLong(end, "success"));
+            task.failed.set((int) journalLong(end, "failed"));
+            task.totalDownloadedBytes.set(journalLong(end, "totalDownloadedBytes"));
+            task.effectiveMethod = journalString(end, "effectiveMethod");
+            task.fallbackUsed = Boolean.TRUE.equals(end.get("fallbackUsed"));
+            if (end.get("files") instanceof List) {
+                for (Object file : (List<?>) end.get("files")) {
+                    task.downloadedFiles.add(String.valueOf(file));
+                }
+            }
+            task.updatedAt = task.finishedAt;
+            addTaskLog(task, String.format("[任务 %s] 服务重启前已结束: %s", task.taskId, task.status));
+        }
+        return task;
+    }
+
+    private static String journalString(Map<String, Object> record, String key) {
+        Object value = record.get(key);
+        return value != null ? String.valueOf(value) : "";
+    }
+
+    private static long journalLong(Map<String, Object> record, String key) {
+        Object value = record.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    // 交给下载调度器执行（全局/单设备并发受限，超出时按 FIFO 排队）
+    private static int scheduleDownload(DownloadTask task, String deviceIp, int port, Runnable job) {
+        String deviceKey = deviceIp + ":" + port;
+        task.deviceKey = deviceKey;
+        try {
+            Runnable journaled = () -> {
+                try {
+                    job.run();
+                } finally {
+                    journalEnd(task);
+                    countTaskFinished(task);
+                }
+            };
+            return DOWNLOAD_SCHEDULER.submit(task.taskId, deviceKey, journaled, position -> {
+                task.queuePosition = position;
+                if (position > 0) {
+                    task.message = String.format("排队中，第 %d 位", position);
+                } else if (valueOrEmpty(task.message).startsWith("排队中")) {
+                    task.message = "";
+                }
+                touchTask(task);
+            });
+        } catch (RejectedExecutionException e) {
+            downloadTasks.remove(task.taskId);
+            journalRemove(task.taskId);
+            throw e;
+        }
+    }
+
+    private static void countTaskFinished(DownloadTask task) {
+        if (isTerminalStatus(task.status) && task.finishCounted.compareAndSet(false, true)) {
+            TASKS_FINISHED.inc(task.status);
+        }
+    }
+
     private static void cancelTask(DownloadTask task, String reason) {
         if (task == null) return;
         if (isTerminalStatus(task.status)) {
             return;
         }
         task.cancelRequested = true;
+        task.awaitingCredentials = null;
         task.status = "cancelled";
         task.message = reason;
         task.finishedAt = System.currentTimeMillis();
         touchTask(task);
         addTaskLog(task, "任务取消: " + reason);
-        Process p = task.activeProcess;
-        if (p != null) {
+        DOWNLOAD_SCHEDULER.cancel(task.taskId);
+        journalEnd(task);
+        countTaskFinished(task);
+        // 优先尝试优雅退出（让 ffmpeg 写入 moov atom），失败再强杀；多个进程同时停止，不逐个等待
+        List<Thread> stoppers = new ArrayList<>();
+        for (Process p : task.activeProcesses) {
+            Thread stopper = new Thread(() -> {
+                try {
+                    gracefulStopFfmpeg(p, Logger.getLogger(ISAPIWebServer.class));
+                } catch (Exception ignored) {
+                    // ignore
+                }
+            }, "ffmpeg-stop-" + task.taskId);
+            stopper.setDaemon(true);
+            stopper.start();
+            stoppers.add(stopper);
+        }
+        for (Thread stopper : stoppers) {
             try {
-                // 优先尝试优雅退出（让 ffmpeg 写入 moov atom），失败再强杀
-                gracefulStopFfmpeg(p, Logger.getLogger(ISAPIWebServer.class));
-            } catch (Exception ignored) {
-                // ignore
+                stopper.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
         }
-        Call call = task.activeCall;
-        if (call != null) {
+        for (Call call : task.activeCalls) {
             try {
                 call.cancel();
             } catch (Exception ignored) {
@@ -2718,34 +4925,80 @@ public class ISAPIWebServer {
             long base = task.finishedAt > 0 ? task.finishedAt : task.updatedAt;
             if (terminal && now - base > ttlMs) {
                 removeKeys.add(entry.getKey());
+            } else if ("awaiting-credentials".equals(task.status) && now - task.updatedAt > ttlMs) {
+                cancelTask(task, "等待重新提供密码超时");
             }
         }
         for (String key : removeKeys) {
             downloadTasks.remove(key);
+            journalRemove(key);
+        }
+
+        if (RECORDING_INDEX != null) {
+            RECORDING_INDEX.saveIfDirty();
+        }
+
+        int evictedClients = clientCache.evictIdle();
+        if (evictedClients > 0) {
+            log.info("[清理] 淘汰空闲设备客户端 %d 个", evictedClients);
+        }
+
+        // 清理长时间未续传的断点文件
+        int removed = PartialDownload.sweep(new File(DOWNLOAD_DIR), TimeUnit.HOURS.toMillis(PARTIAL_DOWNLOAD_TTL_HOURS));
+        if (removed > 0) {
+            log.info("[清理] 删除过期断点文件 %d 个", removed);
         }
     }
 
-    private static Map<String, Object> buildTaskSnapshot(DownloadTask task) {
+    static Map<String, Object> buildTaskSnapshot(DownloadTask task) {
         Map<String, Object> json = new LinkedHashMap<>();
         synchronized (task) {
             json.put("taskId", task.taskId);
             json.put("status", task.status);
+            json.put("queuePosition", task.queuePosition);
             json.put("downloadMode", task.downloadMode);
             json.put("total", task.total);
-            json.put("current", task.current);
-            json.put("success", task.success);
-            json.put("failed", task.failed);
+            json.put("current", task.current.get());
+            json.put("success", task.success.get());
+            json.put("failed", task.failed.get());
+            json.put("parallelism", task.parallelism);
             json.put("currentFile", valueOrEmpty(task.currentFile));
             json.put("message", valueOrEmpty(task.message));
-            json.put("totalBytes", task.totalBytes);
-            json.put("expectedBytes", task.expectedBytes);
-            json.put("totalDownloadedBytes", task.totalDownloadedBytes);
+            long totalBytes = task.totalBytes;
+            long expectedBytes = task.expectedBytes;
+            if (!task.segments.isEmpty()) {
+                // 多录像任务：当前文件进度取所有进行中分段之和
+                totalBytes = 0;
+                expectedBytes = 0;
+                boolean expectedKnown = true;
+                List<Map<String, Object>> segmentRows = new ArrayList<>();
+                for (SegmentProgress seg : task.segments) {
+                    if ("downloading".equals(seg.status)) {
+                        totalBytes += seg.bytes;
+                        expectedBytes += seg.expectedBytes;
+                        expectedKnown &= seg.expectedBytes > 0;
+                    }
+                    segmentRows.add(seg.toMap());
+                }
+                if (!expectedKnown) {
+                    expectedBytes = 0;
+                }
+                json.put("segments", segmentRows);
+            }
+            if (task.channels.size() > 1) {
+                json.put("channels", buildChannelProgress(task));
+            }
+            json.put("totalBytes", totalBytes);
+            json.put("expectedBytes", expectedBytes);
+            json.put("totalDownloadedBytes", task.totalDownloadedBytes.get());
             json.put("files", new ArrayList<>(task.downloadedFiles));
             int logStart = Math.max(0, task.logs.size() - 10);
             json.put("logs", new ArrayList<>(task.logs.subList(logStart, task.logs.size())));
             json.put("timeMode", task.timeMode);
             json.put("timeBasis", task.timeBasis);
             json.put("deviceTimeZone", task.deviceTimeZone);
+            json.put("deviceClockSkewSeconds", task.deviceClockSkewSeconds);
+            json.put("clockSkewApplied", task.clockSkewApplied);
             json.put("normalizedStart", task.normalizedStart);
             json.put("normalizedEnd", task.normalizedEnd);
             json.put("attemptedUrls", new ArrayList<>(task.attemptedUrls));
@@ -2757,6 +5010,38 @@ public class ISAPIWebServer {
         return json;
     }
 
+    // 批量导出按通道汇总分段进度
+    private static List<Map<String, Object>> buildChannelProgress(DownloadTask task) {
+        Map<String, Map<String, Object>> rows = new LinkedHashMap<>();
+        for (String channelId : task.channels) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("channelId", channelId);
+            row.put("segments", 0);
+            row.put("completed", 0);
+            row.put("failed", 0);
+            row.put("bytes", 0L);
+            String error = task.channelErrors.get(channelId);
+            if (error != null) {
+                row.put("searchError", error);
+            }
+            rows.put(channelId, row);
+        }
+        for (SegmentProgress seg : task.segments) {
+            Map<String, Object> row = rows.get(seg.channelId);
+            if (row == null) {
+                continue;
+            }
+            row.merge("segments", 1, (a, b) -> (Integer) a + (Integer) b);
+            if ("completed".equals(seg.status)) {
+                row.merge("completed", 1, (a, b) -> (Integer) a + (Integer) b);
+            } else if ("failed".equals(seg.status)) {
+                row.merge("failed", 1, (a, b) -> (Integer) a + (Integer) b);
+            }
+            row.merge("bytes", seg.bytes, (a, b) -> (Long) a + (Long) b);
+        }
+        return new ArrayList<>(rows.values());
+    }
+
     private static boolean isTimeoutFailure(Exception e) {
         if (e == null) return false;
         String message = e.getMessage();
@@ -2863,7 +5148,7 @@ public class ISAPIWebServer {
         return "1".equals(raw.trim()) || "true".equalsIgnoreCase(raw.trim()) || "yes".equalsIgnoreCase(raw.trim());
     }
 
-    private static Map<String, String> parseFormData(HttpExchange exchange) throws IOException {
+    static Map<String, String> parseFormData(HttpExchange exchange) throws IOException {
         Map<String, String> params = new HashMap<>();
         String body = readInputStream(exchange.getRequestBody());
         for (String pair : body.split("&")) {
@@ -2929,7 +5214,7 @@ public class ISAPIWebServer {
                 String password = params.get("password");
 
                 log.info("[设备信息] 连接 %s:%d", deviceIp, port);
-                ISAPIClient client = new ISAPIClient(deviceIp, port, username, password);
+                ISAPIClient client = new ISAPIClient(deviceIp, port, username, password, getClient(deviceIp, username, password));
                 ISAPIClient.DeviceInfo info = client.getDeviceInfo();
 
                 Map<String, Object> response = new LinkedHashMap<>();
@@ -2963,7 +5248,7 @@ public class ISAPIWebServer {
                 String password = params.get("password");
 
                 log.info("[通道列表] 连接 %s:%d", deviceIp, port);
-                ISAPIClient client = new ISAPIClient(deviceIp, port, username, password);
+                ISAPIClient client = new ISAPIClient(deviceIp, port, username, password, getClient(deviceIp, username, password));
                 java.util.List<ISAPIClient.ChannelInfo> channels = client.getChannels();
 
                 Map<String, Object> response = new LinkedHashMap<>();
@@ -2997,7 +5282,7 @@ public class ISAPIWebServer {
                 int channelId = Integer.parseInt(params.getOrDefault("channelId", "1"));
                 int streamType = Integer.parseInt(params.getOrDefault("streamType", "1"));
 
-                ISAPIClient client = new ISAPIClient(deviceIp, port, username, password);
+                ISAPIClient client = new ISAPIClient(deviceIp, port, username, password, getClient(deviceIp, username, password));
                 String rtspUrl = client.getRtspUrl(channelId, streamType);
                 String httpFlvUrl = client.getHttpFlvUrl(channelId, streamType);
 
@@ -3032,7 +5317,7 @@ public class ISAPIWebServer {
                 String password = params.get("password");
 
                 log.info("[存储状态] 连接 %s:%d", deviceIp, port);
-                ISAPIClient client = new ISAPIClient(deviceIp, port, username, password);
+                ISAPIClient client = new ISAPIClient(deviceIp, port, username, password, getClient(deviceIp, username, password));
                 java.util.List<ISAPIClient.StorageInfo> storages = client.getStorageStatus();
 
                 // 同时获取设备时间
@@ -3078,7 +5363,7 @@ public class ISAPIWebServer {
                 int speed = Integer.parseInt(params.getOrDefault("speed", "4"));
 
                 log.info("[PTZ] 通道=%d, 动作=%s, 速度=%d", channelId, action, speed);
-                ISAPIClient client = new ISAPIClient(deviceIp, port, username, password);
+                ISAPIClient client = new ISAPIClient(deviceIp, port, username, password, getClient(deviceIp, username, password));
 
                 if (action.startsWith("preset_")) {
                     // 预置点调用
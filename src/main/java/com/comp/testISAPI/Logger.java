@@ -2,14 +2,30 @@ package com.comp.testISAPI;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * 简单日志工具类
  * - 同时输出到控制台和文件
  * - 日志文件按日期存放在 log 目录
  * - 支持 DEBUG, INFO, WARN, ERROR 四个级别
+ * - 默认异步：调用线程只做级别判断、格式化消息并放入有界无锁环形队列，
+ *   由后台线程批量写出并按批 flush；队列满时按 LOG_OVERFLOW_POLICY 丢弃或等待
+ *
+ * 环境变量：LOG_LEVEL（默认 DEBUG）、LOG_ASYNC（默认 true）、LOG_QUEUE_SIZE（默认 8192）、
+ * LOG_OVERFLOW_POLICY（BLOCK / DROP，默认 BLOCK）、LOG_CONSOLE（默认 true）
  */
 public class Logger {
 
@@ -27,13 +43,32 @@ public class Logger {
         }
     }
 
-    private static final String LOG_DIR = "./log";
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
-    private static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    public enum OverflowPolicy {
+        BLOCK, DROP
+    }
 
-    private static Level currentLevel = Level.DEBUG; // 默认输出所有级别
+    private static final String LOG_DIR = "./log";
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private static volatile Level currentLevel = parseLevel(System.getenv("LOG_LEVEL"));
+    private static final boolean ASYNC = !"false".equalsIgnoreCase(System.getenv("LOG_ASYNC"));
+    private static final boolean CONSOLE = !"false".equalsIgnoreCase(System.getenv("LOG_CONSOLE"));
+    private static final OverflowPolicy OVERFLOW_POLICY =
+            "DROP".equalsIgnoreCase(System.getenv("LOG_OVERFLOW_POLICY")) ? OverflowPolicy.DROP : OverflowPolicy.BLOCK;
+    private static final int BATCH_SIZE = 256;
+
+    // 以下文件状态仅由写线程（同步模式下由持有 WRITE_LOCK 的线程）访问
+    private static final Object WRITE_LOCK = new Object();
     private static PrintWriter fileWriter = null;
-    private static String currentLogDate = null;
+    private static LocalDate currentLogDate = null;
+
+    private static final RingBuffer QUEUE = ASYNC ? new RingBuffer(parseInt(System.getenv("LOG_QUEUE_SIZE"), 8192)) : null;
+    private static final AtomicLong droppedCount = new AtomicLong();
+    private static final AtomicLong writtenCount = new AtomicLong();
+    private static volatile boolean closed = false;
+    private static volatile Thread writerThread;
 
     private final String className;
 
@@ -44,7 +79,13 @@ public class Logger {
         if (!logDir.exists()) {
             logDir.mkdirs();
         }
-        initLogFile();
+        if (ASYNC) {
+            Thread t = new Thread(Logger::drainLoop, "async-logger");
+            t.setDaemon(true);
+            writerThread = t;
+            t.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Logger::close, "logger-shutdown"));
+        }
     }
 
     private Logger(String className) {
@@ -65,13 +106,38 @@ public class Logger {
         currentLevel = level;
     }
 
+    public static boolean isEnabled(Level level) {
+        return level.getValue() >= currentLevel.getValue();
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
     /**
-     * 初始化日志文件
-     * 强制使用 UTF-8 编码，确保跨平台（Windows/Mac/Linux）日志文件兼容
+     * 异步队列统计（丢弃行数、已写行数、队列占用）
      */
-    private static synchronized void initLogFile() {
-        String today = DATE_FORMAT.format(new Date());
+    public static Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("level", currentLevel.name());
+        map.put("async", ASYNC);
+        map.put("overflowPolicy", OVERFLOW_POLICY.name());
+        map.put("queueCapacity", ASYNC ? QUEUE.capacity() : 0);
+        map.put("queued", ASYNC ? QUEUE.size() : 0);
+        map.put("written", writtenCount.get());
+        map.put("dropped", droppedCount.get());
+        return map;
+    }
+
+    public static long getDroppedCount() {
+        return droppedCount.get();
+    }
 
+    /**
+     * 初始化日志文件（跨天时切换）
+     * 强制使用 UTF-8 编码，确保跨平台（Windows/Mac/Linux）日志文件兼容
+     */
+    private static void initLogFile(LocalDate today) {
         // 如果日期变了，创建新的日志文件
         if (!today.equals(currentLogDate)) {
             if (fileWriter != null) {
@@ -79,107 +145,298 @@ public class Logger {
             }
 
             currentLogDate = today;
-            String logFileName = LOG_DIR + "/isapi_" + today + ".log";
+            String logFileName = LOG_DIR + "/isapi_" + DATE_FORMAT.format(today) + ".log";
 
             try {
                 // 强制使用 UTF-8 编码，解决 Windows/Mac 跨平台乱码问题
                 fileWriter = new PrintWriter(new BufferedWriter(
                         new OutputStreamWriter(
-                                new FileOutputStream(logFileName, true), 
-                                StandardCharsets.UTF_8)), true);
+                                new FileOutputStream(logFileName, true),
+                                StandardCharsets.UTF_8), 65536), false);
             } catch (IOException e) {
+                fileWriter = null;
                 System.err.println("无法创建日志文件: " + e.getMessage());
             }
         }
     }
 
     /**
-     * 写入日志
+     * 写入日志（调用方已做级别判断）
      */
     private void log(Level level, String message, Throwable throwable) {
-        if (level.getValue() < currentLevel.getValue()) {
+        Record record = new Record(System.currentTimeMillis(), level, Thread.currentThread().getName(),
+                className, message, throwable);
+        if (!ASYNC || closed) {
+            synchronized (WRITE_LOCK) {
+                write(record);
+                flush();
+            }
+            return;
+        }
+        if (QUEUE.offer(record)) {
+            if (closed) {
+                // 写线程可能已退出：由调用线程补写残留的日志
+                drainBatch(new Record[BATCH_SIZE]);
+            }
             return;
         }
+        if (OVERFLOW_POLICY == OverflowPolicy.DROP) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        // BLOCK：等待写线程腾出空间
+        while (!QUEUE.offer(record)) {
+            if (closed) {
+                synchronized (WRITE_LOCK) {
+                    write(record);
+                    flush();
+                }
+                return;
+            }
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+    }
 
+    private static void drainLoop() {
+        Record[] batch = new Record[BATCH_SIZE];
+        while (true) {
+            if (drainBatch(batch) == 0) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        }
+    }
+
+    // 取出一批写出并 flush 一次；消费端统一在 WRITE_LOCK 内执行，关闭后调用线程也可安全补写
+    private static int drainBatch(Record[] batch) {
+        synchronized (WRITE_LOCK) {
+            int n = QUEUE.drainTo(batch);
+            for (int i = 0; i < n; i++) {
+                write(batch[i]);
+                batch[i] = null;
+            }
+            if (n > 0) {
+                flush();
+            }
+            return n;
+        }
+    }
+
+    // 调用方需持有 WRITE_LOCK
+    private static void write(Record r) {
+        ZonedDateTime time = Instant.ofEpochMilli(r.timestamp).atZone(ZONE);
         // 检查是否需要切换日志文件（跨天）
-        initLogFile();
+        initLogFile(time.toLocalDate());
 
-        String timestamp = TIME_FORMAT.format(new Date());
-        String threadName = Thread.currentThread().getName();
-        String logLine = String.format("[%s] [%s] [%s] [%s] %s",
-                timestamp, level.name(), threadName, className, message);
+        String logLine = "[" + TIME_FORMAT.format(time) + "] [" + r.level.name() + "] [" + r.threadName + "] ["
+                + r.className + "] " + r.message;
 
         // 输出到控制台
-        if (level == Level.ERROR || level == Level.WARN) {
-            System.err.println(logLine);
-        } else {
-            System.out.println(logLine);
+        if (CONSOLE) {
+            if (r.level == Level.ERROR || r.level == Level.WARN) {
+                System.err.println(logLine);
+            } else {
+                System.out.println(logLine);
+            }
         }
 
         // 输出到文件
         if (fileWriter != null) {
             fileWriter.println(logLine);
-            if (throwable != null) {
-                throwable.printStackTrace(fileWriter);
+            if (r.throwable != null) {
+                r.throwable.printStackTrace(fileWriter);
             }
-            fileWriter.flush();
         }
 
         // 如果有异常，也打印到控制台
-        if (throwable != null) {
-            throwable.printStackTrace();
+        if (r.throwable != null && CONSOLE) {
+            r.throwable.printStackTrace();
+        }
+        writtenCount.incrementAndGet();
+    }
+
+    private static void flush() {
+        if (fileWriter != null) {
+            fileWriter.flush();
         }
     }
 
     // ============ 日志方法 ============
 
     public void debug(String message) {
-        log(Level.DEBUG, message, null);
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, message, null);
     }
 
     public void debug(String format, Object... args) {
-        log(Level.DEBUG, String.format(format, args), null);
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, String.format(format, args), null);
     }
 
     public void info(String message) {
-        log(Level.INFO, message, null);
+        if (isEnabled(Level.INFO)) log(Level.INFO, message, null);
     }
 
     public void info(String format, Object... args) {
-        log(Level.INFO, String.format(format, args), null);
+        if (isEnabled(Level.INFO)) log(Level.INFO, String.format(format, args), null);
     }
 
     public void warn(String message) {
-        log(Level.WARN, message, null);
+        if (isEnabled(Level.WARN)) log(Level.WARN, message, null);
     }
 
     public void warn(String format, Object... args) {
-        log(Level.WARN, String.format(format, args), null);
+        if (isEnabled(Level.WARN)) log(Level.WARN, String.format(format, args), null);
     }
 
     public void warn(String message, Throwable t) {
-        log(Level.WARN, message, t);
+        if (isEnabled(Level.WARN)) log(Level.WARN, message, t);
     }
 
     public void error(String message) {
-        log(Level.ERROR, message, null);
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, message, null);
     }
 
     public void error(String format, Object... args) {
-        log(Level.ERROR, String.format(format, args), null);
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, String.format(format, args), null);
     }
 
     public void error(String message, Throwable t) {
-        log(Level.ERROR, message, t);
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, message, t);
     }
 
     /**
-     * 关闭日志
+     * 关闭日志：写完队列中剩余的日志后关闭文件
      */
     public static void close() {
-        if (fileWriter != null) {
-            fileWriter.close();
-            fileWriter = null;
+        closed = true;
+        Thread t = writerThread;
+        if (t != null && t != Thread.currentThread()) {
+            LockSupport.unpark(t);
+            try {
+                t.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (ASYNC) {
+            Record[] batch = new Record[BATCH_SIZE];
+            while (drainBatch(batch) > 0) {
+                // 写完写线程未来得及处理的日志
+            }
+        }
+        synchronized (WRITE_LOCK) {
+            if (fileWriter != null) {
+                long dropped = droppedCount.get();
+                if (dropped > 0) {
+                    fileWriter.println("[Logger] 队列已满共丢弃 " + dropped + " 行日志");
+                }
+                fileWriter.close();
+                fileWriter = null;
+                currentLogDate = null; // 关闭后若仍有日志，按同步方式重新打开文件
+            }
+        }
+    }
+
+    private static Level parseLevel(String raw) {
+        if (raw != null) {
+            try {
+                return Level.valueOf(raw.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return Level.DEBUG; // 默认输出所有级别
+    }
+
+    private static int parseInt(String raw, int defaultValue) {
+        try {
+            return raw == null ? defaultValue : Integer.parseInt(raw.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static final class Record {
+        final long timestamp;
+        final Level level;
+        final String threadName;
+        final String className;
+        final String message;
+        final Throwable throwable;
+
+        Record(long timestamp, Level level, String threadName, String className, String message, Throwable throwable) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.threadName = threadName;
+            this.className = className;
+            this.message = message;
+            this.throwable = throwable;
+        }
+    }
+
+    /**
+     * 有界多生产者 / 单消费者无锁环形队列
+     * 每个槽位带序号：生产者 CAS 抢占写位置后写入元素并发布序号，消费者按序号判断槽位是否可读
+     */
+    private static final class RingBuffer {
+        private final int mask;
+        private final AtomicReferenceArray<Record> slots;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong(); // 下一个写位置
+        private volatile long head = 0;                   // 下一个读位置（仅消费者写）
+
+        RingBuffer(int requestedCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+            this.mask = capacity - 1;
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        boolean offer(Record record) {
+            while (true) {
+                long pos = tail.get();
+                int index = (int) (pos & mask);
+                long seq = sequences.get(index);
+                if (seq == pos) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        slots.lazySet(index, record);
+                        sequences.set(index, pos + 1);
+                        return true;
+                    }
+                } else if (seq < pos) {
+                    return false; // 已满
+                }
+                // seq > pos：其他生产者已抢占，重试
+            }
+        }
+
+        int drainTo(Record[] out) {
+            int n = 0;
+            long pos = head;
+            while (n < out.length) {
+                int index = (int) (pos & mask);
+                if (sequences.get(index) != pos + 1) {
+                    break;
+                }
+                out[n++] = slots.get(index);
+                slots.lazySet(index, null);
+                sequences.set(index, pos + mask + 1);
+                pos++;
+            }
+            head = pos;
+            return n;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        int size() {
+            return (int) Math.max(0, tail.get() - head);
         }
     }
 }
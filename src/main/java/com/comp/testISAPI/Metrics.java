@@ -0,0 +1,295 @@
+package com.comp.testISAPI;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 运行指标（Prometheus 文本格式，/metrics 输出）
+ * - 计数器和直方图都基于 LongAdder / DoubleAdder（分段计数，无锁），拷贝循环里可以直接累加
+ * - labels(...) 会查一次 Map，热循环中应在循环外取出子计数器后再累加
+ * - 仪表（gauge）在抓取时才调用回调计算，不占用业务路径
+ */
+public class Metrics {
+
+    /** 请求类耗时：5ms ~ 60s */
+    public static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+    /** 媒体处理耗时：0.1s ~ 30min */
+    public static final double[] DURATION_BUCKETS = {0.1, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800};
+
+    private final List<Family> families = new CopyOnWriteArrayList<>();
+
+    public Counter counter(String name, String help, String... labelNames) {
+        return register(new Counter(name, help, labelNames));
+    }
+
+    public Histogram histogram(String name, String help, double[] buckets, String... labelNames) {
+        return register(new Histogram(name, help, buckets, labelNames));
+    }
+
+    /**
+     * 抓取时读取的单值仪表
+     */
+    public void gauge(String name, String help, DoubleSupplier supplier) {
+        register(new CallbackFamily(name, help, "gauge", null, () -> Collections.singletonMap("", supplier.getAsDouble())));
+    }
+
+    /**
+     * 抓取时读取的一组仪表，supplier 返回 标签值 → 数值
+     */
+    public void gauges(String name, String help, String labelName, Supplier<Map<String, ? extends Number>> supplier) {
+        register(new CallbackFamily(name, help, "gauge", labelName, supplier));
+    }
+
+    /**
+     * 由其他组件自行累加的计数器（抓取时读取），supplier 返回 标签值 → 数值
+     */
+    public void counters(String name, String help, String labelName, Supplier<Map<String, ? extends Number>> supplier) {
+        register(new CallbackFamily(name, help, "counter", labelName, supplier));
+    }
+
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families) {
+            out.append("# HELP ").append(family.name).append(' ').append(escapeHelp(family.help)).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            family.write(out);
+        }
+        return out.toString();
+    }
+
+    private <T extends Family> T register(T family) {
+        for (Family existing : families) {
+            if (existing.name.equals(family.name)) {
+                throw new IllegalArgumentException("指标重复注册: " + family.name);
+            }
+        }
+        families.add(family);
+        return family;
+    }
+
+    private abstract static class Family {
+        final String name;
+        final String help;
+        final String type;
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        abstract void write(StringBuilder out);
+    }
+
+    private abstract static class LabeledFamily<C> extends Family {
+        final String[] labelNames;
+        final Map<List<String>, C> children = new ConcurrentHashMap<>();
+
+        LabeledFamily(String name, String help, String type, String[] labelNames) {
+            super(name, help, type);
+            this.labelNames = labelNames;
+        }
+
+        C child(String[] labelValues) {
+            if (labelValues.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " 需要 " + labelNames.length + " 个标签值");
+            }
+            List<String> key = Arrays.asList(labelValues);
+            C child = children.get(key);
+            if (child == null) {
+                String[] copy = labelValues.clone();
+                for (int i = 0; i < copy.length; i++) {
+                    copy[i] = copy[i] != null ? copy[i] : "";
+                }
+                child = children.computeIfAbsent(Arrays.asList(copy), k -> newChild());
+            }
+            return child;
+        }
+
+        abstract C newChild();
+
+        // 按标签排序输出，便于对比
+        List<Map.Entry<List<String>, C>> sortedChildren() {
+            List<Map.Entry<List<String>, C>> entries = new ArrayList<>(children.entrySet());
+            entries.sort((a, b) -> String.join("\u0000", a.getKey()).compareTo(String.join("\u0000", b.getKey())));
+            return entries;
+        }
+    }
+
+    public static final class Counter extends LabeledFamily<LongAdder> {
+        Counter(String name, String help, String[] labelNames) {
+            super(name, help, "counter", labelNames);
+        }
+
+        /**
+         * 取出子计数器；热循环中在循环外调用一次，循环内直接 add
+         */
+        public LongAdder labels(String... labelValues) {
+            return child(labelValues);
+        }
+
+        public void inc(String... labelValues) {
+            child(labelValues).increment();
+        }
+
+        public void add(long amount, String... labelValues) {
+            child(labelValues).add(amount);
+        }
+
+        @Override
+        LongAdder newChild() {
+            return new LongAdder();
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            for (Map.Entry<List<String>, LongAdder> entry : sortedChildren()) {
+                out.append(name);
+                appendLabels(out, labelNames, entry.getKey(), null, null);
+                out.append(' ').append(entry.getValue().sum()).append('\n');
+            }
+        }
+    }
+
+    public static final class Histogram extends LabeledFamily<Histogram.Child> {
+        final double[] buckets;
+
+        Histogram(String name, String help, double[] buckets, String[] labelNames) {
+            super(name, help, "histogram", labelNames);
+            this.buckets = buckets.clone();
+        }
+
+        public Child labels(String... labelValues) {
+            return child(labelValues);
+        }
+
+        public void observe(double seconds, String... labelValues) {
+            child(labelValues).observe(seconds);
+        }
+
+        /**
+         * 记录从 startNanos（System.nanoTime）到现在的秒数
+         */
+        public void observeSince(long startNanos, String... labelValues) {
+            child(labelValues).observe((System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        @Override
+        Child newChild() {
+            return new Child(buckets);
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            for (Map.Entry<List<String>, Child> entry : sortedChildren()) {
+                Child child = entry.getValue();
+                long cumulative = 0;
+                for (int i = 0; i <= buckets.length; i++) {
+                    cumulative += child.counts[i].sum();
+                    out.append(name).append("_bucket");
+                    appendLabels(out, labelNames, entry.getKey(), "le",
+                            i < buckets.length ? formatDouble(buckets[i]) : "+Inf");
+                    out.append(' ').append(cumulative).append('\n');
+                }
+                out.append(name).append("_sum");
+                appendLabels(out, labelNames, entry.getKey(), null, null);
+                out.append(' ').append(formatDouble(child.sum.sum())).append('\n');
+                out.append(name).append("_count");
+                appendLabels(out, labelNames, entry.getKey(), null, null);
+                out.append(' ').append(cumulative).append('\n');
+            }
+        }
+
+        public static final class Child {
+            private final double[] buckets;
+            private final LongAdder[] counts; // 各区间（非累计）计数，最后一个为 +Inf
+            private final DoubleAdder sum = new DoubleAdder();
+
+            Child(double[] buckets) {
+                this.buckets = buckets;
+                this.counts = new LongAdder[buckets.length + 1];
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = new LongAdder();
+                }
+            }
+
+            public void observe(double value) {
+                int i = 0;
+                while (i < buckets.length && value > buckets[i]) {
+                    i++;
+                }
+                counts[i].increment();
+                sum.add(value);
+            }
+        }
+    }
+
+    private static final class CallbackFamily extends Family {
+        final String labelName;
+        final Supplier<? extends Map<String, ? extends Number>> supplier;
+
+        CallbackFamily(String name, String help, String type, String labelName,
+                       Supplier<? extends Map<String, ? extends Number>> supplier) {
+            super(name, help, type);
+            this.labelName = labelName;
+            this.supplier = supplier;
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            Map<String, ? extends Number> values;
+            try {
+                values = supplier.get();
+            } catch (RuntimeException e) {
+                return; // 回调失败时只跳过本项，不影响其他指标
+            }
+            for (Map.Entry<String, ? extends Number> entry : new TreeMap<>(values).entrySet()) {
+                out.append(name);
+                if (labelName != null) {
+                    appendLabels(out, new String[]{labelName}, Collections.singletonList(entry.getKey()), null, null);
+                }
+                out.append(' ').append(formatDouble(entry.getValue().doubleValue())).append('\n');
+            }
+        }
+    }
+
+    private static void appendLabels(StringBuilder out, String[] names, List<String> values,
+                                     String extraName, String extraValue) {
+        if (names.length == 0 && extraName == null) {
+            return;
+        }
+        out.append('{');
+        boolean first = true;
+        for (int i = 0; i < names.length; i++) {
+            if (!first) out.append(',');
+            out.append(names[i]).append("=\"").append(escapeLabel(values.get(i))).append('"');
+            first = false;
+        }
+        if (extraName != null) {
+            if (!first) out.append(',');
+            out.append(extraName).append("=\"").append(extraValue).append('"');
+        }
+        out.append('}');
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String escapeHelp(String value) {
+        return value.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String formatDouble(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
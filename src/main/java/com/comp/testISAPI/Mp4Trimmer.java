@@ -0,0 +1,900 @@
+package com.comp.testISAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+/**
+ * MP4 本地裁剪（替代 ffmpeg -ss/-t -c copy）
+ * - 只解析 moov 中的样本表，按关键帧确定裁剪起点，重写样本表后用 FileChannel.transferTo 拷贝样本数据
+ * - 起点取请求偏移处或之前最近的视频关键帧，保证请求窗口内的画面完整；其他轨道按同一时间窗口截取
+ * - 输出为 ftyp + moov + mdat（moov 在前，等同 +faststart），CPU 开销与文件大小无关
+ * - 分片 MP4、缺少样本表等无法处理的情况抛出 IOException，由调用方回退 ffmpeg
+ */
+public final class Mp4Trimmer {
+
+    private static final int MAX_MOOV_BYTES = 256 * 1024 * 1024;
+    static final int MAX_FTYP_BYTES = 4096;
+    // 样本数据区间相距小于该值时合并为一次拷贝（中间夹带的少量无关数据不会被引用）
+    private static final long MERGE_GAP_BYTES = 64 * 1024;
+    private static final long TRANSFER_STEP_BYTES = 64L * 1024 * 1024;
+    private static final Set<String> CONTAINERS = new HashSet<>(Arrays.asList("moov", "trak", "mdia", "minf", "stbl"));
+
+    /**
+     * 裁剪结果
+     */
+    public static final class Result {
+        /** 实际起点（关键帧）相对文件开头的秒数 */
+        public double startSeconds;
+        public double durationSeconds;
+        public int videoSamples;
+        public int otherSamples;
+        public int droppedTracks;
+        public long copiedBytes;
+        public long outputBytes;
+    }
+
+    private Mp4Trimmer() {
+    }
+
+    /**
+     * 按偏移/时长（毫秒）裁剪 input 写入 output
+     */
+    public static Result trim(File input, File output, long offsetMillis, long durationMillis,
+                              BooleanSupplier cancelled) throws IOException {
+        return trim(input, output, offsetMillis, durationMillis, cancelled, false);
+    }
+
+    // forceCo64：不到 4 GB 也写 co64（测试 64 位块偏移用）
+    static Result trim(File input, File output, long offsetMillis, long durationMillis,
+                       BooleanSupplier cancelled, boolean forceCo64) throws IOException {
+        try (FileChannel in = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            byte[] ftyp = null;
+            byte[] moov = null;
+            long fileSize = in.size();
+            long pos = 0;
+            while (pos + 8 <= fileSize) {
+                ByteBuffer header = readAt(in, pos, 16 <= fileSize - pos ? 16 : 8);
+                long size = header.getInt(0) & 0xFFFFFFFFL;
+                String type = fourcc(header.array(), 4);
+                if (size == 1) {
+                    if (header.limit() < 16) {
+                        break;
+                    }
+                    size = header.getLong(8);
+                } else if (size == 0) {
+                    size = fileSize - pos;
+                }
+                if (size < 8 || pos + size > fileSize) {
+                    break; // 末尾不完整的 box
+                }
+                if ("moof".equals(type)) {
+                    throw new IOException("不支持分片 MP4");
+                } else if ("ftyp".equals(type) && ftyp == null) {
+                    ftyp = readFtyp(in, pos, size);
+                } else if ("moov".equals(type)) {
+                    if (size > MAX_MOOV_BYTES) {
+                        throw new IOException("moov 过大: " + size + " 字节");
+                    }
+                    moov = readAt(in, pos, (int) size).array();
+                }
+                pos += size;
+            }
+            if (ftyp == null || moov == null) {
+                throw new IOException("不是完整的 MP4 文件（缺少 " + (ftyp == null ? "ftyp" : "moov") + "）");
+            }
+            Movie movie = Movie.parse(moov);
+            Plan plan = movie.plan(offsetMillis / 1000.0, durationMillis / 1000.0);
+            if (cancelled.getAsBoolean()) {
+                throw new IOException("任务已取消");
+            }
+            return write(in, output, ftyp, movie, plan, cancelled, forceCo64);
+        }
+    }
+
+    // ftyp 只保留前 MAX_FTYP_BYTES 字节（丢弃多余的 compatible_brands），并改写 box 长度与实际字节一致
+    private static byte[] readFtyp(FileChannel in, long pos, long size) throws IOException {
+        if (size < 16) {
+            throw new IOException("ftyp 过短: " + size + " 字节");
+        }
+        int keep = (int) Math.min(size, MAX_FTYP_BYTES) & ~3;
+        byte[] ftyp = readAt(in, pos, keep).array();
+        if (keep != size) {
+            if (ByteBuffer.wrap(ftyp).getInt(0) == 1) {
+                throw new IOException("不支持 64 位长度的 ftyp");
+            }
+            ByteBuffer.wrap(ftyp).putInt(0, keep);
+        }
+        return ftyp;
+    }
+
+    private static Result write(FileChannel in, File output, byte[] ftyp, Movie movie, Plan plan,
+                                BooleanSupplier cancelled, boolean forceCo64) throws IOException {
+        long copyBytes = 0;
+        for (long[] run : plan.runs) {
+            copyBytes += run[1] - run[0];
+        }
+        boolean largeMdat = copyBytes + 8 > 0xFFFFFFFFL;
+        int mdatHeader = largeMdat ? 16 : 8;
+
+        // moov 大小只取决于 stco / co64 的选择，先按 stco 估算，超过 4 GB 再换 co64
+        boolean co64 = forceCo64;
+        int moovSize = movie.build(plan, 0, co64).length;
+        if (!co64 && ftyp.length + moovSize + mdatHeader + copyBytes > 0xFFFFFFFFL) {
+            co64 = true;
+            moovSize = movie.build(plan, 0, true).length;
+        }
+        long dataStart = ftyp.length + moovSize + mdatHeader;
+        byte[] moov = movie.build(plan, dataStart, co64);
+
+        try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(out, ByteBuffer.wrap(ftyp));
+            writeFully(out, ByteBuffer.wrap(moov));
+            ByteBuffer header = ByteBuffer.allocate(mdatHeader);
+            if (largeMdat) {
+                header.putInt(1).put("mdat".getBytes(StandardCharsets.US_ASCII)).putLong(copyBytes + 16);
+            } else {
+                header.putInt((int) (copyBytes + 8)).put("mdat".getBytes(StandardCharsets.US_ASCII));
+            }
+            header.flip();
+            writeFully(out, header);
+
+            for (long[] run : plan.runs) {
+                long position = run[0];
+                while (position < run[1]) {
+                    if (cancelled.getAsBoolean()) {
+                        throw new IOException("任务已取消");
+                    }
+                    long step = Math.min(TRANSFER_STEP_BYTES, run[1] - position);
+                    long n = in.transferTo(position, step, out);
+                    if (n <= 0) {
+                        throw new IOException("读取样本数据失败，位置 " + position);
+                    }
+                    position += n;
+                }
+            }
+            out.force(false);
+
+            Result result = new Result();
+            result.startSeconds = plan.startSeconds;
+            result.durationSeconds = plan.durationSeconds;
+            for (TrackPlan tp : plan.tracks) {
+                if (tp.track.video) {
+                    result.videoSamples += tp.end - tp.first;
+                } else {
+                    result.otherSamples += tp.end - tp.first;
+                }
+            }
+            result.droppedTracks = movie.tracks.size() - plan.tracks.size();
+            result.copiedBytes = copyBytes;
+            result.outputBytes = out.size();
+            return result;
+        }
+    }
+
+    // ============ moov 解析 ============
+
+    private static final class Box {
+        final String type;
+        final int start;
+        final int size;
+        final int header;
+        final List<Box> children = new ArrayList<>();
+
+        Box(String type, int start, int size, int header) {
+            this.type = type;
+            this.start = start;
+            this.size = size;
+            this.header = header;
+        }
+
+        int bodyStart() {
+            return start + header;
+        }
+
+        Box child(String childType) {
+            for (Box c : children) {
+                if (c.type.equals(childType)) {
+                    return c;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static Box parseBox(byte[] b, int start, int limit) throws IOException {
+        if (start + 8 > limit) {
+            throw new IOException("box 头不完整，位置 " + start);
+        }
+        long size = u32(b, start);
+        String type = fourcc(b, start + 4);
+        int header = 8;
+        if (size == 1) {
+            size = u64(b, start + 8);
+            header = 16;
+        } else if (size == 0) {
+            size = limit - start;
+        }
+        if (size < header || start + size > limit) {
+            throw new IOException("box " + type + " 长度无效: " + size);
+        }
+        Box box = new Box(type, start, (int) size, header);
+        if (CONTAINERS.contains(type)) {
+            int pos = start + header;
+            int end = start + (int) size;
+            while (pos + 8 <= end) {
+                Box child = parseBox(b, pos, end);
+                box.children.add(child);
+                pos += child.size;
+            }
+        }
+        return box;
+    }
+
+    private static final class Track {
+        Box trak;
+        boolean video;
+        int timescale;
+        int sampleCount;
+        int constantSize;
+        int[] sizes;
+        long[] offsets;
+        long[] decodeTimes;
+        long[] durations;
+        int[] compositionOffsets;
+        int cttsVersion;
+        boolean[] sync;
+        int[] chunkIndex;
+        int[] descriptionIndex;
+        double editDelaySeconds;
+        long mediaTime;
+
+        long size(int i) {
+            return constantSize != 0 ? constantSize : sizes[i] & 0xFFFFFFFFL;
+        }
+
+        int cts(int i) {
+            return compositionOffsets != null ? compositionOffsets[i] : 0;
+        }
+
+        // 样本在影片时间轴上的显示时间（秒）
+        double presentationSeconds(int i) {
+            return editDelaySeconds + (decodeTimes[i] + cts(i) - mediaTime) / (double) timescale;
+        }
+    }
+
+    private static final class TrackPlan {
+        final Track track;
+        final int first;
+        final int end;
+        long[] chunkOffsets;      // 新 chunk 的原文件偏移（构建 moov 时映射到新文件）
+        int[] chunkSampleCounts;
+        int[] chunkDescriptions;
+        double delaySeconds;
+
+        TrackPlan(Track track, int first, int end) {
+            this.track = track;
+            this.first = first;
+            this.end = end;
+        }
+    }
+
+    private static final class Plan {
+        final List<TrackPlan> tracks = new ArrayList<>();
+        List<long[]> runs;
+        double startSeconds;
+        double durationSeconds;
+    }
+
+    private static final class Movie {
+        final byte[] moov;
+        final Box root;
+        final int movieTimescale;
+        final List<Track> tracks = new ArrayList<>();
+
+        private Movie(byte[] moov, Box root, int movieTimescale) {
+            this.moov = moov;
+            this.root = root;
+            this.movieTimescale = movieTimescale;
+        }
+
+        static Movie parse(byte[] moov) throws IOException {
+            Box root = parseBox(moov, 0, moov.length);
+            if (root.child("mvex") != null) {
+                throw new IOException("不支持分片 MP4");
+            }
+            Box mvhd = root.child("mvhd");
+            if (mvhd == null) {
+                throw new IOException("缺少 mvhd");
+            }
+            int body = mvhd.bodyStart();
+            int movieTimescale = (int) u32(moov, body + (moov[body] == 1 ? 20 : 12));
+            Movie movie = new Movie(moov, root, movieTimescale > 0 ? movieTimescale : 1000);
+            for (Box trak : root.children) {
+                if ("trak".equals(trak.type)) {
+                    movie.tracks.add(movie.parseTrack(trak));
+                }
+            }
+            if (movie.tracks.isEmpty()) {
+                throw new IOException("没有轨道");
+            }
+            return movie;
+        }
+
+        private Track parseTrack(Box trak) throws IOException {
+            Box mdia = require(trak, "mdia");
+            Box stbl = require(require(mdia, "minf"), "stbl");
+            require(stbl, "stsd");
+            Track t = new Track();
+            t.trak = trak;
+
+            Box mdhd = require(mdia, "mdhd");
+            int body = mdhd.bodyStart();
+            t.timescale = (int) u32(moov, body + (moov[body] == 1 ? 20 : 12));
+            if (t.timescale <= 0) {
+                throw new IOException("mdhd timescale 无效");
+            }
+            Box hdlr = require(mdia, "hdlr");
+            t.video = "vide".equals(fourcc(moov, hdlr.bodyStart() + 8));
+
+            // stsz
+            Box stsz = stbl.child("stsz");
+            if (stsz == null) {
+                throw new IOException("缺少 stsz（不支持 stz2）");
+            }
+            body = stsz.bodyStart();
+            t.constantSize = (int) u32(moov, body + 4);
+            t.sampleCount = (int) u32(moov, body + 8);
+            int n = t.sampleCount;
+            if (t.constantSize == 0) {
+                t.sizes = new int[n];
+                for (int i = 0; i < n; i++) {
+                    t.sizes[i] = (int) u32(moov, body + 12 + 4 * i);
+                }
+            }
+
+            // stts
+            t.decodeTimes = new long[n];
+            t.durations = new long[n];
+            Box stts = require(stbl, "stts");
+            body = stts.bodyStart();
+            int entries = (int) u32(moov, body + 4);
+            int sample = 0;
+            long time = 0;
+            for (int e = 0; e < entries && sample < n; e++) {
+                long count = u32(moov, body + 8 + 8 * e);
+                long delta = u32(moov, body + 12 + 8 * e);
+                for (long c = 0; c < count && sample < n; c++) {
+                    t.decodeTimes[sample] = time;
+                    t.durations[sample] = delta;
+                    time += delta;
+                    sample++;
+                }
+            }
+            if (sample < n) {
+                throw new IOException("stts 样本数不足");
+            }
+
+            // ctts
+            Box ctts = stbl.child("ctts");
+            if (ctts != null) {
+                body = ctts.bodyStart();
+                t.cttsVersion = moov[body];
+                t.compositionOffsets = new int[n];
+                entries = (int) u32(moov, body + 4);
+                sample = 0;
+                for (int e = 0; e < entries && sample < n; e++) {
+                    long count = u32(moov, body + 8 + 8 * e);
+                    int offset = (int) u32(moov, body + 12 + 8 * e);
+                    for (long c = 0; c < count && sample < n; c++) {
+                        t.compositionOffsets[sample++] = offset;
+                    }
+                }
+            }
+
+            // stss（缺失表示全部为同步样本）
+            Box stss = stbl.child("stss");
+            if (stss != null) {
+                t.sync = new boolean[n];
+                body = stss.bodyStart();
+                entries = (int) u32(moov, body + 4);
+                for (int e = 0; e < entries; e++) {
+                    long index = u32(moov, body + 8 + 4 * e);
+                    if (index >= 1 && index <= n) {
+                        t.sync[(int) index - 1] = true;
+                    }
+                }
+            }
+
+            // stsc + stco/co64 → 每个样本的文件偏移
+            Box stco = stbl.child("stco");
+            Box co64 = stbl.child("co64");
+            if (stco == null && co64 == null) {
+                throw new IOException("缺少 stco/co64");
+            }
+            Box offsetsBox = stco != null ? stco : co64;
+            body = offsetsBox.bodyStart();
+            int chunkCount = (int) u32(moov, body + 4);
+            long[] chunkOffsets = new long[chunkCount];
+            for (int c = 0; c < chunkCount; c++) {
+                chunkOffsets[c] = stco != null ? u32(moov, body + 8 + 4 * c) : u64(moov, body + 8 + 8 * c);
+            }
+            Box stsc = require(stbl, "stsc");
+            body = stsc.bodyStart();
+            entries = (int) u32(moov, body + 4);
+            t.offsets = new long[n];
+            t.chunkIndex = new int[n];
+            t.descriptionIndex = new int[n];
+            sample = 0;
+            for (int e = 0; e < entries && sample < n; e++) {
+                int firstChunk = (int) u32(moov, body + 8 + 12 * e) - 1;
+                int samplesPerChunk = (int) u32(moov, body + 12 + 12 * e);
+                int description = (int) u32(moov, body + 16 + 12 * e);
+                int lastChunk = e + 1 < entries ? (int) u32(moov, body + 8 + 12 * (e + 1)) - 1 : chunkCount;
+                for (int c = Math.max(firstChunk, 0); c < lastChunk && c < chunkCount && sample < n; c++) {
+                    long offset = chunkOffsets[c];
+                    for (int s = 0; s < samplesPerChunk && sample < n; s++) {
+                        t.offsets[sample] = offset;
+                        t.chunkIndex[sample] = c;
+                        t.descriptionIndex[sample] = description;
+                        offset += t.size(sample);
+                        sample++;
+                    }
+                }
+            }
+            if (sample < n) {
+                throw new IOException("stsc/stco 样本数不足");
+            }
+
+            // edts：开头的空编辑为延迟，第一个有效编辑的 media_time 为起点
+            Box edts = trak.child("edts");
+            if (edts != null) {
+                parseEditList(edts, t);
+            }
+            return t;
+        }
+
+        private void parseEditList(Box edts, Track t) throws IOException {
+            int pos = edts.bodyStart();
+            int end = edts.start + edts.size;
+            while (pos + 8 <= end) {
+                Box child = parseBox(moov, pos, end);
+                if ("elst".equals(child.type)) {
+                    int body = child.bodyStart();
+                    boolean v1 = moov[body] == 1;
+                    int entries = (int) u32(moov, body + 4);
+                    int p = body + 8;
+                    long emptyDuration = 0;
+                    for (int e = 0; e < entries; e++) {
+                        long duration = v1 ? u64(moov, p) : u32(moov, p);
+                        long mediaTime = v1 ? u64(moov, p + 8) : (int) u32(moov, p + 4);
+                        p += v1 ? 20 : 12;
+                        if (mediaTime == -1) {
+                            emptyDuration += duration;
+                        } else {
+                            t.mediaTime = mediaTime;
+                            break;
+                        }
+                    }
+                    t.editDelaySeconds = emptyDuration / (double) movieTimescale;
+                    return;
+                }
+                pos += child.size;
+            }
+        }
+
+        /**
+         * 计算各轨道保留的样本范围：参考轨道（第一个视频轨道）从关键帧开始，其他轨道按同一时间窗口
+         */
+        Plan plan(double offsetSeconds, double durationSeconds) throws IOException {
+            Track reference = null;
+            for (Track t : tracks) {
+                if (t.video && t.sampleCount > 0) {
+                    reference = t;
+                    break;
+                }
+            }
+            if (reference == null) {
+                for (Track t : tracks) {
+                    if (t.sampleCount > 0) {
+                        reference = t;
+                        break;
+                    }
+                }
+            }
+            if (reference == null) {
+                throw new IOException("没有样本");
+            }
+
+            int n = reference.sampleCount;
+            int key = -1;
+            for (int i = 0; i < n; i++) {
+                boolean isSync = reference.sync == null || reference.sync[i];
+                if (!isSync) {
+                    continue;
+                }
+                if (reference.presentationSeconds(i) <= offsetSeconds + 1e-6 || key < 0) {
+                    key = i;
+                }
+                if (reference.presentationSeconds(i) > offsetSeconds) {
+                    break;
+                }
+            }
+            if (key < 0) {
+                throw new IOException("参考轨道没有关键帧");
+            }
+            double lastSeconds = reference.presentationSeconds(n - 1);
+            if (offsetSeconds > lastSeconds) {
+                throw new IOException(String.format("裁剪起点 %.3f 秒超出文件时长 %.3f 秒", offsetSeconds, lastSeconds));
+            }
+
+            Plan plan = new Plan();
+            double startSeconds = reference.presentationSeconds(key);
+            double endSeconds = offsetSeconds + durationSeconds;
+            plan.startSeconds = startSeconds;
+            for (Track t : tracks) {
+                int first;
+                if (t == reference) {
+                    first = key;
+                } else {
+                    first = 0;
+                    while (first < t.sampleCount && (t.presentationSeconds(first) < startSeconds
+                            || (t.sync != null && !t.sync[first]))) {
+                        first++;
+                    }
+                }
+                if (first >= t.sampleCount) {
+                    continue;
+                }
+                // 结束位置按解码顺序判断，保证样本区间连续
+                double base = t.presentationSeconds(first);
+                int end = first + 1;
+                while (end < t.sampleCount
+                        && base + (t.decodeTimes[end] - t.decodeTimes[first]) / (double) t.timescale < endSeconds) {
+                    end++;
+                }
+                if (t != reference && base >= endSeconds) {
+                    continue;
+                }
+                TrackPlan tp = new TrackPlan(t, first, end);
+                tp.delaySeconds = Math.max(0, base - startSeconds);
+                buildChunks(tp);
+                plan.tracks.add(tp);
+                double trackEnd = tp.delaySeconds
+                        + (t.decodeTimes[end - 1] + t.durations[end - 1] - t.decodeTimes[first]) / (double) t.timescale;
+                plan.durationSeconds = Math.max(plan.durationSeconds, trackEnd);
+            }
+            plan.runs = mergeRuns(plan.tracks);
+            return plan;
+        }
+
+        // 同一原 chunk 内连续保留的样本组成一个新 chunk
+        private static void buildChunks(TrackPlan tp) {
+            Track t = tp.track;
+            long[] offsets = new long[tp.end - tp.first];
+            int[] counts = new int[offsets.length];
+            int[] descriptions = new int[offsets.length];
+            int chunks = 0;
+            for (int i = tp.first; i < tp.end; i++) {
+                if (i == tp.first || t.chunkIndex[i] != t.chunkIndex[i - 1]) {
+                    offsets[chunks] = t.offsets[i];
+                    descriptions[chunks] = t.descriptionIndex[i];
+                    chunks++;
+                }
+                counts[chunks - 1]++;
+            }
+            tp.chunkOffsets = Arrays.copyOf(offsets, chunks);
+            tp.chunkSampleCounts = Arrays.copyOf(counts, chunks);
+            tp.chunkDescriptions = Arrays.copyOf(descriptions, chunks);
+        }
+
+        // 所有保留 chunk 的字节区间，按位置排序后合并相邻区间，每个区间一次 transferTo
+        private static List<long[]> mergeRuns(List<TrackPlan> tracks) {
+            List<long[]> ranges = new ArrayList<>();
+            for (TrackPlan tp : tracks) {
+                Track t = tp.track;
+                int sample = tp.first;
+                for (int c = 0; c < tp.chunkOffsets.length; c++) {
+                    long start = tp.chunkOffsets[c];
+                    long end = start;
+                    for (int s = 0; s < tp.chunkSampleCounts[c]; s++) {
+                        end += t.size(sample++);
+                    }
+                    ranges.add(new long[]{start, end});
+                }
+            }
+            ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+            List<long[]> runs = new ArrayList<>();
+            long[] current = null;
+            for (long[] r : ranges) {
+                if (current != null && r[0] <= current[1] + MERGE_GAP_BYTES) {
+                    current[1] = Math.max(current[1], r[1]);
+                } else {
+                    current = new long[]{r[0], r[1]};
+                    runs.add(current);
+                }
+            }
+            return runs;
+        }
+
+        // ============ moov 重写 ============
+
+        /**
+         * 生成新的 moov；dataStart 为输出文件中 mdat 数据区的起始位置
+         */
+        byte[] build(Plan plan, long dataStart, boolean co64) {
+            long[] runStarts = new long[plan.runs.size()];
+            long[] runTargets = new long[plan.runs.size()];
+            long target = dataStart;
+            for (int i = 0; i < runStarts.length; i++) {
+                long[] run = plan.runs.get(i);
+                runStarts[i] = run[0];
+                runTargets[i] = target;
+                target += run[1] - run[0];
+            }
+
+            Mp4Writer.BoxBuffer b = new Mp4Writer.BoxBuffer();
+            int moovStart = b.open("moov");
+            for (Box child : root.children) {
+                if ("mvhd".equals(child.type)) {
+                    copyWithDuration(b, child, Math.round(plan.durationSeconds * movieTimescale), 12, 20);
+                } else if ("trak".equals(child.type)) {
+                    TrackPlan tp = find(plan, child);
+                    if (tp != null) {
+                        writeTrak(b, tp, runStarts, runTargets, co64);
+                    }
+                } else {
+                    copy(b, child);
+                }
+            }
+            b.close(moovStart);
+            return b.toByteArray();
+        }
+
+        private static TrackPlan find(Plan plan, Box trak) {
+            for (TrackPlan tp : plan.tracks) {
+                if (tp.track.trak == trak) {
+                    return tp;
+                }
+            }
+            return null;
+        }
+
+        private void writeTrak(Mp4Writer.BoxBuffer b, TrackPlan tp, long[] runStarts, long[] runTargets,
+                               boolean co64) {
+            Track t = tp.track;
+            long mediaDuration = t.decodeTimes[tp.end - 1] + t.durations[tp.end - 1] - t.decodeTimes[tp.first];
+            long delay = Math.round(tp.delaySeconds * movieTimescale);
+            long presented = Math.round(mediaDuration * (double) movieTimescale / t.timescale);
+            int firstCts = t.cts(tp.first);
+
+            int trakStart = b.open("trak");
+            for (Box child : t.trak.children) {
+                switch (child.type) {
+                    case "tkhd":
+                        copyWithDuration(b, child, delay + presented, 16, 24);
+                        break;
+                    case "edts":
+                        break; // 按新的起点重写
+                    case "mdia":
+                        if (delay > 0 || firstCts != 0) {
+                            int edts = b.open("edts");
+                            int elst = b.openFull("elst", 0, 0);
+                            b.u32(delay > 0 ? 2 : 1);
+                            if (delay > 0) {
+                                b.u32(delay).u32(0xFFFFFFFFL).u32(0x00010000);
+                            }
+                            b.u32(presented).u32(firstCts).u32(0x00010000);
+                            b.close(elst);
+                            b.close(edts);
+                        }
+                        writeMdia(b, child, tp, mediaDuration, runStarts, runTargets, co64);
+                        break;
+                    default:
+                        copy(b, child);
+                        break;
+                }
+            }
+            b.close(trakStart);
+        }
+
+        private void writeMdia(Mp4Writer.BoxBuffer b, Box mdia, TrackPlan tp, long mediaDuration,
+                               long[] runStarts, long[] runTargets, boolean co64) {
+            int mdiaStart = b.open("mdia");
+            for (Box child : mdia.children) {
+                if ("mdhd".equals(child.type)) {
+                    copyWithDuration(b, child, mediaDuration, 12, 20);
+                } else if ("minf".equals(child.type)) {
+                    int minfStart = b.open("minf");
+                    for (Box m : child.children) {
+                        if ("stbl".equals(m.type)) {
+                            writeStbl(b, m, tp, runStarts, runTargets, co64);
+                        } else {
+                            copy(b, m);
+                        }
+                    }
+                    b.close(minfStart);
+                } else {
+                    copy(b, child);
+                }
+            }
+            b.close(mdiaStart);
+        }
+
+        // 只保留 stsd 和重新生成的样本表；sdtp / sbgp 等按样本索引的表直接丢弃
+        private void writeStbl(Mp4Writer.BoxBuffer b, Box stbl, TrackPlan tp,
+                               long[] runStarts, long[] runTargets, boolean co64) {
+            Track t = tp.track;
+            int count = tp.end - tp.first;
+            int stblStart = b.open("stbl");
+            copy(b, stbl.child("stsd"));
+
+            Mp4Writer.BoxBuffer entries = new Mp4Writer.BoxBuffer();
+            int entryCount = 0;
+            for (int i = tp.first; i < tp.end; ) {
+                int run = 1;
+                while (i + run < tp.end && t.durations[i + run] == t.durations[i]) {
+                    run++;
+                }
+                entries.u32(run).u32(t.durations[i]);
+                entryCount++;
+                i += run;
+            }
+            int box = b.openFull("stts", 0, 0);
+            b.u32(entryCount);
+            b.bytes(entries.toByteArray());
+            b.close(box);
+
+            if (t.compositionOffsets != null) {
+                entries = new Mp4Writer.BoxBuffer();
+                entryCount = 0;
+                for (int i = tp.first; i < tp.end; ) {
+                    int run = 1;
+                    while (i + run < tp.end && t.compositionOffsets[i + run] == t.compositionOffsets[i]) {
+                        run++;
+                    }
+                    entries.u32(run).u32(t.compositionOffsets[i] & 0xFFFFFFFFL);
+                    entryCount++;
+                    i += run;
+                }
+                box = b.openFull("ctts", t.cttsVersion, 0);
+                b.u32(entryCount);
+                b.bytes(entries.toByteArray());
+                b.close(box);
+            }
+
+            if (t.sync != null) {
+                entries = new Mp4Writer.BoxBuffer();
+                entryCount = 0;
+                for (int i = tp.first; i < tp.end; i++) {
+                    if (t.sync[i]) {
+                        entries.u32(i - tp.first + 1);
+                        entryCount++;
+                    }
+                }
+                box = b.openFull("stss", 0, 0);
+                b.u32(entryCount);
+                b.bytes(entries.toByteArray());
+                b.close(box);
+            }
+
+            entries = new Mp4Writer.BoxBuffer();
+            entryCount = 0;
+            for (int c = 0; c < tp.chunkSampleCounts.length; c++) {
+                if (c == 0 || tp.chunkSampleCounts[c] != tp.chunkSampleCounts[c - 1]
+                        || tp.chunkDescriptions[c] != tp.chunkDescriptions[c - 1]) {
+                    entries.u32(c + 1).u32(tp.chunkSampleCounts[c]).u32(tp.chunkDescriptions[c]);
+                    entryCount++;
+                }
+            }
+            box = b.openFull("stsc", 0, 0);
+            b.u32(entryCount);
+            b.bytes(entries.toByteArray());
+            b.close(box);
+
+            box = b.openFull("stsz", 0, 0);
+            b.u32(t.constantSize).u32(count);
+            if (t.constantSize == 0) {
+                for (int i = tp.first; i < tp.end; i++) {
+                    b.u32(t.sizes[i] & 0xFFFFFFFFL);
+                }
+            }
+            b.close(box);
+
+            box = b.openFull(co64 ? "co64" : "stco", 0, 0);
+            b.u32(tp.chunkOffsets.length);
+            for (long offset : tp.chunkOffsets) {
+                int run = Arrays.binarySearch(runStarts, offset);
+                if (run < 0) {
+                    run = -run - 2;
+                }
+                long mapped = runTargets[run] + (offset - runStarts[run]);
+                if (co64) {
+                    b.u64(mapped);
+                } else {
+                    b.u32(mapped);
+                }
+            }
+            b.close(box);
+            b.close(stblStart);
+        }
+
+        private void copy(Mp4Writer.BoxBuffer b, Box box) {
+            b.write(moov, box.start, box.size);
+        }
+
+        // 复制 mvhd / tkhd / mdhd 并替换 duration 字段（v0 / v1 偏移不同，相对 box 体起点）
+        private void copyWithDuration(Mp4Writer.BoxBuffer b, Box box, long duration, int v0Offset, int v1Offset) {
+            byte[] copy = Arrays.copyOfRange(moov, box.start, box.start + box.size);
+            int body = box.header;
+            if (copy[body] == 1) {
+                putU64(copy, body + 4 + v1Offset, duration);
+            } else {
+                putU32(copy, body + 4 + v0Offset, Math.min(duration, 0xFFFFFFFFL));
+            }
+            b.write(copy, 0, copy.length);
+        }
+
+        private static Box require(Box parent, String type) throws IOException {
+            Box box = parent.child(type);
+            if (box == null) {
+                throw new IOException("缺少 " + type);
+            }
+            return box;
+        }
+    }
+
+    // ============ 工具方法 ============
+
+    private static ByteBuffer readAt(FileChannel in, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            int n = in.read(buf, position + buf.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static long u32(byte[] b, int off) {
+        return ((b[off] & 0xFFL) << 24) | ((b[off + 1] & 0xFFL) << 16) | ((b[off + 2] & 0xFFL) << 8) | (b[off + 3] & 0xFFL);
+    }
+
+    private static long u64(byte[] b, int off) {
+        return (u32(b, off) << 32) | u32(b, off + 4);
+    }
+
+    private static void putU32(byte[] b, int off, long v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static void putU64(byte[] b, int off, long v) {
+        putU32(b, off, v >>> 32);
+        putU32(b, off + 4, v);
+    }
+
+    private static String fourcc(byte[] b, int off) {
+        return new String(b, off, 4, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,560 @@
+package com.comp.testISAPI;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 顺序写出的 MP4 封装器（非分片）
+ * - 先写 ftyp 和 mdat，样本到达即追加；mdat 大小与 moov 在 finish 时补写（moov 位于文件末尾，
+ *   浏览器播放依赖 /downloads 的 Range 支持）
+ * - 样本表以原始类型数组保存，每个样本约 20 字节
+ * - 各轨道起始时间不同时写入 edts/elst，保持音视频同步
+ */
+public class Mp4Writer implements Closeable {
+
+    public static final int MOVIE_TIMESCALE = 1000;
+    private static final long MAC_EPOCH_OFFSET_SECONDS = 2082844800L; // 1904-01-01 到 1970-01-01
+
+    /**
+     * 一条轨道及其样本表
+     */
+    public static final class Track {
+        final int id;
+        final boolean video;
+        final int timescale;
+        final long startTime90k;
+
+        String sampleEntryType;
+        byte[] codecConfigBox;
+        int width;
+        int height;
+        int channels;
+        int sampleRate;
+
+        final IntList sizes = new IntList();
+        final LongList decodeTimes = new LongList();
+        final IntList compositionOffsets = new IntList();
+        final IntList syncSamples = new IntList();
+        final LongList chunkOffsets = new LongList();
+        final IntList chunkSampleCounts = new IntList();
+        boolean hasCompositionOffsets;
+
+        Track(int id, boolean video, int timescale, long startTime90k) {
+            this.id = id;
+            this.video = video;
+            this.timescale = timescale;
+            this.startTime90k = startTime90k;
+        }
+
+        public int sampleCount() {
+            return sizes.size();
+        }
+
+        public int timescale() {
+            return timescale;
+        }
+    }
+
+    private final FileChannel channel;
+    private final OutputStream out;
+    private final List<Track> tracks = new ArrayList<>();
+    private final long mdatStart;
+    private long position;
+    private Track lastTrack;
+    private boolean finished;
+
+    public Mp4Writer(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        this.out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 20);
+
+        BoxBuffer head = new BoxBuffer();
+        int ftyp = head.open("ftyp");
+        head.fourcc("isom").u32(0x200).fourcc("isom").fourcc("iso2").fourcc("mp41");
+        head.close(ftyp);
+        mdatStart = head.size();
+        head.u32(1).fourcc("mdat").u64(0); // 64 位 largesize，finish 时补写
+        head.writeTo(out);
+        position = head.size();
+    }
+
+    /**
+     * @param startTime90k 该轨道第一个样本的显示时间（90kHz，与其他轨道同一时钟），用于生成 edit list
+     */
+    public Track addTrack(boolean video, int timescale, long startTime90k) {
+        Track track = new Track(tracks.size() + 1, video, timescale, startTime90k);
+        tracks.add(track);
+        return track;
+    }
+
+    public void setVideoFormat(Track track, String sampleEntryType, byte[] codecConfigBox, int width, int height) {
+        track.sampleEntryType = sampleEntryType;
+        track.codecConfigBox = codecConfigBox;
+        track.width = width;
+        track.height = height;
+    }
+
+    public void setAudioFormat(Track track, String sampleEntryType, byte[] codecConfigBox, int channels, int sampleRate) {
+        track.sampleEntryType = sampleEntryType;
+        track.codecConfigBox = codecConfigBox;
+        track.channels = channels;
+        track.sampleRate = sampleRate;
+    }
+
+    /**
+     * 追加一个样本
+     *
+     * @param decodeTime        解码时间（轨道 timescale）
+     * @param compositionOffset 显示时间 - 解码时间（轨道 timescale，无 B 帧时为 0）
+     */
+    public void writeSample(Track track, byte[] data, int offset, int length,
+                            long decodeTime, int compositionOffset, boolean sync) throws IOException {
+        if (lastTrack != track) {
+            track.chunkOffsets.add(position);
+            track.chunkSampleCounts.add(1);
+            lastTrack = track;
+        } else {
+            track.chunkSampleCounts.incrementLast();
+        }
+        out.write(data, offset, length);
+        position += length;
+
+        track.sizes.add(length);
+        track.decodeTimes.add(decodeTime);
+        track.compositionOffsets.add(compositionOffset);
+        if (compositionOffset != 0) {
+            track.hasCompositionOffsets = true;
+        }
+        if (sync) {
+            track.syncSamples.add(track.sizes.size());
+        }
+    }
+
+    /**
+     * 补写 mdat 大小并在文件末尾写入 moov，返回文件总字节数
+     */
+    public long finish() throws IOException {
+        out.flush();
+        ByteBuffer mdatSize = ByteBuffer.allocate(8);
+        mdatSize.putLong(0, position - mdatStart);
+        channel.write(mdatSize, mdatStart + 8);
+
+        BoxBuffer moov = buildMoov();
+        channel.position(position);
+        ByteBuffer buffer = ByteBuffer.wrap(moov.array(), 0, moov.size());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        position += moov.size();
+        channel.force(false);
+        finished = true;
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!finished) {
+                out.flush();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    // ============ moov ============
+
+    private BoxBuffer buildMoov() {
+        long earliest = Long.MAX_VALUE;
+        for (Track track : tracks) {
+            if (track.sampleCount() > 0) {
+                earliest = Math.min(earliest, track.startTime90k);
+            }
+        }
+        long now = System.currentTimeMillis() / 1000 + MAC_EPOCH_OFFSET_SECONDS;
+
+        List<byte[]> traks = new ArrayList<>();
+        long movieDuration = 0;
+        for (Track track : tracks) {
+            if (track.sampleCount() == 0 || track.sampleEntryType == null) {
+                continue;
+            }
+            long[] durations = sampleDurations(track);
+            long mediaDuration = 0;
+            for (long d : durations) {
+                mediaDuration += d;
+            }
+            long delay = (track.startTime90k - earliest) * MOVIE_TIMESCALE / 90000;
+            long presentedDuration = mediaDuration * MOVIE_TIMESCALE / track.timescale;
+            long trackDuration = delay + presentedDuration;
+            movieDuration = Math.max(movieDuration, trackDuration);
+            traks.add(buildTrak(track, durations, mediaDuration, delay, presentedDuration, trackDuration, now));
+        }
+
+        BoxBuffer b = new BoxBuffer();
+        int moov = b.open("moov");
+        boolean v1 = movieDuration > 0xFFFFFFFFL;
+        int mvhd = b.openFull("mvhd", v1 ? 1 : 0, 0);
+        timeFields(b, v1, now, MOVIE_TIMESCALE, movieDuration);
+        b.u32(0x00010000).u16(0x0100).zeros(10);
+        matrix(b);
+        b.zeros(24).u32(tracks.size() + 1);
+        b.close(mvhd);
+        for (byte[] trak : traks) {
+            b.bytes(trak);
+        }
+        b.close(moov);
+        return b;
+    }
+
+    private static byte[] buildTrak(Track t, long[] durations, long mediaDuration, long delay,
+                                    long presentedDuration, long trackDuration, long now) {
+        BoxBuffer b = new BoxBuffer();
+        int trak = b.open("trak");
+
+        boolean v1 = trackDuration > 0xFFFFFFFFL;
+        int tkhd = b.openFull("tkhd", v1 ? 1 : 0, 0x3);
+        if (v1) {
+            b.u64(now).u64(now).u32(t.id).u32(0).u64(trackDuration);
+        } else {
+            b.u32(now).u32(now).u32(t.id).u32(0).u32(trackDuration);
+        }
+        b.zeros(8).u16(0).u16(t.video ? 0 : 1).u16(t.video ? 0 : 0x0100).u16(0);
+        matrix(b);
+        b.u32((long) t.width << 16).u32((long) t.height << 16);
+        b.close(tkhd);
+
+        int firstOffset = t.compositionOffsets.size() > 0 ? t.compositionOffsets.get(0) : 0;
+        if (delay > 0 || firstOffset > 0) {
+            int edts = b.open("edts");
+            int elst = b.openFull("elst", 0, 0);
+            b.u32(delay > 0 ? 2 : 1);
+            if (delay > 0) {
+                b.u32(delay).u32(0xFFFFFFFFL).u32(0x00010000);
+            }
+            b.u32(presentedDuration).u32(firstOffset).u32(0x00010000);
+            b.close(elst);
+            b.close(edts);
+        }
+
+        int mdia = b.open("mdia");
+        boolean mdhdV1 = mediaDuration > 0xFFFFFFFFL;
+        int mdhd = b.openFull("mdhd", mdhdV1 ? 1 : 0, 0);
+        timeFields(b, mdhdV1, now, t.timescale, mediaDuration);
+        b.u16(0x55C4).u16(0); // language = und
+        b.close(mdhd);
+
+        int hdlr = b.openFull("hdlr", 0, 0);
+        b.u32(0).fourcc(t.video ? "vide" : "soun").zeros(12);
+        b.bytes((t.video ? "VideoHandler" : "SoundHandler").getBytes(StandardCharsets.US_ASCII)).u8(0);
+        b.close(hdlr);
+
+        int minf = b.open("minf");
+        if (t.video) {
+            int vmhd = b.openFull("vmhd", 0, 1);
+            b.zeros(8);
+            b.close(vmhd);
+        } else {
+            int smhd = b.openFull("smhd", 0, 0);
+            b.zeros(4);
+            b.close(smhd);
+        }
+        int dinf = b.open("dinf");
+        int dref = b.openFull("dref", 0, 0);
+        b.u32(1);
+        int url = b.openFull("url ", 0, 1);
+        b.close(url);
+        b.close(dref);
+        b.close(dinf);
+
+        int stbl = b.open("stbl");
+        writeStsd(b, t);
+        writeStts(b, durations);
+        if (t.hasCompositionOffsets) {
+            writeCtts(b, t);
+        }
+        if (t.syncSamples.size() < t.sampleCount()) {
+            int stss = b.openFull("stss", 0, 0);
+            b.u32(t.syncSamples.size());
+            for (int i = 0; i < t.syncSamples.size(); i++) {
+                b.u32(t.syncSamples.get(i));
+            }
+            b.close(stss);
+        }
+        writeStsc(b, t);
+        int stsz = b.openFull("stsz", 0, 0);
+        b.u32(0).u32(t.sampleCount());
+        for (int i = 0; i < t.sampleCount(); i++) {
+            b.u32(t.sizes.get(i));
+        }
+        b.close(stsz);
+        writeChunkOffsets(b, t);
+        b.close(stbl);
+
+        b.close(minf);
+        b.close(mdia);
+        b.close(trak);
+        return b.toByteArray();
+    }
+
+    private static void writeStsd(BoxBuffer b, Track t) {
+        int stsd = b.openFull("stsd", 0, 0);
+        b.u32(1);
+        int entry = b.open(t.sampleEntryType);
+        b.zeros(6).u16(1); // reserved + data_reference_index
+        if (t.video) {
+            b.zeros(16).u16(t.width).u16(t.height).u32(0x00480000).u32(0x00480000).u32(0).u16(1);
+            b.zeros(32).u16(0x0018).u16(0xFFFF);
+        } else {
+            b.zeros(8).u16(t.channels).u16(16).zeros(4).u32(((long) t.sampleRate << 16) & 0xFFFFFFFFL);
+        }
+        b.bytes(t.codecConfigBox);
+        b.close(entry);
+        b.close(stsd);
+    }
+
+    private static void writeStts(BoxBuffer b, long[] durations) {
+        BoxBuffer entries = new BoxBuffer();
+        int count = 0;
+        for (int i = 0; i < durations.length; ) {
+            int run = 1;
+            while (i + run < durations.length && durations[i + run] == durations[i]) {
+                run++;
+            }
+            entries.u32(run).u32(durations[i]);
+            count++;
+            i += run;
+        }
+        int stts = b.openFull("stts", 0, 0);
+        b.u32(count);
+        entries.writeTo(b);
+        b.close(stts);
+    }
+
+    private static void writeCtts(BoxBuffer b, Track t) {
+        BoxBuffer entries = new BoxBuffer();
+        int count = 0;
+        int n = t.compositionOffsets.size();
+        for (int i = 0; i < n; ) {
+            int value = t.compositionOffsets.get(i);
+            int run = 1;
+            while (i + run < n && t.compositionOffsets.get(i + run) == value) {
+                run++;
+            }
+            entries.u32(run).u32(value);
+            count++;
+            i += run;
+        }
+        int ctts = b.openFull("ctts", 0, 0);
+        b.u32(count);
+        entries.writeTo(b);
+        b.close(ctts);
+    }
+
+    private static void writeStsc(BoxBuffer b, Track t) {
+        BoxBuffer entries = new BoxBuffer();
+        int count = 0;
+        int previous = -1;
+        for (int i = 0; i < t.chunkSampleCounts.size(); i++) {
+            int samples = t.chunkSampleCounts.get(i);
+            if (samples != previous) {
+                entries.u32(i + 1).u32(samples).u32(1);
+                count++;
+                previous = samples;
+            }
+        }
+        int stsc = b.openFull("stsc", 0, 0);
+        b.u32(count);
+        entries.writeTo(b);
+        b.close(stsc);
+    }
+
+    private static void writeChunkOffsets(BoxBuffer b, Track t) {
+        int n = t.chunkOffsets.size();
+        boolean large = n > 0 && t.chunkOffsets.get(n - 1) > 0xFFFFFFFFL;
+        int box = b.openFull(large ? "co64" : "stco", 0, 0);
+        b.u32(n);
+        for (int i = 0; i < n; i++) {
+            if (large) {
+                b.u64(t.chunkOffsets.get(i));
+            } else {
+                b.u32(t.chunkOffsets.get(i));
+            }
+        }
+        b.close(box);
+    }
+
+    // 由相邻解码时间求样本时长；时间戳回退或重复时沿用上一个有效时长
+    private static long[] sampleDurations(Track t) {
+        int n = t.sampleCount();
+        long[] durations = new long[n];
+        long lastGood = t.video ? t.timescale / 25 : 1024;
+        for (int i = 0; i + 1 < n; i++) {
+            long d = t.decodeTimes.get(i + 1) - t.decodeTimes.get(i);
+            if (d > 0 && d <= 0xFFFFFFFFL) {
+                lastGood = d;
+            }
+            durations[i] = d > 0 && d <= 0xFFFFFFFFL ? d : lastGood;
+        }
+        if (n > 0) {
+            durations[n - 1] = lastGood;
+        }
+        return durations;
+    }
+
+    private static void timeFields(BoxBuffer b, boolean v1, long now, int timescale, long duration) {
+        if (v1) {
+            b.u64(now).u64(now).u32(timescale).u64(duration);
+        } else {
+            b.u32(now).u32(now).u32(timescale).u32(duration);
+        }
+    }
+
+    private static void matrix(BoxBuffer b) {
+        b.u32(0x00010000).u32(0).u32(0).u32(0).u32(0x00010000).u32(0).u32(0).u32(0).u32(0x40000000);
+    }
+
+    // ============ 工具类 ============
+
+    /**
+     * 构建 box 的字节缓冲区：open 写入占位长度，close 回填
+     */
+    public static final class BoxBuffer extends ByteArrayOutputStream {
+
+        public BoxBuffer u8(int v) {
+            write(v);
+            return this;
+        }
+
+        public BoxBuffer u16(int v) {
+            write(v >>> 8);
+            write(v);
+            return this;
+        }
+
+        public BoxBuffer u24(int v) {
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+            return this;
+        }
+
+        public BoxBuffer u32(long v) {
+            write((int) (v >>> 24));
+            write((int) (v >>> 16));
+            write((int) (v >>> 8));
+            write((int) v);
+            return this;
+        }
+
+        public BoxBuffer u64(long v) {
+            u32(v >>> 32);
+            u32(v & 0xFFFFFFFFL);
+            return this;
+        }
+
+        public BoxBuffer fourcc(String type) {
+            byte[] bytes = type.getBytes(StandardCharsets.US_ASCII);
+            write(bytes, 0, 4);
+            return this;
+        }
+
+        public BoxBuffer bytes(byte[] data) {
+            write(data, 0, data.length);
+            return this;
+        }
+
+        public BoxBuffer zeros(int n) {
+            for (int i = 0; i < n; i++) {
+                write(0);
+            }
+            return this;
+        }
+
+        public int open(String type) {
+            int start = count;
+            u32(0);
+            fourcc(type);
+            return start;
+        }
+
+        public int openFull(String type, int version, int flags) {
+            int start = open(type);
+            u8(version);
+            u24(flags);
+            return start;
+        }
+
+        public void close(int start) {
+            int size = count - start;
+            buf[start] = (byte) (size >>> 24);
+            buf[start + 1] = (byte) (size >>> 16);
+            buf[start + 2] = (byte) (size >>> 8);
+            buf[start + 3] = (byte) size;
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        void writeTo(BoxBuffer other) {
+            other.write(buf, 0, count);
+        }
+    }
+
+    static final class IntList {
+        private int[] values = new int[1024];
+        private int size;
+
+        void add(int v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+
+        void incrementLast() {
+            values[size - 1]++;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    static final class LongList {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+
+        long get(int i) {
+            return values[i];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.comp.testISAPI;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 可续传的下载临时文件
+ * - 数据写入 xxx.isapi.tmp，旁边的 xxx.isapi.tmp.resume 记录来源请求、已写字节数和校验信息（ETag / Last-Modified / 总长度）
+ * - 重试时若来源一致，带 Range 请求从断点继续；设备忽略 Range（返回 200）时，仅在强 ETag 一致或总长度一致时跳过已有字节后续写，否则从头下载
+ * - 来源不一致的旧文件只在真正开始写入时才被覆盖，请求失败不会破坏其他方法留下的断点
+ */
+public class PartialDownload {
+
+    private static final Logger log = Logger.getLogger(PartialDownload.class);
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    public static final String TMP_SUFFIX = ".isapi.tmp";
+    public static final String SIDECAR_SUFFIX = ".resume";
+
+    private final Path tmp;
+    private final Path sidecar;
+    private final String source;
+    private final boolean skipAheadAllowed;
+
+    private boolean owned;
+    private long offset;
+    private String etag;
+    private String lastModified;
+    private long totalLength = -1;
+
+    private PartialDownload(String tmpPath, String source, boolean skipAheadAllowed) {
+        this.tmp = Paths.get(tmpPath);
+        this.sidecar = Paths.get(tmpPath + SIDECAR_SUFFIX);
+        this.source = source;
+        this.skipAheadAllowed = skipAheadAllowed;
+    }
+
+    /**
+     * 打开临时文件；若已有同一来源的断点则从其末尾续传
+     */
+    public static PartialDownload open(String tmpPath, String source, boolean skipAheadAllowed) {
+        PartialDownload partial = new PartialDownload(tmpPath, source, skipAheadAllowed);
+        partial.load();
+        return partial;
+    }
+
+    /**
+     * 同一次下载的标识：请求方法 + URL（去掉每次都会变化的 token）+ 请求体
+     */
+    public static String describe(Request request) {
+        HttpUrl url = request.url().newBuilder().removeAllQueryParameters("token").build();
+        StringBuilder sb = new StringBuilder(request.method()).append(' ').append(url);
+        if (request.body() != null) {
+            try {
+                Buffer buffer = new Buffer();
+                request.body().writeTo(buffer);
+                sb.append(' ').append(buffer.readUtf8());
+            } catch (IOException e) {
+                // 请求体不可重复读取时仅按 URL 区分
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 已有断点的字节数（0 表示从头下载）
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * 为请求加上 Range / If-Range
+     */
+    public Request prepare(Request request) {
+        if (offset <= 0) {
+            return request;
+        }
+        Request.Builder builder = request.newBuilder().header("Range", "bytes=" + offset + "-");
+        if (etag != null && !etag.startsWith("W/")) {
+            builder.header("If-Range", etag);
+        } else if (lastModified != null) {
+            builder.header("If-Range", lastModified);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 根据响应确定续传方式，必要时从响应体跳过已有字节，并返回本次写入的起始偏移量
+     */
+    public long begin(Response response) throws IOException {
+        long contentLength = response.body() != null ? response.body().contentLength() : -1;
+        String newEtag = response.header("ETag");
+        String newLastModified = response.header("Last-Modified");
+        long skip = 0;
+
+        if (offset > 0 && response.code() == 206) {
+            Matcher m = CONTENT_RANGE.matcher(String.valueOf(response.header("Content-Range")));
+            boolean hasRange = m.find();
+            long start = hasRange ? Long.parseLong(m.group(1)) : offset;
+            if (start > offset) {
+                discard();
+                throw new IOException("Content-Range 起点 " + start + " 超出断点 " + offset + "，已重置断点");
+            }
+            skip = offset - start;
+            if (hasRange && !"*".equals(m.group(3))) {
+                totalLength = Long.parseLong(m.group(3));
+            } else if (contentLength >= 0) {
+                totalLength = start + contentLength;
+            }
+            log.info("[续传] 设备支持 Range，从 %d 字节继续: %s", offset, tmp.getFileName());
+        } else if (offset > 0 && skipAheadAllowed && sameRepresentation(newEtag, newLastModified, contentLength)) {
+            skip = offset;
+            totalLength = contentLength;
+            log.info("[续传] 设备忽略 Range，跳过已下载的 %d 字节后继续: %s", offset, tmp.getFileName());
+        } else {
+            if (offset > 0) {
+                log.info("[续传] 源文件已变化或不支持续传，从头下载: %s", tmp.getFileName());
+            }
+            offset = 0;
+            totalLength = contentLength;
+        }
+
+        if (skip > 0) {
+            try {
+                response.body().source().skip(skip);
+            } catch (EOFException e) {
+                discard();
+                throw new IOException("响应长度不足以跳过已下载的 " + skip + " 字节，已重置断点", e);
+            }
+        }
+
+        if (offset == 0) {
+            Files.deleteIfExists(tmp);
+            Files.createFile(tmp);
+        }
+        owned = true;
+        etag = newEtag;
+        lastModified = newLastModified;
+        checkpoint();
+        return offset;
+    }
+
+    /**
+     * 打开输出流（续传时追加）
+     */
+    public FileOutputStream openOutput() throws IOException {
+        return new FileOutputStream(tmp.toFile(), offset > 0);
+    }
+
+    /**
+     * 本次下载的预期总字节数（未知时 -1）
+     */
+    public long totalLength() {
+        return totalLength;
+    }
+
+    /**
+     * 当前磁盘上属于本来源的字节数
+     */
+    public long bytesOnDisk() {
+        if (!owned) {
+            return 0;
+        }
+        File file = tmp.toFile();
+        return file.exists() ? file.length() : 0;
+    }
+
+    /**
+     * 更新描述文件中的已写字节数
+     */
+    public void checkpoint() {
+        if (!owned) {
+            return;
+        }
+        Map<String, Object> meta = new LinkedHashMap<>();
+        meta.put("source", source);
+        meta.put("bytesWritten", bytesOnDisk());
+        meta.put("totalLength", totalLength);
+        meta.put("etag", etag);
+        meta.put("lastModified", lastModified);
+        meta.put("updatedAt", System.currentTimeMillis());
+        try {
+            JSON.writeValue(sidecar.toFile(), meta);
+        } catch (IOException e) {
+            log.warn("[续传] 写入断点信息失败: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * 下载完成：删除描述文件，临时文件交给调用方移动/转封装
+     */
+    public void complete() {
+        deleteQuietly(sidecar);
+    }
+
+    /**
+     * 放弃断点：删除临时文件和描述文件（仅限本来源拥有的文件）
+     */
+    public void discard() {
+        if (owned) {
+            deleteQuietly(tmp);
+            deleteQuietly(sidecar);
+        }
+        owned = false;
+        offset = 0;
+    }
+
+    /**
+     * 清理超过 maxAgeMillis 未更新的断点文件
+     */
+    public static int sweep(File dir, long maxAgeMillis) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(TMP_SUFFIX) || name.endsWith(TMP_SUFFIX + SIDECAR_SUFFIX));
+        if (files == null) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int removed = 0;
+        for (File file : files) {
+            if (file.lastModified() < cutoff && file.delete()) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(tmp) || !Files.isRegularFile(sidecar)) {
+            return;
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> meta = JSON.readValue(sidecar.toFile(), Map.class);
+            if (!source.equals(meta.get("source"))) {
+                return;
+            }
+            owned = true;
+            offset = Files.size(tmp);
+            etag = (String) meta.get("etag");
+            lastModified = (String) meta.get("lastModified");
+            Object total = meta.get("totalLength");
+            totalLength = total instanceof Number ? ((Number) total).longValue() : -1;
+            if (totalLength > 0 && offset >= totalLength) {
+                // 上次已接收完整但未完成收尾，按从头下载处理
+                offset = 0;
+            }
+        } catch (Exception e) {
+            log.warn("[续传] 读取断点信息失败，将从头下载: %s", e.getMessage());
+        }
+    }
+
+    // 跳过已有字节的前提：校验信息没有变化，且至少有强 ETag 一致或已知总长度与本次 Content-Length 一致；
+    // 分块传输且不带校验信息的响应（如 /ContentMgmt/download 现生成的 PS 流）无法证明是同一份数据，只能从头下载
+    private boolean sameRepresentation(String newEtag, String newLastModified, long contentLength) {
+        if (etag != null && newEtag != null && !etag.equals(newEtag)) {
+            return false;
+        }
+        if (lastModified != null && newLastModified != null && !lastModified.equals(newLastModified)) {
+            return false;
+        }
+        if (totalLength > 0 && contentLength > 0 && totalLength != contentLength) {
+            return false;
+        }
+        boolean strongEtag = etag != null && etag.equals(newEtag) && !etag.startsWith("W/");
+        boolean sameLength = totalLength > 0 && contentLength == totalLength;
+        if (!strongEtag && !sameLength) {
+            return false;
+        }
+        return contentLength < 0 || contentLength > offset;
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.comp.testISAPI;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MPEG-PS 解复用器（海康 NVR 下载接口返回的 PS 流）
+ * - 顺序读取 pack header / system header / PSM / PES，单次遍历，不缓存整个文件
+ * - PSM（0xBC）中的 stream_type 决定各 ES 的编码
+ * - 遇到损坏数据时向后扫描下一个起始码继续，并记录重新同步次数
+ */
+public class PsDemuxer {
+
+    public static final int STREAM_TYPE_MPEG4 = 0x10;
+    public static final int STREAM_TYPE_H264 = 0x1B;
+    public static final int STREAM_TYPE_H265 = 0x24;
+    public static final int STREAM_TYPE_AAC = 0x0F;
+    public static final int STREAM_TYPE_G711A = 0x90;
+    public static final int STREAM_TYPE_G711U = 0x91;
+
+    private static final int PACK_START = 0xBA;
+    private static final int PROGRAM_END = 0xB9;
+    private static final int PROGRAM_STREAM_MAP = 0xBC;
+
+    public interface Listener {
+        /**
+         * 一个音频/视频 PES 的负载；pts/dts 为 90kHz 原始值（33 位），缺失时为 -1。
+         * data 在回调返回后会被复用
+         */
+        void onPes(int streamId, long pts, long dts, byte[] data, int offset, int length) throws IOException;
+    }
+
+    private final InputStream in;
+    private final byte[] packet = new byte[65536];
+    private final Map<Integer, Integer> streamTypes = new HashMap<>();
+    private long position;
+    private long resyncCount;
+    private boolean sawPackHeader;
+
+    /**
+     * @param in 建议传入带缓冲的输入流
+     */
+    public PsDemuxer(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * 读取并处理下一个单元（pack / PSM / PES 等），到达文件末尾时返回 false
+     */
+    public boolean next(Listener listener) throws IOException {
+        int code = nextStartCode();
+        if (code < 0) {
+            return false;
+        }
+        try {
+            switch (code) {
+                case PACK_START:
+                    skipPackHeader();
+                    sawPackHeader = true;
+                    return true;
+                case PROGRAM_END:
+                    return true;
+                default:
+                    break;
+            }
+            int length = readU16();
+            readFully(packet, length);
+            if (code == PROGRAM_STREAM_MAP) {
+                parseStreamMap(length);
+            } else if (code >= 0xC0 && code <= 0xEF) {
+                parsePes(code, length, listener);
+            }
+            // 0xBB system header / 0xBD 私有流 / 0xBE 填充 等直接跳过
+            return true;
+        } catch (EOFException e) {
+            return false; // 末尾不完整的包
+        }
+    }
+
+    public void run(Listener listener) throws IOException {
+        while (next(listener)) {
+            // 逐个处理直到文件末尾
+        }
+    }
+
+    /**
+     * PSM 声明的 stream_type，未知时返回 -1
+     */
+    public int streamType(int streamId) {
+        Integer type = streamTypes.get(streamId);
+        return type != null ? type : -1;
+    }
+
+    public boolean sawPackHeader() {
+        return sawPackHeader;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public long resyncCount() {
+        return resyncCount;
+    }
+
+    // 返回起始码的最后一个字节（0xB9 ~ 0xFF），到达末尾返回 -1
+    private int nextStartCode() throws IOException {
+        int window = 0xFFFFFFFF;
+        int consumed = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                return -1;
+            }
+            position++;
+            consumed++;
+            window = (window << 8) | b;
+            if ((window & 0xFFFFFF00) == 0x00000100 && (window & 0xFF) >= PROGRAM_END) {
+                if (consumed > 4) {
+                    resyncCount++;
+                }
+                return window & 0xFF;
+            }
+        }
+    }
+
+    private void skipPackHeader() throws IOException {
+        int first = readU8();
+        if ((first & 0xC0) == 0x40) {
+            // MPEG-2：SCR(6) + mux_rate(3) + stuffing_length(1)，first 为 SCR 第 1 字节
+            readFully(packet, 9);
+            skip(packet[8] & 0x07);
+        } else {
+            // MPEG-1：pack header 共 8 字节
+            readFully(packet, 7);
+        }
+    }
+
+    private void parseStreamMap(int length) {
+        if (length < 6) {
+            return;
+        }
+        int infoLength = u16(packet, 2);
+        int mapStart = 4 + infoLength;
+        if (mapStart + 2 > length) {
+            return;
+        }
+        int mapLength = u16(packet, mapStart);
+        int pos = mapStart + 2;
+        int end = Math.min(length, pos + mapLength);
+        while (pos + 4 <= end) {
+            int streamType = packet[pos] & 0xFF;
+            int streamId = packet[pos + 1] & 0xFF;
+            int esInfoLength = u16(packet, pos + 2);
+            streamTypes.put(streamId, streamType);
+            pos += 4 + esInfoLength;
+        }
+    }
+
+    private void parsePes(int streamId, int length, Listener listener) throws IOException {
+        long pts = -1;
+        long dts = -1;
+        int payload;
+        if (length >= 3 && (packet[0] & 0xC0) == 0x80) {
+            // MPEG-2 PES 头
+            int flags = packet[1] & 0xFF;
+            payload = 3 + (packet[2] & 0xFF);
+            if (payload > length) {
+                resyncCount++;
+                return;
+            }
+            if ((flags & 0x80) != 0 && payload >= 8) {
+                pts = readTimestamp(packet, 3);
+            }
+            if ((flags & 0x40) != 0 && payload >= 13) {
+                dts = readTimestamp(packet, 8);
+            }
+        } else {
+            // MPEG-1 PES 头：填充字节、STD 缓冲、PTS/DTS
+            payload = 0;
+            while (payload < length && (packet[payload] & 0xFF) == 0xFF) {
+                payload++;
+            }
+            if (payload < length && (packet[payload] & 0xC0) == 0x40) {
+                payload += 2;
+            }
+            if (payload < length) {
+                int marker = packet[payload] & 0xF0;
+                if (marker == 0x20 && payload + 5 <= length) {
+                    pts = readTimestamp(packet, payload);
+                    payload += 5;
+                } else if (marker == 0x30 && payload + 10 <= length) {
+                    pts = readTimestamp(packet, payload);
+                    dts = readTimestamp(packet, payload + 5);
+                    payload += 10;
+                } else {
+                    payload++; // 0x0F：无时间戳
+                }
+            }
+            if (payload > length) {
+                resyncCount++;
+                return;
+            }
+        }
+        if (payload < length) {
+            listener.onPes(streamId, pts, dts, packet, payload, length - payload);
+        }
+    }
+
+    private static long readTimestamp(byte[] b, int off) {
+        return (((long) (b[off] & 0x0E)) << 29)
+                | ((long) (b[off + 1] & 0xFF) << 22)
+                | ((long) (b[off + 2] & 0xFE) << 14)
+                | ((long) (b[off + 3] & 0xFF) << 7)
+                | ((long) (b[off + 4] & 0xFE) >> 1);
+    }
+
+    private int readU8() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        position++;
+        return b;
+    }
+
+    private int readU16() throws IOException {
+        return (readU8() << 8) | readU8();
+    }
+
+    private void readFully(byte[] buf, int length) throws IOException {
+        int off = 0;
+        while (off < length) {
+            int n = in.read(buf, off, length - off);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            off += n;
+        }
+        position += length;
+    }
+
+    private void skip(int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            readU8();
+        }
+    }
+
+    private static int u16(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,909 @@
+package com.comp.testISAPI;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 纯 Java 的 MPEG-PS → MP4 转封装（替代 ffmpeg -c copy）
+ * - 单次顺序读取 PS 文件，边解复用边写 MP4，不启动外部进程
+ * - 视频：H.264 / H.265，Annex B 转为 4 字节长度前缀，参数集写入 avcC / hvcC
+ * - 音频：AAC(ADTS) 去掉 ADTS 头后写入 mp4a；G.711 等 MP4 不支持的音频不保留（需要 AAC 音频时交给 ffmpeg 转码）
+ * - 丢弃第一个关键帧之前的视频帧和早于首帧视频的音频，保证输出可以直接解码
+ */
+public final class PsToMp4Remuxer {
+
+    private static final int PROBE_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_PENDING_AUDIO_FRAMES = 256;
+    // 按时间窗口截取时，窗口开始前缓存的最近一个 GOP 的上限
+    private static final int MAX_LEADING_GOP_BYTES = 64 * 1024 * 1024;
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    /**
+     * 文件头部探测结果
+     */
+    public static final class Probe {
+        public boolean programStream;
+        public int videoStreamType = -1;
+        public int audioStreamType = -1;
+
+        /** 能否由本类转封装（PS + H.264/H.265 视频） */
+        public boolean supported() {
+            return programStream && (videoStreamType == PsDemuxer.STREAM_TYPE_H264
+                    || videoStreamType == PsDemuxer.STREAM_TYPE_H265);
+        }
+
+        /** 音频无法原样写入 MP4（如 G.711），转封装后将没有音频 */
+        public boolean audioWouldBeDropped() {
+            return audioStreamType >= 0 && audioStreamType != PsDemuxer.STREAM_TYPE_AAC;
+        }
+
+        public String videoCodec() {
+            return codecName(videoStreamType);
+        }
+
+        public String audioCodec() {
+            return codecName(audioStreamType);
+        }
+    }
+
+    /**
+     * 转封装选项
+     */
+    public static final class Options {
+        /** 只保留从该偏移（毫秒，相对第一帧）处或之前最近的关键帧开始的内容，-1 表示不截取 */
+        public long windowOffsetMillis = -1;
+        /** 保留时长（毫秒，相对 windowOffsetMillis），-1 表示到输入结束 */
+        public long windowDurationMillis = -1;
+        /** 遇到 MP4 无法直接封装的音频（如 G.711）时放弃，交给 ffmpeg 转码 */
+        public boolean rejectUnsupportedAudio;
+    }
+
+    /**
+     * 转封装结果
+     */
+    public static final class Result {
+        public String videoCodec;
+        public String audioCodec;
+        public boolean audioDropped;
+        public int width;
+        public int height;
+        public int videoSamples;
+        public int audioSamples;
+        public int droppedLeadingFrames;
+        public double durationSeconds;
+        public long outputBytes;
+        public long resyncCount;
+        /** 按窗口截取时实际起点（关键帧）相对第一帧的秒数，未截取时为 -1 */
+        public double windowStartSeconds = -1;
+        /** 已到达窗口结束位置，之后的输入没有读取 */
+        public boolean windowComplete;
+    }
+
+    private PsToMp4Remuxer() {
+    }
+
+    /**
+     * 读取文件开头（最多 4 MB）判断封装与编码
+     */
+    public static Probe probe(File file) throws IOException {
+        Probe probe = new Probe();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 65536)) {
+            PsDemuxer demuxer = new PsDemuxer(in);
+            int[] ids = {-1, -1}; // 视频 / 音频 stream_id
+            int[] sniffed = {-1, -1};
+            PsDemuxer.Listener listener = (streamId, pts, dts, data, offset, length) -> {
+                if (streamId >= 0xE0 && ids[0] < 0) {
+                    ids[0] = streamId;
+                    sniffed[0] = sniffVideo(data, offset, length);
+                } else if (streamId < 0xE0 && ids[1] < 0) {
+                    ids[1] = streamId;
+                    sniffed[1] = sniffAudio(data, offset, length);
+                }
+            };
+            while (demuxer.position() < PROBE_BYTES && demuxer.next(listener)) {
+                if (ids[0] >= 0 && ids[1] >= 0) {
+                    break;
+                }
+            }
+            probe.programStream = demuxer.sawPackHeader();
+            if (ids[0] >= 0) {
+                int declared = demuxer.streamType(ids[0]);
+                probe.videoStreamType = declared >= 0 ? declared : sniffed[0];
+            }
+            if (ids[1] >= 0) {
+                int declared = demuxer.streamType(ids[1]);
+                probe.audioStreamType = declared >= 0 ? declared : sniffed[1];
+            }
+        }
+        return probe;
+    }
+
+    /**
+     * 转封装为 MP4；失败时抛出 IOException，由调用方删除输出文件并回退 ffmpeg
+     */
+    public static Result remux(File input, File output, BooleanSupplier cancelled) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(input), 1 << 20)) {
+            return remux(in, output, new Options(), cancelled);
+        }
+    }
+
+    /**
+     * 从输入流转封装（如边下载边转封装）；按窗口截取时到达窗口结束即返回，不再读取剩余输入
+     */
+    public static Result remux(InputStream in, File output, Options options, BooleanSupplier cancelled) throws IOException {
+        try (Mp4Writer writer = new Mp4Writer(output.toPath())) {
+            PsDemuxer demuxer = new PsDemuxer(in);
+            Session session = new Session(demuxer, writer, options);
+            int units = 0;
+            while (!session.windowComplete && demuxer.next(session)) {
+                if ((++units & 0xFF) == 0 && cancelled.getAsBoolean()) {
+                    throw new IOException("任务已取消");
+                }
+            }
+            session.flushVideo();
+            if (session.videoTrack == null || session.videoTrack.sampleCount() == 0) {
+                throw new IOException("未解析到可解码的视频帧（视频编码: " + codecName(session.videoType) + "）");
+            }
+            Result result = session.result;
+            result.outputBytes = writer.finish();
+            result.videoSamples = session.videoTrack.sampleCount();
+            result.audioSamples = session.audioTrack != null ? session.audioTrack.sampleCount() : 0;
+            result.durationSeconds = session.lastVideoDts / 90000.0;
+            result.resyncCount = demuxer.resyncCount();
+            result.windowComplete = session.windowComplete;
+            if (session.windowStartTicks >= 0) {
+                result.windowStartSeconds = (session.videoStartPts - session.streamStartPts) / 90000.0;
+            }
+            return result;
+        }
+    }
+
+    private static String codecName(int streamType) {
+        switch (streamType) {
+            case PsDemuxer.STREAM_TYPE_H264:
+                return "H.264";
+            case PsDemuxer.STREAM_TYPE_H265:
+                return "H.265";
+            case PsDemuxer.STREAM_TYPE_MPEG4:
+                return "MPEG-4";
+            case PsDemuxer.STREAM_TYPE_AAC:
+                return "AAC";
+            case PsDemuxer.STREAM_TYPE_G711A:
+                return "G.711A";
+            case PsDemuxer.STREAM_TYPE_G711U:
+                return "G.711U";
+            case -1:
+                return "none";
+            default:
+                return String.format("0x%02X", streamType);
+        }
+    }
+
+    // 没有 PSM 时根据第一个 NAL 头猜测 H.264 / H.265
+    // H.265 的 NAL 头为 2 字节，第二字节在 nuh_layer_id=0、temporal_id=0 时固定为 0x01，H.264 切片头不会出现该值
+    private static int sniffVideo(byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i + 4 < end; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                int header = data[i + 3] & 0xFF;
+                int hevcType = (header >> 1) & 0x3F;
+                if ((header & 0x81) == 0 && (data[i + 4] & 0xFF) == 0x01 && (hevcType <= 21 || (hevcType >= 32 && hevcType <= 40))) {
+                    return PsDemuxer.STREAM_TYPE_H265;
+                }
+                int avcType = header & 0x1F;
+                if (avcType >= 1 && avcType <= 9) {
+                    return PsDemuxer.STREAM_TYPE_H264;
+                }
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int sniffAudio(byte[] data, int offset, int length) {
+        if (length >= 2 && (data[offset] & 0xFF) == 0xFF && (data[offset + 1] & 0xF0) == 0xF0) {
+            return PsDemuxer.STREAM_TYPE_AAC;
+        }
+        return -1;
+    }
+
+    /**
+     * 一次转封装的状态
+     */
+    private static final class Session implements PsDemuxer.Listener {
+        final PsDemuxer demuxer;
+        final Mp4Writer writer;
+        final Options options;
+        final Result result = new Result();
+
+        // 时间窗口（90kHz，相对第一帧 PTS）
+        final long windowStartTicks;
+        final long windowEndTicks;
+        long streamStartPts = -1;
+        final List<LeadingFrame> leadingGop = new ArrayList<>();
+        long leadingGopBytes;
+        boolean windowComplete;
+
+        // 视频
+        int videoType = -1;
+        final ByteBuf accessUnit = new ByteBuf();
+        final ByteBuf sample = new ByteBuf();
+        long auPts = -1;
+        long auDts = -1;
+        final TimestampUnwrapper videoPtsClock = new TimestampUnwrapper();
+        final TimestampUnwrapper videoDtsClock = new TimestampUnwrapper();
+        byte[] vps;
+        byte[] sps;
+        final List<byte[]> ppsList = new ArrayList<>();
+        Mp4Writer.Track videoTrack;
+        long videoDtsBase;
+        long videoStartPts = -1;
+        long lastVideoDts;
+
+        // 音频
+        int audioType = -1;
+        final ByteBuf adts = new ByteBuf();
+        final TimestampUnwrapper audioClock = new TimestampUnwrapper();
+        long pendingAudioPts = -1;
+        int pendingAudioPos;
+        long lastAudioFramePts = -1;
+        Mp4Writer.Track audioTrack;
+        long audioDecodeTime;
+        // 视频轨道创建前（首个关键帧尚未结束）收到的音频帧
+        final ArrayDeque<PendingAudioFrame> pendingAudio = new java.util.ArrayDeque<>();
+
+        Session(PsDemuxer demuxer, Mp4Writer writer, Options options) {
+            this.demuxer = demuxer;
+            this.writer = writer;
+            this.options = options;
+            this.windowStartTicks = options.windowOffsetMillis >= 0 ? options.windowOffsetMillis * 90 : -1;
+            this.windowEndTicks = options.windowDurationMillis > 0
+                    ? Math.max(0, windowStartTicks) + options.windowDurationMillis * 90 : -1;
+        }
+
+        @Override
+        public void onPes(int streamId, long pts, long dts, byte[] data, int offset, int length) throws IOException {
+            if (streamId >= 0xE0) {
+                onVideo(streamId, pts, dts, data, offset, length);
+            } else {
+                onAudio(streamId, pts, data, offset, length);
+            }
+        }
+
+        // ============ 视频 ============
+
+        private void onVideo(int streamId, long pts, long dts, byte[] data, int offset, int length) throws IOException {
+            if (videoType < 0) {
+                int declared = demuxer.streamType(streamId);
+                videoType = declared >= 0 ? declared : sniffVideo(data, offset, length);
+                result.videoCodec = codecName(videoType);
+                if (videoType != PsDemuxer.STREAM_TYPE_H264 && videoType != PsDemuxer.STREAM_TYPE_H265) {
+                    throw new IOException("不支持的视频编码: " + codecName(videoType));
+                }
+            }
+            // 同一帧可能拆成多个 PES，只有第一个带 PTS；PTS 变化即为新的一帧
+            if (pts >= 0) {
+                long unwrappedPts = videoPtsClock.unwrap(pts);
+                if (accessUnit.length > 0 && unwrappedPts != auPts) {
+                    flushVideo();
+                }
+                if (accessUnit.length == 0) {
+                    auPts = unwrappedPts;
+                    auDts = dts >= 0 ? videoDtsClock.unwrap(dts) : unwrappedPts;
+                }
+            } else if (accessUnit.length == 0 && auPts < 0) {
+                return; // 文件开头不完整的帧
+            }
+            accessUnit.append(data, offset, length);
+        }
+
+        void flushVideo() throws IOException {
+            if (accessUnit.length == 0) {
+                return;
+            }
+            boolean hevc = videoType == PsDemuxer.STREAM_TYPE_H265;
+            boolean sync = false;
+            sample.length = 0;
+            byte[] b = accessUnit.data;
+            int n = accessUnit.length;
+            int nalStart = -1;
+            int i = 0;
+            while (i + 2 < n) {
+                if (b[i] == 0 && b[i + 1] == 0 && b[i + 2] == 1) {
+                    if (nalStart >= 0) {
+                        sync |= handleNal(b, nalStart, trimTrailingZeros(b, nalStart, i), hevc);
+                    }
+                    nalStart = i + 3;
+                    i += 3;
+                } else {
+                    i++;
+                }
+            }
+            if (nalStart >= 0) {
+                sync |= handleNal(b, nalStart, trimTrailingZeros(b, nalStart, n), hevc);
+            }
+            accessUnit.length = 0;
+
+            if (sample.length == 0) {
+                return;
+            }
+            if (streamStartPts < 0) {
+                streamStartPts = auPts;
+            }
+            if (windowStartTicks > 0 && videoTrack == null) {
+                // 窗口开始前只保留最近一个 GOP，越过窗口起点时从该 GOP 的关键帧开始写出
+                if (auPts - streamStartPts <= windowStartTicks) {
+                    bufferLeadingFrame(sync);
+                    return;
+                }
+                for (LeadingFrame frame : leadingGop) {
+                    writeVideoSample(frame.data, frame.data.length, frame.sync, hevc, frame.pts, frame.dts);
+                }
+                leadingGop.clear();
+            }
+            if (windowEndTicks > 0 && videoTrack != null && auPts - streamStartPts >= windowEndTicks) {
+                windowComplete = true;
+                return;
+            }
+            writeVideoSample(sample.data, sample.length, sync, hevc, auPts, auDts);
+        }
+
+        private void bufferLeadingFrame(boolean sync) throws IOException {
+            if (sync) {
+                result.droppedLeadingFrames += leadingGop.size();
+                leadingGop.clear();
+                leadingGopBytes = 0;
+            } else if (leadingGop.isEmpty()) {
+                result.droppedLeadingFrames++;
+                return;
+            }
+            leadingGop.add(new LeadingFrame(Arrays.copyOf(sample.data, sample.length), sync, auPts, auDts));
+            leadingGopBytes += sample.length;
+            if (leadingGopBytes > MAX_LEADING_GOP_BYTES) {
+                throw new IOException("关键帧间隔过长，无法按时间窗口截取");
+            }
+        }
+
+        private void writeVideoSample(byte[] data, int length, boolean sync, boolean hevc,
+                                      long pts, long dts) throws IOException {
+            if (videoTrack == null) {
+                if (!sync || sps == null || ppsList.isEmpty() || (hevc && vps == null)) {
+                    result.droppedLeadingFrames++;
+                    return;
+                }
+                createVideoTrack(hevc, pts, dts);
+            }
+            long decodeTime = dts - videoDtsBase;
+            int compositionOffset = (int) Math.max(0, pts - dts);
+            writer.writeSample(videoTrack, data, 0, length, decodeTime, compositionOffset, sync);
+            lastVideoDts = decodeTime;
+            while (!pendingAudio.isEmpty()) {
+                PendingAudioFrame frame = pendingAudio.poll();
+                writeAudioFrame(frame.data, 0, frame.headerLength, frame.data.length,
+                        frame.sampleRate, frame.samplesPerFrame, frame.pts);
+            }
+        }
+
+        // 处理一个 NAL：参数集留作 avcC/hvcC（与首次不同时保留在样本中），其余写成长度前缀格式；返回是否为关键帧
+        private boolean handleNal(byte[] b, int start, int end, boolean hevc) {
+            if (end <= start) {
+                return false;
+            }
+            int type = hevc ? (b[start] >> 1) & 0x3F : b[start] & 0x1F;
+            boolean keepInSample = true;
+            if (hevc) {
+                if (type == 35) {
+                    return false; // AUD
+                } else if (type == 32) {
+                    keepInSample = rememberParameterSet(0, b, start, end);
+                } else if (type == 33) {
+                    keepInSample = rememberParameterSet(1, b, start, end);
+                } else if (type == 34) {
+                    keepInSample = rememberParameterSet(2, b, start, end);
+                }
+            } else {
+                if (type == 9) {
+                    return false; // AUD
+                } else if (type == 7) {
+                    keepInSample = rememberParameterSet(1, b, start, end);
+                } else if (type == 8) {
+                    keepInSample = rememberParameterSet(2, b, start, end);
+                }
+            }
+            if (keepInSample) {
+                sample.appendU32(end - start);
+                sample.append(b, start, end - start);
+            }
+            return hevc ? type >= 16 && type <= 21 : type == 5;
+        }
+
+        // kind: 0=VPS 1=SPS 2=PPS；轨道创建前收集，创建后与首次不同的参数集留在样本中
+        private boolean rememberParameterSet(int kind, byte[] b, int start, int end) {
+            byte[] nal = Arrays.copyOfRange(b, start, end);
+            if (kind == 2) {
+                for (byte[] pps : ppsList) {
+                    if (Arrays.equals(pps, nal)) {
+                        return false;
+                    }
+                }
+                if (videoTrack == null) {
+                    ppsList.add(nal);
+                    return false;
+                }
+                return true;
+            }
+            byte[] current = kind == 0 ? vps : sps;
+            if (current != null && Arrays.equals(current, nal)) {
+                return false;
+            }
+            if (videoTrack == null) {
+                if (kind == 0) {
+                    vps = nal;
+                } else {
+                    sps = nal;
+                    ppsList.clear(); // 新的 SPS 之后重新收集 PPS
+                }
+                return false;
+            }
+            return true;
+        }
+
+        private void createVideoTrack(boolean hevc, long pts, long dts) throws IOException {
+            videoDtsBase = dts;
+            videoStartPts = pts;
+            videoTrack = writer.addTrack(true, 90000, pts);
+            Mp4Writer.BoxBuffer config = new Mp4Writer.BoxBuffer();
+            int[] size;
+            if (hevc) {
+                HevcSps info = HevcSps.parse(sps);
+                writeHvcC(config, info);
+                size = new int[]{info.width, info.height};
+            } else {
+                size = parseAvcSpsSize(sps);
+                writeAvcC(config);
+            }
+            result.width = size[0];
+            result.height = size[1];
+            writer.setVideoFormat(videoTrack, hevc ? "hvc1" : "avc1", config.toByteArray(), size[0], size[1]);
+        }
+
+        private void writeAvcC(Mp4Writer.BoxBuffer b) {
+            int avcC = b.open("avcC");
+            b.u8(1).u8(sps[1] & 0xFF).u8(sps[2] & 0xFF).u8(sps[3] & 0xFF);
+            b.u8(0xFF); // lengthSizeMinusOne = 3
+            b.u8(0xE1).u16(sps.length).bytes(sps);
+            b.u8(ppsList.size());
+            for (byte[] pps : ppsList) {
+                b.u16(pps.length).bytes(pps);
+            }
+            b.close(avcC);
+        }
+
+        private void writeHvcC(Mp4Writer.BoxBuffer b, HevcSps info) {
+            int hvcC = b.open("hvcC");
+            b.u8(1);
+            b.u8((info.profileSpace << 6) | (info.tierFlag << 5) | info.profileIdc);
+            b.u32(info.profileCompatibilityFlags);
+            b.bytes(info.constraintFlags);
+            b.u8(info.levelIdc);
+            b.u16(0xF000).u8(0xFC).u8(0xFC | info.chromaFormatIdc);
+            b.u8(0xF8 | info.bitDepthLumaMinus8).u8(0xF8 | info.bitDepthChromaMinus8);
+            b.u16(0);
+            b.u8((info.maxSubLayersMinus1 + 1) << 3 | info.temporalIdNesting << 2 | 3);
+            b.u8(3);
+            b.u8(0x80 | 32).u16(1).u16(vps.length).bytes(vps);
+            b.u8(0x80 | 33).u16(1).u16(sps.length).bytes(sps);
+            b.u8(0x80 | 34).u16(ppsList.size());
+            for (byte[] pps : ppsList) {
+                b.u16(pps.length).bytes(pps);
+            }
+            b.close(hvcC);
+        }
+
+        // ============ 音频 ============
+
+        private void onAudio(int streamId, long pts, byte[] data, int offset, int length) throws IOException {
+            if (audioType < 0) {
+                int declared = demuxer.streamType(streamId);
+                audioType = declared >= 0 ? declared : sniffAudio(data, offset, length);
+                result.audioCodec = codecName(audioType);
+                result.audioDropped = audioType != PsDemuxer.STREAM_TYPE_AAC;
+                if (result.audioDropped && options.rejectUnsupportedAudio) {
+                    throw new IOException("音频 " + result.audioCodec + " 需要转码");
+                }
+            }
+            if (audioType != PsDemuxer.STREAM_TYPE_AAC) {
+                return;
+            }
+            if (pts >= 0) {
+                pendingAudioPts = audioClock.unwrap(pts);
+                pendingAudioPos = adts.length;
+            }
+            adts.append(data, offset, length);
+            drainAdts();
+        }
+
+        private void drainAdts() throws IOException {
+            byte[] b = adts.data;
+            int pos = 0;
+            while (pos + 7 <= adts.length) {
+                if ((b[pos] & 0xFF) != 0xFF || (b[pos + 1] & 0xF0) != 0xF0) {
+                    pos++; // 重新寻找同步字
+                    continue;
+                }
+                boolean protectionAbsent = (b[pos + 1] & 0x01) != 0;
+                int headerLength = protectionAbsent ? 7 : 9;
+                int frameLength = ((b[pos + 3] & 0x03) << 11) | ((b[pos + 4] & 0xFF) << 3) | ((b[pos + 5] & 0xFF) >> 5);
+                if (frameLength <= headerLength) {
+                    pos++;
+                    continue;
+                }
+                if (pos + frameLength > adts.length) {
+                    break;
+                }
+                int sampleRateIndex = (b[pos + 2] >> 2) & 0x0F;
+                if (sampleRateIndex >= AAC_SAMPLE_RATES.length) {
+                    pos++;
+                    continue;
+                }
+                int sampleRate = AAC_SAMPLE_RATES[sampleRateIndex];
+                int samplesPerFrame = 1024 * ((b[pos + 6] & 0x03) + 1);
+                long framePts;
+                if (pendingAudioPts >= 0 && pendingAudioPos <= pos) {
+                    framePts = pendingAudioPts;
+                    pendingAudioPts = -1;
+                } else {
+                    framePts = lastAudioFramePts >= 0 ? lastAudioFramePts + samplesPerFrame * 90000L / sampleRate : -1;
+                }
+                lastAudioFramePts = framePts;
+                writeAudioFrame(b, pos, headerLength, frameLength, sampleRate, samplesPerFrame, framePts);
+                pos += frameLength;
+            }
+            adts.consume(pos);
+            pendingAudioPos = Math.max(0, pendingAudioPos - pos);
+        }
+
+        private void writeAudioFrame(byte[] b, int pos, int headerLength, int frameLength,
+                                     int sampleRate, int samplesPerFrame, long framePts) throws IOException {
+            if (framePts < 0) {
+                return;
+            }
+            if (videoTrack == null) {
+                // 首个关键帧写出后再决定是否保留
+                if (pendingAudio.size() == MAX_PENDING_AUDIO_FRAMES) {
+                    pendingAudio.poll();
+                }
+                pendingAudio.add(new PendingAudioFrame(Arrays.copyOfRange(b, pos, pos + frameLength),
+                        headerLength, sampleRate, samplesPerFrame, framePts));
+                return;
+            }
+            // 早于视频首个关键帧或晚于窗口结束的音频丢弃
+            if (framePts < videoStartPts
+                    || (windowEndTicks > 0 && framePts - streamStartPts >= windowEndTicks)) {
+                return;
+            }
+            if (audioTrack == null) {
+                int profile = (b[pos + 2] >> 6) & 0x03;
+                int sampleRateIndex = (b[pos + 2] >> 2) & 0x0F;
+                int channels = ((b[pos + 2] & 0x01) << 2) | ((b[pos + 3] >> 6) & 0x03);
+                audioTrack = writer.addTrack(false, sampleRate, framePts);
+                writer.setAudioFormat(audioTrack, "mp4a", esds(profile + 1, sampleRateIndex, channels),
+                        channels == 0 ? 2 : channels, sampleRate);
+            }
+            writer.writeSample(audioTrack, b, pos + headerLength, frameLength - headerLength, audioDecodeTime, 0, true);
+            audioDecodeTime += samplesPerFrame;
+        }
+
+        private static byte[] esds(int objectType, int sampleRateIndex, int channels) {
+            byte[] asc = {
+                    (byte) ((objectType << 3) | (sampleRateIndex >> 1)),
+                    (byte) (((sampleRateIndex & 0x01) << 7) | (channels << 3))
+            };
+            Mp4Writer.BoxBuffer b = new Mp4Writer.BoxBuffer();
+            int esds = b.openFull("esds", 0, 0);
+            int decoderConfigLength = 13 + 2 + asc.length;
+            b.u8(0x03).u8(3 + 2 + decoderConfigLength + 3).u16(0).u8(0);           // ES_Descriptor
+            b.u8(0x04).u8(decoderConfigLength).u8(0x40).u8(0x15).u24(0).u32(0).u32(0); // DecoderConfigDescriptor
+            b.u8(0x05).u8(asc.length).bytes(asc);                              // DecoderSpecificInfo
+            b.u8(0x06).u8(1).u8(0x02);                                         // SLConfigDescriptor
+            b.close(esds);
+            return b.toByteArray();
+        }
+    }
+
+    private static final class LeadingFrame {
+        final byte[] data;
+        final boolean sync;
+        final long pts;
+        final long dts;
+
+        LeadingFrame(byte[] data, boolean sync, long pts, long dts) {
+            this.data = data;
+            this.sync = sync;
+            this.pts = pts;
+            this.dts = dts;
+        }
+    }
+
+    private static final class PendingAudioFrame {
+        final byte[] data;
+        final int headerLength;
+        final int sampleRate;
+        final int samplesPerFrame;
+        final long pts;
+
+        PendingAudioFrame(byte[] data, int headerLength, int sampleRate, int samplesPerFrame, long pts) {
+            this.data = data;
+            this.headerLength = headerLength;
+            this.sampleRate = sampleRate;
+            this.samplesPerFrame = samplesPerFrame;
+            this.pts = pts;
+        }
+    }
+
+    private static int trimTrailingZeros(byte[] b, int start, int end) {
+        while (end > start && b[end - 1] == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    // ============ SPS 解析 ============
+
+    // H.264 SPS → {宽, 高}（已扣除裁剪区域）
+    static int[] parseAvcSpsSize(byte[] nal) {
+        BitReader r = new BitReader(unescape(nal, 1));
+        int profileIdc = r.u(8);
+        r.u(16); // constraint flags + level
+        r.ue(); // seq_parameter_set_id
+        int chromaFormatIdc = 1;
+        if (profileIdc == 100 || profileIdc == 110 || profileIdc == 122 || profileIdc == 244 || profileIdc == 44
+                || profileIdc == 83 || profileIdc == 86 || profileIdc == 118 || profileIdc == 128
+                || profileIdc == 138 || profileIdc == 139 || profileIdc == 134 || profileIdc == 135) {
+            chromaFormatIdc = r.ue();
+            if (chromaFormatIdc == 3) {
+                r.u(1); // separate_colour_plane_flag
+            }
+            r.ue();
+            r.ue();
+            r.u(1);
+            if (r.u(1) == 1) { // seq_scaling_matrix_present_flag
+                for (int i = 0; i < (chromaFormatIdc == 3 ? 12 : 8); i++) {
+                    if (r.u(1) == 1) {
+                        skipScalingList(r, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+        r.ue(); // log2_max_frame_num_minus4
+        int pocType = r.ue();
+        if (pocType == 0) {
+            r.ue();
+        } else if (pocType == 1) {
+            r.u(1);
+            r.se();
+            r.se();
+            int cycle = r.ue();
+            for (int i = 0; i < cycle; i++) {
+                r.se();
+            }
+        }
+        r.ue(); // max_num_ref_frames
+        r.u(1);
+        int widthInMbs = r.ue() + 1;
+        int heightInMapUnits = r.ue() + 1;
+        int frameMbsOnly = r.u(1);
+        if (frameMbsOnly == 0) {
+            r.u(1);
+        }
+        r.u(1); // direct_8x8_inference_flag
+        int width = widthInMbs * 16;
+        int height = (2 - frameMbsOnly) * heightInMapUnits * 16;
+        if (r.u(1) == 1) { // frame_cropping_flag
+            int left = r.ue();
+            int right = r.ue();
+            int top = r.ue();
+            int bottom = r.ue();
+            int cropUnitX = chromaFormatIdc == 0 || chromaFormatIdc == 3 ? 1 : 2;
+            int cropUnitY = (chromaFormatIdc == 1 ? 2 : 1) * (2 - frameMbsOnly);
+            width -= cropUnitX * (left + right);
+            height -= cropUnitY * (top + bottom);
+        }
+        return new int[]{width, height};
+    }
+
+    private static void skipScalingList(BitReader r, int size) {
+        int last = 8;
+        int next = 8;
+        for (int j = 0; j < size; j++) {
+            if (next != 0) {
+                next = (last + r.se() + 256) % 256;
+            }
+            last = next == 0 ? last : next;
+        }
+    }
+
+    /**
+     * H.265 SPS 中 hvcC 需要的字段
+     */
+    static final class HevcSps {
+        int maxSubLayersMinus1;
+        int temporalIdNesting;
+        int profileSpace;
+        int tierFlag;
+        int profileIdc;
+        long profileCompatibilityFlags;
+        final byte[] constraintFlags = new byte[6];
+        int levelIdc;
+        int chromaFormatIdc;
+        int bitDepthLumaMinus8;
+        int bitDepthChromaMinus8;
+        int width;
+        int height;
+
+        static HevcSps parse(byte[] nal) {
+            HevcSps s = new HevcSps();
+            BitReader r = new BitReader(unescape(nal, 2));
+            r.u(4); // sps_video_parameter_set_id
+            s.maxSubLayersMinus1 = r.u(3);
+            s.temporalIdNesting = r.u(1);
+            s.profileSpace = r.u(2);
+            s.tierFlag = r.u(1);
+            s.profileIdc = r.u(5);
+            s.profileCompatibilityFlags = ((long) r.u(16) << 16) | r.u(16);
+            for (int i = 0; i < 6; i++) {
+                s.constraintFlags[i] = (byte) r.u(8);
+            }
+            s.levelIdc = r.u(8);
+            boolean[] profilePresent = new boolean[8];
+            boolean[] levelPresent = new boolean[8];
+            for (int i = 0; i < s.maxSubLayersMinus1; i++) {
+                profilePresent[i] = r.u(1) == 1;
+                levelPresent[i] = r.u(1) == 1;
+            }
+            if (s.maxSubLayersMinus1 > 0) {
+                for (int i = s.maxSubLayersMinus1; i < 8; i++) {
+                    r.u(2);
+                }
+            }
+            for (int i = 0; i < s.maxSubLayersMinus1; i++) {
+                if (profilePresent[i]) {
+                    r.skip(88);
+                }
+                if (levelPresent[i]) {
+                    r.skip(8);
+                }
+            }
+            r.ue(); // sps_seq_parameter_set_id
+            s.chromaFormatIdc = r.ue();
+            if (s.chromaFormatIdc == 3) {
+                r.u(1);
+            }
+            s.width = r.ue();
+            s.height = r.ue();
+            if (r.u(1) == 1) { // conformance_window_flag
+                int left = r.ue();
+                int right = r.ue();
+                int top = r.ue();
+                int bottom = r.ue();
+                int subWidth = s.chromaFormatIdc == 1 || s.chromaFormatIdc == 2 ? 2 : 1;
+                int subHeight = s.chromaFormatIdc == 1 ? 2 : 1;
+                s.width -= subWidth * (left + right);
+                s.height -= subHeight * (top + bottom);
+            }
+            s.bitDepthLumaMinus8 = r.ue();
+            s.bitDepthChromaMinus8 = r.ue();
+            return s;
+        }
+    }
+
+    // 去掉 NAL 头和防竞争字节（00 00 03 → 00 00）
+    private static byte[] unescape(byte[] nal, int headerLength) {
+        byte[] out = new byte[nal.length];
+        int n = 0;
+        int zeros = 0;
+        for (int i = headerLength; i < nal.length; i++) {
+            int v = nal[i] & 0xFF;
+            if (zeros >= 2 && v == 3) {
+                zeros = 0;
+                continue;
+            }
+            out[n++] = (byte) v;
+            zeros = v == 0 ? zeros + 1 : 0;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static final class BitReader {
+        private final byte[] data;
+        private int bit;
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        int u(int n) {
+            int v = 0;
+            for (int i = 0; i < n; i++) {
+                int index = bit >> 3;
+                int b = index < data.length ? (data[index] >> (7 - (bit & 7))) & 1 : 0;
+                v = (v << 1) | b;
+                bit++;
+            }
+            return v;
+        }
+
+        void skip(int n) {
+            bit += n;
+        }
+
+        int ue() {
+            int leadingZeros = 0;
+            while (u(1) == 0 && leadingZeros < 32) {
+                leadingZeros++;
+            }
+            return leadingZeros == 0 ? 0 : (int) ((1L << leadingZeros) - 1 + u(leadingZeros));
+        }
+
+        int se() {
+            int v = ue();
+            return (v & 1) == 1 ? (v + 1) / 2 : -(v / 2);
+        }
+    }
+
+    // 33 位 PTS/DTS 回绕处理
+    private static final class TimestampUnwrapper {
+        private long last = -1;
+        private long offset;
+
+        long unwrap(long raw) {
+            long v = raw + offset;
+            if (last >= 0 && v < last - (1L << 32)) {
+                offset += 1L << 33;
+                v += 1L << 33;
+            }
+            last = v;
+            return v;
+        }
+    }
+
+    private static final class ByteBuf {
+        byte[] data = new byte[256 * 1024];
+        int length;
+
+        void append(byte[] src, int offset, int n) {
+            ensure(length + n);
+            System.arraycopy(src, offset, data, length, n);
+            length += n;
+        }
+
+        void appendU32(int v) {
+            ensure(length + 4);
+            data[length++] = (byte) (v >>> 24);
+            data[length++] = (byte) (v >>> 16);
+            data[length++] = (byte) (v >>> 8);
+            data[length++] = (byte) v;
+        }
+
+        void consume(int n) {
+            System.arraycopy(data, n, data, 0, length - n);
+            length -= n;
+        }
+
+        private void ensure(int capacity) {
+            if (capacity > data.length) {
+                data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+            }
+        }
+    }
+}
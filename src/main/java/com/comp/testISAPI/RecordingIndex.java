@@ -0,0 +1,644 @@
+package com.comp.testISAPI;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地录像时间线索引
+ * - 每个设备（deviceIp:port）的每个轨道一份索引：录像分段按时间分桶保存，另记录哪些时间段已向设备查询过（覆盖区间）
+ * - 索引按凭据摘要（DeviceClientCache.key）隔离：只有用同一组账号密码查询过的结果才会命中，
+ *   换一个账号或输错密码都要向设备重新查询（由设备做认证）
+ * - 搜索时只向设备查询未覆盖或已过期的空档，已覆盖部分直接从索引返回
+ * - 覆盖区间超过 TTL 视为过期；设备当前时间往前 recent 范围内（可能仍在录像）从不记为覆盖，每次都重新查询
+ * - 查询某个空档后，先删除索引中与该空档重叠的分段，再写入设备返回的结果（仍在录像的分段结束时间会变长）
+ * - 设备结果因分页上限被截断时，分段照常写入，但该空档不记为覆盖，下次仍向设备查询
+ * - 时间一律使用搜索接口的字面时间（yyyy-MM-dd'T'HH:mm:ss'Z'，设备本地时间或 UTC，取决于时间模式），
+ *   同一设备前后一致即可，不做时区换算；文件中记录写入时的时间模式，与当前模式不同时整体丢弃
+ * 索引可保存到本地文件（启动时加载，定期和关闭时写回；文件仅当前用户可读写），超过上限时淘汰最久未使用的轨道。
+ */
+public class RecordingIndex {
+
+    private static final Logger log = Logger.getLogger(RecordingIndex.class);
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    private static final int VERSION = 2; // 2：轨道按凭据隔离
+    private static final TypeReference<Map<String, Object>> DOCUMENT = new TypeReference<Map<String, Object>>() {};
+
+    public static final String HIT = "hit";
+    public static final String PARTIAL = "partial";
+    public static final String MISS = "miss";
+
+    /**
+     * 向设备查询一个时间段（字面时间）
+     */
+    public interface Loader {
+        Fetched search(String start, String end) throws Exception;
+    }
+
+    /**
+     * 设备对一个时间段的查询结果
+     */
+    public static final class Fetched {
+        public final List<ISAPIWebServer.RecordingInfo> recordings;
+        public final boolean truncated; // 达到分页上限，结果不完整
+
+        public Fetched(List<ISAPIWebServer.RecordingInfo> recordings, boolean truncated) {
+            this.recordings = recordings;
+            this.truncated = truncated;
+        }
+    }
+
+    /**
+     * 一次索引查询的结果
+     */
+    public static final class Lookup {
+        public final List<ISAPIWebServer.RecordingInfo> recordings;
+        public final String result; // hit / partial / miss
+        public final List<String> deviceQueries; // 实际向设备查询的时间段
+        public final boolean truncated; // 某次设备查询达到分页上限，结果不完整
+
+        Lookup(List<ISAPIWebServer.RecordingInfo> recordings, String result, List<String> deviceQueries,
+               boolean truncated) {
+            this.recordings = recordings;
+            this.result = result;
+            this.deviceQueries = deviceQueries;
+            this.truncated = truncated;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("result", result);
+            map.put("deviceQueries", deviceQueries);
+            map.put("truncated", truncated);
+            return map;
+        }
+    }
+
+    private static final class Coverage {
+        final long end;
+        final long fetchedAt;
+
+        Coverage(long end, long fetchedAt) {
+            this.end = end;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static final class Segment {
+        final long start;
+        final long end;
+        final ISAPIWebServer.RecordingInfo info;
+
+        Segment(long start, long end, ISAPIWebServer.RecordingInfo info) {
+            this.start = start;
+            this.end = end;
+            this.info = info;
+        }
+
+        String key() {
+            return start + "|" + end + "|" + info.playbackURI;
+        }
+    }
+
+    // 单个轨道的索引；分段放入与其时间范围重叠的每个桶
+    private static final class Track {
+        final String deviceKey;
+        final String credential;
+        final String trackId;
+        final TreeMap<Long, Coverage> coverage = new TreeMap<>(); // 起点 → 区间，互不重叠
+        final TreeMap<Long, Map<String, Segment>> buckets = new TreeMap<>();
+        volatile long lastUsedAt = System.currentTimeMillis();
+        int segmentCount;
+
+        Track(String deviceKey, String credential, String trackId) {
+            this.deviceKey = deviceKey;
+            this.credential = credential;
+            this.trackId = trackId;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long recentSeconds;
+    private final long bucketSeconds;
+    private final int maxTracks;
+    private final String timeMode;
+    private final File file;
+    private final ObjectMapper json = new ObjectMapper();
+    // 访问顺序，最久未使用的在最前面
+    private final LinkedHashMap<String, Track> tracks = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile boolean dirty;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong partialCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong deviceQueryCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private volatile long lastSavedAt;
+    private volatile String lastError;
+
+    /**
+     * @param ttl           覆盖区间的有效期，过期后重新向设备查询
+     * @param recentMinutes 设备当前时间往前多少分钟内不记为覆盖
+     * @param bucketMinutes 分桶粒度；间隔小于一个桶的空档合并为一次设备查询
+     * @param timeMode      时间模式（决定字面时间是设备本地时间还是 UTC），随文件保存
+     * @param file          持久化文件，null 时只在内存中
+     */
+    public RecordingIndex(long ttl, TimeUnit unit, int recentMinutes, int bucketMinutes, int maxTracks,
+                          String timeMode, File file) {
+        this.ttlMillis = unit.toMillis(ttl);
+        this.recentSeconds = TimeUnit.MINUTES.toSeconds(Math.max(0, recentMinutes));
+        this.bucketSeconds = TimeUnit.MINUTES.toSeconds(Math.max(1, bucketMinutes));
+        this.maxTracks = Math.max(1, maxTracks);
+        this.timeMode = timeMode;
+        this.file = file;
+    }
+
+    /**
+     * 按索引回答 [start, end) 的搜索，未覆盖的空档通过 loader 向设备查询并写入索引
+     *
+     * @param credential 凭据摘要，索引只在同一设备、同一凭据内共享
+     * @param deviceNow  设备当前的字面时间，用于确定不记为覆盖的最近时段；null 时整段都不记为覆盖
+     * @param refresh    忽略已有覆盖，整段重新向设备查询（结果仍写入索引）
+     */
+    public Lookup search(String deviceKey, String credential, String trackId, String start, String end,
+                         LocalDateTime deviceNow, boolean refresh, Loader loader) throws Exception {
+        long from = parse(start);
+        long to = parse(end);
+        if (from < 0 || to <= from) {
+            missCount.incrementAndGet();
+            deviceQueryCount.incrementAndGet();
+            Fetched fetched = loader.search(start, end);
+            return new Lookup(fetched.recordings, MISS, Collections.singletonList(start + "~" + end), fetched.truncated);
+        }
+        long cutoff = deviceNow != null ? deviceNow.toEpochSecond(ZoneOffset.UTC) - recentSeconds : Long.MIN_VALUE;
+        Track track = track(deviceKey, credential, trackId);
+
+        List<long[]> gaps;
+        synchronized (track) {
+            track.lastUsedAt = System.currentTimeMillis();
+            gaps = refresh ? Collections.singletonList(new long[]{from, to}) : gaps(track, from, to);
+        }
+        List<String> queried = new ArrayList<>();
+        boolean truncated = false;
+        Map<String, ISAPIWebServer.RecordingInfo> uncacheable = new LinkedHashMap<>();
+        for (long[] gap : gaps) {
+            String gapStart = format(gap[0]);
+            String gapEnd = format(gap[1]);
+            queried.add(gapStart + "~" + gapEnd);
+            deviceQueryCount.incrementAndGet();
+            Fetched fetched = loader.search(gapStart, gapEnd);
+            long fetchedAt = System.currentTimeMillis();
+            truncated |= fetched.truncated;
+            synchronized (track) {
+                removeOverlapping(track, gap[0], gap[1]);
+                // 截断的结果缺少后面的分段，不能当作该空档的完整答案
+                boolean complete = !fetched.truncated;
+                for (ISAPIWebServer.RecordingInfo rec : fetched.recordings) {
+                    long recStart = parse(rec.startTime);
+                    long recEnd = parse(rec.endTime);
+                    if (recStart < 0 || recEnd < recStart) {
+                        // 时间无法解析的分段不进索引，本次照常返回，该空档也不记为覆盖
+                        uncacheable.put(valueOrEmpty(rec.playbackURI) + "|" + valueOrEmpty(rec.startTime), rec);
+                        complete = false;
+                        continue;
+                    }
+                    add(track, new Segment(recStart, recEnd, rec));
+                }
+                long coveredEnd = Math.min(gap[1], cutoff);
+                if (complete && coveredEnd > gap[0]) {
+                    cover(track, gap[0], coveredEnd, fetchedAt);
+                }
+                dirty = true;
+            }
+        }
+
+        List<ISAPIWebServer.RecordingInfo> recordings;
+        synchronized (track) {
+            recordings = collect(track, from, to);
+        }
+        recordings.addAll(uncacheable.values());
+        String result = gaps.isEmpty() ? HIT : covered(gaps, from, to) ? MISS : PARTIAL;
+        if (HIT.equals(result)) {
+            hitCount.incrementAndGet();
+        } else if (MISS.equals(result)) {
+            missCount.incrementAndGet();
+        } else {
+            partialCount.incrementAndGet();
+        }
+        evictOverflow();
+        return new Lookup(recordings, result, queried, truncated);
+    }
+
+    /**
+     * 清空指定设备所有凭据下的索引（deviceKey 为 null 时清空全部），返回移除的轨道数
+     */
+    public int clear(String deviceKey) {
+        int removed = 0;
+        synchronized (tracks) {
+            Iterator<Track> it = tracks.values().iterator();
+            while (it.hasNext()) {
+                if (deviceKey == null || deviceKey.equals(it.next().deviceKey)) {
+                    it.remove();
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            dirty = true;
+        }
+        return removed;
+    }
+
+    public int segmentCount() {
+        int count = 0;
+        for (Track track : snapshot()) {
+            synchronized (track) {
+                count += track.segmentCount;
+            }
+        }
+        return count;
+    }
+
+    public Map<String, Long> lookupStats() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put(HIT, hitCount.get());
+        map.put(PARTIAL, partialCount.get());
+        map.put(MISS, missCount.get());
+        return map;
+    }
+
+    public Map<String, Object> stats() {
+        long now = System.currentTimeMillis();
+        long hits = hitCount.get();
+        long partial = partialCount.get();
+        long lookups = hits + partial + missCount.get();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("ttlSeconds", TimeUnit.MILLISECONDS.toSeconds(ttlMillis));
+        map.put("recentMinutes", TimeUnit.SECONDS.toMinutes(recentSeconds));
+        map.put("bucketMinutes", TimeUnit.SECONDS.toMinutes(bucketSeconds));
+        map.put("maxTracks", maxTracks);
+        map.put("timeMode", timeMode);
+        map.put("hits", hits);
+        map.put("partialHits", partial);
+        map.put("misses", missCount.get());
+        map.put("hitRatio", lookups > 0 ? (double) hits / lookups : 0.0);
+        map.put("deviceQueries", deviceQueryCount.get());
+        map.put("evictedTracks", evictionCount.get());
+        map.put("file", file != null ? file.getAbsolutePath() : null);
+        map.put("lastSavedSecondsAgo", lastSavedAt > 0 ? TimeUnit.MILLISECONDS.toSeconds(now - lastSavedAt) : null);
+        map.put("lastError", lastError);
+
+        Map<String, Map<String, Object>> rows = new TreeMap<>();
+        int segments = 0;
+        for (Track track : snapshot()) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            synchronized (track) {
+                long covered = 0;
+                long fresh = 0;
+                long oldest = 0;
+                for (Map.Entry<Long, Coverage> e : track.coverage.entrySet()) {
+                    long length = e.getValue().end - e.getKey();
+                    covered += length;
+                    if (isFresh(e.getValue(), now)) {
+                        fresh += length;
+                    }
+                    oldest = Math.max(oldest, now - e.getValue().fetchedAt);
+                }
+                segments += track.segmentCount;
+                row.put("segments", track.segmentCount);
+                row.put("buckets", track.buckets.size());
+                row.put("coveredMinutes", TimeUnit.SECONDS.toMinutes(covered));
+                row.put("freshMinutes", TimeUnit.SECONDS.toMinutes(fresh));
+                row.put("oldestCoverageSeconds", TimeUnit.MILLISECONDS.toSeconds(oldest));
+                row.put("idleSeconds", TimeUnit.MILLISECONDS.toSeconds(now - track.lastUsedAt));
+            }
+            rows.put(track.deviceKey + "/" + track.trackId + "#" + shortCredential(track.credential), row);
+        }
+        map.put("tracks", rows.size());
+        map.put("segments", segments);
+        map.put("perTrack", rows);
+        return map;
+    }
+
+    /**
+     * 从文件加载（文件不存在或损坏时从空索引开始）
+     */
+    @SuppressWarnings("unchecked")
+    public void load() {
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int loadedTracks = 0;
+        int loadedSegments = 0;
+        try {
+            Map<String, Object> document = json.readValue(file, DOCUMENT);
+            Object version = document.get("version");
+            if (!(version instanceof Number) || ((Number) version).intValue() != VERSION) {
+                // 旧版本的轨道没有凭据信息，无法判断该给谁用，整体丢弃
+                log.info("[录像索引] %s 版本 %s 与当前版本 %d 不一致，丢弃", file.getPath(), version, VERSION);
+                dirty = true;
+                return;
+            }
+            Object savedTimeMode = document.get("timeMode");
+            if (!Objects.equals(timeMode, savedTimeMode)) {
+                // 字面时间的含义变了（设备本地时间 / UTC），旧的覆盖区间和分段时间都对不上
+                log.info("[录像索引] %s 的时间模式 %s 与当前 %s 不一致，丢弃", file.getPath(), savedTimeMode, timeMode);
+                dirty = true;
+                return;
+            }
+            for (Object item : (List<Object>) document.getOrDefault("tracks", Collections.emptyList())) {
+                Map<String, Object> row = (Map<String, Object>) item;
+                if (row.get("credential") == null) {
+                    continue;
+                }
+                Track track = track(String.valueOf(row.get("device")), String.valueOf(row.get("credential")),
+                        String.valueOf(row.get("track")));
+                synchronized (track) {
+                    track.lastUsedAt = ((Number) row.getOrDefault("lastUsedAt", now)).longValue();
+                    for (Object c : (List<Object>) row.getOrDefault("coverage", Collections.emptyList())) {
+                        List<Number> range = (List<Number>) c;
+                        Coverage coverage = new Coverage(range.get(1).longValue(), range.get(2).longValue());
+                        if (isFresh(coverage, now)) {
+                            track.coverage.put(range.get(0).longValue(), coverage);
+                        }
+                    }
+                    for (Object s : (List<Object>) row.getOrDefault("segments", Collections.emptyList())) {
+                        ISAPIWebServer.RecordingInfo rec = ISAPIWebServer.RecordingInfo.fromMap((Map<String, Object>) s);
+                        long recStart = parse(rec.startTime);
+                        long recEnd = parse(rec.endTime);
+                        if (recStart >= 0 && recEnd >= recStart) {
+                            add(track, new Segment(recStart, recEnd, rec));
+                            loadedSegments++;
+                        }
+                    }
+                }
+                loadedTracks++;
+            }
+            log.info("[录像索引] 已加载 %d 个轨道, %d 个分段", loadedTracks, loadedSegments);
+        } catch (IOException | RuntimeException e) {
+            lastError = e.getMessage();
+            log.warn("[录像索引] 加载 %s 失败，从空索引开始: %s", file.getPath(), e.getMessage());
+        }
+    }
+
+    /**
+     * 有变化时写回文件（写临时文件后原子替换）；由定期清理任务和关闭钩子调用
+     */
+    public void saveIfDirty() {
+        if (file == null || !dirty) {
+            return;
+        }
+        dirty = false;
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Track track : snapshot()) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            synchronized (track) {
+                row.put("device", track.deviceKey);
+                row.put("credential", track.credential);
+                row.put("track", track.trackId);
+                row.put("lastUsedAt", track.lastUsedAt);
+                List<long[]> coverage = new ArrayList<>();
+                for (Map.Entry<Long, Coverage> e : track.coverage.entrySet()) {
+                    if (isFresh(e.getValue(), now)) {
+                        coverage.add(new long[]{e.getKey(), e.getValue().end, e.getValue().fetchedAt});
+                    }
+                }
+                row.put("coverage", coverage);
+                List<Map<String, Object>> segments = new ArrayList<>();
+                for (Segment segment : distinct(track, Long.MIN_VALUE, Long.MAX_VALUE)) {
+                    segments.add(segment.info.toMap());
+                }
+                row.put("segments", segments);
+            }
+            rows.add(row);
+        }
+        Map<String, Object> document = new LinkedHashMap<>();
+        document.put("version", VERSION);
+        document.put("timeMode", timeMode);
+        document.put("savedAt", now);
+        document.put("tracks", rows);
+
+        Path target = file.toPath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            // 先建好仅当前用户可读写的临时文件再写内容，替换后目标文件沿用该权限
+            Files.deleteIfExists(tmp);
+            Files.createFile(tmp);
+            restrictPermissions(tmp);
+            json.writeValue(tmp.toFile(), document);
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            lastSavedAt = now;
+            lastError = null;
+        } catch (IOException e) {
+            dirty = true;
+            lastError = e.getMessage();
+            log.error("[录像索引] 写入 %s 失败: %s", file.getPath(), e.getMessage());
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void restrictPermissions(Path path) {
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException | IOException ignored) {
+        }
+    }
+
+    private Track track(String deviceKey, String credential, String trackId) {
+        String key = credential + "/" + deviceKey + "/" + trackId;
+        synchronized (tracks) {
+            return tracks.computeIfAbsent(key, k -> new Track(deviceKey, credential, trackId));
+        }
+    }
+
+    private static String shortCredential(String credential) {
+        return credential.substring(0, Math.min(8, credential.length()));
+    }
+
+    private List<Track> snapshot() {
+        synchronized (tracks) {
+            return new ArrayList<>(tracks.values());
+        }
+    }
+
+    private void evictOverflow() {
+        synchronized (tracks) {
+            while (tracks.size() > maxTracks) {
+                Iterator<Map.Entry<String, Track>> it = tracks.entrySet().iterator();
+                Track eldest = it.next().getValue();
+                it.remove();
+                evictionCount.incrementAndGet();
+                dirty = true;
+                log.debug("[录像索引] 超过上限 %d，淘汰 %s/%s", maxTracks, eldest.deviceKey, eldest.trackId);
+            }
+        }
+    }
+
+    private boolean isFresh(Coverage coverage, long now) {
+        return ttlMillis > 0 && now - coverage.fetchedAt < ttlMillis;
+    }
+
+    // [from, to) 中未被有效覆盖区间覆盖的空档；间隔小于一个桶的相邻空档合并，减少设备查询次数
+    private List<long[]> gaps(Track track, long from, long to) {
+        long now = System.currentTimeMillis();
+        List<long[]> gaps = new ArrayList<>();
+        long cursor = from;
+        Map.Entry<Long, Coverage> floor = track.coverage.floorEntry(from);
+        Long startKey = floor != null ? floor.getKey() : from;
+        for (Map.Entry<Long, Coverage> e : track.coverage.tailMap(startKey, true).entrySet()) {
+            if (e.getKey() >= to) {
+                break;
+            }
+            if (!isFresh(e.getValue(), now) || e.getValue().end <= cursor) {
+                continue;
+            }
+            if (e.getKey() > cursor) {
+                addGap(gaps, cursor, e.getKey());
+            }
+            cursor = Math.max(cursor, e.getValue().end);
+        }
+        if (cursor < to) {
+            addGap(gaps, cursor, to);
+        }
+        return gaps;
+    }
+
+    private void addGap(List<long[]> gaps, long from, long to) {
+        if (!gaps.isEmpty()) {
+            long[] last = gaps.get(gaps.size() - 1);
+            if (from - last[1] < bucketSeconds) {
+                last[1] = to;
+                return;
+            }
+        }
+        gaps.add(new long[]{from, to});
+    }
+
+    private static boolean covered(List<long[]> gaps, long from, long to) {
+        return gaps.size() == 1 && gaps.get(0)[0] == from && gaps.get(0)[1] == to;
+    }
+
+    // 记录覆盖区间：与已有区间重叠的部分以新区间为准
+    private void cover(Track track, long from, long to, long fetchedAt) {
+        Map.Entry<Long, Coverage> floor = track.coverage.floorEntry(from);
+        if (floor != null && floor.getValue().end > from) {
+            track.coverage.put(floor.getKey(), new Coverage(from, floor.getValue().fetchedAt));
+            if (floor.getValue().end > to) {
+                track.coverage.put(to, new Coverage(floor.getValue().end, floor.getValue().fetchedAt));
+            }
+        }
+        Iterator<Map.Entry<Long, Coverage>> it = track.coverage.subMap(from, true, to, false).entrySet().iterator();
+        List<Map.Entry<Long, Coverage>> tails = new ArrayList<>();
+        while (it.hasNext()) {
+            Map.Entry<Long, Coverage> e = it.next();
+            if (e.getValue().end > to) {
+                tails.add(new AbstractMap.SimpleEntry<>(to, new Coverage(e.getValue().end, e.getValue().fetchedAt)));
+            }
+            it.remove();
+        }
+        for (Map.Entry<Long, Coverage> tail : tails) {
+            track.coverage.put(tail.getKey(), tail.getValue());
+        }
+        track.coverage.put(from, new Coverage(to, fetchedAt));
+    }
+
+    private void add(Track track, Segment segment) {
+        boolean added = false;
+        for (long bucket = bucketOf(segment.start); bucket <= bucketOf(segment.end); bucket += bucketSeconds) {
+            Map<String, Segment> contents = track.buckets.computeIfAbsent(bucket, k -> new LinkedHashMap<>());
+            added |= contents.put(segment.key(), segment) == null;
+        }
+        if (added) {
+            track.segmentCount++;
+        }
+    }
+
+    private void removeOverlapping(Track track, long from, long to) {
+        for (Segment segment : distinct(track, from, to)) {
+            for (long bucket = bucketOf(segment.start); bucket <= bucketOf(segment.end); bucket += bucketSeconds) {
+                Map<String, Segment> contents = track.buckets.get(bucket);
+                if (contents != null) {
+                    contents.remove(segment.key());
+                    if (contents.isEmpty()) {
+                        track.buckets.remove(bucket);
+                    }
+                }
+            }
+            track.segmentCount--;
+        }
+    }
+
+    private List<ISAPIWebServer.RecordingInfo> collect(Track track, long from, long to) {
+        List<ISAPIWebServer.RecordingInfo> recordings = new ArrayList<>();
+        for (Segment segment : distinct(track, from, to)) {
+            recordings.add(segment.info);
+        }
+        return recordings;
+    }
+
+    // 与 [from, to) 重叠的分段（跨桶的分段只出现一次），按开始时间排序
+    private List<Segment> distinct(Track track, long from, long to) {
+        Map<String, Segment> found = new LinkedHashMap<>();
+        NavigableMap<Long, Map<String, Segment>> range = from == Long.MIN_VALUE
+                ? track.buckets
+                : track.buckets.subMap(bucketOf(from), true, to, false);
+        for (Map<String, Segment> contents : range.values()) {
+            for (Segment segment : contents.values()) {
+                boolean overlaps = segment.start < to && (segment.end > from || segment.start >= from);
+                if (overlaps) {
+                    found.putIfAbsent(segment.key(), segment);
+                }
+            }
+        }
+        List<Segment> segments = new ArrayList<>(found.values());
+        segments.sort(Comparator.comparingLong((Segment s) -> s.start).thenComparingLong(s -> s.end));
+        return segments;
+    }
+
+    private long bucketOf(long epochSecond) {
+        return Math.floorDiv(epochSecond, bucketSeconds) * bucketSeconds;
+    }
+
+    private static long parse(String time) {
+        if (time == null || time.length() < 19) {
+            return -1;
+        }
+        try {
+            return LocalDateTime.parse(time.substring(0, 19)).toEpochSecond(ZoneOffset.UTC);
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static String format(long epochSecond) {
+        return TIME_FORMAT.format(LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC));
+    }
+
+    private static String valueOrEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
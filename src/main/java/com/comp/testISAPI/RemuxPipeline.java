@@ -0,0 +1,258 @@
+package com.comp.testISAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 边下载边转封装
+ * - 下载线程每收到一块数据就交给 feed，后台线程用 PsToMp4Remuxer 解复用并直接写出最终 MP4（含时间窗口截取）
+ * - 数据块经有界队列传递：转封装跟不上时下载线程等待，内存占用固定
+ * - 只处理从头开始的 MPEG-PS 下载；首块数据不是 PS、转封装失败或被放弃时只记录原因，
+ *   下载照常完成，调用方回退到 tmp 文件 → 转封装 → 裁剪 的串行流程
+ * - 到达时间窗口结束后 windowComplete() 返回 true，调用方可以提前结束下载
+ */
+public class RemuxPipeline {
+
+    private static final Logger log = Logger.getLogger(RemuxPipeline.class);
+    private static final byte[] END = new byte[0];
+    private static final int QUEUE_CHUNKS = 64;
+
+    private final File output;
+    private final PsToMp4Remuxer.Options options;
+    private final BooleanSupplier cancelled;
+
+    private BlockingQueue<byte[]> queue;
+    private Thread worker;
+    private volatile boolean stopped;
+    private volatile String failure;
+    private volatile PsToMp4Remuxer.Result result;
+    private long bytesFed;
+
+    public RemuxPipeline(File output, PsToMp4Remuxer.Options options, BooleanSupplier cancelled) {
+        this.output = output;
+        this.options = options;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * 开始一次新的传输（每次下载尝试调用一次，会丢弃上次尝试的状态）
+     */
+    public void begin() {
+        abort();
+        failure = null;
+        result = null;
+        stopped = false;
+        bytesFed = 0;
+    }
+
+    /**
+     * 本次传输不走流水线（如断点续传：之前的数据已在磁盘上）
+     */
+    public void skip(String reason) {
+        abort();
+        failure = null;
+        result = null;
+        fail(reason);
+    }
+
+    /**
+     * 交给后台线程转封装；流水线已失败或结束时直接忽略
+     */
+    public void feed(byte[] data, int offset, int length) throws IOException {
+        if (stopped || failure != null || length <= 0) {
+            return;
+        }
+        if (worker == null) {
+            if (bytesFed > 0 || !looksLikeProgramStream(data, offset, length)) {
+                fail("数据不是 MPEG-PS");
+                return;
+            }
+            start();
+        }
+        bytesFed += length;
+        byte[] chunk = new byte[length];
+        System.arraycopy(data, offset, chunk, 0, length);
+        put(chunk);
+    }
+
+    /**
+     * 输入结束：等待后台线程写完 MP4；失败时返回 null（原因见 failure()）
+     */
+    public PsToMp4Remuxer.Result finish() throws IOException {
+        if (worker == null) {
+            if (failure == null) {
+                fail("没有收到数据");
+            }
+            return null;
+        }
+        put(END);
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new IOException("任务已取消", e);
+        }
+        worker = null;
+        return result;
+    }
+
+    /**
+     * 放弃本次转封装并删除输出文件
+     */
+    public void abort() {
+        Thread current = worker;
+        worker = null;
+        stopped = true;
+        if (current != null) {
+            current.interrupt();
+            try {
+                current.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (queue != null) {
+            queue.clear();
+        }
+        if (result == null) {
+            deleteOutput();
+        }
+    }
+
+    /**
+     * 已到达时间窗口结束位置，剩余数据无需再下载
+     */
+    public boolean windowComplete() {
+        PsToMp4Remuxer.Result current = result;
+        return current != null && current.windowComplete;
+    }
+
+    public boolean active() {
+        return worker != null && failure == null && !stopped;
+    }
+
+    public String failure() {
+        return failure;
+    }
+
+    public File output() {
+        return output;
+    }
+
+    private void start() {
+        queue = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        BlockingQueue<byte[]> source = queue;
+        worker = new Thread(() -> {
+            try (InputStream in = new QueueInputStream(source)) {
+                PsToMp4Remuxer.Result r = PsToMp4Remuxer.remux(in, output, options, cancelled);
+                result = r;
+                if (r.windowComplete) {
+                    stopped = true; // 窗口已写完，之后的数据不再入队
+                }
+            } catch (IOException e) {
+                fail(e.getMessage());
+                deleteOutput();
+            } catch (RuntimeException e) {
+                fail(e.toString());
+                deleteOutput();
+            }
+        }, "remux-pipeline");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // 后台线程已退出（失败或窗口结束）时不再阻塞等待队列空间
+    private void put(byte[] chunk) throws IOException {
+        try {
+            while (!queue.offer(chunk, 200, TimeUnit.MILLISECONDS)) {
+                Thread current = worker;
+                if (current == null || !current.isAlive()) {
+                    return;
+                }
+                if (cancelled.getAsBoolean()) {
+                    throw new IOException("任务已取消");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("任务已取消", e);
+        }
+    }
+
+    private void fail(String reason) {
+        if (failure == null) {
+            failure = reason != null ? reason : "未知错误";
+            log.info("[边下载边转封装] 放弃: %s（已接收 %d 字节），下载完成后按原流程处理", failure, bytesFed);
+        }
+    }
+
+    private void deleteOutput() {
+        try {
+            Files.deleteIfExists(output.toPath());
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static boolean looksLikeProgramStream(byte[] b, int off, int len) {
+        return len >= 4 && b[off] == 0 && b[off + 1] == 0 && b[off + 2] == 1 && (b[off + 3] & 0xFF) == 0xBA;
+    }
+
+    /**
+     * 从队列读取数据块的输入流，读到 END 即结束
+     */
+    private static final class QueueInputStream extends InputStream {
+        private final BlockingQueue<byte[]> queue;
+        private byte[] current;
+        private int pos;
+        private boolean eof;
+
+        QueueInputStream(BlockingQueue<byte[]> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return current[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private boolean fill() throws IOException {
+            while (!eof && (current == null || pos >= current.length)) {
+                try {
+                    current = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("转封装已中止", e);
+                }
+                pos = 0;
+                if (current == END) {
+                    eof = true;
+                }
+            }
+            return !eof;
+        }
+    }
+}
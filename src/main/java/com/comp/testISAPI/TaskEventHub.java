@@ -0,0 +1,580 @@
+package com.comp.testISAPI;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 下载任务进度推送（Server-Sent Events）
+ * - 每个被订阅的任务对应一个频道，后台线程按固定间隔比较任务字段，只推送变化：status / progress / segment / file / log / end
+ * - 字节进度的推送频率由间隔决定，与下载线程的更新频率无关
+ * - 事件 id 为 "频道纪元-序号"，频道保留最近的事件；客户端带 Last-Event-ID 重连时补发缺失事件，
+ *   补不上（频道已重建或事件已被挤出）时改发一次完整快照
+ * - HttpServer 线程只负责登记订阅后立即返回，写出由少量专用线程完成，不会按订阅者占用请求线程
+ * - 任务结束后发送 end 事件并关闭连接；订阅者积压过多（客户端不读）时直接断开，由客户端重连补发
+ * - 单次写出超过 WRITE_TIMEOUT_MILLIS 未返回（客户端不读、发送缓冲区已满）时由巡检断开该订阅者，
+ *   并临时给写出线程池补一个线程，卡住的写出不会拖住其他订阅者
+ * - 关闭连接（exchange.close 可能阻塞）交给单独的线程，不在频道锁内、也不在巡检线程上执行
+ */
+public class TaskEventHub {
+
+    private static final Logger log = Logger.getLogger(TaskEventHub.class);
+
+    private static final int REPLAY_EVENTS = 256;
+    private static final int MAX_PENDING_FRAMES = 1024;
+    private static final long CHANNEL_IDLE_MILLIS = 60_000;
+    private static final int RETRY_MILLIS = 3000;
+    private static final int WRITER_THREADS = 2;
+    private static final long WRITE_TIMEOUT_MILLIS = 10_000;
+
+    private final Function<String, ISAPIWebServer.DownloadTask> lookup;
+    private final Function<ISAPIWebServer.DownloadTask, Map<String, Object>> snapshotter;
+    private final Predicate<String> terminalStatus;
+    private final long heartbeatMillis;
+    private final int maxSubscribers;
+    private final ObjectMapper json = new ObjectMapper();
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "task-events");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ThreadPoolExecutor writers = new ThreadPoolExecutor(WRITER_THREADS, WRITER_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "task-events-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService closers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "task-events-closer");
+        t.setDaemon(true);
+        return t;
+    });
+    private int stuckWriters; // 受 writers 锁保护
+
+    private final AtomicLong subscribeCount = new AtomicLong();
+    private final AtomicLong replayCount = new AtomicLong();
+    private final AtomicLong snapshotCount = new AtomicLong();
+    private final AtomicLong eventCount = new AtomicLong();
+    private final AtomicLong droppedSubscriberCount = new AtomicLong();
+    private final AtomicLong writeTimeoutCount = new AtomicLong();
+
+    public TaskEventHub(Function<String, ISAPIWebServer.DownloadTask> lookup,
+                        Function<ISAPIWebServer.DownloadTask, Map<String, Object>> snapshotter,
+                        Predicate<String> terminalStatus,
+                        long progressIntervalMillis, long heartbeatMillis, int maxSubscribers) {
+        this.lookup = lookup;
+        this.snapshotter = snapshotter;
+        this.terminalStatus = terminalStatus;
+        this.heartbeatMillis = heartbeatMillis;
+        this.maxSubscribers = maxSubscribers;
+        long interval = Math.max(100, progressIntervalMillis);
+        ticker.scheduleWithFixedDelay(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 登记订阅：调用方需已发送 200 响应头（分块传输），本方法写入首批事件后立即返回。
+     * 订阅数已满时返回 false，调用方自行回复错误
+     *
+     * @param lastEventId 客户端最后收到的事件 id（Last-Event-ID），没有时为 null
+     */
+    public boolean subscribe(ISAPIWebServer.DownloadTask task, HttpExchange exchange, String lastEventId) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return false;
+        }
+        subscribeCount.incrementAndGet();
+        Subscriber subscriber = new Subscriber(exchange);
+        subscriber.enqueue("retry: " + RETRY_MILLIS + "\n\n");
+        while (true) {
+            Channel channel = channels.computeIfAbsent(task.taskId, id -> new Channel(task));
+            synchronized (channel) {
+                if (channel.released) {
+                    continue; // 刚被释放，取新频道
+                }
+                attach(channel, task, subscriber, lastEventId);
+            }
+            return true;
+        }
+    }
+
+    // 需持有 channel 锁
+    private void attach(Channel channel, ISAPIWebServer.DownloadTask task, Subscriber subscriber, String lastEventId) {
+        // 先把已发生的变化推给现有订阅者，新订阅者从此刻的状态开始
+        poll(channel);
+        List<Event> missed = channel.eventsAfter(lastEventId);
+        if (missed != null) {
+            replayCount.incrementAndGet();
+            for (Event event : missed) {
+                subscriber.enqueue(event.frame);
+            }
+        } else {
+            snapshotCount.incrementAndGet();
+            Map<String, Object> snapshot = snapshotter.apply(task);
+            snapshot.put("logSeq", channel.logSeq);
+            subscriber.enqueue(frame(channel.currentId(), "snapshot", snapshot));
+        }
+        if (channel.ended) {
+            if (missed == null) {
+                subscriber.enqueue(channel.recent.peekLast().frame); // 快照后补上 end
+            }
+            subscriber.closeAfterDrain();
+        } else {
+            channel.subscribers.add(subscriber);
+        }
+        channel.idleSince = 0;
+    }
+
+    public boolean full() {
+        return subscriberCount.get() >= maxSubscribers;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("channels", channels.size());
+        map.put("subscribers", subscriberCount.get());
+        map.put("maxSubscribers", maxSubscribers);
+        map.put("subscribeCount", subscribeCount.get());
+        map.put("replayCount", replayCount.get());
+        map.put("snapshotCount", snapshotCount.get());
+        map.put("eventCount", eventCount.get());
+        map.put("droppedSubscriberCount", droppedSubscriberCount.get());
+        map.put("writeTimeoutCount", writeTimeoutCount.get());
+        synchronized (writers) {
+            map.put("stuckWriters", stuckWriters);
+        }
+        return map;
+    }
+
+    public void shutdown() {
+        ticker.shutdownNow();
+        for (Channel channel : channels.values()) {
+            synchronized (channel) {
+                for (Subscriber subscriber : channel.subscribers) {
+                    subscriber.closeAfterDrain();
+                }
+                channel.subscribers.clear();
+            }
+        }
+        channels.clear();
+        writers.shutdown();
+        closers.shutdown();
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (Channel channel : channels.values()) {
+            try {
+                synchronized (channel) {
+                    poll(channel);
+                    for (Subscriber subscriber : channel.subscribers) {
+                        subscriber.checkWriteDeadline(now);
+                    }
+                    channel.subscribers.removeIf(s -> s.closed.get());
+                    for (Subscriber subscriber : channel.subscribers) {
+                        if (now - subscriber.lastEnqueueAt >= heartbeatMillis) {
+                            subscriber.enqueue(": ping\n\n");
+                        }
+                    }
+                    if (!channel.subscribers.isEmpty()) {
+                        channel.idleSince = 0;
+                    } else if (channel.idleSince == 0) {
+                        channel.idleSince = now;
+                    }
+                    // 无人订阅一段时间后释放频道；这段时间内重连仍可补发
+                    if (channel.idleSince > 0 && (channel.ended || now - channel.idleSince > CHANNEL_IDLE_MILLIS)) {
+                        channel.released = true;
+                        channels.remove(channel.taskId, channel);
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.warn("[进度推送] 任务 %s 处理失败: %s", channel.taskId, e.toString());
+            }
+        }
+    }
+
+    // 对比任务当前字段与上次推送的状态，把变化追加为事件并发给订阅者（需持有 channel 锁）
+    private void poll(Channel channel) {
+        if (channel.ended) {
+            return;
+        }
+        ISAPIWebServer.DownloadTask task = lookup.apply(channel.taskId);
+        if (task != channel.task) {
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("status", "removed");
+            data.put("message", "任务不存在或已过期");
+            end(channel, data);
+            return;
+        }
+
+        Map<String, Object> state = new LinkedHashMap<>();
+        Map<String, Object> progress = new LinkedHashMap<>();
+        List<Map<String, Object>> changedSegments = new ArrayList<>();
+        List<String> newFiles;
+        List<String> newLines;
+        long skippedLines;
+        synchronized (task) {
+            state.put("status", task.status);
+            state.put("message", valueOrEmpty(task.message));
+            state.put("queuePosition", task.queuePosition);
+            state.put("total", task.total);
+            state.put("parallelism", task.parallelism);
+            state.put("currentFile", valueOrEmpty(task.currentFile));
+            state.put("requestedMethod", valueOrEmpty(task.requestedMethod));
+            state.put("effectiveMethod", valueOrEmpty(task.effectiveMethod));
+            state.put("fallbackUsed", task.fallbackUsed);
+            state.put("cancelRequested", task.cancelRequested);
+            state.put("timeBasis", valueOrEmpty(task.timeBasis));
+            state.put("deviceTimeZone", valueOrEmpty(task.deviceTimeZone));
+            state.put("deviceClockSkewSeconds", task.deviceClockSkewSeconds);
+            state.put("normalizedStart", valueOrEmpty(task.normalizedStart));
+            state.put("normalizedEnd", valueOrEmpty(task.normalizedEnd));
+
+            progress.put("current", task.current.get());
+            progress.put("success", task.success.get());
+            progress.put("failed", task.failed.get());
+            long totalBytes = task.totalBytes;
+            long expectedBytes = task.expectedBytes;
+            if (!task.segments.isEmpty()) {
+                // 与快照一致：当前文件进度取所有进行中分段之和
+                totalBytes = 0;
+                expectedBytes = 0;
+                boolean expectedKnown = true;
+                for (ISAPIWebServer.SegmentProgress seg : task.segments) {
+                    if ("downloading".equals(seg.status)) {
+                        totalBytes += seg.bytes;
+                        expectedBytes += seg.expectedBytes;
+                        expectedKnown &= seg.expectedBytes > 0;
+                    }
+                    String signature = seg.status + "|" + seg.bytes + "|" + seg.expectedBytes + "|" + seg.error;
+                    if (!signature.equals(channel.segmentSignatures.put(seg.index, signature))) {
+                        changedSegments.add(seg.toMap());
+                    }
+                }
+                if (!expectedKnown) {
+                    expectedBytes = 0;
+                }
+            }
+            progress.put("totalBytes", totalBytes);
+            progress.put("expectedBytes", expectedBytes);
+            progress.put("totalDownloadedBytes", task.totalDownloadedBytes.get());
+
+            int fileCount = task.downloadedFiles.size();
+            newFiles = fileCount > channel.fileCount
+                    ? new ArrayList<>(task.downloadedFiles.subList(channel.fileCount, fileCount))
+                    : Collections.<String>emptyList();
+            channel.fileCount = fileCount;
+
+            long pendingLines = task.logSeq - channel.logSeq;
+            int available = (int) Math.min(pendingLines, task.logs.size());
+            newLines = available > 0
+                    ? new ArrayList<>(task.logs.subList(task.logs.size() - available, task.logs.size()))
+                    : Collections.<String>emptyList();
+            skippedLines = pendingLines - available;
+            channel.logSeq = task.logSeq;
+        }
+
+        Map<String, Object> stateDelta = delta(channel.lastState, state);
+        if (!stateDelta.isEmpty()) {
+            append(channel, "status", stateDelta);
+        }
+        Map<String, Object> progressDelta = delta(channel.lastProgress, progress);
+        if (!progressDelta.isEmpty()) {
+            append(channel, "progress", progressDelta);
+        }
+        for (Map<String, Object> segment : changedSegments) {
+            append(channel, "segment", segment);
+        }
+        if (!newFiles.isEmpty()) {
+            append(channel, "file", Collections.singletonMap("files", newFiles));
+        }
+        if (!newLines.isEmpty() || skippedLines > 0) {
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("seq", channel.logSeq);
+            data.put("lines", newLines);
+            if (skippedLines > 0) {
+                data.put("skipped", skippedLines);
+            }
+            append(channel, "log", data);
+        }
+        if (terminalStatus.test(task.status)) {
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("status", task.status);
+            data.put("message", valueOrEmpty(task.message));
+            end(channel, data);
+        }
+    }
+
+    private void end(Channel channel, Map<String, Object> data) {
+        append(channel, "end", data);
+        channel.ended = true;
+        for (Subscriber subscriber : channel.subscribers) {
+            subscriber.closeAfterDrain();
+        }
+        channel.subscribers.clear();
+    }
+
+    private void append(Channel channel, String type, Object data) {
+        channel.seq++;
+        Event event = new Event(channel.seq, frame(channel.currentId(), type, data));
+        channel.recent.addLast(event);
+        while (channel.recent.size() > REPLAY_EVENTS) {
+            channel.recent.removeFirst();
+        }
+        eventCount.incrementAndGet();
+        for (Subscriber subscriber : channel.subscribers) {
+            subscriber.enqueue(event.frame);
+        }
+    }
+
+    // 只保留与上次不同的字段，并更新 last
+    private static Map<String, Object> delta(Map<String, Object> last, Map<String, Object> current) {
+        Map<String, Object> changed = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : current.entrySet()) {
+            if (!last.containsKey(entry.getKey()) || !Objects.equals(last.get(entry.getKey()), entry.getValue())) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        last.putAll(current);
+        return changed;
+    }
+
+    private String frame(String id, String type, Object data) {
+        String payload;
+        try {
+            payload = json.writeValueAsString(data);
+        } catch (JsonProcessingException e) {
+            payload = "{}";
+        }
+        // Jackson 输出不含换行，整段 JSON 放在一行 data 里
+        return "id: " + id + "\nevent: " + type + "\ndata: " + payload + "\n\n";
+    }
+
+    private static String valueOrEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    // 写出线程卡在阻塞写上时补一个线程，写出返回后收回
+    private void adjustWriters(int delta) {
+        synchronized (writers) {
+            stuckWriters += delta;
+            int size = WRITER_THREADS + stuckWriters;
+            if (delta > 0) {
+                writers.setMaximumPoolSize(size);
+                writers.setCorePoolSize(size);
+            } else {
+                writers.setCorePoolSize(size);
+                writers.setMaximumPoolSize(size);
+            }
+        }
+    }
+
+    private static final class Event {
+        final long seq;
+        final String frame;
+
+        Event(long seq, String frame) {
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+
+    private static final class Channel {
+        final String taskId;
+        final ISAPIWebServer.DownloadTask task;
+        final String epoch = Long.toString(System.currentTimeMillis(), 36);
+        final Deque<Event> recent = new ArrayDeque<>();
+        final List<Subscriber> subscribers = new ArrayList<>();
+        final Map<String, Object> lastState = new HashMap<>();
+        final Map<String, Object> lastProgress = new HashMap<>();
+        final Map<Integer, String> segmentSignatures = new HashMap<>();
+        long seq;
+        long logSeq;
+        int fileCount;
+        boolean ended;
+        boolean released;
+        long idleSince;
+
+        Channel(ISAPIWebServer.DownloadTask task) {
+            this.taskId = task.taskId;
+            this.task = task;
+        }
+
+        String currentId() {
+            return epoch + "-" + seq;
+        }
+
+        /**
+         * lastEventId 之后的事件；无法补发（没有 id、纪元不同、已被挤出）时返回 null
+         */
+        List<Event> eventsAfter(String lastEventId) {
+            if (lastEventId == null) {
+                return null;
+            }
+            int dash = lastEventId.lastIndexOf('-');
+            if (dash <= 0 || !epoch.equals(lastEventId.substring(0, dash))) {
+                return null;
+            }
+            long after;
+            try {
+                after = Long.parseLong(lastEventId.substring(dash + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (after > seq) {
+                return null;
+            }
+            long oldest = recent.isEmpty() ? seq + 1 : recent.peekFirst().seq;
+            if (after + 1 < oldest) {
+                return null;
+            }
+            List<Event> missed = new ArrayList<>();
+            for (Event event : recent) {
+                if (event.seq > after) {
+                    missed.add(event);
+                }
+            }
+            return missed;
+        }
+    }
+
+    /**
+     * 单个 SSE 连接：事件先进入队列，由写出线程按顺序写入并 flush，
+     * 同一连接同一时刻最多一个写出任务
+     */
+    private final class Subscriber {
+        final HttpExchange exchange;
+        final OutputStream out;
+        final Queue<String> pending = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pendingCount = new AtomicInteger();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicBoolean closed = new AtomicBoolean();
+        final AtomicBoolean stuck = new AtomicBoolean();
+        volatile boolean closing;
+        volatile long lastEnqueueAt;
+        volatile long writeStartedAt; // 0 表示当前没有进行中的写出
+
+        Subscriber(HttpExchange exchange) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+        }
+
+        void enqueue(String frame) {
+            if (closed.get() || closing) {
+                return;
+            }
+            if (pendingCount.incrementAndGet() > MAX_PENDING_FRAMES) {
+                if (close()) {
+                    droppedSubscriberCount.incrementAndGet();
+                    log.warn("[进度推送] 客户端 %s 长时间未读取，断开连接", exchange.getRemoteAddress());
+                }
+                return;
+            }
+            pending.add(frame);
+            lastEnqueueAt = System.currentTimeMillis();
+            schedule();
+        }
+
+        void closeAfterDrain() {
+            closing = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    writers.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    close();
+                }
+            }
+        }
+
+        // 巡检线程调用：写出超时则断开，并为卡住的写出线程补一个线程
+        void checkWriteDeadline(long now) {
+            long started = writeStartedAt;
+            if (started == 0 || now - started < WRITE_TIMEOUT_MILLIS) {
+                return;
+            }
+            if (stuck.compareAndSet(false, true)) {
+                adjustWriters(1);
+            }
+            if (close()) {
+                writeTimeoutCount.incrementAndGet();
+                droppedSubscriberCount.incrementAndGet();
+                log.warn("[进度推送] 客户端 %s 写出超过 %d ms 未完成，断开连接",
+                        exchange.getRemoteAddress(), now - started);
+            }
+        }
+
+        private void drain() {
+            try {
+                while (!closed.get()) {
+                    String frame;
+                    writeStartedAt = System.currentTimeMillis();
+                    try {
+                        while ((frame = pending.poll()) != null) {
+                            pendingCount.decrementAndGet();
+                            out.write(frame.getBytes(StandardCharsets.UTF_8));
+                        }
+                        out.flush();
+                    } finally {
+                        writeStartedAt = 0;
+                        if (stuck.compareAndSet(true, false)) {
+                            adjustWriters(-1);
+                        }
+                    }
+                    if (closing) {
+                        close();
+                        return;
+                    }
+                    scheduled.set(false);
+                    // 释放标记后又有新事件入队：重新取得标记继续写，否则交给下一次 schedule
+                    if (pending.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close(); // 客户端已断开
+            }
+        }
+
+        /**
+         * 标记关闭并释放订阅名额；exchange.close 可能阻塞（写结束块），交给关闭线程执行。
+         * 返回是否由本次调用完成关闭
+         */
+        private boolean close() {
+            if (!closed.compareAndSet(false, true)) {
+                return false;
+            }
+            subscriberCount.decrementAndGet();
+            pending.clear();
+            try {
+                closers.execute(this::closeExchange);
+            } catch (RejectedExecutionException e) {
+                closeExchange(); // 已停止，不会再持有频道锁
+            }
+            return true;
+        }
+
+        private void closeExchange() {
+            try {
+                exchange.close();
+            } catch (RuntimeException ignored) {
+                // ignore
+            }
+        }
+    }
+}
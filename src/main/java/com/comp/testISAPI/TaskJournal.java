@@ -0,0 +1,367 @@
+package com.comp.testISAPI;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 下载任务日志（追加写入的本地文件，每行一条 JSON 记录）
+ * - 记录类型：create（任务参数）/ segment（分段完成）/ end（任务结束）/ remove（任务删除）
+ * - 调用方只把记录放入内存队列；后台线程按批写入，每批写完按配置 fsync 一次，不在下载线程上做磁盘 IO
+ * - 启动时 replay() 按任务汇总记录，末尾写了一半的行（崩溃时）直接忽略
+ * - 文件增长超过阈值后在后台线程上压缩：只保留仍在内存中的任务的记录，写临时文件后原子替换
+ * - 不保存设备密码：旧版本日志中的密码在启动压缩时去掉，恢复的任务需要重新提供密码
+ */
+public class TaskJournal {
+
+    private static final Logger log = Logger.getLogger(TaskJournal.class);
+    private static final TypeReference<Map<String, Object>> RECORD = new TypeReference<Map<String, Object>>() {};
+    private static final Object COMPACT = new Object();
+    private static final Object STOP = new Object();
+    private static final long COMPACT_THRESHOLD_BYTES = 8L * 1024 * 1024;
+
+    public static final String CREATE = "create";
+    public static final String SEGMENT = "segment";
+    public static final String END = "end";
+    public static final String REMOVE = "remove";
+
+    /**
+     * 单个任务在日志中的汇总
+     */
+    public static final class Replay {
+        public final String taskId;
+        public final Map<String, Object> create;
+        public final Map<String, Long> completedSegments = new LinkedHashMap<>(); // 文件名 → 字节数
+        public Map<String, Object> end; // 未结束时为 null
+
+        Replay(String taskId, Map<String, Object> create) {
+            this.taskId = taskId;
+            this.create = create;
+        }
+    }
+
+    private final File file;
+    private final long flushMillis;
+    private final boolean fsync;
+    private final Supplier<Set<String>> liveTasks;
+    private final ObjectMapper json = new ObjectMapper();
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private Thread writer;
+    private FileOutputStream out;
+    private long bytesSinceCompaction;
+
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong fsyncCount = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+    private final AtomicLong writeFailureCount = new AtomicLong();
+    private volatile long corruptLines;
+    private volatile String lastError;
+
+    /**
+     * @param flushMillis 两批写入之间的最短间隔（同时是 fsync 的最高频率）
+     * @param fsync       每批写入后是否 fsync；false 时由操作系统决定落盘时机
+     * @param liveTasks   压缩时需要保留的任务 ID
+     */
+    public TaskJournal(File file, long flushMillis, boolean fsync, Supplier<Set<String>> liveTasks) {
+        this.file = file;
+        this.flushMillis = Math.max(0, flushMillis);
+        this.fsync = fsync;
+        this.liveTasks = liveTasks;
+    }
+
+    /**
+     * 读取已有日志，按任务汇总（在 start 之前调用）；remove 过的任务不会出现在结果中
+     */
+    public Map<String, Replay> replay() {
+        Map<String, Replay> tasks = new LinkedHashMap<>();
+        if (!file.isFile()) {
+            return tasks;
+        }
+        long corrupt = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                Map<String, Object> record;
+                try {
+                    record = json.readValue(line, RECORD);
+                } catch (IOException e) {
+                    corrupt++;
+                    continue;
+                }
+                String type = String.valueOf(record.get("type"));
+                String taskId = String.valueOf(record.get("taskId"));
+                Replay replay = tasks.get(taskId);
+                switch (type) {
+                    case CREATE:
+                        tasks.put(taskId, new Replay(taskId, record));
+                        break;
+                    case SEGMENT:
+                        if (replay != null && record.get("fileName") != null) {
+                            replay.completedSegments.put(String.valueOf(record.get("fileName")), toLong(record.get("bytes")));
+                        }
+                        break;
+                    case END:
+                        if (replay != null) {
+                            replay.end = record;
+                        }
+                        break;
+                    case REMOVE:
+                        tasks.remove(taskId);
+                        break;
+                    default:
+                        corrupt++;
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            lastError = e.getMessage();
+            log.error("[任务日志] 读取失败: %s", e.getMessage());
+        }
+        corruptLines = corrupt;
+        if (corrupt > 0) {
+            log.warn("[任务日志] 忽略 %d 行无法解析的记录（可能是崩溃时未写完的末行）", corrupt);
+        }
+        return tasks;
+    }
+
+    /**
+     * 启动后台写线程；先按当前任务压缩一次，丢掉已删除/过期任务的记录
+     */
+    public synchronized void start() {
+        if (writer != null) {
+            return;
+        }
+        queue.add(COMPACT);
+        writer = new Thread(this::writeLoop, "task-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void append(Map<String, Object> record) {
+        recordCount.incrementAndGet();
+        queue.add(record);
+    }
+
+    /**
+     * 写完队列中剩余的记录后停止（关闭服务时调用）
+     */
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            current = writer;
+        }
+        if (current == null) {
+            return;
+        }
+        queue.add(STOP);
+        try {
+            current.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("file", file.getAbsolutePath());
+        map.put("fileBytes", file.length());
+        map.put("fsync", fsync);
+        map.put("flushMillis", flushMillis);
+        map.put("pendingRecords", queue.size());
+        map.put("recordCount", recordCount.get());
+        map.put("batchCount", batchCount.get());
+        map.put("fsyncCount", fsyncCount.get());
+        map.put("compactionCount", compactionCount.get());
+        map.put("writeFailureCount", writeFailureCount.get());
+        map.put("corruptLinesAtStartup", corruptLines);
+        map.put("lastError", lastError);
+        return map;
+    }
+
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            boolean compact = false;
+            for (Object item : batch) {
+                if (item == STOP) {
+                    stopping = true;
+                } else if (item == COMPACT) {
+                    compact = true;
+                } else {
+                    try {
+                        buffer.write(json.writeValueAsBytes(item));
+                        buffer.write('\n');
+                    } catch (IOException e) {
+                        writeFailureCount.incrementAndGet();
+                        lastError = e.getMessage();
+                    }
+                }
+            }
+            batch.clear();
+            write(buffer.toByteArray());
+            if (compact || bytesSinceCompaction > COMPACT_THRESHOLD_BYTES) {
+                compact();
+            }
+            if (!stopping && flushMillis > 0) {
+                // 攒一段时间再写下一批，fsync 次数不随记录数增长
+                try {
+                    Thread.sleep(flushMillis);
+                } catch (InterruptedException e) {
+                    stopping = true;
+                }
+            }
+        }
+        closeOutput();
+    }
+
+    private void write(byte[] bytes) {
+        if (bytes.length == 0) {
+            return;
+        }
+        try {
+            FileOutputStream stream = output();
+            stream.write(bytes);
+            if (fsync) {
+                stream.getChannel().force(false);
+                fsyncCount.incrementAndGet();
+            }
+            batchCount.incrementAndGet();
+            bytesSinceCompaction += bytes.length;
+        } catch (IOException e) {
+            // 下次重新打开文件；本批记录丢失只影响重启后的恢复，不影响正在进行的下载
+            writeFailureCount.incrementAndGet();
+            lastError = e.getMessage();
+            log.error("[任务日志] 写入失败: %s", e.getMessage());
+            closeOutput();
+        }
+    }
+
+    // 只保留仍在内存中的任务的记录（remove 记录一并丢弃），写临时文件后原子替换
+    private void compact() {
+        bytesSinceCompaction = 0;
+        if (!file.isFile()) {
+            return;
+        }
+        Set<String> live = liveTasks.get();
+        Path target = file.toPath();
+        Path tmp = Paths.get(file.getPath() + ".compact");
+        long kept = 0;
+        long dropped = 0;
+        closeOutput();
+        try (BufferedReader reader = Files.newBufferedReader(target, StandardCharsets.UTF_8);
+             FileOutputStream tmpOut = new FileOutputStream(tmp.toFile());
+             Writer writer = new BufferedWriter(new OutputStreamWriter(tmpOut, StandardCharsets.UTF_8))) {
+            restrictPermissions(tmp);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                Map<String, Object> record;
+                try {
+                    record = json.readValue(line, RECORD);
+                } catch (IOException e) {
+                    dropped++;
+                    continue;
+                }
+                if (REMOVE.equals(record.get("type")) || !live.contains(String.valueOf(record.get("taskId")))) {
+                    dropped++;
+                    continue;
+                }
+                // 旧版本写入的 create 记录含设备密码，压缩时去掉
+                writer.write(stripCredentials(record) ? json.writeValueAsString(record) : line);
+                writer.write('\n');
+                kept++;
+            }
+            writer.flush();
+            tmpOut.getChannel().force(false);
+        } catch (IOException e) {
+            lastError = e.getMessage();
+            log.error("[任务日志] 压缩失败: %s", e.getMessage());
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        try {
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            compactionCount.incrementAndGet();
+            if (dropped > 0) {
+                log.info("[任务日志] 压缩完成: 保留 %d 条记录，丢弃 %d 条", kept, dropped);
+            }
+        } catch (IOException e) {
+            lastError = e.getMessage();
+            log.error("[任务日志] 替换压缩文件失败: %s", e.getMessage());
+        }
+    }
+
+    private static boolean stripCredentials(Map<String, Object> record) {
+        Object request = record.get("request");
+        return request instanceof Map && ((Map<?, ?>) request).remove("password") != null;
+    }
+
+    private FileOutputStream output() throws IOException {
+        if (out == null) {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            boolean created = !file.exists();
+            out = new FileOutputStream(file, true);
+            if (created) {
+                restrictPermissions(file.toPath());
+            }
+        }
+        return out;
+    }
+
+    private void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+        }
+    }
+
+    // 日志里有设备地址、用户名和录像时间段，尽量只允许当前用户读写（Windows 等不支持 POSIX 权限时忽略）
+    private static void restrictPermissions(Path path) {
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException | IOException ignored) {
+        }
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+}
@@ -0,0 +1,95 @@
+package com.comp.testISAPI;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * DownloadScheduler：下载流名额回收与排队位置回调
+ */
+public class DownloadSchedulerTest {
+
+    private final DownloadScheduler scheduler = new DownloadScheduler(2, 1, 100, 2);
+
+    @After
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void streamSlotsAreRemovedWhenDeviceIsIdle() throws Exception {
+        int devices = 50;
+        CountDownLatch done = new CountDownLatch(devices);
+        for (int i = 0; i < devices; i++) {
+            String deviceKey = "10.0.0." + i + ":80";
+            scheduler.submit("job-" + i, deviceKey, () -> {
+                try {
+                    assertTrue(scheduler.acquireStream(deviceKey, () -> false));
+                    scheduler.releaseStream(deviceKey);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, null);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        awaitIdle();
+        assertEquals(0, scheduler.stats().get("streamDevices"));
+    }
+
+    @Test
+    public void cancelledStreamWaitDoesNotLeakSlot() throws Exception {
+        String deviceKey = "10.0.0.1:80";
+        DownloadScheduler single = new DownloadScheduler(1, 1, 1, 1);
+        try {
+            assertTrue(single.acquireStream(deviceKey, () -> false));
+            assertFalse(single.acquireStream(deviceKey, () -> true));
+            assertEquals(1, single.stats().get("streamDevices"));
+            single.releaseStream(deviceKey);
+            assertEquals(0, single.stats().get("streamDevices"));
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void queueCallbacksRunOutsideSchedulerLock() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        String deviceKey = "10.0.0.1:80";
+        scheduler.submit("running", deviceKey, () -> awaitQuietly(release), null);
+        int position = scheduler.submit("queued", deviceKey, () -> {
+        }, p -> events.add(p + ":" + Thread.holdsLock(scheduler)));
+        assertEquals(1, position);
+
+        release.countDown();
+        awaitIdle();
+        assertEquals(Arrays.asList("1:false", "0:false"), events);
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (((Number) scheduler.stats().get("running")).intValue() > 0
+                || ((Number) scheduler.stats().get("queued")).intValue() > 0) {
+            assertTrue("调度器未在期限内空闲", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.comp.testISAPI;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * ISAPIWebServer：请求解析，以及对 NvrSimulator 的搜索接口
+ */
+public class ISAPIWebServerTest {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final DateTimeFormatter INPUT_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm");
+
+    @Test
+    public void wrongPasswordIsRejectedAfterCachedSearch() throws IOException {
+        NvrSimulator.Options options = new NvrSimulator.Options();
+        options.tracks.clear();
+        options.tracks.add("101");
+        // 设备时区与本机一致：密码错误时取不到设备时间、回退到本机时区，搜索的字面时间段仍与首次相同
+        options.deviceUtcOffsetHours = ZoneId.systemDefault().getRules().getOffset(Instant.now()).getTotalSeconds() / 3600;
+        NvrSimulator simulator = new NvrSimulator(options).start();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/search", new ISAPIWebServer.SearchHandler());
+        server.start();
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/search";
+            // 结束时间早于索引的 recent 范围，整段可记为覆盖
+            LocalDateTime end = LocalDateTime.now().minusHours(2).withSecond(0).withNano(0);
+            Map<String, String> params = new LinkedHashMap<>();
+            params.put("deviceIp", "127.0.0.1");
+            params.put("port", String.valueOf(simulator.port()));
+            params.put("username", options.username);
+            params.put("password", options.password);
+            params.put("channelId", "101");
+            params.put("startTime", INPUT_TIME.format(end.minusHours(1)));
+            params.put("endTime", INPUT_TIME.format(end));
+
+            JsonNode first = post(url, params, 200);
+            assertTrue(first.path("count").asInt() > 0);
+            assertEquals(RecordingIndex.MISS, first.path("index").path("result").asText());
+            JsonNode cached = post(url, params, 200);
+            assertEquals(RecordingIndex.HIT, cached.path("index").path("result").asText());
+            assertEquals(first.path("count").asInt(), cached.path("count").asInt());
+
+            // 同一设备、同一时间段，密码错误：不能命中索引，由设备返回 401
+            params.put("password", "wrong-password");
+            JsonNode rejected = post(url, params, 401);
+            assertFalse(rejected.path("success").asBoolean());
+            assertEquals("DEVICE_AUTH_FAILED", rejected.path("code").asText());
+            assertFalse(rejected.has("recordings"));
+        } finally {
+            server.stop(0);
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void parsesFleetDeviceAddresses() {
+        List<ISAPIWebServer.FleetDevice> devices = ISAPIWebServer.parseFleetDevices(fleetParams(
+                "[\"10.0.0.1\", \"10.0.0.2:8000\", \"[fe80::1]:8443\", \"[2001:db8::2]\", \"2001:db8::3\","
+                        + " {\"deviceIp\": \"2001:db8::4\", \"port\": 81}]"));
+
+        assertEquals(6, devices.size());
+        assertAddress(devices.get(0), "10.0.0.1", 80);
+        assertAddress(devices.get(1), "10.0.0.2", 8000);
+        assertAddress(devices.get(2), "[fe80::1]", 8443);
+        assertAddress(devices.get(3), "[2001:db8::2]", 80);
+        // 不带方括号时多个冒号都属于地址本身，不能把最后一段当作端口
+        assertAddress(devices.get(4), "[2001:db8::3]", 80);
+        assertAddress(devices.get(5), "[2001:db8::4]", 81);
+    }
+
+    @Test
+    public void sameIpv6DeviceIsDeduplicated() {
+        List<ISAPIWebServer.FleetDevice> devices = ISAPIWebServer.parseFleetDevices(fleetParams(
+                "[\"2001:db8::5\", \"[2001:db8::5]:80\", \"[2001:db8::5]:81\"]"));
+        assertEquals(2, devices.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnclosedBracket() {
+        ISAPIWebServer.parseFleetDevices(fleetParams("[\"[fe80::1:8000\"]"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidPort() {
+        ISAPIWebServer.parseFleetDevices(fleetParams("[\"[fe80::1]:http\"]"));
+    }
+
+    @Test
+    public void byteRangeWithLastBeforeFirstIsIgnored() {
+        assertArrayEquals(new long[0], ISAPIWebServer.FileDownloadHandler.parseByteRange("bytes=500-100", 1000));
+    }
+
+    @Test
+    public void byteRangeBeyondLengthIsUnsatisfiable() {
+        assertNull(ISAPIWebServer.FileDownloadHandler.parseByteRange("bytes=1000-1200", 1000));
+        assertArrayEquals(new long[]{100, 999}, ISAPIWebServer.FileDownloadHandler.parseByteRange("bytes=100-5000", 1000));
+        assertArrayEquals(new long[]{900, 999}, ISAPIWebServer.FileDownloadHandler.parseByteRange("bytes=-100", 1000));
+    }
+
+    private static JsonNode post(String url, Map<String, String> params, int expectedStatus) throws IOException {
+        StringBuilder form = new StringBuilder();
+        for (Map.Entry<String, String> e : params.entrySet()) {
+            if (form.length() > 0) {
+                form.append('&');
+            }
+            form.append(e.getKey()).append('=').append(URLEncoder.encode(e.getValue(), "UTF-8"));
+        }
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(form.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(expectedStatus, conn.getResponseCode());
+        try (InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            return JSON.readTree(in);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static Map<String, String> fleetParams(String devices) {
+        Map<String, String> params = new HashMap<>();
+        params.put("devices", devices);
+        params.put("username", "admin");
+        params.put("password", "admin123");
+        return params;
+    }
+
+    private static void assertAddress(ISAPIWebServer.FleetDevice device, String ip, int port) {
+        assertEquals(ip, device.deviceIp);
+        assertEquals(port, device.port);
+    }
+}
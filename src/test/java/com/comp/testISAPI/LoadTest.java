@@ -0,0 +1,653 @@
+package com.comp.testISAPI;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import okhttp3.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP API 端到端压测
+ * - 按泊松到达率发起导出（/api/download、/api/rtsp-download）和检索（/api/search），导出并发有上限
+ * - 每个导出任务轮询 /api/download-status 直到结束，另有若干常驻轮询线程模拟打开页面的用户
+ * - 统计各接口 p50/p95/p99 延迟、任务完成耗时、整体 MB/s，按秒采样服务端线程数和堆内存（/metrics）
+ * - 结果写成 JSON 报告，便于不同版本之间对比容量
+ * 设备默认使用内嵌的 NvrSimulator；服务端默认以子进程启动（工作目录下的 recordings/log/state），
+ * 也可用 LOAD_TARGET 指向已运行的实例
+ *
+ * 运行: mvn -P loadtest test-compile exec:exec
+ */
+public class LoadTest {
+
+    private static final Logger log = Logger.getLogger(LoadTest.class);
+    private static final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    private static final DateTimeFormatter FORM_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm");
+    private static final LocalDateTime WINDOW_BASE = LocalDateTime.of(2024, 1, 1, 0, 0);
+    private static final double MB = 1024.0 * 1024.0;
+
+    // ============ 配置（环境变量） ============
+    private final String target = NvrSimulator.getEnv("LOAD_TARGET", "");
+    private final String device = NvrSimulator.getEnv("LOAD_DEVICE", "");
+    private final String deviceUsername = NvrSimulator.getEnv("LOAD_DEVICE_USERNAME", "admin");
+    private final String devicePassword = NvrSimulator.getEnv("LOAD_DEVICE_PASSWORD", "admin123");
+    private final int durationSeconds = NvrSimulator.getEnvInt("LOAD_DURATION_SECONDS", 60);
+    private final double arrivalRate = Double.parseDouble(NvrSimulator.getEnv("LOAD_ARRIVAL_RATE", "0.5"));
+    private final int maxConcurrentExports = NvrSimulator.getEnvInt("LOAD_MAX_CONCURRENT_EXPORTS", 8);
+    private final String mix = NvrSimulator.getEnv("LOAD_MIX", "download=6,rtsp=2,search=2");
+    private final String rtspMethod = NvrSimulator.getEnv("LOAD_RTSP_METHOD", "isapi-http");
+    private final int pollers = NvrSimulator.getEnvInt("LOAD_POLLERS", 4);
+    private final int pollIntervalMillis = NvrSimulator.getEnvInt("LOAD_POLL_INTERVAL_MILLIS", 1000);
+    private final int windowMinutes = NvrSimulator.getEnvInt("LOAD_WINDOW_MINUTES", 5);
+    private final int parallelism = NvrSimulator.getEnvInt("LOAD_PARALLELISM", 1);
+    private final int sampleSeconds = NvrSimulator.getEnvInt("LOAD_SAMPLE_SECONDS", 1);
+    private final int drainSeconds = NvrSimulator.getEnvInt("LOAD_DRAIN_SECONDS", 120);
+    private final boolean keepFiles = Boolean.parseBoolean(NvrSimulator.getEnv("LOAD_KEEP_FILES", "false"));
+    private final String serverJvmArgs = NvrSimulator.getEnv("LOAD_SERVER_JVM_ARGS", "");
+    private final String reportPath = NvrSimulator.getEnv("LOAD_REPORT", "load-report.json");
+
+    private final OkHttpClient http;
+    private String baseUrl;
+    private String deviceHost;
+    private int devicePort;
+    private NvrSimulator simulator;
+    private Process serverProcess;
+
+    // ============ 统计 ============
+    private final Map<String, Recorder> api = new ConcurrentHashMap<>();
+    private final Map<String, TaskStats> tasks = new ConcurrentHashMap<>();
+    private volatile Recorder window = new Recorder();
+    private final List<Map<String, Object>> timeline = Collections.synchronizedList(new ArrayList<>());
+    private final Set<String> activeTaskIds = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inflightExports = new AtomicInteger();
+    private final AtomicInteger windowSeq = new AtomicInteger();
+    private final AtomicLong skippedArrivals = new AtomicLong();
+    private volatile boolean running = true;
+    private long startNanos;
+    private double lastDownloadBytes;
+    private long lastSampleNanos;
+
+    LoadTest() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(1024);
+        dispatcher.setMaxRequestsPerHost(1024);
+        http = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(120, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public static void main(String[] args) {
+        LoadTest test = new LoadTest();
+        int exitCode = 0;
+        try {
+            test.run();
+        } catch (Exception e) {
+            log.error("[压测] 失败: " + e.getMessage(), e);
+            exitCode = 1;
+        } finally {
+            test.shutdown();
+            Logger.close();
+        }
+        System.exit(exitCode);
+    }
+
+    void run() throws Exception {
+        startDevice();
+        startServer();
+        Map<String, Integer> weights = parseMix(mix);
+        log.info("[压测] 目标: %s, 设备: %s:%d, 时长: %ds, 到达率: %.2f/s, 导出并发上限: %d, 混合: %s, 轮询线程: %d",
+                baseUrl, deviceHost, devicePort, durationSeconds, arrivalRate, maxConcurrentExports, weights, pollers);
+
+        ExecutorService workers = Executors.newCachedThreadPool(daemon("load-worker"));
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(daemon("load-sampler"));
+        startNanos = System.nanoTime();
+        lastSampleNanos = startNanos;
+        lastDownloadBytes = scrapeSafely().getOrDefault("isapi_download_bytes_total", 0.0);
+        double startBytes = lastDownloadBytes;
+        sampler.scheduleAtFixedRate(this::sample, sampleSeconds, sampleSeconds, TimeUnit.SECONDS);
+        for (int i = 0; i < pollers; i++) {
+            workers.submit(this::pollLoop);
+        }
+
+        // 开环到达：按指数分布间隔发起请求，导出并发达到上限时丢弃该次到达并计数
+        Random random = new Random(42);
+        long deadline = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        while (System.nanoTime() < deadline) {
+            long sleepMillis = (long) (-Math.log(1 - random.nextDouble()) / arrivalRate * 1000);
+            Thread.sleep(Math.min(sleepMillis, TimeUnit.NANOSECONDS.toMillis(Math.max(0, deadline - System.nanoTime()))));
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+            String op = pick(weights, random);
+            if ("search".equals(op)) {
+                workers.submit(this::searchOnce);
+            } else if (inflightExports.get() < maxConcurrentExports) {
+                inflightExports.incrementAndGet();
+                workers.submit(() -> export(op));
+            } else {
+                skippedArrivals.incrementAndGet();
+            }
+        }
+
+        log.info("[压测] 到达阶段结束，等待 %d 个导出任务完成（最多 %ds）...", inflightExports.get(), drainSeconds);
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+        while (inflightExports.get() > 0 && System.nanoTime() < drainDeadline) {
+            Thread.sleep(200);
+        }
+        running = false;
+        sampler.shutdown();
+        sampler.awaitTermination(5, TimeUnit.SECONDS);
+        sample();
+        workers.shutdownNow();
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        double totalBytes = scrapeSafely().getOrDefault("isapi_download_bytes_total", startBytes) - startBytes;
+        writeReport(elapsedSeconds, totalBytes);
+    }
+
+    // ============ 设备与服务端 ============
+
+    private void startDevice() throws IOException {
+        if (!device.isEmpty()) {
+            int colon = device.lastIndexOf(':');
+            deviceHost = colon > 0 ? device.substring(0, colon) : device;
+            devicePort = colon > 0 ? Integer.parseInt(device.substring(colon + 1)) : 80;
+            return;
+        }
+        NvrSimulator.Options options = NvrSimulator.optionsFromEnv(0);
+        // 默认码率调低，5 分钟一段约 19 MB，避免压测把磁盘写满
+        options.bitrateKbps = NvrSimulator.getEnvInt("SIM_BITRATE_KBPS", 512);
+        options.username = deviceUsername;
+        options.password = devicePassword;
+        simulator = new NvrSimulator(options).start();
+        simulator.injectFromSpec(NvrSimulator.getEnv("SIM_FAULTS", ""));
+        deviceHost = "127.0.0.1";
+        devicePort = simulator.port();
+    }
+
+    private void startServer() throws Exception {
+        if (!target.isEmpty()) {
+            baseUrl = target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+            return;
+        }
+        baseUrl = "http://127.0.0.1:8080";
+        if (scrape() != null) {
+            throw new IllegalStateException("8080 端口已有服务在运行，请先停止或用 LOAD_TARGET 指定目标");
+        }
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        if (!serverJvmArgs.isEmpty()) {
+            command.addAll(Arrays.asList(serverJvmArgs.trim().split("\\s+")));
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ISAPIWebServer.class.getName());
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File("server.out"));
+        builder.environment().put("LOG_CONSOLE", "false");
+        serverProcess = builder.start();
+        log.info("[压测] 已启动服务端子进程，输出写到 %s", new File("server.out").getAbsolutePath());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (scrape() == null) {
+            if (!serverProcess.isAlive() || System.nanoTime() > deadline) {
+                throw new IllegalStateException("服务端未能启动，见 server.out");
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    private void shutdown() {
+        running = false;
+        if (serverProcess != null) {
+            // 正常终止，让服务端的关闭钩子清理任务和日志
+            serverProcess.destroy();
+            try {
+                if (!serverProcess.waitFor(15, TimeUnit.SECONDS)) {
+                    serverProcess.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                serverProcess.destroyForcibly();
+            }
+        }
+        if (simulator != null) {
+            simulator.stop();
+        }
+        http.dispatcher().executorService().shutdown();
+        http.connectionPool().evictAll();
+    }
+
+    // ============ 负载 ============
+
+    private void searchOnce() {
+        try {
+            call("search", new Request.Builder().url(baseUrl + "/api/search").post(exportForm(nextWindow(), null)).build());
+        } catch (IOException e) {
+            log.debug("[压测] 检索失败: %s", e.getMessage());
+        }
+    }
+
+    private void export(String op) {
+        String endpoint = "rtsp".equals(op) ? "rtsp-download" : "download";
+        TaskStats stats = tasks.computeIfAbsent(endpoint, k -> new TaskStats());
+        try {
+            stats.submitted.incrementAndGet();
+            RequestBody form = exportForm(nextWindow(), "rtsp".equals(op) ? rtspMethod : null);
+            Response response = call(endpoint, new Request.Builder().url(baseUrl + "/api/" + endpoint).post(form).build());
+            if (response.code == 503) {
+                stats.rejected.incrementAndGet();
+                return;
+            }
+            String taskId = response.json != null ? response.json.path("taskId").asText("") : "";
+            if (response.code != 200 || taskId.isEmpty()) {
+                stats.failed.incrementAndGet();
+                return;
+            }
+            long submitted = System.nanoTime();
+            activeTaskIds.add(taskId);
+            try {
+                JsonNode snapshot = waitForTask(taskId);
+                if (snapshot == null) {
+                    stats.timedOut.incrementAndGet();
+                    return;
+                }
+                String status = snapshot.path("status").asText("");
+                if ("completed".equals(status)) {
+                    stats.completed.incrementAndGet();
+                    stats.completionMillis.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submitted));
+                    stats.bytes.addAndGet(Math.max(snapshot.path("totalDownloadedBytes").asLong(0),
+                            snapshot.path("totalBytes").asLong(0)));
+                } else if ("cancelled".equals(status)) {
+                    stats.cancelled.incrementAndGet();
+                } else {
+                    stats.failed.incrementAndGet();
+                }
+                cleanup(taskId, snapshot);
+            } finally {
+                activeTaskIds.remove(taskId);
+            }
+        } catch (IOException e) {
+            stats.failed.incrementAndGet();
+            log.debug("[压测] 导出请求失败: %s", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inflightExports.decrementAndGet();
+        }
+    }
+
+    // 任务发起方自己的轮询（相当于页面上正在看进度的那个用户）；进入结束状态返回快照，超时返回 null
+    private JsonNode waitForTask(String taskId) throws InterruptedException {
+        while (running) {
+            Thread.sleep(pollIntervalMillis);
+            try {
+                Response response = call("download-status", statusRequest(taskId).get().build());
+                if (response.json != null && isTerminal(response.json.path("status").asText(""))) {
+                    return response.json;
+                }
+            } catch (IOException e) {
+                log.debug("[压测] 查询状态失败: %s", e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    // 常驻轮询：随机挑一个进行中的任务查询状态
+    private void pollLoop() {
+        Random random = new Random();
+        while (running && !Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(pollIntervalMillis);
+                List<String> ids = new ArrayList<>(activeTaskIds);
+                if (!ids.isEmpty()) {
+                    call("download-status", statusRequest(ids.get(random.nextInt(ids.size()))).get().build());
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                log.debug("[压测] 轮询失败: %s", e.getMessage());
+            }
+        }
+    }
+
+    // 删除任务记录；子进程模式下同时删掉下载的文件，避免长时间压测写满磁盘
+    private void cleanup(String taskId, JsonNode snapshot) {
+        try {
+            call("delete-task", statusRequest(taskId).delete().build());
+        } catch (IOException e) {
+            log.debug("[压测] 删除任务失败: %s", e.getMessage());
+        }
+        if (serverProcess == null || keepFiles) {
+            return;
+        }
+        for (JsonNode file : snapshot.path("files")) {
+            //noinspection ResultOfMethodCallIgnored
+            new File("recordings", file.asText()).delete();
+        }
+    }
+
+    private Request.Builder statusRequest(String taskId) {
+        return new Request.Builder().url(baseUrl + "/api/download-status?taskId=" + taskId);
+    }
+
+    // 每次使用不同的时间窗口，避免文件名冲突
+    private LocalDateTime nextWindow() {
+        return WINDOW_BASE.plusMinutes((long) windowSeq.getAndIncrement() * windowMinutes);
+    }
+
+    private RequestBody exportForm(LocalDateTime start, String downloadMethod) {
+        FormBody.Builder form = new FormBody.Builder()
+                .add("deviceIp", deviceHost)
+                .add("port", String.valueOf(devicePort))
+                .add("username", deviceUsername)
+                .add("password", devicePassword)
+                .add("channelId", "101")
+                .add("startTime", start.format(FORM_TIME))
+                .add("endTime", start.plusMinutes(windowMinutes).format(FORM_TIME))
+                .add("downloadMode", "file")
+                .add("parallelism", String.valueOf(parallelism));
+        if (downloadMethod != null) {
+            form.add("downloadMethod", downloadMethod);
+        }
+        return form.build();
+    }
+
+    private static final class Response {
+        int code;
+        JsonNode json;
+    }
+
+    private Response call(String endpoint, Request request) throws IOException {
+        Recorder recorder = api.computeIfAbsent(endpoint, k -> new Recorder());
+        long start = System.nanoTime();
+        Response result = new Response();
+        try (okhttp3.Response response = http.newCall(request).execute()) {
+            ResponseBody body = response.body();
+            String text = body != null ? body.string() : "";
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            result.code = response.code();
+            recorder.record(micros, result.code);
+            window.record(micros, result.code);
+            if (text.startsWith("{")) {
+                result.json = mapper.readTree(text);
+            }
+            return result;
+        } catch (IOException e) {
+            recorder.error();
+            window.error();
+            throw e;
+        }
+    }
+
+    // ============ 采样与报告 ============
+
+    private Map<String, Double> scrape() {
+        try (okhttp3.Response response = http.newCall(new Request.Builder().url(baseUrl + "/metrics").build()).execute()) {
+            if (!response.isSuccessful() || response.body() == null) {
+                return null;
+            }
+            Map<String, Double> values = new HashMap<>();
+            for (String line : response.body().string().split("\n")) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int space = line.lastIndexOf(' ');
+                int brace = line.indexOf('{');
+                String name = line.substring(0, brace > 0 && brace < space ? brace : space);
+                double value = Double.parseDouble(line.substring(space + 1));
+                values.merge(name, value, Double::sum);
+                if (brace > 0) {
+                    values.put(line.substring(0, space), value);
+                }
+            }
+            return values;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private Map<String, Double> scrapeSafely() {
+        Map<String, Double> values = scrape();
+        return values != null ? values : Collections.emptyMap();
+    }
+
+    private void sample() {
+        try {
+            long now = System.nanoTime();
+            Recorder current = window;
+            window = new Recorder();
+            Map<String, Double> metrics = scrapeSafely();
+            double bytes = metrics.getOrDefault("isapi_download_bytes_total", lastDownloadBytes);
+            double seconds = Math.max(1e-3, (now - lastSampleNanos) / 1e9);
+            Map<String, Object> point = new LinkedHashMap<>();
+            point.put("t", round((now - startNanos) / 1e9));
+            point.put("threads", metrics.getOrDefault("jvm_threads_current", -1.0).intValue());
+            point.put("heapUsedMb", round(metrics.getOrDefault("jvm_memory_heap_bytes{area=\"used\"}", 0.0) / MB));
+            point.put("heapCommittedMb", round(metrics.getOrDefault("jvm_memory_heap_bytes{area=\"committed\"}", 0.0) / MB));
+            point.put("schedulerRunning", metrics.getOrDefault("isapi_scheduler_running", 0.0).intValue());
+            point.put("schedulerQueued", metrics.getOrDefault("isapi_scheduler_queued", 0.0).intValue());
+            point.put("inflightExports", inflightExports.get());
+            point.put("mbPerSecond", round((bytes - lastDownloadBytes) / MB / seconds));
+            point.put("requests", current.count());
+            point.put("apiP95Ms", round(current.percentile(0.95) / 1000.0));
+            timeline.add(point);
+            lastDownloadBytes = bytes;
+            lastSampleNanos = now;
+        } catch (RuntimeException e) {
+            log.warn("[压测] 采样失败: %s", e.getMessage());
+        }
+    }
+
+    private void writeReport(double elapsedSeconds, double totalBytes) throws IOException {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("finishedAt", Instant.now().toString());
+        report.put("elapsedSeconds", round(elapsedSeconds));
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("target", baseUrl);
+        config.put("device", simulator != null ? "simulator " + simulator.options().model : device);
+        config.put("durationSeconds", durationSeconds);
+        config.put("arrivalRate", arrivalRate);
+        config.put("maxConcurrentExports", maxConcurrentExports);
+        config.put("mix", mix);
+        config.put("rtspMethod", rtspMethod);
+        config.put("pollers", pollers);
+        config.put("pollIntervalMillis", pollIntervalMillis);
+        config.put("windowMinutes", windowMinutes);
+        config.put("parallelism", parallelism);
+        config.put("serverJvmArgs", serverJvmArgs);
+        config.put("loadGeneratorCpus", ManagementFactory.getOperatingSystemMXBean().getAvailableProcessors());
+        report.put("config", config);
+
+        Map<String, Object> apiReport = new TreeMap<>();
+        api.forEach((endpoint, recorder) -> apiReport.put(endpoint, recorder.summary(1000.0, "Ms")));
+        report.put("api", apiReport);
+        Map<String, Object> taskReport = new TreeMap<>();
+        tasks.forEach((endpoint, stats) -> taskReport.put(endpoint, stats.summary()));
+        report.put("tasks", taskReport);
+        report.put("skippedArrivals", skippedArrivals.get());
+
+        Map<String, Object> throughput = new LinkedHashMap<>();
+        throughput.put("bytes", (long) totalBytes);
+        throughput.put("mbPerSecond", round(totalBytes / MB / Math.max(1e-3, elapsedSeconds)));
+        report.put("throughput", throughput);
+
+        List<Map<String, Object>> points;
+        synchronized (timeline) {
+            points = new ArrayList<>(timeline);
+        }
+        Map<String, Object> peak = new LinkedHashMap<>();
+        peak.put("threads", points.stream().mapToInt(p -> (Integer) p.get("threads")).max().orElse(0));
+        peak.put("heapUsedMb", points.stream().mapToDouble(p -> (Double) p.get("heapUsedMb")).max().orElse(0));
+        peak.put("mbPerSecond", points.stream().mapToDouble(p -> (Double) p.get("mbPerSecond")).max().orElse(0));
+        report.put("peak", peak);
+        report.put("timeline", points);
+        if (simulator != null) {
+            report.put("device", simulator.stats());
+        }
+
+        File file = new File(reportPath);
+        mapper.writeValue(file, report);
+
+        log.info("[压测] ======== 结果（%.1fs） ========", elapsedSeconds);
+        apiReport.forEach((endpoint, summary) -> log.info("[压测] %-16s %s", endpoint, summary));
+        taskReport.forEach((endpoint, summary) -> log.info("[压测] 任务 %-13s %s", endpoint, summary));
+        log.info("[压测] 吞吐: %.2f MB/s, 峰值线程: %s, 峰值堆: %s MB, 并发上限丢弃: %d",
+                throughput.get("mbPerSecond"), peak.get("threads"), peak.get("heapUsedMb"), skippedArrivals.get());
+        log.info("[压测] 报告: %s", file.getAbsolutePath());
+    }
+
+    // ============ 工具 ============
+
+    /**
+     * 延迟样本（微秒/毫秒），结束时排序取精确分位数
+     */
+    private static final class Recorder {
+        private long[] values = new long[1024];
+        private int size;
+        private long errors;
+        private final Map<Integer, Long> statuses = new TreeMap<>();
+
+        synchronized void record(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        synchronized void record(long value, int status) {
+            record(value);
+            statuses.merge(status, 1L, Long::sum);
+        }
+
+        synchronized void error() {
+            errors++;
+        }
+
+        synchronized int count() {
+            return size;
+        }
+
+        synchronized long percentile(double p) {
+            if (size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted[Math.max(0, (int) Math.ceil(p * size) - 1)];
+        }
+
+        synchronized Map<String, Object> summary(double divisor, String unit) {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", size);
+            map.put("errors", errors);
+            if (!statuses.isEmpty()) {
+                map.put("statuses", new TreeMap<>(statuses));
+            }
+            if (size > 0) {
+                long sum = 0;
+                for (long v : sorted) {
+                    sum += v;
+                }
+                map.put("mean" + unit, round(sum / (double) size / divisor));
+                map.put("p50" + unit, round(sorted[Math.max(0, (int) Math.ceil(0.50 * size) - 1)] / divisor));
+                map.put("p95" + unit, round(sorted[Math.max(0, (int) Math.ceil(0.95 * size) - 1)] / divisor));
+                map.put("p99" + unit, round(sorted[Math.max(0, (int) Math.ceil(0.99 * size) - 1)] / divisor));
+                map.put("max" + unit, round(sorted[size - 1] / divisor));
+            }
+            return map;
+        }
+    }
+
+    private static final class TaskStats {
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong cancelled = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong timedOut = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final Recorder completionMillis = new Recorder();
+
+        Map<String, Object> summary() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("submitted", submitted.get());
+            map.put("completed", completed.get());
+            map.put("failed", failed.get());
+            map.put("cancelled", cancelled.get());
+            map.put("rejected", rejected.get());
+            map.put("timedOut", timedOut.get());
+            map.put("bytes", bytes.get());
+            Map<String, Object> completion = completionMillis.summary(1000.0, "Seconds");
+            completion.remove("count");
+            completion.remove("errors");
+            completion.remove("statuses");
+            map.put("completion", completion);
+            return map;
+        }
+    }
+
+    private static boolean isTerminal(String status) {
+        return "completed".equals(status) || "cancelled".equals(status) || status.startsWith("failed");
+    }
+
+    // "download=6,rtsp=2,search=2"
+    private static Map<String, Integer> parseMix(String spec) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.split("=", 2);
+            String op = kv[0].trim();
+            if (!"download".equals(op) && !"rtsp".equals(op) && !"search".equals(op)) {
+                throw new IllegalArgumentException("LOAD_MIX 仅支持 download / rtsp / search: " + op);
+            }
+            int weight = kv.length == 2 ? Integer.parseInt(kv[1].trim()) : 1;
+            if (weight > 0) {
+                weights.put(op, weight);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("LOAD_MIX 为空");
+        }
+        return weights;
+    }
+
+    private static String pick(Map<String, Integer> weights, Random random) {
+        int total = 0;
+        for (int w : weights.values()) {
+            total += w;
+        }
+        int r = random.nextInt(total);
+        for (Map.Entry<String, Integer> e : weights.entrySet()) {
+            r -= e.getValue();
+            if (r < 0) {
+                return e.getKey();
+            }
+        }
+        return weights.keySet().iterator().next();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
@@ -0,0 +1,214 @@
+package com.comp.testISAPI;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 测试用的 MP4 box 解析：校验 box 长度嵌套正确，并读取样本表
+ */
+final class Mp4Boxes {
+
+    private static final Set<String> CONTAINERS = new HashSet<>(Arrays.asList(
+            "moov", "trak", "mdia", "minf", "stbl", "edts"));
+
+    static final class Box {
+        final String type;
+        final long start;
+        final long size;
+        final int headerSize;
+        final List<Box> children = new ArrayList<>();
+
+        Box(String type, long start, long size, int headerSize) {
+            this.type = type;
+            this.start = start;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+
+        int bodyStart() {
+            return (int) (start + headerSize);
+        }
+
+        Box child(String childType) {
+            for (Box c : children) {
+                if (c.type.equals(childType)) {
+                    return c;
+                }
+            }
+            return null;
+        }
+
+        List<Box> all(String childType) {
+            List<Box> result = new ArrayList<>();
+            for (Box c : children) {
+                if (c.type.equals(childType)) {
+                    result.add(c);
+                }
+            }
+            return result;
+        }
+
+        /** 按路径查找，如 "mdia/minf/stbl/stsz" */
+        Box path(String path) {
+            Box current = this;
+            for (String part : path.split("/")) {
+                current = current == null ? null : current.child(part);
+            }
+            return current;
+        }
+    }
+
+    final byte[] data;
+    final Box root;
+
+    private Mp4Boxes(byte[] data, Box root) {
+        this.data = data;
+        this.root = root;
+    }
+
+    /**
+     * 解析整个文件；任何 box 长度越界或未恰好填满父 box 时抛出 IOException
+     */
+    static Mp4Boxes read(Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        Box root = new Box("", 0, data.length, 0);
+        parse(data, root, 0, data.length);
+        return new Mp4Boxes(data, root);
+    }
+
+    private static void parse(byte[] data, Box parent, long start, long end) throws IOException {
+        long pos = start;
+        while (pos < end) {
+            if (pos + 8 > end) {
+                throw new IOException("box 头不完整，位置 " + pos);
+            }
+            long size = u32(data, (int) pos);
+            String type = new String(data, (int) pos + 4, 4, StandardCharsets.US_ASCII);
+            int header = 8;
+            if (size == 1) {
+                size = ByteBuffer.wrap(data, (int) pos + 8, 8).getLong();
+                header = 16;
+            } else if (size == 0) {
+                size = end - pos;
+            }
+            if (size < header || pos + size > end) {
+                throw new IOException(type + " 长度越界: " + size + "，位置 " + pos);
+            }
+            Box box = new Box(type, pos, size, header);
+            parent.children.add(box);
+            if (CONTAINERS.contains(type)) {
+                parse(data, box, pos + header, pos + size);
+            }
+            pos += size;
+        }
+    }
+
+    List<Box> tracks() {
+        return root.child("moov").all("trak");
+    }
+
+    Box videoTrack() {
+        for (Box trak : tracks()) {
+            Box hdlr = trak.path("mdia/hdlr");
+            if ("vide".equals(new String(data, hdlr.bodyStart() + 8, 4, StandardCharsets.US_ASCII))) {
+                return trak;
+            }
+        }
+        return null;
+    }
+
+    /** full box 的 entry_count（version/flags 之后的第一个 u32） */
+    long entryCount(Box fullBox) {
+        return u32(data, fullBox.bodyStart() + 4);
+    }
+
+    /** stsz 的样本数 */
+    long sampleCount(Box trak) {
+        Box stsz = trak.path("mdia/minf/stbl/stsz");
+        return u32(data, stsz.bodyStart() + 8);
+    }
+
+    /** stsz 各样本大小 */
+    long[] sampleSizes(Box trak) {
+        Box stsz = trak.path("mdia/minf/stbl/stsz");
+        int body = stsz.bodyStart();
+        long fixed = u32(data, body + 4);
+        long[] sizes = new long[(int) u32(data, body + 8)];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = fixed != 0 ? fixed : u32(data, body + 12 + i * 4);
+        }
+        return sizes;
+    }
+
+    /** stts 展开后的样本时长总和 */
+    long sttsSampleCount(Box trak) {
+        Box stts = trak.path("mdia/minf/stbl/stts");
+        int body = stts.bodyStart();
+        long total = 0;
+        for (int i = 0; i < entryCount(stts); i++) {
+            total += u32(data, body + 8 + i * 8);
+        }
+        return total;
+    }
+
+    /** ctts 展开后的 composition offset（缺少 ctts 时返回 null） */
+    long[] compositionOffsets(Box trak) {
+        Box ctts = trak.path("mdia/minf/stbl/ctts");
+        if (ctts == null) {
+            return null;
+        }
+        int body = ctts.bodyStart();
+        List<Long> values = new ArrayList<>();
+        for (int i = 0; i < entryCount(ctts); i++) {
+            long count = u32(data, body + 8 + i * 8);
+            long offset = ByteBuffer.wrap(data, body + 12 + i * 8, 4).getInt();
+            for (long n = 0; n < count; n++) {
+                values.add(offset);
+            }
+        }
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    /** stss 中的关键帧序号（从 1 开始；缺少 stss 表示全部为关键帧，返回 null） */
+    long[] syncSamples(Box trak) {
+        Box stss = trak.path("mdia/minf/stbl/stss");
+        if (stss == null) {
+            return null;
+        }
+        long[] result = new long[(int) entryCount(stss)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = u32(data, stss.bodyStart() + 8 + i * 4);
+        }
+        return result;
+    }
+
+    /** stco / co64 中的块偏移 */
+    long[] chunkOffsets(Box trak) {
+        Box stbl = trak.path("mdia/minf/stbl");
+        Box co64 = stbl.child("co64");
+        Box box = co64 != null ? co64 : stbl.child("stco");
+        long[] result = new long[(int) entryCount(box)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = co64 != null
+                    ? ByteBuffer.wrap(data, box.bodyStart() + 8 + i * 8, 8).getLong()
+                    : u32(data, box.bodyStart() + 8 + i * 4);
+        }
+        return result;
+    }
+
+    static long u32(byte[] data, int pos) {
+        return ByteBuffer.wrap(data, pos, 4).getInt() & 0xFFFFFFFFL;
+    }
+}
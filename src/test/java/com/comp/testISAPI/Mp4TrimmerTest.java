@@ -0,0 +1,242 @@
+package com.comp.testISAPI;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mp4Trimmer：输入来自 PsToMp4Remuxer（合成 PS 码流）或直接用 Mp4Writer 构造
+ */
+public class Mp4TrimmerTest {
+
+    private static final int GOP = 50;
+    private static final int FRAME_TICKS = 3600; // 90kHz, 25fps
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void trimsFromKeyframeAtRequestedOffset() throws IOException {
+        File input = remuxedPs(20_000);
+        File output = tmp.newFile("trim.mp4");
+        Mp4Trimmer.Result result = Mp4Trimmer.trim(input, output, 6000, 6000, () -> false);
+
+        assertEquals(6.0, result.startSeconds, 0.001);
+        assertEquals(6 * SyntheticPsStream.FPS, result.videoSamples);
+        assertEquals(0, result.otherSamples);
+        assertEquals(output.length(), result.outputBytes);
+
+        Mp4Boxes mp4 = Mp4Boxes.read(output.toPath());
+        // moov 在 mdat 之前
+        assertEquals(Arrays.asList("ftyp", "moov", "mdat"), topLevelTypes(mp4));
+        Mp4Boxes.Box video = mp4.videoTrack();
+        assertEquals(result.videoSamples, mp4.sampleCount(video));
+        assertEquals(result.videoSamples, mp4.sttsSampleCount(video));
+        assertArrayEquals(new long[]{1, 1 + GOP, 1 + 2 * GOP}, mp4.syncSamples(video));
+        assertSamplesCopied(Mp4Boxes.read(input.toPath()), 6 * SyntheticPsStream.FPS, mp4);
+    }
+
+    @Test
+    public void nonKeyframeOffsetStartsAtPrecedingKeyframe() throws IOException {
+        File input = remuxedPs(20_000);
+        File output = tmp.newFile("trim.mp4");
+        // 7.5s 落在 6s 与 8s 两个关键帧之间
+        Mp4Trimmer.Result result = Mp4Trimmer.trim(input, output, 7500, 3000, () -> false);
+
+        assertEquals(6.0, result.startSeconds, 0.001);
+        // 关键帧 6s 到窗口结束 10.5s：显示时间 6.00 ~ 10.48 共 113 帧
+        assertEquals(113, result.videoSamples);
+        Mp4Boxes mp4 = Mp4Boxes.read(output.toPath());
+        assertEquals(1L, mp4.syncSamples(mp4.videoTrack())[0]);
+        assertSamplesCopied(Mp4Boxes.read(input.toPath()), 6 * SyntheticPsStream.FPS, mp4);
+    }
+
+    @Test
+    public void keepsCompositionOffsets() throws IOException {
+        // I P B B 顺序：解码顺序中的 B 帧显示时间早于前面的 P 帧
+        int frames = 200;
+        int[] cts = new int[frames];
+        for (int i = 0; i < frames; i++) {
+            cts[i] = i % 3 == 1 ? 3 * FRAME_TICKS : FRAME_TICKS;
+        }
+        File input = written(frames, cts);
+        File output = tmp.newFile("trim.mp4");
+        Mp4Trimmer.trim(input, output, 2500, 2000, () -> false);
+
+        Mp4Boxes mp4 = Mp4Boxes.read(output.toPath());
+        Mp4Boxes.Box video = mp4.videoTrack();
+        long[] offsets = mp4.compositionOffsets(video);
+        assertNotNull(offsets);
+        assertEquals(mp4.sampleCount(video), offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            assertEquals(cts[GOP + i], offsets[i]);
+        }
+        assertSamplesCopied(Mp4Boxes.read(input.toPath()), GOP, mp4);
+    }
+
+    @Test
+    public void writesAndReadsCo64() throws IOException {
+        File input = remuxedPs(20_000);
+        File stco = tmp.newFile("stco.mp4");
+        File co64 = tmp.newFile("co64.mp4");
+        Mp4Trimmer.trim(input, stco, 4000, 8000, () -> false, false);
+        Mp4Trimmer.trim(input, co64, 4000, 8000, () -> false, true);
+
+        Mp4Boxes small = Mp4Boxes.read(stco.toPath());
+        Mp4Boxes large = Mp4Boxes.read(co64.toPath());
+        assertNotNull(small.videoTrack().path("mdia/minf/stbl/stco"));
+        assertNull(large.videoTrack().path("mdia/minf/stbl/stco"));
+        assertNotNull(large.videoTrack().path("mdia/minf/stbl/co64"));
+        assertEquals(small.sampleCount(small.videoTrack()), large.sampleCount(large.videoTrack()));
+        assertArrayEquals(mdatBody(small), mdatBody(large));
+        assertChunksInMdat(large);
+
+        // co64 输入再裁剪一次
+        File again = tmp.newFile("again.mp4");
+        Mp4Trimmer.Result result = Mp4Trimmer.trim(co64, again, 2000, 2000, () -> false);
+        assertEquals(2.0, result.startSeconds, 0.001);
+        Mp4Boxes trimmed = Mp4Boxes.read(again.toPath());
+        assertEquals(2 * SyntheticPsStream.FPS, trimmed.sampleCount(trimmed.videoTrack()));
+        assertSamplesCopied(large, 2 * SyntheticPsStream.FPS, trimmed);
+    }
+
+    @Test
+    public void capsOversizedFtyp() throws IOException {
+        File input = withFtypBrands(remuxedPs(10_000), 2000);
+        assertTrue(Mp4Boxes.read(input.toPath()).root.child("ftyp").size > Mp4Trimmer.MAX_FTYP_BYTES);
+
+        File output = tmp.newFile("trim.mp4");
+        Mp4Trimmer.trim(input, output, 4000, 4000, () -> false);
+        Mp4Boxes mp4 = Mp4Boxes.read(output.toPath());
+        Mp4Boxes.Box ftyp = mp4.root.child("ftyp");
+        assertEquals(Mp4Trimmer.MAX_FTYP_BYTES, ftyp.size);
+        assertEquals(Arrays.asList("ftyp", "moov", "mdat"), topLevelTypes(mp4));
+        assertChunksInMdat(mp4);
+        assertSamplesCopied(Mp4Boxes.read(input.toPath()), 4 * SyntheticPsStream.FPS, mp4);
+    }
+
+    @Test(expected = IOException.class)
+    public void cancellationAbortsTrim() throws IOException {
+        File input = remuxedPs(10_000);
+        Mp4Trimmer.trim(input, tmp.newFile("cancel.mp4"), 2000, 2000, () -> true);
+    }
+
+    // ============ 构造输入 ============
+
+    private File remuxedPs(long durationMillis) throws IOException {
+        SyntheticPsStream ps = new SyntheticPsStream(90000L * 3600, durationMillis, 2000, 640, 480);
+        File output = tmp.newFile();
+        try (InputStream in = new BufferedInputStream(ps.open(0))) {
+            PsToMp4Remuxer.remux(in, output, new PsToMp4Remuxer.Options(), () -> false);
+        }
+        return output;
+    }
+
+    // 单视频轨道；样本内容为样本序号，每 GOP 帧一个关键帧
+    private File written(int frames, int[] compositionOffsets) throws IOException {
+        File output = tmp.newFile();
+        try (Mp4Writer writer = new Mp4Writer(output.toPath())) {
+            Mp4Writer.Track track = writer.addTrack(true, 90000, 0);
+            Mp4Writer.BoxBuffer avcC = new Mp4Writer.BoxBuffer();
+            int box = avcC.open("avcC");
+            avcC.u8(1).u8(66).u8(0xC0).u8(30).u8(0xFF).u8(0xE0).u8(0);
+            avcC.close(box);
+            writer.setVideoFormat(track, "avc1", avcC.toByteArray(), 640, 480);
+            for (int i = 0; i < frames; i++) {
+                byte[] sample = new byte[100 + i % 7];
+                Arrays.fill(sample, (byte) i);
+                writer.writeSample(track, sample, 0, sample.length, (long) i * FRAME_TICKS,
+                        compositionOffsets[i], i % GOP == 0);
+            }
+            writer.finish();
+        }
+        return output;
+    }
+
+    // 把 ftyp 扩展为带 brandCount 个 compatible_brands 的版本，并平移所有块偏移
+    private File withFtypBrands(File input, int brandCount) throws IOException {
+        Mp4Boxes mp4 = Mp4Boxes.read(input.toPath());
+        Mp4Boxes.Box ftyp = mp4.root.child("ftyp");
+        Mp4Writer.BoxBuffer big = new Mp4Writer.BoxBuffer();
+        int box = big.open("ftyp");
+        big.fourcc("isom").u32(0x200);
+        for (int i = 0; i < brandCount; i++) {
+            big.fourcc(i % 2 == 0 ? "iso2" : "mp41");
+        }
+        big.close(box);
+        byte[] head = big.toByteArray();
+        long delta = head.length - ftyp.size;
+
+        byte[] rest = Arrays.copyOfRange(mp4.data, (int) ftyp.size, mp4.data.length);
+        for (Mp4Boxes.Box trak : mp4.tracks()) {
+            Mp4Boxes.Box stco = trak.path("mdia/minf/stbl/stco");
+            int body = stco.bodyStart() - (int) ftyp.size;
+            ByteBuffer table = ByteBuffer.wrap(rest);
+            for (int i = 0; i < mp4.entryCount(stco); i++) {
+                int pos = body + 8 + i * 4;
+                table.putInt(pos, (int) ((table.getInt(pos) & 0xFFFFFFFFL) + delta));
+            }
+        }
+        File output = tmp.newFile();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(head);
+        out.write(rest);
+        Files.write(output.toPath(), out.toByteArray());
+        return output;
+    }
+
+    // ============ 断言 ============
+
+    private static List<String> topLevelTypes(Mp4Boxes mp4) {
+        List<String> types = new ArrayList<>();
+        for (Mp4Boxes.Box box : mp4.root.children) {
+            types.add(box.type);
+        }
+        return types;
+    }
+
+    private static byte[] mdatBody(Mp4Boxes mp4) {
+        Mp4Boxes.Box mdat = mp4.root.child("mdat");
+        return Arrays.copyOfRange(mp4.data, (int) (mdat.start + mdat.headerSize), (int) (mdat.start + mdat.size));
+    }
+
+    private static void assertChunksInMdat(Mp4Boxes mp4) {
+        Mp4Boxes.Box mdat = mp4.root.child("mdat");
+        for (long offset : mp4.chunkOffsets(mp4.videoTrack())) {
+            assertTrue(offset >= mdat.start + mdat.headerSize && offset < mdat.start + mdat.size);
+        }
+    }
+
+    // 单轨道文件中样本连续存放：输出 mdat 应等于输入从第 first 个样本起的连续字节
+    private static void assertSamplesCopied(Mp4Boxes input, int first, Mp4Boxes output) {
+        long[] inputSizes = input.sampleSizes(input.videoTrack());
+        long[] outputSizes = output.sampleSizes(output.videoTrack());
+        long skip = 0;
+        for (int i = 0; i < first; i++) {
+            skip += inputSizes[i];
+        }
+        long length = 0;
+        for (int i = 0; i < outputSizes.length; i++) {
+            assertEquals("样本 " + i, inputSizes[first + i], outputSizes[i]);
+            length += outputSizes[i];
+        }
+        int start = (int) (input.chunkOffsets(input.videoTrack())[0] + skip);
+        byte[] expected = Arrays.copyOfRange(input.data, start, start + (int) length);
+        byte[] actual = mdatBody(output);
+        assertEquals(length, actual.length);
+        assertArrayEquals(expected, actual);
+    }
+}
@@ -0,0 +1,939 @@
+package com.comp.testISAPI;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 海康 ISAPI 设备模拟器（测试用，可嵌入也可单独运行）
+ * - Digest 认证（真实校验 response，nonce 可按时间/次数过期并返回 stale=true）
+ * - 分页录像检索、下载 token、设备时间、设备信息
+ * - HTTP 下载：合成的 MPEG-PS（或转封装后的 MP4），按连接/全设备限速，可开关 Range
+ * - 按接口注入延迟、错误状态码、下载中途断开
+ * - 按固件版本预置的兼容性差异（见 Profile）
+ * 录像按 segmentSeconds 对齐连续存在，任意时间段都能检索到
+ *
+ * 单独运行: mvn -q test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.comp.testISAPI.NvrSimulator
+ */
+public class NvrSimulator {
+
+    private static final Logger log = Logger.getLogger(NvrSimulator.class);
+    private static final DateTimeFormatter ISO_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    private static final DateTimeFormatter RTSP_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final Pattern AUTH_PARAM = Pattern.compile("(\\w+)\\s*=\\s*(?:\"([^\"]*)\"|([^,\\s]+))");
+    private static final int CHUNK = 16384;
+    private static final long MAX_DOWNLOAD_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    /**
+     * 固件兼容性预置
+     */
+    public enum Profile {
+        /** 较新的 NVR：支持 token、POST/PUT/GET 下载、Range，按请求时间窗口返回 */
+        NVR_V4,
+        /** 老 NVR：没有 token 接口，只支持 GET 下载，忽略 Range，返回整段录像，不接受 isapi.org 命名空间的检索 */
+        NVR_V3_LEGACY,
+        /** IPC：只支持 POST/PUT 下载，返回 MP4，nonce 30 秒过期 */
+        IPC_V5
+    }
+
+    /**
+     * 模拟器参数（start 之后修改对新请求生效）
+     */
+    public static final class Options {
+        public int port = 0; // 0 表示随机端口
+        public String username = "admin";
+        public String password = "admin123";
+        public String realm = "DS-7608NI-K2";
+        public String model = "DS-7608NI-K2";
+        public String firmwareVersion = "V4.62.000";
+        public int deviceUtcOffsetHours = 8;
+        public List<String> tracks = new ArrayList<>(Arrays.asList("101", "201"));
+        public int segmentSeconds = 300;
+        public int bitrateKbps = 2048;
+        public int width = 1920;
+        public int height = 1080;
+        /** 单个下载连接的带宽（字节/秒），0 表示不限 */
+        public long bandwidthBytesPerSecond = 0;
+        /** 整台设备所有下载共享的带宽（字节/秒），0 表示不限 */
+        public long totalBandwidthBytesPerSecond = 0;
+        // ---- 固件差异 ----
+        public boolean tokenSupported = true;
+        public Set<String> downloadMethods = new HashSet<>(Arrays.asList("GET", "POST", "PUT"));
+        public boolean rangeSupported = true;
+        /** 忽略请求的时间窗口，返回 starttime 所在的整段录像 */
+        public boolean wholeSegmentDownloads = false;
+        /** ps / mp4 */
+        public String container = "ps";
+        public boolean includeDownloadPath = true;
+        public boolean localTimeWithOffset = true;
+        /** 检索请求中出现该命名空间时返回 400（null 表示都接受） */
+        public String rejectedSearchNamespace;
+        /** nonce 有效期（秒）与最大使用次数，0 表示不限 */
+        public int nonceTtlSeconds = 300;
+        public int nonceMaxUses = 0;
+
+        public static Options forProfile(Profile profile) {
+            Options o = new Options();
+            switch (profile) {
+                case NVR_V3_LEGACY:
+                    o.model = "DS-7808N-E2";
+                    o.firmwareVersion = "V3.4.92";
+                    o.tokenSupported = false;
+                    o.downloadMethods = new HashSet<>(Collections.singletonList("GET"));
+                    o.rangeSupported = false;
+                    o.wholeSegmentDownloads = true;
+                    o.localTimeWithOffset = false;
+                    o.rejectedSearchNamespace = "http://www.isapi.org/ver20/XMLSchema";
+                    o.nonceTtlSeconds = 0;
+                    break;
+                case IPC_V5:
+                    o.model = "DS-2CD2T47G2-L";
+                    o.realm = "DS-2CD2T47G2-L";
+                    o.firmwareVersion = "V5.7.3";
+                    o.tracks = new ArrayList<>(Collections.singletonList("101"));
+                    o.downloadMethods = new HashSet<>(Arrays.asList("POST", "PUT"));
+                    o.container = "mp4";
+                    o.nonceTtlSeconds = 30;
+                    o.width = 2688;
+                    o.height = 1520;
+                    o.bitrateKbps = 4096;
+                    break;
+                default:
+                    break;
+            }
+            return o;
+        }
+    }
+
+    /**
+     * 注入的故障；endpoint 为 deviceInfo / time / token / search / download，或 * 表示全部
+     */
+    public static final class Fault {
+        public long latencyMillis;
+        public long jitterMillis;
+        /** 按该概率（0~1）直接返回 errorStatus */
+        public double errorRate;
+        public int errorStatus = 503;
+        /** 下载发送这么多字节后断开连接（-1 表示不断开），用于测试续传 */
+        public long abortAfterBytes = -1;
+
+        public static Fault latency(long millis, long jitter) {
+            Fault f = new Fault();
+            f.latencyMillis = millis;
+            f.jitterMillis = jitter;
+            return f;
+        }
+
+        public static Fault errors(double rate, int status) {
+            Fault f = new Fault();
+            f.errorRate = rate;
+            f.errorStatus = status;
+            return f;
+        }
+
+        public static Fault abortAfter(long bytes) {
+            Fault f = new Fault();
+            f.abortAfterBytes = bytes;
+            return f;
+        }
+    }
+
+    private final Options options;
+    private final Map<String, Fault> faults = new ConcurrentHashMap<>();
+    private final Map<String, Nonce> nonces = new ConcurrentHashMap<>();
+    private final Set<String> tokens = ConcurrentHashMap.newKeySet();
+    private final Map<String, File> mp4Cache = new ConcurrentHashMap<>();
+    private final Throttle totalThrottle = new Throttle();
+    private HttpServer server;
+    private ExecutorService executor;
+    private File mp4Dir;
+
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicLong> statusCounts = new ConcurrentHashMap<>();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private final AtomicLong challenges = new AtomicLong();
+    private final AtomicLong staleChallenges = new AtomicLong();
+    private final AtomicLong authFailures = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong abortedDownloads = new AtomicLong();
+
+    public NvrSimulator(Options options) {
+        this.options = options;
+    }
+
+    public synchronized NvrSimulator start() throws IOException {
+        if (server != null) {
+            return this;
+        }
+        server = HttpServer.create(new InetSocketAddress(options.port), 0);
+        server.createContext("/ISAPI/System/deviceInfo", new Endpoint("deviceInfo", this::deviceInfo));
+        server.createContext("/ISAPI/System/time", new Endpoint("time", this::time));
+        server.createContext("/ISAPI/Security/token", new Endpoint("token", this::token));
+        server.createContext("/ISAPI/ContentMgmt/InputProxy/channels", new Endpoint("channels", this::channels));
+        server.createContext("/ISAPI/ContentMgmt/search", new Endpoint("search", this::search));
+        server.createContext("/ISAPI/ContentMgmt/download", new Endpoint("download", this::download));
+        server.createContext("/", new Endpoint("other", exchange -> sendStatus(exchange, 404, "notSupport")));
+        // 下载按限速阻塞写出，每个连接一个线程
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "nvr-sim");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.start();
+        log.info("[模拟设备] 已启动: 端口 %d, 型号 %s, 固件 %s", port(), options.model, options.firmwareVersion);
+        return this;
+    }
+
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        for (File file : mp4Cache.values()) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        mp4Cache.clear();
+        if (mp4Dir != null) {
+            //noinspection ResultOfMethodCallIgnored
+            mp4Dir.delete();
+            mp4Dir = null;
+        }
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public Options options() {
+        return options;
+    }
+
+    public void inject(String endpoint, Fault fault) {
+        faults.put(endpoint, fault);
+    }
+
+    public void clearFaults() {
+        faults.clear();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        Map<String, Long> requests = new TreeMap<>();
+        requestCounts.forEach((k, v) -> requests.put(k, v.get()));
+        Map<Integer, Long> statuses = new TreeMap<>();
+        statusCounts.forEach((k, v) -> statuses.put(k, v.get()));
+        map.put("requests", requests);
+        map.put("statuses", statuses);
+        map.put("bytesSent", bytesSent.get());
+        map.put("activeDownloads", activeDownloads.get());
+        map.put("authChallenges", challenges.get());
+        map.put("staleChallenges", staleChallenges.get());
+        map.put("authFailures", authFailures.get());
+        map.put("injectedErrors", injectedErrors.get());
+        map.put("abortedDownloads", abortedDownloads.get());
+        return map;
+    }
+
+    // ============ 接口 ============
+
+    private interface Action {
+        void handle(HttpExchange exchange) throws IOException, InterruptedException;
+    }
+
+    /**
+     * 统一处理：计数 → Digest 认证 → 注入的延迟/错误 → 接口逻辑
+     */
+    private final class Endpoint implements HttpHandler {
+        private final String name;
+        private final Action action;
+
+        Endpoint(String name, Action action) {
+            this.name = name;
+            this.action = action;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requestCounts.computeIfAbsent(name, k -> new AtomicLong()).incrementAndGet();
+            try {
+                readBody(exchange); // 先读完请求体，认证失败时连接仍可复用
+                if (!authenticate(exchange)) {
+                    return;
+                }
+                Fault fault = fault(name);
+                if (fault != null) {
+                    long delay = fault.latencyMillis
+                            + (fault.jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(fault.jitterMillis + 1) : 0);
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                    if (fault.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < fault.errorRate) {
+                        injectedErrors.incrementAndGet();
+                        sendStatus(exchange, fault.errorStatus, "deviceBusy");
+                        return;
+                    }
+                }
+                action.handle(exchange);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                log.debug("[模拟设备] %s 连接中断: %s", name, e.getMessage());
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private Fault fault(String endpoint) {
+        Fault fault = faults.get(endpoint);
+        return fault != null ? fault : faults.get("*");
+    }
+
+    private void deviceInfo(HttpExchange exchange) throws IOException {
+        sendXml(exchange, 200, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<DeviceInfo version=\"2.0\" xmlns=\"http://www.hikvision.com/ver20/XMLSchema\">\n"
+                + "<deviceName>Simulated NVR</deviceName>\n"
+                + "<deviceID>sim-" + port() + "</deviceID>\n"
+                + "<model>" + options.model + "</model>\n"
+                + "<serialNumber>" + options.model + "20240101CCRR000000001</serialNumber>\n"
+                + "<firmwareVersion>" + options.firmwareVersion + "</firmwareVersion>\n"
+                + "<deviceType>" + (options.model.startsWith("DS-2CD") ? "IPCamera" : "NVR") + "</deviceType>\n"
+                + "</DeviceInfo>\n");
+    }
+
+    // 海康 POSIX 风格时区：CST-8:00:00 表示 UTC+8
+    private void time(HttpExchange exchange) throws IOException {
+        ZoneOffset offset = ZoneOffset.ofHours(options.deviceUtcOffsetHours);
+        OffsetDateTime now = OffsetDateTime.now(offset).withNano(0);
+        String localTime = options.localTimeWithOffset
+                ? now.toString()
+                : now.toLocalDateTime().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        String timeZone = String.format(Locale.ROOT, "CST%+d:00:00", -options.deviceUtcOffsetHours);
+        sendXml(exchange, 200, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<Time version=\"2.0\" xmlns=\"http://www.hikvision.com/ver20/XMLSchema\">\n"
+                + "<timeMode>NTP</timeMode>\n"
+                + "<localTime>" + localTime + "</localTime>\n"
+                + "<timeZone>" + timeZone + "</timeZone>\n"
+                + "</Time>\n");
+    }
+
+    // 数字通道列表：每个录像轨道一个通道，通道号 = 轨道号 / 100（101 → 1）
+    private void channels(HttpExchange exchange) throws IOException {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<InputProxyChannelList version=\"2.0\" xmlns=\"http://www.hikvision.com/ver20/XMLSchema\">\n");
+        for (String track : options.tracks) {
+            String id = String.valueOf(Integer.parseInt(track) / 100);
+            xml.append("<InputProxyChannel>\n")
+                    .append("<id>").append(id).append("</id>\n")
+                    .append("<name>Camera ").append(id).append("</name>\n")
+                    .append("<enabled>true</enabled>\n")
+                    .append("</InputProxyChannel>\n");
+        }
+        xml.append("</InputProxyChannelList>\n");
+        sendXml(exchange, 200, xml.toString());
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        if (!options.tokenSupported) {
+            sendStatus(exchange, 404, "notSupport");
+            return;
+        }
+        String token = DigestUtils.md5Hex(UUID.randomUUID().toString());
+        tokens.add(token);
+        byte[] body = ("{\"Token\":{\"value\":\"" + token + "\"}}").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        send(exchange, 200, body);
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendStatus(exchange, 405, "methodNotAllowed");
+            return;
+        }
+        String body = (String) exchange.getAttribute("body");
+        if (options.rejectedSearchNamespace != null && body.contains(options.rejectedSearchNamespace)) {
+            sendStatus(exchange, 400, "badXmlContent");
+            return;
+        }
+        String searchId = xmlValue(body, "searchID");
+        String track = xmlValue(body, "trackID");
+        LocalDateTime start = parseDeviceTime(xmlValue(body, "startTime"));
+        LocalDateTime end = parseDeviceTime(xmlValue(body, "endTime"));
+        if (track == null || start == null || end == null || !end.isAfter(start)) {
+            sendStatus(exchange, 400, "badParameters");
+            return;
+        }
+        int maxResults = parseInt(xmlValue(body, "maxResults"), 40);
+        int position = parseInt(xmlValue(body, "searchResultPosition"), 0);
+
+        List<LocalDateTime> segments = new ArrayList<>();
+        if (options.tracks.contains(track)) {
+            LocalDateTime segment = segmentStart(start);
+            while (segment.isBefore(end) && segments.size() < 4000) {
+                segments.add(segment);
+                segment = segment.plusSeconds(options.segmentSeconds);
+            }
+        }
+        int from = Math.min(position, segments.size());
+        int to = Math.min(segments.size(), from + Math.max(1, maxResults));
+        String status = to < segments.size() ? "MORE" : segments.isEmpty() ? "NO MATCHES" : "OK";
+
+        StringBuilder xml = new StringBuilder(512 + (to - from) * 900);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<CMSearchResult version=\"2.0\" xmlns=\"http://www.hikvision.com/ver20/XMLSchema\">\n")
+                .append("<searchID>").append(searchId != null ? searchId : "").append("</searchID>\n")
+                .append("<responseStatus>true</responseStatus>\n")
+                .append("<responseStatusStrg>").append(status).append("</responseStatusStrg>\n")
+                .append("<numOfMatches>").append(to - from).append("</numOfMatches>\n")
+                .append("<matchList>\n");
+        String host = "127.0.0.1";
+        for (int i = from; i < to; i++) {
+            LocalDateTime segStart = segments.get(i);
+            LocalDateTime segEnd = segStart.plusSeconds(options.segmentSeconds);
+            String playbackUri = playbackUri(host, track, segStart, segEnd);
+            String escaped = playbackUri.replace("&", "&amp;");
+            xml.append("<searchMatchItem>\n")
+                    .append("<sourceID>{00000000-0000-0000-0000-0000000").append(track).append("}</sourceID>\n")
+                    .append("<trackID>").append(track).append("</trackID>\n")
+                    .append("<timeSpan>\n")
+                    .append("<startTime>").append(segStart.format(ISO_TIME)).append("</startTime>\n")
+                    .append("<endTime>").append(segEnd.format(ISO_TIME)).append("</endTime>\n")
+                    .append("</timeSpan>\n")
+                    .append("<mediaSegmentDescriptor>\n")
+                    .append("<contentType>video</contentType>\n")
+                    .append("<codecType>H.264-BP</codecType>\n")
+                    .append("<playbackURI>").append(escaped).append("</playbackURI>\n")
+                    .append("</mediaSegmentDescriptor>\n");
+            if (options.includeDownloadPath) {
+                xml.append("<downloadPath>/ISAPI/ContentMgmt/download?playbackURI=").append(escaped)
+                        .append("</downloadPath>\n");
+            }
+            xml.append("<metadataMatches>\n")
+                    .append("<metadataDescriptor>recordType.meta.std-cgi.com/CMR</metadataDescriptor>\n")
+                    .append("</metadataMatches>\n")
+                    .append("</searchMatchItem>\n");
+        }
+        xml.append("</matchList>\n</CMSearchResult>\n");
+        sendXml(exchange, 200, xml.toString());
+    }
+
+    private void download(HttpExchange exchange) throws IOException, InterruptedException {
+        String method = exchange.getRequestMethod();
+        if (!options.downloadMethods.contains(method)) {
+            sendStatus(exchange, 403, "notSupport");
+            return;
+        }
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String token = query.get("token");
+        if (token != null && !tokens.contains(token)) {
+            sendStatus(exchange, 401, "invalidToken");
+            return;
+        }
+        String playbackUri = "GET".equals(method)
+                ? query.get("playbackURI")
+                : unescapeXml(xmlValue((String) exchange.getAttribute("body"), "playbackURI"));
+        // GET 时 playbackURI 里的 & 常常没有编码，endtime 等会被拆成独立的查询参数
+        Window window = playbackUri != null ? resolveWindow(playbackUri, query) : null;
+        if (window == null) {
+            sendStatus(exchange, 400, "badParameters");
+            return;
+        }
+
+        SyntheticPsStream ps = new SyntheticPsStream(window.basePts, window.durationMillis,
+                options.bitrateKbps, options.width, options.height);
+        boolean mp4 = "mp4".equalsIgnoreCase(options.container);
+        File mp4File = mp4 ? mp4File(window, ps) : null;
+        long total = mp4 ? mp4File.length() : ps.length();
+
+        long offset = 0;
+        long end = total - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (options.rangeSupported) {
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            long[] parsed = parseRange(range, total);
+            if (parsed != null) {
+                offset = parsed[0];
+                end = parsed[1];
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + offset + "-" + end + "/" + total);
+            } else if (range != null) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + total);
+                sendStatus(exchange, 416, "badParameters");
+                return;
+            }
+        }
+        long length = end - offset + 1;
+        exchange.getResponseHeaders().set("Content-Type", mp4 ? "video/mp4" : "video/mp2p");
+        Fault fault = fault("download");
+        long abortAfter = fault != null ? fault.abortAfterBytes : -1;
+
+        activeDownloads.incrementAndGet();
+        statusCounts.computeIfAbsent(status, k -> new AtomicLong()).incrementAndGet();
+        exchange.sendResponseHeaders(status, length);
+        Throttle connection = new Throttle();
+        long sent = 0;
+        try (InputStream in = mp4 ? openFile(mp4File, offset) : ps.open(offset);
+             OutputStream out = exchange.getResponseBody()) {
+            byte[] buffer = new byte[CHUNK];
+            while (sent < length) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, length - sent));
+                if (n < 0) {
+                    break;
+                }
+                if (abortAfter >= 0 && sent + n > abortAfter) {
+                    n = (int) Math.max(0, abortAfter - sent);
+                    out.write(buffer, 0, n);
+                    out.flush();
+                    bytesSent.addAndGet(n);
+                    abortedDownloads.incrementAndGet();
+                    log.info("[模拟设备] 按注入的故障在 %d 字节处断开下载", abortAfter);
+                    dropConnection(exchange);
+                    return;
+                }
+                connection.acquire(n, options.bandwidthBytesPerSecond);
+                totalThrottle.acquire(n, options.totalBandwidthBytesPerSecond);
+                out.write(buffer, 0, n);
+                sent += n;
+                bytesSent.addAndGet(n);
+            }
+        } finally {
+            activeDownloads.decrementAndGet();
+        }
+    }
+
+    // ============ 录像时间窗口 ============
+
+    private static final class Window {
+        long basePts;
+        long durationMillis;
+        LocalDateTime start;
+        LocalDateTime end;
+    }
+
+    // starttime/endtime 取自 playbackURI；整段模式下返回 starttime 所在的整段
+    private Window resolveWindow(String playbackUri, Map<String, String> query) {
+        Map<String, String> params = new HashMap<>(query);
+        params.putAll(parseQuery(playbackUri.contains("?")
+                ? playbackUri.substring(playbackUri.indexOf('?') + 1) : ""));
+        LocalDateTime start = parseDeviceTime(params.get("starttime"));
+        LocalDateTime end = parseDeviceTime(params.get("endtime"));
+        if (start == null) {
+            return null;
+        }
+        LocalDateTime segment = segmentStart(start);
+        if (options.wholeSegmentDownloads || end == null || !end.isAfter(start)) {
+            start = segment;
+            end = segment.plusSeconds(options.segmentSeconds);
+        }
+        Window w = new Window();
+        w.start = start;
+        w.end = end;
+        w.durationMillis = Math.min(MAX_DOWNLOAD_MILLIS, Duration.between(start, end).toMillis());
+        // PTS 按录像段起点计算，同一段不同窗口的时间戳一致
+        long segmentOffsetMillis = Duration.between(segment, start).toMillis();
+        w.basePts = 90000L + segmentOffsetMillis * 90;
+        return w;
+    }
+
+    private LocalDateTime segmentStart(LocalDateTime time) {
+        long epoch = time.toEpochSecond(ZoneOffset.UTC);
+        long aligned = epoch - Math.floorMod(epoch, options.segmentSeconds);
+        return LocalDateTime.ofEpochSecond(aligned, 0, ZoneOffset.UTC);
+    }
+
+    private String playbackUri(String host, String track, LocalDateTime start, LocalDateTime end) {
+        long size = new SyntheticPsStream(90000, Duration.between(start, end).toMillis(),
+                options.bitrateKbps, options.width, options.height).length();
+        return "rtsp://" + host + "/Streaming/tracks/" + track + "/?starttime=" + start.format(RTSP_TIME)
+                + "&endtime=" + end.format(RTSP_TIME)
+                + "&name=ch" + track.charAt(0) + "_" + start.toEpochSecond(ZoneOffset.UTC)
+                + "&size=" + size;
+    }
+
+    // 设备时间（不区分时区，检索和 playbackURI 使用同一套时间）：2024-03-01T00:00:00Z / 20240301T000000Z / 带偏移
+    private static LocalDateTime parseDeviceTime(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        String v = value.trim();
+        try {
+            if (v.matches("\\d{8}T\\d{6}Z?")) {
+                return LocalDateTime.parse(v.endsWith("Z") ? v : v + "Z", RTSP_TIME);
+            }
+            if (v.matches(".*[+-]\\d{2}:\\d{2}$")) {
+                return OffsetDateTime.parse(v).toLocalDateTime();
+            }
+            return LocalDateTime.parse(v.endsWith("Z") ? v.substring(0, v.length() - 1) : v);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    // MP4 按窗口转封装一次后缓存，之后的请求（含 Range）直接读文件
+    private File mp4File(Window window, SyntheticPsStream ps) throws IOException {
+        String key = window.start + "_" + window.end + "_" + options.bitrateKbps + "_" + options.width + "x" + options.height;
+        File cached = mp4Cache.get(key);
+        if (cached != null && cached.isFile()) {
+            return cached;
+        }
+        synchronized (mp4Cache) {
+            cached = mp4Cache.get(key);
+            if (cached != null && cached.isFile()) {
+                return cached;
+            }
+            if (mp4Dir == null) {
+                mp4Dir = Files.createTempDirectory("nvr-sim").toFile();
+            }
+            File file = new File(mp4Dir, mp4Cache.size() + ".mp4");
+            try (InputStream in = ps.open(0)) {
+                PsToMp4Remuxer.remux(in, file, new PsToMp4Remuxer.Options(), () -> false);
+            }
+            mp4Cache.put(key, file);
+            return file;
+        }
+    }
+
+    // HttpServer 只有在关闭响应流出错时才会断开底层连接，否则会一直挂着等客户端读超时
+    private static void dropConnection(HttpExchange exchange) {
+        exchange.setStreams(null, new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("aborted");
+            }
+
+            @Override
+            public void close() throws IOException {
+                throw new IOException("aborted");
+            }
+        });
+    }
+
+    private static InputStream openFile(File file, long offset) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), CHUNK);
+        long skipped = 0;
+        while (skipped < offset) {
+            long n = in.skip(offset - skipped);
+            if (n <= 0) {
+                break;
+            }
+            skipped += n;
+        }
+        return in;
+    }
+
+    // bytes=a-b / bytes=a- / bytes=-n；不支持多段，格式不对时按没有 Range 处理，超出范围返回 416
+    private static long[] parseRange(String header, long total) {
+        if (header == null || !header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, total - suffix);
+                end = total - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? total - 1 : Math.min(total - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            if (start >= total || end < start) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // ============ Digest 认证 ============
+
+    private static final class Nonce {
+        final long issuedAt = System.currentTimeMillis();
+        final AtomicInteger uses = new AtomicInteger();
+    }
+
+    private boolean authenticate(HttpExchange exchange) throws IOException {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.startsWith("Digest ")) {
+            challenge(exchange, false);
+            return false;
+        }
+        Map<String, String> params = new HashMap<>();
+        Matcher m = AUTH_PARAM.matcher(header.substring(7));
+        while (m.find()) {
+            params.put(m.group(1), m.group(2) != null ? m.group(2) : m.group(3));
+        }
+        String nonceValue = params.get("nonce");
+        String uri = params.get("uri");
+        if (!options.username.equals(params.get("username")) || nonceValue == null || uri == null) {
+            authFailures.incrementAndGet();
+            challenge(exchange, false);
+            return false;
+        }
+        String ha1 = DigestUtils.md5Hex(options.username + ":" + options.realm + ":" + options.password);
+        String ha2 = DigestUtils.md5Hex(exchange.getRequestMethod() + ":" + uri);
+        String qop = params.get("qop");
+        String expected = qop != null
+                ? DigestUtils.md5Hex(ha1 + ":" + nonceValue + ":" + params.get("nc") + ":" + params.get("cnonce") + ":" + qop + ":" + ha2)
+                : DigestUtils.md5Hex(ha1 + ":" + nonceValue + ":" + ha2);
+        if (!expected.equals(params.get("response"))) {
+            authFailures.incrementAndGet();
+            challenge(exchange, false);
+            return false;
+        }
+        Nonce nonce = nonces.get(nonceValue);
+        boolean expired = nonce == null
+                || (options.nonceTtlSeconds > 0
+                    && System.currentTimeMillis() - nonce.issuedAt > TimeUnit.SECONDS.toMillis(options.nonceTtlSeconds))
+                || (options.nonceMaxUses > 0 && nonce.uses.incrementAndGet() > options.nonceMaxUses);
+        if (expired) {
+            // 凭据正确但 nonce 过期：stale=true，客户端应直接用新 nonce 重试
+            challenge(exchange, true);
+            return false;
+        }
+        return true;
+    }
+
+    private void challenge(HttpExchange exchange, boolean stale) throws IOException {
+        challenges.incrementAndGet();
+        if (stale) {
+            staleChallenges.incrementAndGet();
+        }
+        if (nonces.size() > 1000) {
+            long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+            nonces.values().removeIf(n -> n.issuedAt < cutoff);
+        }
+        String nonce = DigestUtils.md5Hex(UUID.randomUUID().toString());
+        nonces.put(nonce, new Nonce());
+        exchange.getResponseHeaders().set("WWW-Authenticate", "Digest qop=\"auth\", realm=\"" + options.realm
+                + "\", nonce=\"" + nonce + "\", stale=\"" + (stale ? "TRUE" : "FALSE") + "\"");
+        sendStatus(exchange, 401, "unauthorized");
+    }
+
+    // ============ 工具 ============
+
+    /**
+     * 令牌桶式限速：按累计发送量推算下一块数据最早的发送时间
+     */
+    private static final class Throttle {
+        private long nextNanos = System.nanoTime();
+
+        void acquire(int bytes, long bytesPerSecond) throws InterruptedException {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(now, nextNanos);
+                nextNanos = start + bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+                waitNanos = nextNanos - now;
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+
+    private static void readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        InputStream in = exchange.getRequestBody();
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            body.write(buffer, 0, n);
+        }
+        exchange.setAttribute("body", body.toString("UTF-8"));
+    }
+
+    private void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=UTF-8");
+        send(exchange, status, xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // 海康错误响应格式
+    private void sendStatus(HttpExchange exchange, int status, String subStatusCode) throws IOException {
+        int statusCode = status == 401 ? 4 : status >= 500 ? 6 : 4;
+        sendXml(exchange, status, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<ResponseStatus version=\"2.0\" xmlns=\"http://www.hikvision.com/ver20/XMLSchema\">\n"
+                + "<requestURL>" + exchange.getRequestURI().getPath() + "</requestURL>\n"
+                + "<statusCode>" + statusCode + "</statusCode>\n"
+                + "<statusString>" + (status >= 500 ? "Device Busy" : "Invalid Operation") + "</statusString>\n"
+                + "<subStatusCode>" + subStatusCode + "</subStatusCode>\n"
+                + "</ResponseStatus>\n");
+    }
+
+    private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        statusCounts.computeIfAbsent(status, k -> new AtomicLong()).incrementAndGet();
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        bytesSent.addAndGet(body.length);
+    }
+
+    private static String xmlValue(String xml, String tag) {
+        if (xml == null) {
+            return null;
+        }
+        Matcher m = Pattern.compile("<(?:\\w+:)?" + tag + "(?:\\s[^>]*)?>([^<]*)</").matcher(xml);
+        return m.find() ? m.group(1).trim() : null;
+    }
+
+    private static String unescapeXml(String value) {
+        if (value == null) {
+            return null;
+        }
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                .replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            try {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                params.put(pair.substring(0, eq), pair.substring(eq + 1));
+            }
+        }
+        return params;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    // ============ 单独运行 ============
+
+    /**
+     * 环境变量：SIM_PORT、SIM_PROFILE（nvr_v4 / nvr_v3_legacy / ipc_v5）、SIM_USERNAME、SIM_PASSWORD、
+     * SIM_BITRATE_KBPS、SIM_BANDWIDTH_KBPS（单连接）、SIM_TOTAL_BANDWIDTH_KBPS、SIM_RANGE、SIM_CONTAINER、
+     * SIM_FAULTS（如 "download:latency=200,jitter=50,errorRate=0.1,status=503;search:latency=300"）
+     */
+    public static void main(String[] args) throws IOException {
+        Options o = optionsFromEnv(8000);
+        NvrSimulator simulator = new NvrSimulator(o).start();
+        simulator.injectFromSpec(getEnv("SIM_FAULTS", ""));
+        log.info("[模拟设备] 用户名: %s, 密码: %s, 通道: %s", o.username, o.password, o.tracks);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            simulator.stop();
+            Logger.close();
+        }, "nvr-sim-shutdown"));
+    }
+
+    /**
+     * 按上面的环境变量构造参数（SIM_FAULTS 需另外调用 injectFromSpec）
+     */
+    public static Options optionsFromEnv(int defaultPort) {
+        Options o = Options.forProfile(Profile.valueOf(getEnv("SIM_PROFILE", "nvr_v4").toUpperCase(Locale.ROOT)));
+        o.port = getEnvInt("SIM_PORT", defaultPort);
+        o.username = getEnv("SIM_USERNAME", o.username);
+        o.password = getEnv("SIM_PASSWORD", o.password);
+        o.bitrateKbps = getEnvInt("SIM_BITRATE_KBPS", o.bitrateKbps);
+        o.bandwidthBytesPerSecond = getEnvInt("SIM_BANDWIDTH_KBPS", 0) * 1000L / 8;
+        o.totalBandwidthBytesPerSecond = getEnvInt("SIM_TOTAL_BANDWIDTH_KBPS", 0) * 1000L / 8;
+        o.rangeSupported = Boolean.parseBoolean(getEnv("SIM_RANGE", String.valueOf(o.rangeSupported)));
+        o.container = getEnv("SIM_CONTAINER", o.container);
+        return o;
+    }
+
+    /**
+     * 按 "endpoint:key=value,...;endpoint:..." 注入故障（key: latency / jitter / errorRate / status / abortAfter）
+     */
+    public void injectFromSpec(String spec) {
+        for (String entry : spec.split(";")) {
+            int colon = entry.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            Fault fault = new Fault();
+            for (String kv : entry.substring(colon + 1).split(",")) {
+                String[] parts = kv.split("=", 2);
+                if (parts.length != 2) {
+                    continue;
+                }
+                String value = parts[1].trim();
+                switch (parts[0].trim()) {
+                    case "latency":
+                        fault.latencyMillis = Long.parseLong(value);
+                        break;
+                    case "jitter":
+                        fault.jitterMillis = Long.parseLong(value);
+                        break;
+                    case "errorRate":
+                        fault.errorRate = Double.parseDouble(value);
+                        break;
+                    case "status":
+                        fault.errorStatus = Integer.parseInt(value);
+                        break;
+                    case "abortAfter":
+                        fault.abortAfterBytes = Long.parseLong(value);
+                        break;
+                    default:
+                        log.warn("[模拟设备] 未知的故障参数: %s", parts[0]);
+                        break;
+                }
+            }
+            String endpoint = entry.substring(0, colon).trim();
+            inject(endpoint, fault);
+            log.info("[模拟设备] 注入故障: %s", entry.trim());
+        }
+    }
+
+    static String getEnv(String key, String defaultValue) {
+        String value = System.getenv(key);
+        return value != null && !value.trim().isEmpty() ? value.trim() : defaultValue;
+    }
+
+    static int getEnvInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(getEnv(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.comp.testISAPI;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * PartialDownload：设备忽略 Range 时的续传判断
+ */
+public class PartialDownloadTest {
+
+    private static final String SOURCE = "GET http://10.0.0.1/ISAPI/ContentMgmt/download";
+    private static final MediaType OCTET = MediaType.get("application/octet-stream");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void chunkedResponseWithoutValidatorsRestartsFromZero() throws Exception {
+        String path = interrupted(null, false);
+        PartialDownload partial = PartialDownload.open(path, SOURCE, true);
+        assertEquals(5, partial.offset());
+
+        // 分块、无校验信息：现生成的流不能按偏移拼接
+        assertEquals(0, resume(partial, response("abcdefghij", null, false)));
+        assertEquals("abcdefghij", read(path));
+    }
+
+    @Test
+    public void knownTotalLengthAllowsSkipAhead() throws Exception {
+        String path = interrupted(null, true);
+        PartialDownload partial = PartialDownload.open(path, SOURCE, true);
+
+        assertEquals(5, resume(partial, response("0123456789", null, true)));
+        assertEquals("0123456789", read(path));
+    }
+
+    @Test
+    public void changedTotalLengthRestartsFromZero() throws Exception {
+        String path = interrupted(null, true);
+        PartialDownload partial = PartialDownload.open(path, SOURCE, true);
+
+        assertEquals(0, resume(partial, response("abcdefghijkl", null, true)));
+        assertEquals("abcdefghijkl", read(path));
+    }
+
+    @Test
+    public void matchingStrongEtagAllowsSkipAhead() throws Exception {
+        String path = interrupted("\"v1\"", false);
+        PartialDownload partial = PartialDownload.open(path, SOURCE, true);
+
+        assertEquals(5, resume(partial, response("0123456789", "\"v1\"", false)));
+        assertEquals("0123456789", read(path));
+    }
+
+    @Test
+    public void weakEtagRestartsFromZero() throws Exception {
+        String path = interrupted("W/\"v1\"", false);
+        PartialDownload partial = PartialDownload.open(path, SOURCE, true);
+
+        assertEquals(0, resume(partial, response("0123456789", "W/\"v1\"", false)));
+        assertEquals("0123456789", read(path));
+    }
+
+    // 模拟上次下载 "0123456789" 只写入前 5 字节后中断
+    private String interrupted(String etag, boolean knownLength) throws Exception {
+        String path = new File(tmp.getRoot(), "seg.mp4" + PartialDownload.TMP_SUFFIX).getPath();
+        PartialDownload first = PartialDownload.open(path, SOURCE, true);
+        first.begin(response("0123456789", etag, knownLength));
+        try (FileOutputStream out = first.openOutput()) {
+            out.write("01234".getBytes(StandardCharsets.US_ASCII));
+        }
+        return path;
+    }
+
+    // 开始续传并把响应体剩余部分写入临时文件，返回写入起点
+    private static long resume(PartialDownload partial, Response response) throws Exception {
+        try (Response r = response) {
+            long start = partial.begin(r);
+            try (FileOutputStream out = partial.openOutput()) {
+                out.write(r.body().source().readByteArray());
+            }
+            return start;
+        }
+    }
+
+    private static Response response(String body, String etag, boolean knownLength) {
+        Buffer buffer = new Buffer().writeUtf8(body);
+        Response.Builder builder = new Response.Builder()
+                .request(new Request.Builder().url("http://10.0.0.1/ISAPI/ContentMgmt/download").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(buffer, OCTET, knownLength ? body.length() : -1));
+        if (etag != null) {
+            builder.header("ETag", etag);
+        }
+        return builder.build();
+    }
+
+    private static String read(String path) throws Exception {
+        return new String(Files.readAllBytes(new File(path).toPath()), StandardCharsets.US_ASCII);
+    }
+}
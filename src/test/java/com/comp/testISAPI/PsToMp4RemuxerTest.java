@@ -0,0 +1,166 @@
+package com.comp.testISAPI;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * PsDemuxer / PsToMp4Remuxer：用 SyntheticPsStream 生成与设备下载结果结构一致的 PS 流
+ */
+public class PsToMp4RemuxerTest {
+
+    private static final long BASE_PTS = 90000L * 3600;
+    private static final int PTS_PER_FRAME = 90000 / SyntheticPsStream.FPS;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void demuxesEveryFrameWithPts() throws IOException {
+        SyntheticPsStream ps = new SyntheticPsStream(BASE_PTS, 10_000, 2000, 1280, 720);
+        List<Long> pts = new ArrayList<>();
+        long[] payloadBytes = {0};
+        PsDemuxer demuxer;
+        try (InputStream in = new BufferedInputStream(ps.open(0))) {
+            demuxer = new PsDemuxer(in);
+            demuxer.run((streamId, p, dts, data, offset, length) -> {
+                assertEquals(0xE0, streamId);
+                if (p >= 0) {
+                    pts.add(p);
+                }
+                payloadBytes[0] += length;
+            });
+        }
+        assertTrue(demuxer.sawPackHeader());
+        assertEquals(PsDemuxer.STREAM_TYPE_H264, demuxer.streamType(0xE0));
+        assertEquals(0, demuxer.resyncCount());
+        assertEquals(ps.length(), demuxer.position());
+        assertEquals(ps.frameCount(), pts.size());
+        for (int i = 0; i < pts.size(); i++) {
+            assertEquals(BASE_PTS + (long) i * PTS_PER_FRAME, (long) pts.get(i));
+        }
+        assertTrue(payloadBytes[0] > 0);
+    }
+
+    @Test
+    public void remuxProducesWellFormedMp4() throws IOException {
+        SyntheticPsStream ps = new SyntheticPsStream(BASE_PTS, 10_000, 2000, 1280, 720);
+        File output = tmp.newFile("out.mp4");
+        PsToMp4Remuxer.Result result = remux(ps, 0, output, new PsToMp4Remuxer.Options());
+
+        assertEquals("H.264", result.videoCodec);
+        assertEquals(1280, result.width);
+        assertEquals(720, result.height);
+        assertEquals(ps.frameCount(), result.videoSamples);
+        assertEquals(0, result.droppedLeadingFrames);
+        assertEquals(0, result.audioSamples);
+        assertEquals(10.0, result.durationSeconds, 0.1);
+        assertEquals(output.length(), result.outputBytes);
+
+        Mp4Boxes mp4 = Mp4Boxes.read(output.toPath());
+        assertEquals("ftyp", mp4.root.children.get(0).type);
+        assertNotNull(mp4.root.child("mdat"));
+        assertNotNull(mp4.root.child("moov"));
+        Mp4Boxes.Box video = mp4.videoTrack();
+        Mp4Boxes.Box stsd = video.path("mdia/minf/stbl/stsd");
+        assertEquals(1, mp4.entryCount(stsd));
+        assertEquals("avc1", new String(mp4.data, stsd.bodyStart() + 12, 4, StandardCharsets.US_ASCII));
+        assertEquals(ps.frameCount(), mp4.sampleCount(video));
+        assertEquals(ps.frameCount(), mp4.sttsSampleCount(video));
+        assertNull(mp4.compositionOffsets(video));
+
+        long[] sync = mp4.syncSamples(video);
+        assertEquals(ps.frameCount() / SyntheticPsStream.GOP_FRAMES, sync.length);
+        for (int i = 0; i < sync.length; i++) {
+            assertEquals(1L + (long) i * SyntheticPsStream.GOP_FRAMES, sync[i]);
+        }
+
+        // 样本数据全部位于 mdat 内
+        Mp4Boxes.Box mdat = mp4.root.child("mdat");
+        long sampleBytes = 0;
+        for (long size : mp4.sampleSizes(video)) {
+            sampleBytes += size;
+        }
+        assertEquals(mdat.size - mdat.headerSize, sampleBytes);
+        for (long offset : mp4.chunkOffsets(video)) {
+            assertTrue(offset >= mdat.start + mdat.headerSize && offset < mdat.start + mdat.size);
+        }
+    }
+
+    @Test
+    public void dropsFramesBeforeFirstKeyframe() throws IOException {
+        SyntheticPsStream ps = new SyntheticPsStream(BASE_PTS, 10_000, 2000, 640, 480);
+        // 从第 10 帧开始读：第一个 GOP 剩下的 40 帧不是关键帧，应被丢弃
+        byte[] head = new byte[(int) Math.min(ps.length(), 4 << 20)];
+        try (InputStream in = ps.open(0)) {
+            int n = 0;
+            while (n < head.length) {
+                n += in.read(head, n, head.length - n);
+            }
+        }
+        long offset = frameOffset(head, 10);
+
+        File output = tmp.newFile("tail.mp4");
+        PsToMp4Remuxer.Result result = remux(ps, offset, output, new PsToMp4Remuxer.Options());
+        assertEquals(SyntheticPsStream.GOP_FRAMES - 10, result.droppedLeadingFrames);
+        assertEquals(ps.frameCount() - SyntheticPsStream.GOP_FRAMES, result.videoSamples);
+
+        Mp4Boxes mp4 = Mp4Boxes.read(output.toPath());
+        assertEquals(1L, mp4.syncSamples(mp4.videoTrack())[0]);
+    }
+
+    @Test
+    public void windowStartsAtPrecedingKeyframe() throws IOException {
+        SyntheticPsStream ps = new SyntheticPsStream(BASE_PTS, 10_000, 2000, 640, 480);
+        PsToMp4Remuxer.Options options = new PsToMp4Remuxer.Options();
+        options.windowOffsetMillis = 3000;
+        options.windowDurationMillis = 4000;
+        File output = tmp.newFile("window.mp4");
+        PsToMp4Remuxer.Result result = remux(ps, 0, output, options);
+
+        assertEquals(2.0, result.windowStartSeconds, 0.001);
+        assertTrue(result.windowComplete);
+        // 关键帧 2s 到窗口结束 7s
+        assertEquals(5 * SyntheticPsStream.FPS, result.videoSamples);
+        Mp4Boxes mp4 = Mp4Boxes.read(output.toPath());
+        Mp4Boxes.Box video = mp4.videoTrack();
+        assertEquals(result.videoSamples, mp4.sampleCount(video));
+        assertEquals(1L, mp4.syncSamples(video)[0]);
+    }
+
+    @Test(expected = IOException.class)
+    public void cancellationAbortsRemux() throws IOException {
+        SyntheticPsStream ps = new SyntheticPsStream(BASE_PTS, 60_000, 2000, 640, 480);
+        try (InputStream in = new BufferedInputStream(ps.open(0))) {
+            PsToMp4Remuxer.remux(in, tmp.newFile("cancel.mp4"), new PsToMp4Remuxer.Options(), () -> true);
+        }
+    }
+
+    private static PsToMp4Remuxer.Result remux(SyntheticPsStream ps, long offset, File output,
+                                               PsToMp4Remuxer.Options options) throws IOException {
+        try (InputStream in = new BufferedInputStream(ps.open(offset))) {
+            return PsToMp4Remuxer.remux(in, output, options, () -> false);
+        }
+    }
+
+    // 第 n 个 pack header（从 0 开始）的字节偏移；每帧以一个 pack header 开始
+    private static long frameOffset(byte[] ps, int n) {
+        int seen = -1;
+        for (int i = 0; i + 3 < ps.length; i++) {
+            if (ps[i] == 0 && ps[i + 1] == 0 && ps[i + 2] == 1 && (ps[i + 3] & 0xFF) == 0xBA && ++seen == n) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("找不到第 " + n + " 帧");
+    }
+}
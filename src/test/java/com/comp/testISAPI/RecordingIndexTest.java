@@ -0,0 +1,129 @@
+package com.comp.testISAPI;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * RecordingIndex：覆盖区间与设备查询
+ */
+public class RecordingIndexTest {
+
+    private static final String DEVICE = "10.0.0.1:80";
+    private static final String CREDENTIAL = "c0ffee";
+    private static final String START = "2026-01-01T00:00:00Z";
+    private static final String END = "2026-01-01T02:00:00Z";
+    private static final LocalDateTime DEVICE_NOW = LocalDateTime.of(2026, 1, 2, 0, 0);
+    private static final String TIME_MODE = "DEVICE_LOCAL_LITERAL_Z";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void completeResultIsServedFromIndex() throws Exception {
+        RecordingIndex index = newIndex();
+        CountingLoader loader = new CountingLoader(false);
+
+        assertEquals(RecordingIndex.MISS, index.search(DEVICE, CREDENTIAL, "101", START, END, DEVICE_NOW, false, loader).result);
+        RecordingIndex.Lookup cached = index.search(DEVICE, CREDENTIAL, "101", START, END, DEVICE_NOW, false, loader);
+        assertEquals(RecordingIndex.HIT, cached.result);
+        assertFalse(cached.truncated);
+        assertEquals(2, cached.recordings.size());
+        assertEquals(1, loader.calls);
+    }
+
+    @Test
+    public void truncatedResultIsNotCovered() throws Exception {
+        RecordingIndex index = newIndex();
+        CountingLoader loader = new CountingLoader(true);
+
+        RecordingIndex.Lookup first = index.search(DEVICE, CREDENTIAL, "101", START, END, DEVICE_NOW, false, loader);
+        assertTrue(first.truncated);
+        assertEquals(2, first.recordings.size());
+        assertTrue((Boolean) first.toMap().get("truncated"));
+
+        // 截断的时间段下次仍要向设备查询
+        RecordingIndex.Lookup second = index.search(DEVICE, CREDENTIAL, "101", START, END, DEVICE_NOW, false, loader);
+        assertEquals(RecordingIndex.MISS, second.result);
+        assertTrue(second.truncated);
+        assertEquals(2, loader.calls);
+    }
+
+    @Test
+    public void savedFileIsOwnerOnlyAndReloads() throws Exception {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        File file = new File(tmp.getRoot(), "state/recording-index.json");
+        RecordingIndex index = new RecordingIndex(60, TimeUnit.MINUTES, 10, 60, 16, TIME_MODE, file);
+        CountingLoader loader = new CountingLoader(false);
+        index.search(DEVICE, CREDENTIAL, "101", START, END, DEVICE_NOW, false, loader);
+        index.saveIfDirty();
+
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+        RecordingIndex reloaded = new RecordingIndex(60, TimeUnit.MINUTES, 10, 60, 16, TIME_MODE, file);
+        reloaded.load();
+        assertEquals(RecordingIndex.HIT,
+                reloaded.search(DEVICE, CREDENTIAL, "101", START, END, DEVICE_NOW, false, loader).result);
+        assertEquals(RecordingIndex.MISS,
+                reloaded.search(DEVICE, "other", "101", START, END, DEVICE_NOW, false, loader).result);
+    }
+
+    @Test
+    public void fileFromAnotherTimeModeIsDiscarded() throws Exception {
+        File file = new File(tmp.getRoot(), "recording-index.json");
+        CountingLoader loader = new CountingLoader(false);
+        RecordingIndex local = new RecordingIndex(60, TimeUnit.MINUTES, 10, 60, 16, TIME_MODE, file);
+        local.search(DEVICE, CREDENTIAL, "101", START, END, DEVICE_NOW, false, loader);
+        local.saveIfDirty();
+
+        RecordingIndex utc = new RecordingIndex(60, TimeUnit.MINUTES, 10, 60, 16, "UTC_Z", file);
+        utc.load();
+        assertEquals(0, utc.segmentCount());
+        assertEquals(RecordingIndex.MISS,
+                utc.search(DEVICE, CREDENTIAL, "101", START, END, DEVICE_NOW, false, loader).result);
+        assertEquals(2, loader.calls);
+    }
+
+    private static RecordingIndex newIndex() {
+        return new RecordingIndex(60, TimeUnit.MINUTES, 10, 60, 16, TIME_MODE, null);
+    }
+
+    private static ISAPIWebServer.RecordingInfo recording(String start, String end) {
+        ISAPIWebServer.RecordingInfo rec = new ISAPIWebServer.RecordingInfo();
+        rec.trackId = "101";
+        rec.startTime = start;
+        rec.endTime = end;
+        rec.playbackURI = "rtsp://10.0.0.1/Streaming/tracks/101/?starttime=" + start;
+        return rec;
+    }
+
+    private static final class CountingLoader implements RecordingIndex.Loader {
+        private final boolean truncated;
+        int calls;
+
+        CountingLoader(boolean truncated) {
+            this.truncated = truncated;
+        }
+
+        @Override
+        public RecordingIndex.Fetched search(String start, String end) {
+            calls++;
+            List<ISAPIWebServer.RecordingInfo> recordings = new ArrayList<>();
+            recordings.add(recording("2026-01-01T00:10:00Z", "2026-01-01T00:40:00Z"));
+            recordings.add(recording("2026-01-01T01:00:00Z", "2026-01-01T01:30:00Z"));
+            return new RecordingIndex.Fetched(Collections.unmodifiableList(recordings), truncated);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.comp.testISAPI;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * 合成的 MPEG-PS 录像流（NvrSimulator 使用）
+ * - 结构与海康设备下载结果一致：每帧一个 pack header，关键帧前带 PSM（stream_type 0x1B），视频 PES 带 PTS
+ * - H.264 SPS/PPS 是合法码流（按分辨率生成），帧数据是填充字节：可以解复用、转封装、按关键帧裁剪，但不能解码播放
+ * - 内容只由参数决定：同一参数任意偏移打开得到的字节相同，可直接支持 Range 请求
+ * - 按需逐帧生成，不在内存中保存整段录像
+ */
+public final class SyntheticPsStream {
+
+    public static final int FPS = 25;
+    public static final int GOP_FRAMES = 50; // 2 秒一个关键帧
+    private static final int PTS_PER_FRAME = 90000 / FPS;
+    private static final int MAX_PES_PAYLOAD = 65000;
+    private static final int KEYFRAME_WEIGHT = 8; // 关键帧大小约为 P 帧的 8 倍
+
+    private final long basePts;
+    private final int frameCount;
+    private final int keyframePayload;
+    private final int pframePayload;
+    private final byte[] sps;
+    private final byte[] pps;
+    private final int keyframeSize;
+    private final int pframeSize;
+
+    /**
+     * @param basePts         第一帧 PTS（90kHz），同一段录像不同窗口应使用一致的时间基准
+     * @param durationMillis  时长（按 25fps 取整，至少 1 帧）
+     * @param bitrateKbps     视频码率，决定每帧字节数
+     */
+    public SyntheticPsStream(long basePts, long durationMillis, int bitrateKbps, int width, int height) {
+        this.basePts = basePts & 0x1FFFFFFFFL;
+        this.frameCount = (int) Math.max(1, durationMillis * FPS / 1000);
+        long bytesPerGop = Math.max(1, bitrateKbps) * 1000L / 8 * GOP_FRAMES / FPS;
+        this.pframePayload = (int) Math.max(64, bytesPerGop / (GOP_FRAMES - 1 + KEYFRAME_WEIGHT));
+        this.keyframePayload = pframePayload * KEYFRAME_WEIGHT;
+        this.sps = buildSps(width, height);
+        this.pps = buildPps();
+        this.keyframeSize = frame(0).length;
+        this.pframeSize = frameCount > 1 ? frame(1).length : 0;
+    }
+
+    public int frameCount() {
+        return frameCount;
+    }
+
+    public long length() {
+        long keyframes = (frameCount + GOP_FRAMES - 1) / GOP_FRAMES;
+        return keyframes * keyframeSize + (frameCount - keyframes) * (long) pframeSize;
+    }
+
+    /**
+     * 从指定字节偏移开始读取
+     */
+    public InputStream open(long offset) {
+        return new FrameInputStream(Math.max(0, offset));
+    }
+
+    private int frameSize(int index) {
+        return index % GOP_FRAMES == 0 ? keyframeSize : pframeSize;
+    }
+
+    // 一帧：pack header + （关键帧）PSM + 一个或多个视频 PES
+    private byte[] frame(int index) {
+        boolean key = index % GOP_FRAMES == 0;
+        byte[] es = elementaryStream(key, index);
+        int pesCount = (es.length + MAX_PES_PAYLOAD - 1) / MAX_PES_PAYLOAD;
+        int size = 14 + (key ? 20 : 0) + es.length + 9 + 5 + (pesCount - 1) * 9;
+        ByteWriter out = new ByteWriter(size);
+        writePackHeader(out);
+        if (key) {
+            writeStreamMap(out);
+        }
+        long pts = (basePts + (long) index * PTS_PER_FRAME) & 0x1FFFFFFFFL;
+        for (int pos = 0, n = 0; pos < es.length; pos += MAX_PES_PAYLOAD, n++) {
+            int len = Math.min(MAX_PES_PAYLOAD, es.length - pos);
+            boolean withPts = n == 0; // 同一帧拆成多个 PES 时只有第一个带 PTS
+            out.u32(0x000001E0);
+            out.u16(3 + (withPts ? 5 : 0) + len);
+            out.u8(0x80);
+            out.u8(withPts ? 0x80 : 0x00);
+            out.u8(withPts ? 5 : 0);
+            if (withPts) {
+                writeTimestamp(out, 0x20, pts);
+            }
+            out.bytes(es, pos, len);
+        }
+        return out.toByteArray();
+    }
+
+    // Annex B：关键帧为 SPS + PPS + IDR，其余为 non-IDR slice；slice 内容是不含 0x00 的填充字节
+    private byte[] elementaryStream(boolean key, int index) {
+        int payload = key ? keyframePayload : pframePayload;
+        ByteWriter out = new ByteWriter(payload + sps.length + pps.length + 16);
+        if (key) {
+            out.u32(1).bytes(sps, 0, sps.length);
+            out.u32(1).bytes(pps, 0, pps.length);
+        }
+        out.u32(1).u8(key ? 0x65 : 0x41);
+        for (int i = 0; i < payload; i++) {
+            out.u8(0x80 | ((index + i) & 0x7F));
+        }
+        return out.toByteArray();
+    }
+
+    // MPEG-2 pack header，SCR 固定为 0（解复用只用 PES 的 PTS）
+    private static void writePackHeader(ByteWriter out) {
+        out.u32(0x000001BA);
+        out.u8(0x44).u8(0x00).u8(0x04).u8(0x00).u8(0x04).u8(0x01); // SCR + marker
+        out.u8(0x01).u8(0x89).u8(0xC3); // program_mux_rate + marker
+        out.u8(0xF8); // 无填充
+    }
+
+    // PSM：只声明一路 H.264 视频（0xE0）
+    private static void writeStreamMap(ByteWriter out) {
+        byte[] body = {
+                (byte) 0xE0, (byte) 0xFF, // current_next_indicator / version / marker
+                0x00, 0x00,               // program_stream_info_length
+                0x00, 0x04,               // elementary_stream_map_length
+                0x1B, (byte) 0xE0, 0x00, 0x00
+        };
+        out.u32(0x000001BC);
+        out.u16(body.length + 4);
+        out.bytes(body, 0, body.length);
+        out.u32(crc32Mpeg(0x000001BC, body.length + 4, body));
+    }
+
+    private static void writeTimestamp(ByteWriter out, int prefix, long ts) {
+        out.u8(prefix | (int) ((ts >> 29) & 0x0E) | 0x01);
+        out.u16((int) (((ts >> 14) & 0xFFFE) | 0x01));
+        out.u16((int) (((ts << 1) & 0xFFFE) | 0x01));
+    }
+
+    // ============ H.264 参数集 ============
+
+    // Baseline profile, level 4.0, POC type 2，按分辨率写 pic_width/height 和裁剪
+    static byte[] buildSps(int width, int height) {
+        int widthMbs = (width + 15) / 16;
+        int heightMbs = (height + 15) / 16;
+        int cropRight = (widthMbs * 16 - width) / 2;
+        int cropBottom = (heightMbs * 16 - height) / 2;
+        BitWriter w = new BitWriter();
+        w.u(8, 66);   // profile_idc
+        w.u(8, 0xC0); // constraint_set0/1
+        w.u(8, 40);   // level_idc
+        w.ue(0);      // seq_parameter_set_id
+        w.ue(0);      // log2_max_frame_num_minus4
+        w.ue(2);      // pic_order_cnt_type
+        w.ue(1);      // max_num_ref_frames
+        w.u(1, 0);    // gaps_in_frame_num_value_allowed_flag
+        w.ue(widthMbs - 1);
+        w.ue(heightMbs - 1);
+        w.u(1, 1);    // frame_mbs_only_flag
+        w.u(1, 1);    // direct_8x8_inference_flag
+        if (cropRight > 0 || cropBottom > 0) {
+            w.u(1, 1);
+            w.ue(0);
+            w.ue(cropRight);
+            w.ue(0);
+            w.ue(cropBottom);
+        } else {
+            w.u(1, 0);
+        }
+        w.u(1, 0);    // vui_parameters_present_flag
+        return nal(0x67, w.finish());
+    }
+
+    static byte[] buildPps() {
+        BitWriter w = new BitWriter();
+        w.ue(0);   // pic_parameter_set_id
+        w.ue(0);   // seq_parameter_set_id
+        w.u(1, 0); // entropy_coding_mode_flag (CAVLC)
+        w.u(1, 0); // bottom_field_pic_order_in_frame_present_flag
+        w.ue(0);   // num_slice_groups_minus1
+        w.ue(0);   // num_ref_idx_l0_default_active_minus1
+        w.ue(0);   // num_ref_idx_l1_default_active_minus1
+        w.u(1, 0); // weighted_pred_flag
+        w.u(2, 0); // weighted_bipred_idc
+        w.se(0);   // pic_init_qp_minus26
+        w.se(0);   // pic_init_qs_minus26
+        w.se(0);   // chroma_qp_index_offset
+        w.u(1, 1); // deblocking_filter_control_present_flag
+        w.u(1, 0); // constrained_intra_pred_flag
+        w.u(1, 0); // redundant_pic_cnt_present_flag
+        return nal(0x68, w.finish());
+    }
+
+    // NAL 头 + 加入防竞争字节（00 00 0x → 00 00 03 0x）的 RBSP
+    private static byte[] nal(int header, byte[] rbsp) {
+        ByteWriter out = new ByteWriter(rbsp.length * 3 / 2 + 2);
+        out.u8(header);
+        int zeros = 0;
+        for (byte b : rbsp) {
+            if (zeros >= 2 && (b & 0xFF) <= 3) {
+                out.u8(3);
+                zeros = 0;
+            }
+            out.u8(b & 0xFF);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return out.toByteArray();
+    }
+
+    private static int crc32Mpeg(int startCode, int length, byte[] body) {
+        int crc = 0xFFFFFFFF;
+        byte[] head = {0x00, 0x00, 0x01, (byte) (startCode & 0xFF), (byte) (length >> 8), (byte) length};
+        for (byte[] part : new byte[][]{head, body}) {
+            for (byte b : part) {
+                crc ^= (b & 0xFF) << 24;
+                for (int i = 0; i < 8; i++) {
+                    crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+                }
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * 逐帧生成的输入流；起始偏移按帧大小直接跳过前面的帧
+     */
+    private final class FrameInputStream extends InputStream {
+        private int nextFrame;
+        private byte[] current = new byte[0];
+        private int pos;
+
+        FrameInputStream(long offset) {
+            long remaining = offset;
+            while (nextFrame < frameCount && remaining >= frameSize(nextFrame)) {
+                remaining -= frameSize(nextFrame);
+                nextFrame++;
+            }
+            if (nextFrame < frameCount && remaining > 0) {
+                current = frame(nextFrame++);
+                pos = (int) remaining;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= current.length) {
+                if (nextFrame >= frameCount) {
+                    return -1;
+                }
+                current = frame(nextFrame++);
+                pos = 0;
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    private static final class ByteWriter {
+        private byte[] buf;
+        private int size;
+
+        ByteWriter(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        ByteWriter u8(int v) {
+            ensure(1);
+            buf[size++] = (byte) v;
+            return this;
+        }
+
+        ByteWriter u16(int v) {
+            return u8(v >> 8).u8(v);
+        }
+
+        ByteWriter u32(int v) {
+            return u16(v >>> 16).u16(v & 0xFFFF);
+        }
+
+        ByteWriter bytes(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, size, len);
+            size += len;
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return size == buf.length ? buf : Arrays.copyOf(buf, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+    }
+
+    private static final class BitWriter {
+        private final ByteWriter out = new ByteWriter(32);
+        private int current;
+        private int bits;
+
+        void u(int count, int value) {
+            for (int i = count - 1; i >= 0; i--) {
+                current = (current << 1) | ((value >> i) & 1);
+                if (++bits == 8) {
+                    out.u8(current);
+                    current = 0;
+                    bits = 0;
+                }
+            }
+        }
+
+        void ue(int value) {
+            int v = value + 1;
+            int len = 32 - Integer.numberOfLeadingZeros(v);
+            u(len - 1, 0);
+            u(len, v);
+        }
+
+        void se(int value) {
+            ue(value <= 0 ? -2 * value : 2 * value - 1);
+        }
+
+        // rbsp_trailing_bits
+        byte[] finish() {
+            u(1, 1);
+            while (bits != 0) {
+                u(1, 0);
+            }
+            return out.toByteArray();
+        }
+    }
+}